@@ -0,0 +1,47 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.character.stream.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link CharacterDataEvent} whose data has already been encoded into bytes using a known
+ * character set, allowing it to be written directly to an {@link OutputStream}
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface EncodedCharacterDataEvent extends CharacterDataEvent {
+    /**
+     * @return The name of the character set the data is encoded with
+     */
+    public String getCharacterSet();
+    
+    /**
+     * @return The number of bytes of encoded data
+     */
+    public int getEncodedLength();
+    
+    /**
+     * Write the pre-encoded bytes of this event to the stream
+     */
+    public void writeEncodedData(OutputStream out) throws IOException;
+}
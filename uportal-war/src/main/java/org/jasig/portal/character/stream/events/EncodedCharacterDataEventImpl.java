@@ -0,0 +1,105 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.character.stream.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.springframework.util.Assert;
+
+/**
+ * Stores only the encoded bytes of the character data, {@link #getData()} decodes the bytes
+ * on every call. Events are held in caches and written with {@link #writeEncodedData(OutputStream)}
+ * so keeping the decoded data as well would double the memory used for rarely needed Strings.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class EncodedCharacterDataEventImpl implements EncodedCharacterDataEvent {
+    private static final long serialVersionUID = 1L;
+    
+    private final String characterSet;
+    private final byte[] encodedData;
+    
+    public EncodedCharacterDataEventImpl(String data, String characterSet) {
+        Assert.notNull(data);
+        Assert.notNull(characterSet);
+        
+        this.characterSet = characterSet;
+        try {
+            this.encodedData = data.getBytes(characterSet);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Unsupported character set: " + characterSet, e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterDataEvent#getData()
+     */
+    @Override
+    public String getData() {
+        try {
+            return new String(this.encodedData, this.characterSet);
+        }
+        catch (UnsupportedEncodingException e) {
+            //Not possible, the character set was verified in the constructor
+            throw new IllegalStateException("Unsupported character set: " + this.characterSet, e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.EncodedCharacterDataEvent#getCharacterSet()
+     */
+    @Override
+    public String getCharacterSet() {
+        return this.characterSet;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.EncodedCharacterDataEvent#writeEncodedData(java.io.OutputStream)
+     */
+    @Override
+    public void writeEncodedData(OutputStream out) throws IOException {
+        out.write(this.encodedData);
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.EncodedCharacterDataEvent#getEncodedLength()
+     */
+    @Override
+    public int getEncodedLength() {
+        return this.encodedData.length;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.character.stream.events.CharacterEvent#getEventType()
+     */
+    @Override
+    public CharacterEventTypes getEventType() {
+        return CharacterEventTypes.CHARACTER;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedCharacterDataEventImpl [characterSet=" + this.characterSet + ", data=" + this.getData() + "]\n";
+    }
+}
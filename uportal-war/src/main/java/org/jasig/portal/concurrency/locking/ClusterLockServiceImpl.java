@@ -19,13 +19,13 @@
 
 package org.jasig.portal.concurrency.locking;
 
-import java.util.concurrent.Callable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -42,6 +42,11 @@ import com.google.common.base.Function;
 import com.google.common.collect.MapMaker;
 
 /**
+ * Cluster lock service that holds a local {@link ReentrantLock} and a database lock for each mutex. The calling
+ * thread acquires and releases the database lock itself, while locked the mutex is registered as a lease. A
+ * single worker thread renews all leases held by this server in one batched update every updateLockRate,
+ * it only runs while at least one lease is held.
+ * 
  * @author Eric Dalquist
  * @version $Revision$
  */
@@ -57,11 +62,20 @@ public class ClusterLockServiceImpl implements IClusterLockService {
                     return new ReentrantLock(true);
                 }
             });
+    
+    /**
+     * Database locks currently held by this server
+     */
+    private final ConcurrentMap<String, LockLease> heldLeases = new ConcurrentHashMap<String, LockLease>();
+    
+    private final AtomicBoolean renewerRunning = new AtomicBoolean(false);
+    private final LeaseRenewalWorker leaseRenewalWorker = new LeaseRenewalWorker();
 
     private ExecutorService lockMonitorExecutorService;
     private IClusterLockDao clusterLockDao;
     private ReadableDuration updateLockRate = Duration.millis(500);
     private ReadableDuration maximumLockDuration = Duration.standardMinutes(15);
+    private boolean localOnly = false;
 
     @Autowired
     public void setClusterLockDao(IClusterLockDao clusterLockDao) {
@@ -73,9 +87,10 @@ public class ClusterLockServiceImpl implements IClusterLockService {
         this.lockMonitorExecutorService = lockMonitorExecutorService;
     }
     /**
-     * Rate at which {@link IClusterLockDao#updateLock(String)} is called while a mutex is locked, defaults to 500ms
+     * Rate at which held database locks are renewed via {@link IClusterLockDao#updateLocks(java.util.Collection)},
+     * defaults to 500ms
      */
-    @Value("${org.jasig.portal.concurrency.locking.ClusterLockDao.abandonedLockAge:PT0.500S}")
+    @Value("${org.jasig.portal.concurrency.locking.ClusterLockService.updateLockRate:PT0.500S}")
     public void setUpdateLockRate(ReadableDuration updateLockRate) {
         this.updateLockRate = updateLockRate;
     }
@@ -84,32 +99,27 @@ public class ClusterLockServiceImpl implements IClusterLockService {
      * Maximum duration that a lock can be held, functionally longest duration that the lockFunction can take to execute.
      * Defaults to 15 minutes
      */
-    @Value("${org.jasig.portal.concurrency.locking.ClusterLockDao.abandonedLockAge:PT900S}")
+    @Value("${org.jasig.portal.concurrency.locking.ClusterLockService.maximumLockDuration:PT900S}")
     public void setMaximumLockDuration(ReadableDuration maximumLockDuration) {
         this.maximumLockDuration = maximumLockDuration;
     }
+    
+    /**
+     * If true only the local lock is used and the database is never consulted. Only safe for single server
+     * deployments. Defaults to false.
+     */
+    @Value("${org.jasig.portal.concurrency.locking.ClusterLockService.localOnly:false}")
+    public void setLocalOnly(boolean localOnly) {
+        this.localOnly = localOnly;
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.concurrency.locking.IClusterLockService#doInTryLock(java.lang.String, com.google.common.base.Function)
      */
     @Override
     public <T> TryLockFunctionResult<T> doInTryLock(final String mutexName, Function<String, T> lockFunction) throws InterruptedException {
-        /*
-         * locking strategy requires 2 threads
-         * the caller thread is the 'work thread', it executes the lockFunction
-         * an additional 'lock thread' is used to acquire and maintain the database lock
-         */
-        
         this.logger.trace("doInLock({})", mutexName);
         
-        //Thread coordination objects
-        final CountDownLatch dbLockLatch = new CountDownLatch(1);
-        final CountDownLatch workCompleteLatch = new CountDownLatch(1);
-        final AtomicBoolean dbLocked = new AtomicBoolean(false);
-        
-        
-        Future<Boolean> lockFuture = null;
-        
         final ReentrantLock lock = getLocalLock(mutexName);
         final boolean lockedLocally = lock.tryLock();
         if (!lockedLocally) {
@@ -119,35 +129,25 @@ public class ClusterLockServiceImpl implements IClusterLockService {
         try {
             this.logger.trace("acquired local lock for {}", mutexName);
             
-            final DatabaseLockWorker databaseLockWorker = new DatabaseLockWorker(dbLocked, mutexName, dbLockLatch, workCompleteLatch);
-            lockFuture = this.lockMonitorExecutorService.submit(databaseLockWorker);
-            
-            //Wait for DB lock acquisition
-            dbLockLatch.await();
+            if (this.localOnly) {
+                return new TryLockFunctionResultImpl<T>(lockFunction.apply(mutexName));
+            }
             
-            if (!dbLocked.get()) {
+            if (!this.acquireLease(mutexName)) {
                 //Failed to get DB lock, stop now
                 this.logger.trace("failed to aquire database lock, returning notExecuted result for: {}", mutexName);
                 return TryLockFunctionResultImpl.getNotExecutedInstance();
             }
             
-            //Execute the lockFunction
-            return new TryLockFunctionResultImpl<T>(lockFunction.apply(mutexName));
+            try {
+                //Execute the lockFunction
+                return new TryLockFunctionResultImpl<T>(lockFunction.apply(mutexName));
+            }
+            finally {
+                this.releaseLease(mutexName);
+            }
         }
         finally {
-            //Signal db lock worker to release the lock
-            workCompleteLatch.countDown();
-            
-            if (lockFuture != null) {
-                //Wait for the db lock worker to complete 
-                try {
-                    lockFuture.get();
-                }
-                catch (ExecutionException e) {
-                    this.logger.warn("Lock manager thread for " + mutexName + " failed with an exception. Everything is cleaned up but this could indicate a problem with cluster locking", e.getCause());
-                }
-            }
-            
             //Release the local lock
             lock.unlock();
             this.logger.trace("released local lock for: {}", mutexName);
@@ -173,6 +173,10 @@ public class ClusterLockServiceImpl implements IClusterLockService {
             return true;
         }
         
+        if (this.localOnly) {
+            return false;
+        }
+        
         final ClusterMutex clusterMutex = this.clusterLockDao.getClusterMutex(mutexName);
         
         return clusterMutex.isLocked();
@@ -184,73 +188,171 @@ public class ClusterLockServiceImpl implements IClusterLockService {
     protected ReentrantLock getLocalLock(final String mutexName) {
         return this.localLocks.get(mutexName);
     }
-
+    
     /**
-     * Callable that acquires, maintains, and releases a database lock
+     * Acquire the database lock for the mutex and register the lease for renewal
+     * 
+     * @return true if the database lock was acquired
      */
-    private final class DatabaseLockWorker implements Callable<Boolean> {
-        private final AtomicBoolean dbLocked;
-        private final String mutexName;
-        private final CountDownLatch dbLockLatch;
-        private final CountDownLatch workCompleteLatch;
-
-        private DatabaseLockWorker(AtomicBoolean dbLocked, String mutexName, CountDownLatch dbLockLatch,
-                CountDownLatch workCompleteLatch) {
-            this.dbLocked = dbLocked;
-            this.mutexName = mutexName;
-            this.dbLockLatch = dbLockLatch;
-            this.workCompleteLatch = workCompleteLatch;
+    protected boolean acquireLease(String mutexName) {
+        if (!this.clusterLockDao.getLock(mutexName)) {
+            return false;
         }
-
-        @Override
-        public Boolean call() throws Exception {
+        this.logger.trace("acquired db lock for: {}", mutexName);
+        
+        this.heldLeases.put(mutexName, new LockLease(System.currentTimeMillis()));
+        
+        //Make sure the renewal worker is running
+        if (this.renewerRunning.compareAndSet(false, true)) {
             try {
-                final long lockTimeout = System.currentTimeMillis() + maximumLockDuration.getMillis();
-                try {
-                    //Try to acquire the lock, set the success to the dbLocked holder
-                    this.dbLocked.set(clusterLockDao.getLock(this.mutexName));
-                }
-                finally {
-                    //Signal the work thread that we've attempted to get the DB lock, done in finally so
-                    //the work thread won't hang if something goes wrong during acquisition
-                    this.dbLockLatch.countDown();
-                    logger.trace("Signaled dbLockLatch for: {}", this.mutexName);
-                }
+                this.lockMonitorExecutorService.execute(this.leaseRenewalWorker);
+            }
+            catch (RejectedExecutionException e) {
+                this.renewerRunning.set(false);
+                
+                //Without renewal the lock would be considered abandoned while in use, give it up
+                this.logger.warn("Failed to start lock lease renewal worker, releasing the database lock for " + mutexName, e);
+                this.releaseLease(mutexName);
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Remove the lease for the mutex and release the database lock if it is still held
+     */
+    protected void releaseLease(String mutexName) {
+        final LockLease lease = this.heldLeases.remove(mutexName);
+        if (lease == null) {
+            return;
+        }
+        
+        //Waits for renewLeases if it is giving up this lease so the database lock is released before the local lock
+        synchronized (lease) {
+            if (lease.lost) {
+                this.logger.trace("db lock for {} was already lost, not releasing", mutexName);
+                return;
+            }
+            lease.lost = true;
+            
+            try {
+                this.clusterLockDao.releaseLock(mutexName);
+                this.logger.trace("released db lock for: {}", mutexName);
+            }
+            catch (IllegalMonitorStateException e) {
+                this.logger.warn("Failed to release database lock for " + mutexName + ". Everything is cleaned up but this could indicate a problem with cluster locking", e);
+            }
+        }
+    }
+    
+    /**
+     * Renew all held leases in a single update. Leases held for longer than maximumLockDuration are given up.
+     */
+    protected void renewLeases() {
+        final long now = System.currentTimeMillis();
+        final Map<String, LockLease> renewLeases = new LinkedHashMap<String, LockLease>();
+        for (final Map.Entry<String, LockLease> leaseEntry : this.heldLeases.entrySet()) {
+            final String mutexName = leaseEntry.getKey();
+            final LockLease lease = leaseEntry.getValue();
+            if (lease.lost) {
+                continue;
+            }
+            
+            if (lease.acquired + this.maximumLockDuration.getMillis() < now) {
+                this.expireLease(mutexName, lease);
+                continue;
+            }
+            
+            renewLeases.put(mutexName, lease);
+        }
+        
+        if (renewLeases.isEmpty()) {
+            return;
+        }
+        
+        //No lock is held during the update, a lease released meanwhile is reported lost and ignored below,
+        //or it has been acquired again and renewing it is harmless
+        try {
+            final Set<String> lostMutexNames = this.clusterLockDao.updateLocks(renewLeases.keySet());
+            for (final String mutexName : lostMutexNames) {
+                final LockLease lease = renewLeases.get(mutexName);
                 
-                //If acquisition failed return immediately
-                if (!this.dbLocked.get()) {
-                    logger.trace("failed to acquire db lock for: {}", this.mutexName);
-                    return false;
+                //Only report leases that were not released while the update was running
+                if (lease != null && !lease.lost && this.heldLeases.get(mutexName) == lease) {
+                    lease.lost = true;
+                    this.logger.warn("Database lock for " + mutexName + " is no longer held by this server, the work being done while holding it is no longer protected by the lock");
                 }
-                logger.trace("acquired db lock for: {}", this.mutexName);
+            }
+            this.logger.trace("renewed {} db locks", renewLeases.size());
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to renew database locks, will retry in " + this.updateLockRate, e);
+        }
+    }
+    
+    /**
+     * Give up a lease that has been held for longer than maximumLockDuration. The lock function holding it
+     * can't be stopped safely from here so it keeps running, but no longer protected by the database lock.
+     */
+    private void expireLease(String mutexName, LockLease lease) {
+        synchronized (lease) {
+            if (lease.lost || this.heldLeases.get(mutexName) != lease) {
+                //Released while the leases were being checked
+                return;
+            }
             
-                //wait for the work to complete using the updateLockRate as the wait duration, if the wait time
-                //passes without the work thread signaling completion update the mutex (signal we still have the lock)
-                //and wait again
-                while (!this.workCompleteLatch.await(updateLockRate.getMillis(), TimeUnit.MILLISECONDS)) {
-                    clusterLockDao.updateLock(this.mutexName);
+            this.logger.warn("The database lock for " + mutexName + " has been held for more than " + this.maximumLockDuration + ", giving up and releasing the DB lock. The work being done while holding it is no longer protected by the lock");
+            lease.lost = true;
+            try {
+                this.clusterLockDao.releaseLock(mutexName);
+            }
+            catch (IllegalMonitorStateException e) {
+                this.logger.warn("Failed to release database lock for " + mutexName, e);
+            }
+        }
+    }
+    
+    /**
+     * A database lock held by this server
+     */
+    private static final class LockLease {
+        private final long acquired;
+        private volatile boolean lost = false;
+        
+        public LockLease(long acquired) {
+            this.acquired = acquired;
+        }
+    }
+
+    /**
+     * Renews held leases every updateLockRate until no leases are held
+     */
+    private final class LeaseRenewalWorker implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Thread.sleep(updateLockRate.getMillis());
+                    
+                    renewLeases();
                     
-                    if (lockTimeout < System.currentTimeMillis()) {
-                        //TODO is there some way to force the work thread to stop now that the lock thread is giving up?
-                        //TODO better exception type?
-                        throw new RuntimeException("The database lock has been held for more than " + maximumLockDuration + ", giving up and releasing the DB lock.");
+                    if (heldLeases.isEmpty()) {
+                        renewerRunning.set(false);
+                        
+                        //A lease may have been added after the empty check, keep running if nobody else started a worker
+                        if (heldLeases.isEmpty() || !renewerRunning.compareAndSet(false, true)) {
+                            logger.trace("no db locks held, lease renewal worker stopping");
+                            return;
+                        }
                     }
                 }
             }
-            catch (Exception e) {
-                logger.warn("DB Lock Worker failed for " + mutexName + " due to an exception.", e);
-                throw e;
+            catch (InterruptedException e) {
+                renewerRunning.set(false);
+                logger.warn("Lease renewal worker interrupted, held database locks will not be renewed until another lock is acquired", e);
             }
-            finally {
-                //If the db lock was acquired release it
-                if (this.dbLocked.get()) {
-                    clusterLockDao.releaseLock(this.mutexName);
-                    logger.trace("released db lock for: {}", this.mutexName);
-                }
-            }
-            
-            logger.trace("DB lock worker returning true: {}", this.mutexName);
-            return true;
         }
     }
     
@@ -19,6 +19,8 @@
 
 package org.jasig.portal.concurrency.locking;
 
+import java.util.Collection;
+import java.util.Set;
 
 /**
  * DB based locking DAO.
@@ -57,6 +59,14 @@ interface IClusterLockDao {
      */
     void updateLock(String mutexName);
     
+    /**
+     * Update all of the specified mutexes in a single transaction, each mutex should already be locked by this server.
+     * 
+     * @param mutexNames The mutexes to update
+     * @return The names of the mutexes that could not be updated because they are not locked by this server
+     */
+    Set<String> updateLocks(Collection<String> mutexNames);
+    
     /**
      * Release the specified mutex, the mutex must already be locked by this server.
      * 
@@ -19,7 +19,10 @@
 
 package org.jasig.portal.concurrency.locking;
 
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.persistence.EntityManager;
 import javax.persistence.OptimisticLockException;
@@ -217,6 +220,60 @@ public class JpaClusterLockDao extends BaseJpaDao implements IClusterLockDao {
         });
     }
 
+    @Override
+    public Set<String> updateLocks(final Collection<String> mutexNames) {
+        final Set<String> lostMutexNames = new LinkedHashSet<String>();
+        
+        final Boolean updated = this.executeIgnoreRollback(new TransactionCallback<Boolean>() {
+            @Override
+            public Boolean doInTransaction(TransactionStatus status) {
+                for (final String mutexName : mutexNames) {
+                    final ClusterMutex clusterMutex = getClusterMutex(mutexName);
+                    
+                    try {
+                        validateLockedMutex(clusterMutex);
+                    }
+                    catch (IllegalMonitorStateException e) {
+                        logger.trace("Not updating {}: {}", mutexName, e.getMessage());
+                        lostMutexNames.add(mutexName);
+                        continue;
+                    }
+                    
+                    clusterMutex.updateLock();
+                    entityManager.persist(clusterMutex);
+                }
+                
+                try {
+                    entityManager.flush();
+                    logger.trace("Updated {}", mutexNames);
+                }
+                catch (OptimisticLockException e) {
+                    logger.trace("One of {} was updated by another thread or server", mutexNames);
+                    status.setRollbackOnly();
+                    return false;
+                }
+                
+                return true;
+            }
+        }, false);
+        
+        if (updated) {
+            return lostMutexNames;
+        }
+        
+        //A mutex was modified concurrently, update each mutex on its own to find out which
+        lostMutexNames.clear();
+        for (final String mutexName : mutexNames) {
+            try {
+                this.updateLock(mutexName);
+            }
+            catch (IllegalMonitorStateException e) {
+                lostMutexNames.add(mutexName);
+            }
+        }
+        return lostMutexNames;
+    }
+
     @Override
     public void releaseLock(final String mutexName) {
         this.executeIgnoreRollback(new TransactionCallbackWithoutResult() {
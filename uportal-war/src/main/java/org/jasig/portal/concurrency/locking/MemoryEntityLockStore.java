@@ -128,12 +128,12 @@ throws LockingException
     while ( cacheIterator.hasNext() )
     {
         cache = (Map) cacheIterator.next();
-        cacheKeyIterator = cache.keySet().iterator();
         List keys = new ArrayList();
 
         // Synchronize on the cache only while collecting its keys.  There is some
         // exposure here.
         synchronized (cache) {
+        cacheKeyIterator = cache.keySet().iterator();
         while ( cacheKeyIterator.hasNext() )
             { keys.add(cacheKeyIterator.next()); }
         }
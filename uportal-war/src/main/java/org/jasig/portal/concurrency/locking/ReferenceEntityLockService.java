@@ -58,6 +58,11 @@ public class ReferenceEntityLockService implements IEntityLockService
      * inMemory == false.  Defaults to 5000.
      */
     private int lockToleranceMillis = 5000;
+
+    // Serializes the conflict check and store update for locks on the same
+    // entity within this server:
+    private static final int ENTITY_STRIPES = 64;
+    private final Object[] entityStripes = new Object[ENTITY_STRIPES];
 /**
  * ReferenceEntityLockingService constructor comment.
  */
@@ -94,16 +99,19 @@ public void convert(IEntityLock lock, int newType, int newDuration) throws Locki
     if ( ! isValid(lock) )
         { throw new LockingException("Could not convert " + lock + " : lock is invalid."); }
 
-    if ( newType == WRITE_LOCK && retrieveLocks(lock.getEntityType(), lock.getEntityKey(), null).length > 1 )
-        { throw new LockingException("Could not convert " + lock + " : another lock already exists."); }
-
     if ( newType == READ_LOCK )
         { /* Can always convert to READ */ }
 
-    Date newExpiration = getNewExpiration(newDuration);
-    getLockStore().update(lock, newExpiration, new Integer(newType));
-    ((EntityLockImpl)lock).setLockType(newType);
-    ((EntityLockImpl)lock).setExpirationTime(newExpiration);
+    synchronized (getEntityStripe(lock.getEntityType(), lock.getEntityKey()))
+    {
+        if ( newType == WRITE_LOCK && retrieveLocks(lock.getEntityType(), lock.getEntityKey(), null).length > 1 )
+            { throw new LockingException("Could not convert " + lock + " : another lock already exists."); }
+
+        Date newExpiration = getNewExpiration(newDuration);
+        getLockStore().update(lock, newExpiration, new Integer(newType));
+        ((EntityLockImpl)lock).setLockType(newType);
+        ((EntityLockImpl)lock).setExpirationTime(newExpiration);
+    }
 }
 
 /**
@@ -141,6 +149,14 @@ private IEntityLockStore getLockStore() {
 private int getLockToleranceMillis() {
     return lockToleranceMillis;
 }
+/**
+ * @return the monitor that serializes lock changes for the entity
+ */
+private Object getEntityStripe(Class entityType, String entityKey)
+{
+    int hash = 31 * entityType.hashCode() + entityKey.hashCode();
+    return entityStripes[(hash & 0x7fffffff) % entityStripes.length];
+}
 /**
  * @return java.util.Date
  */
@@ -155,13 +171,25 @@ private void initialize() throws LockingException
 {
     String eMsg = null;
 
+    for ( int i = 0; i < entityStripes.length; i++ )
+        { entityStripes[i] = new Object(); }
+
     try
     {
         multiServer = PropertiesManager.getPropertyAsBoolean("org.jasig.portal.concurrency.multiServer", false);
+        boolean stripedLockStore = PropertiesManager.getPropertyAsBoolean("org.jasig.portal.concurrency.stripedLockStore", false);
 
-        lockStore = ( multiServer )
-            ? RDBMEntityLockStore.singleton()
-            : MemoryEntityLockStore.singleton();
+        if ( stripedLockStore )
+        {
+            // Keep locks in memory, writing through to the database for other servers:
+            lockStore = new StripedEntityLockStore( multiServer ? RDBMEntityLockStore.singleton() : null );
+        }
+        else
+        {
+            lockStore = ( multiServer )
+                ? RDBMEntityLockStore.singleton()
+                : MemoryEntityLockStore.singleton();
+        }
     }
     catch ( Exception e )
     {
@@ -288,42 +316,45 @@ throws LockingException
     Date expires = getNewExpiration(expirationSecs);
     IEntityLock newLock = new EntityLockImpl(entityType, entityKey, lockType, expires, owner, this);
 
-    // retrieve potentially conflicting locks:
-    IEntityLock[] locks = retrieveLocks(entityType, entityKey, null);
-
-    if ( lockType == WRITE_LOCK ) 
+    synchronized (getEntityStripe(entityType, entityKey))
     {
-        if ( locks.length > 0 ) 
-            { throw new LockingException("Could not create lock: entity already locked."); }
+        // retrieve potentially conflicting locks:
+        IEntityLock[] locks = retrieveLocks(entityType, entityKey, null);
+
+        if ( lockType == WRITE_LOCK ) 
+        {
+            if ( locks.length > 0 ) 
+                { throw new LockingException("Could not create lock: entity already locked."); }
         
-        getLockStore().add(newLock);
+            getLockStore().add(newLock);
 
-        locks = retrieveLocks(entityType, entityKey, null);
-        if ( locks.length > 1 )  // another lock snuck in
-        { 
-            release(newLock);
-            throw new LockingException("Could not create lock: entity already locked.");
+            locks = retrieveLocks(entityType, entityKey, null);
+            if ( locks.length > 1 )  // another lock snuck in
+            { 
+                release(newLock);
+                throw new LockingException("Could not create lock: entity already locked.");
+            }
         }
-    }
 
-    else // ( lockType == READ_LOCK )
-    {
-        for ( int i = 0; i<locks.length; i++ )
+        else // ( lockType == READ_LOCK )
         {
-            if ( locks[i].getLockType() == WRITE_LOCK )
-                { throw new LockingException("Could not create lock: entity already write locked."); }
-            else
+            for ( int i = 0; i<locks.length; i++ )
             {
-                if ( locks[i].equals(newLock) ) 
-                { 
-                    // another read lock from the same owner; bump the expiration time.
-                    expirationSecs++;
-                    expires = getNewExpiration(expirationSecs);
-                    newLock = new EntityLockImpl(entityType, entityKey, lockType, expires, owner, this);
+                if ( locks[i].getLockType() == WRITE_LOCK )
+                    { throw new LockingException("Could not create lock: entity already write locked."); }
+                else
+                {
+                    if ( locks[i].equals(newLock) ) 
+                    { 
+                        // another read lock from the same owner; bump the expiration time.
+                        expirationSecs++;
+                        expires = getNewExpiration(expirationSecs);
+                        newLock = new EntityLockImpl(entityType, entityKey, lockType, expires, owner, this);
+                    }
                 }
             }
+            getLockStore().add(newLock);
         }
-        getLockStore().add(newLock);
     }
     return newLock;
 }
@@ -0,0 +1,337 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.locking;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.portal.concurrency.IEntityLock;
+import org.jasig.portal.concurrency.LockingException;
+
+/**
+ * In-memory {@link IEntityLockStore} that indexes locks by entity type and key. Updates to the locks of an
+ * entity are serialized on one of a fixed set of stripes so unrelated entities never contend. Expired locks
+ * are found through an expiration wheel of one second buckets instead of scanning every lock.
+ * <p/>
+ * If a persistent store is provided all changes are written through to it so other servers see them. Lookups
+ * that only need to find a lock created by this server are answered from memory, queries that have to see
+ * locks held by other servers, like conflict checks, go to the persistent store.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class StripedEntityLockStore implements IEntityLockStore {
+    private static final int STRIPES = 64;
+    private static final long PURGE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    
+    private final ConcurrentMap<EntityKey, Map<String, IEntityLock>> locks = new ConcurrentHashMap<EntityKey, Map<String, IEntityLock>>();
+    private final ConcurrentNavigableMap<Long, Set<EntityKey>> expirationWheel = new ConcurrentSkipListMap<Long, Set<EntityKey>>();
+    private final AtomicLong lastPurge = new AtomicLong(System.currentTimeMillis());
+    private final Object[] stripes;
+    
+    private final IEntityLockStore persistentStore;
+    
+    /**
+     * Create a store that only keeps locks in memory
+     */
+    public StripedEntityLockStore() {
+        this(null);
+    }
+    
+    /**
+     * @param persistentStore Store all changes are written through to, may be null
+     */
+    public StripedEntityLockStore(IEntityLockStore persistentStore) {
+        this.persistentStore = persistentStore;
+        
+        this.stripes = new Object[STRIPES];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public void add(IEntityLock lock) throws LockingException {
+        if (this.persistentStore != null) {
+            this.persistentStore.add(lock);
+        }
+        
+        this.purgeExpiredIfDue();
+        this.put(lock, lock.getExpirationTime());
+    }
+
+    @Override
+    public void delete(IEntityLock lock) throws LockingException {
+        final EntityKey entityKey = new EntityKey(lock.getEntityType(), lock.getEntityKey());
+        synchronized (this.getStripe(entityKey)) {
+            final Map<String, IEntityLock> entityLocks = this.locks.get(entityKey);
+            if (entityLocks != null) {
+                entityLocks.remove(lock.getLockOwner());
+                if (entityLocks.isEmpty()) {
+                    this.locks.remove(entityKey);
+                }
+            }
+        }
+        
+        if (this.persistentStore != null) {
+            this.persistentStore.delete(lock);
+        }
+    }
+
+    @Override
+    public void deleteAll() throws LockingException {
+        this.locks.clear();
+        this.expirationWheel.clear();
+        
+        if (this.persistentStore != null) {
+            this.persistentStore.deleteAll();
+        }
+    }
+
+    @Override
+    public void deleteExpired(Date expiration) throws LockingException {
+        this.purgeExpired(expiration.getTime());
+        
+        if (this.persistentStore != null) {
+            this.persistentStore.deleteExpired(expiration);
+        }
+    }
+
+    @Override
+    public IEntityLock[] find(Class entityType, String entityKey, Integer lockType, Date expiration, String lockOwner)
+            throws LockingException {
+        
+        final IEntityLock[] localLocks = this.select(entityType, entityKey, lockType, expiration, lockOwner, new Date());
+        if (this.persistentStore == null) {
+            return localLocks;
+        }
+        
+        //A fully specified lock that this server knows about doesn't need to be looked up
+        if (localLocks.length > 0 && entityType != null && entityKey != null && lockType != null && expiration != null && lockOwner != null) {
+            return localLocks;
+        }
+        
+        return this.persistentStore.find(entityType, entityKey, lockType, expiration, lockOwner);
+    }
+
+    @Override
+    public IEntityLock[] findUnexpired(Date expiration, Class entityType, String entityKey, Integer lockType,
+            String lockOwner) throws LockingException {
+        
+        //Locks held by other servers are only in the persistent store
+        if (this.persistentStore != null) {
+            return this.persistentStore.findUnexpired(expiration, entityType, entityKey, lockType, lockOwner);
+        }
+        
+        return this.select(entityType, entityKey, lockType, null, lockOwner, expiration);
+    }
+
+    @Override
+    public void update(IEntityLock lock, Date newExpiration) throws LockingException {
+        this.update(lock, newExpiration, null);
+    }
+
+    @Override
+    public void update(IEntityLock lock, Date newExpiration, Integer newLockType) throws LockingException {
+        if (this.persistentStore != null) {
+            this.persistentStore.update(lock, newExpiration, newLockType);
+        }
+        else if (this.select(lock.getEntityType(), lock.getEntityKey(), lock.getLockType(), lock.getExpirationTime(), lock.getLockOwner(), new Date()).length == 0) {
+            throw new LockingException("Problem updating " + lock + " : not found in store.");
+        }
+        
+        this.put(lock, newExpiration);
+    }
+    
+    /**
+     * @return The number of entities with at least one lock in memory
+     */
+    int getLockedEntityCount() {
+        return this.locks.size();
+    }
+    
+    /**
+     * Remove expired locks for all entities in expiration wheel buckets that ended before the expiration time.
+     * A renewed lock is also in a later bucket so it is still found when its new expiration passes.
+     */
+    protected void purgeExpired(long expiration) {
+        final long expirationBucket = getExpirationBucket(expiration);
+        final Date expirationDate = new Date(expiration);
+        
+        for (final Iterator<Map.Entry<Long, Set<EntityKey>>> bucketItr = this.expirationWheel.headMap(expirationBucket, false).entrySet().iterator(); bucketItr.hasNext();) {
+            final Map.Entry<Long, Set<EntityKey>> bucket = bucketItr.next();
+            bucketItr.remove();
+            
+            for (final EntityKey entityKey : bucket.getValue()) {
+                synchronized (this.getStripe(entityKey)) {
+                    final Map<String, IEntityLock> entityLocks = this.locks.get(entityKey);
+                    if (entityLocks == null) {
+                        continue;
+                    }
+                    
+                    for (final Iterator<IEntityLock> lockItr = entityLocks.values().iterator(); lockItr.hasNext();) {
+                        final IEntityLock lock = lockItr.next();
+                        if (!lock.getExpirationTime().after(expirationDate)) {
+                            lockItr.remove();
+                        }
+                    }
+                    
+                    if (entityLocks.isEmpty()) {
+                        this.locks.remove(entityKey);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Purge expired locks if it hasn't been done in the last second
+     */
+    protected void purgeExpiredIfDue() {
+        final long now = System.currentTimeMillis();
+        final long last = this.lastPurge.get();
+        if (now - last >= PURGE_INTERVAL && this.lastPurge.compareAndSet(last, now)) {
+            this.purgeExpired(now);
+        }
+    }
+    
+    private void put(IEntityLock lock, Date expiration) {
+        //Locks are only kept while unexpired, same as MemoryEntityLockStore
+        if (expiration.getTime() <= System.currentTimeMillis()) {
+            return;
+        }
+        
+        final EntityKey entityKey = new EntityKey(lock.getEntityType(), lock.getEntityKey());
+        synchronized (this.getStripe(entityKey)) {
+            Map<String, IEntityLock> entityLocks = this.locks.get(entityKey);
+            if (entityLocks == null) {
+                entityLocks = new LinkedHashMap<String, IEntityLock>(4);
+                this.locks.put(entityKey, entityLocks);
+            }
+            entityLocks.put(lock.getLockOwner(), lock);
+        }
+        
+        final Long expirationBucket = getExpirationBucket(expiration.getTime());
+        Set<EntityKey> bucket = this.expirationWheel.get(expirationBucket);
+        if (bucket == null) {
+            bucket = Collections.newSetFromMap(new ConcurrentHashMap<EntityKey, Boolean>());
+            final Set<EntityKey> existingBucket = this.expirationWheel.putIfAbsent(expirationBucket, bucket);
+            if (existingBucket != null) {
+                bucket = existingBucket;
+            }
+        }
+        bucket.add(entityKey);
+    }
+    
+    /**
+     * Find locks in memory, null parameters match any value. Only locks that expire after unexpiredAfter are returned.
+     */
+    private IEntityLock[] select(Class entityType, String entityKey, Integer lockType, Date expiration, String lockOwner, Date unexpiredAfter) {
+        final List<IEntityLock> result = new ArrayList<IEntityLock>();
+        
+        if (entityType != null && entityKey != null) {
+            final EntityKey key = new EntityKey(entityType, entityKey);
+            synchronized (this.getStripe(key)) {
+                final Map<String, IEntityLock> entityLocks = this.locks.get(key);
+                if (entityLocks != null) {
+                    addMatches(entityLocks, lockType, expiration, lockOwner, unexpiredAfter, result);
+                }
+            }
+        }
+        else {
+            for (final Map.Entry<EntityKey, Map<String, IEntityLock>> locksEntry : this.locks.entrySet()) {
+                final EntityKey key = locksEntry.getKey();
+                if ((entityType != null && !entityType.equals(key.entityType)) || (entityKey != null && !entityKey.equals(key.entityKey))) {
+                    continue;
+                }
+                
+                synchronized (this.getStripe(key)) {
+                    addMatches(locksEntry.getValue(), lockType, expiration, lockOwner, unexpiredAfter, result);
+                }
+            }
+        }
+        
+        return result.toArray(new IEntityLock[result.size()]);
+    }
+    
+    private static void addMatches(Map<String, IEntityLock> entityLocks, Integer lockType, Date expiration, String lockOwner, Date unexpiredAfter, List<IEntityLock> result) {
+        for (final IEntityLock lock : entityLocks.values()) {
+            if ((lockType == null || lockType.intValue() == lock.getLockType())
+                    && (lockOwner == null || lockOwner.equals(lock.getLockOwner()))
+                    && (expiration == null || expiration.equals(lock.getExpirationTime()))
+                    && lock.getExpirationTime().after(unexpiredAfter)) {
+                result.add(lock);
+            }
+        }
+    }
+    
+    private Object getStripe(EntityKey entityKey) {
+        return this.stripes[(entityKey.hashCode() & 0x7fffffff) % this.stripes.length];
+    }
+    
+    private static long getExpirationBucket(long expiration) {
+        return expiration / 1000;
+    }
+    
+    private static final class EntityKey {
+        private final Class entityType;
+        private final String entityKey;
+        private final int hash;
+        
+        public EntityKey(Class entityType, String entityKey) {
+            this.entityType = entityType;
+            this.entityKey = entityKey;
+            this.hash = 31 * entityType.hashCode() + entityKey.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof EntityKey)) {
+                return false;
+            }
+            final EntityKey other = (EntityKey) obj;
+            return this.entityType.equals(other.entityType) && this.entityKey.equals(other.entityKey);
+        }
+
+        @Override
+        public String toString() {
+            return this.entityType.getName() + "." + this.entityKey;
+        }
+    }
+}
@@ -25,6 +25,9 @@ import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.Validate;
+import org.codehaus.jackson.annotate.JsonIgnore;
+
+import com.google.common.base.Supplier;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -39,7 +42,10 @@ import com.google.common.collect.ImmutableSet;
 public final class LoginEvent extends PortalEvent {
     private static final long serialVersionUID = 1L;
     
-    private final Set<String> groups;
+    private volatile Set<String> groups;
+    
+    @JsonIgnore
+    private transient volatile Supplier<? extends Set<String>> groupsSupplier;
     
     private final Map<String, List<String>> attributes;
 
@@ -58,19 +64,54 @@ public final class LoginEvent extends PortalEvent {
         Validate.notNull(attributes, "attributes");
         
         this.groups = ImmutableSet.copyOf(groups);
+        this.attributes = copyAttributes(attributes);
+    }
+
+    /**
+     * Creates a login event whose groups are looked up the first time they are needed, see {@link #enrich()}
+     */
+    LoginEvent(PortalEventBuilder eventBuilder, 
+            Supplier<? extends Set<String>> groupsSupplier, Map<String, List<String>> attributes) {
+        super(eventBuilder);
+        Validate.notNull(groupsSupplier, "groupsSupplier");
+        Validate.notNull(attributes, "attributes");
         
+        this.groupsSupplier = groupsSupplier;
+        this.attributes = copyAttributes(attributes);
+    }
+    
+    private static Map<String, List<String>> copyAttributes(Map<String, List<String>> attributes) {
         final Builder<String, List<String>> attributesBuilder = ImmutableMap.builder();
         for (final Map.Entry<String, List<String>> attributeEntry : attributes.entrySet()) {
             attributesBuilder.put(attributeEntry.getKey(), ImmutableList.copyOf(attributeEntry.getValue()));
         }
-        this.attributes = attributesBuilder.build();
+        return attributesBuilder.build();
     }
     
     /**
      * @return The groups the user was in at login
      */
     public Set<String> getGroups() {
-        return this.groups;
+        Set<String> groups = this.groups;
+        if (groups == null) {
+            synchronized (this) {
+                groups = this.groups;
+                if (groups == null) {
+                    final Supplier<? extends Set<String>> groupsSupplier = this.groupsSupplier;
+                    if (groupsSupplier == null) {
+                        groups = Collections.emptySet();
+                    }
+                    else {
+                        groups = ImmutableSet.copyOf(groupsSupplier.get());
+                    }
+                    
+                    this.groups = groups;
+                    this.groupsSupplier = null;
+                }
+            }
+        }
+        
+        return groups;
     }
 
     /**
@@ -80,13 +121,23 @@ public final class LoginEvent extends PortalEvent {
         return this.attributes;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.events.PortalEvent#enrich()
+     */
+    @Override
+    void enrich() {
+        this.getGroups();
+    }
+    
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
     @Override
     public String toString() {
+        //Don't trigger the group lookup just to log the event
+        final Set<String> groups = this.groups;
         return super.toString() + 
-                ", groups=" + this.groups.size() + 
+                ", groups=" + (groups == null ? "unresolved" : groups.size()) + 
                 ", attributes=" + this.attributes.size() + "]";
     }
 }
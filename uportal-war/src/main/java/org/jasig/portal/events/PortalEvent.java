@@ -116,6 +116,14 @@ public abstract class PortalEvent extends ApplicationEvent {
         return this.person;
     }
 
+    /**
+     * Resolve any data that was deferred when the event was created. Called before the event is handed to
+     * listeners that are not {@link SynchronousPortalEventListener}s, so the work is done off of the
+     * publishing thread. Must be safe to call more than once and from multiple threads.
+     */
+    void enrich() {
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
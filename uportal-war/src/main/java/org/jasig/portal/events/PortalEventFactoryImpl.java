@@ -61,6 +61,7 @@ import org.springframework.context.ApplicationEventPublisherAware;
 import org.springframework.stereotype.Service;
 import org.springframework.web.util.WebUtils;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
@@ -179,10 +180,22 @@ public class PortalEventFactoryImpl implements IPortalEventFactory, ApplicationE
      * @see org.jasig.portal.events.IPortalEventFactory#publishLoginEvent(javax.servlet.http.HttpServletRequest, java.lang.Object, org.jasig.portal.security.IPerson)
      */
     @Override
-    public void publishLoginEvent(HttpServletRequest request, Object source, IPerson person) {
+    public void publishLoginEvent(HttpServletRequest request, Object source, final IPerson person) {
         final PortalEventBuilder portalEventBuilder = this.createPortalEventBuilder(source, person, request);
         
-        final Set<String> groups = this.getGroupsForUser(person);
+        //Walking all containing groups is expensive, defer it until the event is enriched off of the request thread
+        final Supplier<Set<String>> groups = new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                try {
+                    return getGroupsForUser(person);
+                }
+                catch (RuntimeException e) {
+                    logger.warn("Failed to load groups for LoginEvent of user '" + person.getUserName() + "', the event will have no groups", e);
+                    return Collections.emptySet();
+                }
+            }
+        };
         final Map<String, List<String>> attributes = this.getAttributesForUser(person);
         
         final LoginEvent loginEvent = new LoginEvent(portalEventBuilder, groups, attributes);
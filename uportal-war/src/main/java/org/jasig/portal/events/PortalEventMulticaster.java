@@ -0,0 +1,316 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.SimpleApplicationEventMulticaster;
+import org.springframework.stereotype.Service;
+
+/**
+ * Delivers {@link PortalEvent}s to listeners off of the publishing thread so request latency doesn't depend on
+ * the number or cost of event listeners. Each listener gets its own bounded queue that is drained by at most
+ * one executor thread at a time, so every listener sees events in the order they were published.
+ * <p>
+ * Listeners that implement {@link SynchronousPortalEventListener} are still called on the publishing thread.
+ * {@link PortalEvent#enrich()} is called on the executor thread before the event is handed to an asynchronous
+ * listener. If a listener's queue is full the publishing thread waits up to blockTimeout for space, the event
+ * is dropped and counted if there is none. All other {@link ApplicationEvent}s are multicast synchronously.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+@Service("applicationEventMulticaster")
+public class PortalEventMulticaster extends SimpleApplicationEventMulticaster implements DisposableBean {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    private final ConcurrentMap<ApplicationListener<?>, ListenerQueue> listenerQueues = new ConcurrentHashMap<ApplicationListener<?>, ListenerQueue>();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong failedEvents = new AtomicLong();
+    
+    private ExecutorService portalEventExecutor;
+    private boolean asynchronous = true;
+    private int queueCapacity = 1000;
+    private int batchSize = 100;
+    private long blockTimeout = 100;
+    
+    @Autowired
+    public void setPortalEventExecutor(@Qualifier("uPortalEventExecutor") ExecutorService portalEventExecutor) {
+        this.portalEventExecutor = portalEventExecutor;
+    }
+
+    /**
+     * If false all {@link PortalEvent}s are delivered on the publishing thread, defaults to true
+     */
+    @Value("${org.jasig.portal.events.PortalEventMulticaster.asynchronous:true}")
+    public void setAsynchronous(boolean asynchronous) {
+        this.asynchronous = asynchronous;
+    }
+
+    /**
+     * Maximum number of events queued for each asynchronous listener, defaults to 1000. Only applies to
+     * queues created after the value is set.
+     */
+    @Value("${org.jasig.portal.events.PortalEventMulticaster.queueCapacity:1000}")
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Maximum number of events delivered to a listener before its queue gives up the executor thread, defaults
+     * to 100. Keeps a busy listener from starving the others.
+     */
+    @Value("${org.jasig.portal.events.PortalEventMulticaster.batchSize:100}")
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Maximum time in milliseconds the publishing thread waits for space in a full listener queue before the
+     * event is dropped for that listener, defaults to 100
+     */
+    @Value("${org.jasig.portal.events.PortalEventMulticaster.blockTimeout:100}")
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+    
+    public boolean isAsynchronous() {
+        return this.asynchronous;
+    }
+    
+    /**
+     * @return Number of events waiting in all listener queues
+     */
+    public int getQueuedEvents() {
+        int queued = 0;
+        for (final ListenerQueue listenerQueue : this.listenerQueues.values()) {
+            queued += listenerQueue.queue.size();
+        }
+        return queued;
+    }
+    
+    /**
+     * @return Number of listener queues
+     */
+    public int getListenerQueueCount() {
+        return this.listenerQueues.size();
+    }
+    
+    /**
+     * @return Number of events dropped for a listener because its queue stayed full for blockTimeout
+     */
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+    
+    /**
+     * @return Number of asynchronous deliveries where the listener threw an exception
+     */
+    public long getFailedEvents() {
+        return this.failedEvents.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.beans.factory.DisposableBean#destroy()
+     */
+    @Override
+    public void destroy() throws Exception {
+        //Deliver anything still queued so events aren't lost on shutdown
+        for (final ListenerQueue listenerQueue : this.listenerQueues.values()) {
+            listenerQueue.flush();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.springframework.context.event.SimpleApplicationEventMulticaster#multicastEvent(org.springframework.context.ApplicationEvent)
+     */
+    @Override
+    public void multicastEvent(ApplicationEvent event) {
+        if (!(event instanceof PortalEvent)) {
+            super.multicastEvent(event);
+            return;
+        }
+        
+        final PortalEvent portalEvent = (PortalEvent) event;
+        if (!this.asynchronous || this.portalEventExecutor == null) {
+            portalEvent.enrich();
+            super.multicastEvent(event);
+            return;
+        }
+        
+        for (final ApplicationListener<?> listener : this.getApplicationListeners(event)) {
+            if (listener instanceof SynchronousPortalEventListener) {
+                invokeListener(listener, portalEvent);
+            }
+            else {
+                this.getListenerQueue(listener).offer(portalEvent);
+            }
+        }
+    }
+    
+    protected ListenerQueue getListenerQueue(ApplicationListener<?> listener) {
+        ListenerQueue listenerQueue = this.listenerQueues.get(listener);
+        if (listenerQueue == null) {
+            listenerQueue = new ListenerQueue(listener, this.queueCapacity);
+            final ListenerQueue existingQueue = this.listenerQueues.putIfAbsent(listener, listenerQueue);
+            if (existingQueue != null) {
+                listenerQueue = existingQueue;
+            }
+        }
+        return listenerQueue;
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static void invokeListener(ApplicationListener listener, ApplicationEvent event) {
+        listener.onApplicationEvent(event);
+    }
+    
+    /**
+     * Bounded queue of events for a single listener, only one thread delivers events from the queue at a time
+     */
+    protected final class ListenerQueue implements Runnable {
+        private final ApplicationListener<?> listener;
+        private final BlockingQueue<PortalEvent> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        ListenerQueue(ApplicationListener<?> listener, int queueCapacity) {
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<PortalEvent>(queueCapacity);
+        }
+        
+        void offer(PortalEvent event) {
+            boolean queued = this.queue.offer(event);
+            if (!queued) {
+                //Make sure the queue is being drained and wait for space, delivering here would break ordering
+                this.schedule();
+                try {
+                    queued = this.queue.offer(event, blockTimeout, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            if (!queued) {
+                final long dropped = PortalEventMulticaster.this.droppedEvents.incrementAndGet();
+                
+                //Log the first drop and then every 1000 after that to avoid flooding the log
+                if (dropped % 1000 == 1) {
+                    logger.warn("Event queue for " + this.listener + " is full, dropped " + event + ". " + dropped + " events have been dropped. Consider increasing the queue capacity or the number of event threads.");
+                }
+                return;
+            }
+            
+            this.schedule();
+        }
+        
+        /**
+         * Hand the queue to the executor if events are waiting and no drain is scheduled or running. The
+         * scheduled flag is held for the whole drain so events are only ever delivered by one thread at a time.
+         */
+        private void schedule() {
+            while (!this.queue.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+                try {
+                    portalEventExecutor.execute(this);
+                    return;
+                }
+                catch (RejectedExecutionException e) {
+                    //Still holding the scheduled flag so no executor thread can deliver to this listener meanwhile
+                    logger.debug("Portal event executor rejected delivery to {}, delivering on the publishing thread", this.listener);
+                    try {
+                        this.drain(batchSize);
+                    }
+                    finally {
+                        this.scheduled.set(false);
+                    }
+                }
+            }
+        }
+        
+        /* (non-Javadoc)
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            try {
+                this.drain(batchSize);
+            }
+            finally {
+                this.scheduled.set(false);
+            }
+            
+            //More events arrived than could be delivered in this batch, give up the thread and go to the back of the line 
+            this.schedule();
+        }
+        
+        /**
+         * Deliver everything queued on the calling thread, unless a drain is already scheduled or running in
+         * which case that drain delivers the queued events.
+         */
+        void flush() {
+            if (this.scheduled.compareAndSet(false, true)) {
+                try {
+                    this.drain(Integer.MAX_VALUE);
+                }
+                finally {
+                    this.scheduled.set(false);
+                }
+            }
+        }
+        
+        void drain(int maxEvents) {
+            for (int count = 0; count < maxEvents; count++) {
+                final PortalEvent event = this.queue.poll();
+                if (event == null) {
+                    return;
+                }
+                
+                this.deliver(event);
+            }
+        }
+        
+        private void deliver(PortalEvent event) {
+            try {
+                event.enrich();
+                invokeListener(this.listener, event);
+            }
+            catch (RuntimeException e) {
+                failedEvents.incrementAndGet();
+                logger.error("Listener " + this.listener + " failed to handle " + event, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events;
+
+import org.springframework.context.ApplicationListener;
+
+/**
+ * Marks an {@link ApplicationListener} that must be handed {@link PortalEvent}s on the publishing thread, before
+ * the publish call returns. Listeners without this marker receive {@link PortalEvent}s asynchronously from the
+ * {@link PortalEventMulticaster}. Deferred event data, like the groups of a {@link LoginEvent}, is looked up
+ * on the publishing thread if a synchronous listener asks for it.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface SynchronousPortalEventListener {
+
+}
@@ -35,4 +35,10 @@ public interface AggregationIntervalHelper {
      * @return Information about the calculated interval, null if the specified interval is not currently supported
      */
     public AggregationIntervalInfo getIntervalInfo(AggregationInterval interval, DateTime date);
+    
+    /**
+     * Discard any in-memory {@link TimeDimension} and {@link DateDimension} lookup tables, should be called
+     * after dimensions are added to the persistent store.
+     */
+    public void clearDimensionTables();
 }
@@ -18,7 +18,6 @@
  */
 package org.jasig.portal.events.aggr;
 
-import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
@@ -29,21 +28,34 @@ import org.jasig.portal.events.aggr.dao.TimeDimensionDao;
 import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeFieldType;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
 import org.joda.time.LocalTime;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 /**
+ * Resolves the {@link TimeDimension} and {@link DateDimension} for an interval from dense in-memory tables indexed
+ * by minute of day and by day offset from the oldest date dimension. The tables are loaded on first use and
+ * reloaded after {@link #clearDimensionTables()} or when a lookup finds a dimension in the persistent store
+ * that the table is missing.
+ * 
  * @author Eric Dalquist
  * @version $Revision: 18025 $
  */
 @Service
 public class AggregationIntervalHelperImpl implements AggregationIntervalHelper {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int MILLIS_PER_MINUTE = 60 * 1000;
+    
     protected final Log logger = LogFactory.getLog(this.getClass());
     
     private TimeDimensionDao timeDimensionDao;
     private DateDimensionDao dateDimensionDao;
     private IEventAggregationManagementDao eventAggregationManagementDao;
+    
+    private volatile TimeDimension[] timeDimensionTable;
+    private volatile DateDimensionTable dateDimensionTable;
 
     @Autowired
     public void setEventAggregationManagementDao(IEventAggregationManagementDao eventAggregationManagementDao) {
@@ -68,8 +80,6 @@ public class AggregationIntervalHelperImpl implements AggregationIntervalHelper
         //Chop off everything below the minutes (seconds, millis)
         final DateTime instant = date.minuteOfHour().roundFloorCopy();
         
-        //TODO cache this resolution ... best place would be in the current jpa session
-        
         final DateTime start, end;
         switch (interval) {
             case CALENDAR_QUARTER: {
@@ -97,14 +107,72 @@ public class AggregationIntervalHelperImpl implements AggregationIntervalHelper
             }
         }
         
-        final LocalTime startTime = start.toLocalTime();
-        final TimeDimension startTimeDimension = this.timeDimensionDao.getTimeDimensionByTime(startTime);
-
-        final DateMidnight startDateMidnight = start.toDateMidnight();
-        final DateDimension startDateDimension = this.dateDimensionDao.getDateDimensionByDate(startDateMidnight);
+        final TimeDimension startTimeDimension = this.getTimeDimension(start.toLocalTime());
+        final DateDimension startDateDimension = this.getDateDimension(start.toDateMidnight());
         
         return new AggregationIntervalInfo(interval, start, end, startDateDimension, startTimeDimension);
     }
+    
+    @Override
+    public void clearDimensionTables() {
+        this.timeDimensionTable = null;
+        this.dateDimensionTable = null;
+    }
+    
+    protected TimeDimension getTimeDimension(LocalTime time) {
+        TimeDimension[] timeDimensions = this.timeDimensionTable;
+        if (timeDimensions == null) {
+            timeDimensions = this.loadTimeDimensionTable();
+        }
+        
+        final TimeDimension timeDimension = timeDimensions[time.getMillisOfDay() / MILLIS_PER_MINUTE];
+        if (timeDimension != null) {
+            return timeDimension;
+        }
+        
+        //Not in the table, check the persistent store in case it was created since the table was loaded
+        final TimeDimension storedTimeDimension = this.timeDimensionDao.getTimeDimensionByTime(time);
+        if (storedTimeDimension != null) {
+            this.timeDimensionTable = null;
+        }
+        return storedTimeDimension;
+    }
+    
+    protected DateDimension getDateDimension(DateMidnight date) {
+        DateDimensionTable dateDimensions = this.dateDimensionTable;
+        if (dateDimensions == null) {
+            dateDimensions = this.loadDateDimensionTable();
+        }
+        
+        final DateDimension dateDimension = dateDimensions.get(date.toLocalDate());
+        if (dateDimension != null) {
+            return dateDimension;
+        }
+        
+        //Not in the table, check the persistent store in case it was created since the table was loaded
+        final DateDimension storedDateDimension = this.dateDimensionDao.getDateDimensionByDate(date);
+        if (storedDateDimension != null) {
+            this.dateDimensionTable = null;
+        }
+        return storedDateDimension;
+    }
+    
+    private TimeDimension[] loadTimeDimensionTable() {
+        final TimeDimension[] timeDimensions = new TimeDimension[MINUTES_PER_DAY];
+        for (final TimeDimension timeDimension : this.timeDimensionDao.getTimeDimensions()) {
+            timeDimensions[timeDimension.getTime().getMillisOfDay() / MILLIS_PER_MINUTE] = timeDimension;
+        }
+        
+        this.timeDimensionTable = timeDimensions;
+        return timeDimensions;
+    }
+    
+    private DateDimensionTable loadDateDimensionTable() {
+        final DateDimensionTable dateDimensions = new DateDimensionTable(this.dateDimensionDao.getDateDimensions());
+        
+        this.dateDimensionTable = dateDimensions;
+        return dateDimensions;
+    }
 
     protected DateTime determineStart(AggregationInterval interval, DateTime instant) {
         final DateTimeFieldType dateTimeFieldType = interval.getDateTimeFieldType();
@@ -131,4 +199,46 @@ public class AggregationIntervalHelperImpl implements AggregationIntervalHelper
         
         throw new IllegalArgumentException("Unsupportd Interval: " + interval);
     }
+    
+    /**
+     * Immutable table of date dimensions indexed by the number of days after the oldest dimension
+     */
+    private static final class DateDimensionTable {
+        private final LocalDate firstDate;
+        private final DateDimension[] dateDimensions;
+        
+        public DateDimensionTable(List<DateDimension> dateDimensions) {
+            if (dateDimensions.isEmpty()) {
+                this.firstDate = null;
+                this.dateDimensions = new DateDimension[0];
+                return;
+            }
+            
+            //Dimensions are in chronological order
+            this.firstDate = dateDimensions.get(0).getDate().toLocalDate();
+            final LocalDate lastDate = dateDimensions.get(dateDimensions.size() - 1).getDate().toLocalDate();
+            
+            this.dateDimensions = new DateDimension[Days.daysBetween(this.firstDate, lastDate).getDays() + 1];
+            for (final DateDimension dateDimension : dateDimensions) {
+                this.dateDimensions[this.getIndex(dateDimension.getDate().toLocalDate())] = dateDimension;
+            }
+        }
+        
+        public DateDimension get(LocalDate date) {
+            if (this.firstDate == null) {
+                return null;
+            }
+            
+            final int index = this.getIndex(date);
+            if (index < 0 || index >= this.dateDimensions.length) {
+                return null;
+            }
+            
+            return this.dateDimensions[index];
+        }
+        
+        private int getIndex(LocalDate date) {
+            return Days.daysBetween(this.firstDate, date).getDays();
+        }
+    }
 }
@@ -19,13 +19,22 @@
 
 package org.jasig.portal.events.aggr;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.mutable.MutableInt;
@@ -54,9 +63,11 @@ import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionOperations;
 import org.springframework.transaction.support.TransactionTemplate;
 
@@ -88,20 +99,40 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     private EventSessionDao eventSessionDao;
     private Set<IPortalEventAggregator<PortalEvent>> portalEventAggregators;
     private TransactionOperations aggrEventsTransactionOperations;
+    private TransactionOperations aggrEventsNewTransactionOperations;
+    private TransactionOperations rawEventsTransactionOperations;
+    private ExecutorService aggregationExecutorService;
     
     private int eventAggregationBatchSize = 5000;
+    private int aggregationThreads = 1;
     private ReadablePeriod aggregationDelay = Period.seconds(30);
     private ReadablePeriod purgeDelay = Period.days(1);
     private ReadablePeriod dimensionBuffer = Period.days(30);
+    private ReadablePeriod aggregationWorkerTimeout = Period.minutes(5);
     
     @Autowired
     public void setAggrEventsPlatformTransactionManager(@Qualifier("aggrEvents") PlatformTransactionManager transactionManager) {
         final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
         transactionTemplate.afterPropertiesSet();
         this.aggrEventsTransactionOperations = transactionTemplate;
+        
+        final TransactionTemplate newTransactionTemplate = new TransactionTemplate(transactionManager);
+        newTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        newTransactionTemplate.afterPropertiesSet();
+        this.aggrEventsNewTransactionOperations = newTransactionTemplate;
     }
     
+    @Autowired
+    public void setRawEventsPlatformTransactionManager(@Qualifier("rawEvents") PlatformTransactionManager transactionManager) {
+        final TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.afterPropertiesSet();
+        this.rawEventsTransactionOperations = transactionTemplate;
+    }
     
+    @Autowired
+    public void setAggregationExecutorService(@Qualifier("uPortalAggregationExecutor") ExecutorService aggregationExecutorService) {
+        this.aggregationExecutorService = aggregationExecutorService;
+    }
 
     @Autowired
     public void setEventSessionDao(EventSessionDao eventSessionDao) {
@@ -162,6 +193,31 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     public void setEventAggregationBatchSize(int eventAggregationBatchSize) {
         this.eventAggregationBatchSize = eventAggregationBatchSize;
     }
+    
+    /**
+     * Number of worker threads to aggregate events with. When greater than 1 each batch of raw events is split
+     * into one partition per aggregator and interval, each partition is run in order on a worker thread in its
+     * own transaction and the worker transactions are only committed once every partition has completed and
+     * flushed successfully.
+     * Must not be larger than the size of the uPortalAggregationExecutor pool. Defaults to 1 which aggregates
+     * all events on the calling thread in a single transaction.
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationThreads:1}")
+    public void setAggregationThreads(int aggregationThreads) {
+        if (aggregationThreads < 1) {
+            throw new IllegalArgumentException("aggregationThreads must be at least 1. Is: " + aggregationThreads);
+        }
+        this.aggregationThreads = aggregationThreads;
+    }
+    
+    /**
+     * Maximum time to wait for the aggregation workers to complete their partitions, and then again for them to
+     * commit. If the workers have not completed in time all partitions are rolled back. Defaults to 5 minutes.
+     */
+    @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.aggregationWorkerTimeout:PT5M}")
+    public void setAggregationWorkerTimeout(ReadablePeriod aggregationWorkerTimeout) {
+        this.aggregationWorkerTimeout = aggregationWorkerTimeout;
+    }
 
     @Value("${org.jasig.portal.event.aggr.PortalEventAggregationManager.dimensionBuffer:P30D}")
     public void setDimensionBuffer(ReadablePeriod dimensionBuffer) {
@@ -270,6 +326,9 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
     void doPopulateDimensions() {
         doPopulateTimeDimensions();
         doPopulateDateDimensions();
+        
+        //New dimensions may have been created, make sure the interval helper sees them
+        this.intervalHelper.clearDimensionTables();
     }
 
     /**
@@ -432,10 +491,22 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         //Do aggregation, capturing the start and end dates
         eventAggregatorStatus.setLastStart(DateTime.now());
         final long start = System.nanoTime();
-        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, new AggregateEventsHandler(events, eventAggregatorStatus));
+        if (this.aggregationThreads > 1) {
+            doAggregateRawEventsPartitioned(lastAggregated, newestEventTime, events, eventAggregatorStatus);
+        }
+        else {
+            portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, this.eventAggregationBatchSize, new AggregateEventsHandler(events, eventAggregatorStatus, null));
+        }
         eventAggregatorStatus.setLastEnd(new DateTime());
         
-        logger.debug("Aggregated {} events between {} and {} in {}ms", new Object[] { events, lastAggregated, newestEventTime, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) });
+        final long duration = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        final long eventsPerSecond = events.longValue() * 1000 / duration;
+        if (events.intValue() > 0) {
+            logger.info("Aggregated {} events between {} and {} in {}ms ({} events/second)", new Object[] { events, lastAggregated, newestEventTime, duration, eventsPerSecond });
+        }
+        else {
+            logger.debug("Aggregated {} events between {} and {} in {}ms", new Object[] { events, lastAggregated, newestEventTime, duration });
+        }
 
         //Store the results of the aggregation
         eventAggregationManagementDao.updateEventAggregatorStatus(eventAggregatorStatus);
@@ -443,6 +514,203 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         return this.eventAggregationBatchSize <= 0 || events.intValue() < this.eventAggregationBatchSize;
     }
 
+    /**
+     * Scans the raw events on the calling thread, resolving event sessions and interval boundaries, and queues the
+     * per aggregator and interval work into partitions which are then run in parallel by the aggregation workers.
+     * The event sessions are committed before the workers start so that the worker transactions can reference
+     * any group mappings created while resolving them.
+     * <p/>
+     * The raw events transaction that marks the scanned events as aggregated stays open until every worker
+     * transaction has committed. If any worker fails or times out the raw events transaction is rolled back
+     * and the whole batch is read again by the next aggregation run.
+     */
+    void doAggregateRawEventsPartitioned(final DateTime lastAggregated, final DateTime newestEventTime, 
+            final MutableInt events, final IEventAggregatorStatus eventAggregatorStatus) {
+        
+        this.rawEventsTransactionOperations.execute(new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                final Map<IPortalEventAggregator<PortalEvent>, List<AggregationPartition>> partitions = new LinkedHashMap<IPortalEventAggregator<PortalEvent>, List<AggregationPartition>>();
+                
+                aggrEventsNewTransactionOperations.execute(new TransactionCallbackWithoutResult() {
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        portalEventDao.aggregatePortalEvents(lastAggregated, newestEventTime, eventAggregationBatchSize, new AggregateEventsHandler(events, eventAggregatorStatus, partitions));
+                    }
+                });
+                
+                //Throws if any worker fails, rolling back the aggregated flags set on the raw events
+                executePartitions(partitions);
+            }
+        });
+    }
+    
+    /**
+     * Spreads the partitions over the aggregation workers and runs them, see {@link #executeInWorkerTransactions(List)}
+     */
+    private void executePartitions(Map<IPortalEventAggregator<PortalEvent>, List<AggregationPartition>> partitions) {
+        final List<AggregationPartition> workingPartitions = new ArrayList<AggregationPartition>();
+        for (final List<AggregationPartition> aggregatorPartitions : partitions.values()) {
+            for (final AggregationPartition partition : aggregatorPartitions) {
+                if (partition.size() > 0) {
+                    workingPartitions.add(partition);
+                }
+            }
+        }
+        if (workingPartitions.isEmpty()) {
+            return;
+        }
+        
+        //Assign the largest partitions first, each to the worker with the least work
+        Collections.sort(workingPartitions, new Comparator<AggregationPartition>() {
+            @Override
+            public int compare(AggregationPartition o1, AggregationPartition o2) {
+                return o2.size() - o1.size();
+            }
+        });
+        final int workerCount = Math.min(this.aggregationThreads, workingPartitions.size());
+        final List<List<AggregationPartition>> workerPartitions = new ArrayList<List<AggregationPartition>>(workerCount);
+        final int[] workerSizes = new int[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workerPartitions.add(new ArrayList<AggregationPartition>());
+        }
+        for (final AggregationPartition partition : workingPartitions) {
+            int smallest = 0;
+            for (int i = 1; i < workerCount; i++) {
+                if (workerSizes[i] < workerSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            workerPartitions.get(smallest).add(partition);
+            workerSizes[smallest] += partition.size();
+        }
+        
+        final List<Runnable> workers = new ArrayList<Runnable>(workerCount);
+        for (final List<AggregationPartition> assignedPartitions : workerPartitions) {
+            workers.add(new Runnable() {
+                @Override
+                public void run() {
+                    for (final AggregationPartition partition : assignedPartitions) {
+                        partition.execute();
+                    }
+                }
+            });
+        }
+        
+        this.executeInWorkerTransactions(workers);
+    }
+    
+    /**
+     * Runs each worker on the aggregation executor in its own transaction. Workers flush their changes before
+     * reporting completion so that database errors fail the whole batch before any worker commits, the worker
+     * transactions are committed once every worker has completed and flushed and are all rolled back otherwise.
+     * Only a failure of the commit itself can leave some workers committed, their events are aggregated again
+     * when the batch is retried.
+     */
+    void executeInWorkerTransactions(final List<? extends Runnable> workers) {
+        final long timeout = this.aggregationWorkerTimeout.toPeriod().toStandardDuration().getMillis();
+        
+        //Workers hold their transaction open until all partitions are done so they all commit or all roll back
+        final CountDownLatch workComplete = new CountDownLatch(workers.size());
+        final CountDownLatch commitDecision = new CountDownLatch(1);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(workers.size());
+        try {
+            for (final Runnable worker : workers) {
+                futures.add(this.aggregationExecutorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        aggrEventsTransactionOperations.execute(new TransactionCallbackWithoutResult() {
+                            @Override
+                            protected void doInTransactionWithoutResult(TransactionStatus status) {
+                                try {
+                                    worker.run();
+                                    
+                                    //Write out pending changes now so database errors fail the batch before anything commits
+                                    status.flush();
+                                }
+                                catch (RuntimeException e) {
+                                    failed.set(true);
+                                    throw e;
+                                }
+                                finally {
+                                    workComplete.countDown();
+                                }
+                                
+                                try {
+                                    commitDecision.await();
+                                }
+                                catch (InterruptedException e) {
+                                    failed.set(true);
+                                    Thread.currentThread().interrupt();
+                                }
+                                
+                                if (failed.get()) {
+                                    status.setRollbackOnly();
+                                }
+                            }
+                        });
+                        
+                        return null;
+                    }
+                }));
+            }
+            
+            if (!workComplete.await(timeout, TimeUnit.MILLISECONDS)) {
+                //Workers still running will roll back when they complete
+                failed.set(true);
+                throw new IllegalStateException("Aggregation workers did not complete within " + timeout + "ms, all partitions will be rolled back");
+            }
+        }
+        catch (InterruptedException e) {
+            failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for aggregation workers to complete", e);
+        }
+        catch (RuntimeException e) {
+            failed.set(true);
+            throw e;
+        }
+        finally {
+            commitDecision.countDown();
+        }
+        
+        //Wait for every worker to commit or roll back before returning, reporting the first failure
+        final long commitDeadline = System.currentTimeMillis() + timeout;
+        RuntimeException workerFailure = null;
+        for (final Future<Object> future : futures) {
+            try {
+                future.get(Math.max(0, commitDeadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for aggregation workers to commit", e);
+            }
+            catch (TimeoutException e) {
+                throw new IllegalStateException("Aggregation workers did not commit within " + timeout + "ms", e);
+            }
+            catch (ExecutionException e) {
+                if (workerFailure == null) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        workerFailure = (RuntimeException)cause;
+                    }
+                    else {
+                        workerFailure = new IllegalStateException("Aggregation worker failed", cause);
+                    }
+                }
+            }
+        }
+        
+        if (workerFailure != null) {
+            throw workerFailure;
+        }
+        if (failed.get()) {
+            throw new IllegalStateException("Aggregation worker failed, all partitions were rolled back");
+        }
+    }
+
     void doPurgeRawEvents() {
         final IEventAggregatorStatus eventPurgerStatus = eventAggregationManagementDao.getEventAggregatorStatus(ProcessingType.PURGING, true);
         
@@ -492,10 +760,14 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
         private final AggregatedGroupConfig defaultAggregatedGroupConfig;
         private final AggregatedIntervalConfig defaultAggregatedIntervalConfig;
         
+        //If not null aggregator calls are queued into partitions instead of being made directly
+        private final Map<IPortalEventAggregator<PortalEvent>, List<AggregationPartition>> partitions;
         
-        private AggregateEventsHandler(MutableInt eventCounter, IEventAggregatorStatus eventAggregatorStatus) {
+        private AggregateEventsHandler(MutableInt eventCounter, IEventAggregatorStatus eventAggregatorStatus,
+                Map<IPortalEventAggregator<PortalEvent>, List<AggregationPartition>> partitions) {
             this.eventCounter = eventCounter;
             this.eventAggregatorStatus = eventAggregatorStatus;
+            this.partitions = partitions;
             this.defaultAggregatedGroupConfig = eventAggregationManagementDao.getDefaultAggregatedGroupConfig();
             this.defaultAggregatedIntervalConfig = eventAggregationManagementDao.getDefaultAggregatedIntervalConfig();
         }
@@ -574,6 +846,13 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
                         eventSession = eventSession.getFilteredEventSession(aggregatorGroupConfig);
                     }
                     
+                    if (this.partitions != null) {
+                        for (final AggregationPartition partition : this.getAggregatorPartitions(portalEventAggregator)) {
+                            partition.addEvent(item, eventSession, aggregatorIntervalInfo);
+                        }
+                        continue;
+                    }
+                    
                     //Aggregation magic happens here!
                     portalEventAggregator.aggregateEvent(item, eventSession, aggregatorIntervalInfo);
                 }
@@ -588,12 +867,44 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
                 
                 //If the aggreagator is configured to use the interval notify it of the interval boundary
                 if (aggregatorIntervalConfig.isIncluded(interval)) {
+                    if (this.partitions != null) {
+                        for (final AggregationPartition partition : this.getAggregatorPartitions(portalEventAggregator)) {
+                            if (partition.getInterval() == interval) {
+                                partition.addIntervalBoundary(intervals.get(interval));
+                            }
+                        }
+                        continue;
+                    }
+                    
                     final Map<AggregationInterval, AggregationIntervalInfo> aggregatorIntervalInfo = this.getAggregatorIntervalInfo(aggregatorType);
                     portalEventAggregator.handleIntervalBoundary(interval, aggregatorIntervalInfo);
                 }
             }
         }
         
+        /**
+         * @return The partitions for the aggregator, one per included interval or a single partition with no interval if the aggregator includes no intervals
+         */
+        protected List<AggregationPartition> getAggregatorPartitions(IPortalEventAggregator<PortalEvent> portalEventAggregator) {
+            List<AggregationPartition> aggregatorPartitions = this.partitions.get(portalEventAggregator);
+            if (aggregatorPartitions == null) {
+                final AggregatedIntervalConfig aggregatorIntervalConfig = this.getAggregatorIntervalConfig(portalEventAggregator.getClass());
+                
+                aggregatorPartitions = new ArrayList<AggregationPartition>();
+                for (final AggregationInterval interval : AggregationInterval.values()) {
+                    if (aggregatorIntervalConfig.isIncluded(interval)) {
+                        aggregatorPartitions.add(new AggregationPartition(portalEventAggregator, interval));
+                    }
+                }
+                if (aggregatorPartitions.isEmpty()) {
+                    aggregatorPartitions.add(new AggregationPartition(portalEventAggregator, null));
+                }
+                
+                this.partitions.put(portalEventAggregator, aggregatorPartitions);
+            }
+            return aggregatorPartitions;
+        }
+        
         /**
          * @return The interval info map for the aggregator
          */
@@ -643,4 +954,81 @@ public class PortalEventAggregationManagerImpl implements IPortalEventAggregatio
             return config;
         }
     }
+    
+    /**
+     * The ordered aggregator calls for a single aggregator and interval. Events and interval boundaries are replayed
+     * in the order they were scanned, with the interval info captured at the time, so boundary handling matches
+     * the single threaded aggregation.
+     */
+    private static final class AggregationPartition {
+        private final IPortalEventAggregator<PortalEvent> portalEventAggregator;
+        private final AggregationInterval interval;
+        private final List<PartitionEntry> entries = new ArrayList<PartitionEntry>();
+        
+        AggregationPartition(IPortalEventAggregator<PortalEvent> portalEventAggregator, AggregationInterval interval) {
+            this.portalEventAggregator = portalEventAggregator;
+            this.interval = interval;
+        }
+
+        /**
+         * @return The interval this partition aggregates, null if the aggregator does not use any intervals
+         */
+        public AggregationInterval getInterval() {
+            return this.interval;
+        }
+        
+        public int size() {
+            return this.entries.size();
+        }
+        
+        void addEvent(PortalEvent event, EventSession eventSession, Map<AggregationInterval, AggregationIntervalInfo> intervals) {
+            if (this.interval == null) {
+                this.entries.add(new PartitionEntry(event, eventSession, null));
+                return;
+            }
+            
+            final AggregationIntervalInfo intervalInfo = intervals.get(this.interval);
+            if (intervalInfo != null) {
+                this.entries.add(new PartitionEntry(event, eventSession, intervalInfo));
+            }
+        }
+        
+        void addIntervalBoundary(AggregationIntervalInfo intervalInfo) {
+            this.entries.add(new PartitionEntry(null, null, intervalInfo));
+        }
+        
+        void execute() {
+            for (final PartitionEntry entry : this.entries) {
+                final Map<AggregationInterval, AggregationIntervalInfo> intervals;
+                if (this.interval == null) {
+                    intervals = Collections.emptyMap();
+                }
+                else {
+                    intervals = Collections.singletonMap(this.interval, entry.intervalInfo);
+                }
+                
+                if (entry.event == null) {
+                    this.portalEventAggregator.handleIntervalBoundary(this.interval, intervals);
+                }
+                else {
+                    this.portalEventAggregator.aggregateEvent(entry.event, entry.eventSession, intervals);
+                }
+            }
+        }
+    }
+    
+    /**
+     * An event to aggregate or, if the event is null, an interval boundary
+     */
+    private static final class PartitionEntry {
+        private final PortalEvent event;
+        private final EventSession eventSession;
+        private final AggregationIntervalInfo intervalInfo;
+        
+        PartitionEntry(PortalEvent event, EventSession eventSession, AggregationIntervalInfo intervalInfo) {
+            this.event = event;
+            this.eventSession = eventSession;
+            this.intervalInfo = intervalInfo;
+        }
+    }
 }
@@ -36,6 +36,7 @@ import javax.persistence.Inheritance;
 import javax.persistence.InheritanceType;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
+import javax.persistence.Lob;
 import javax.persistence.ManyToOne;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
@@ -52,6 +53,7 @@ import org.jasig.portal.events.aggr.dao.jpa.DateDimensionImpl;
 import org.jasig.portal.events.aggr.dao.jpa.TimeDimensionImpl;
 import org.jasig.portal.events.aggr.groups.AggregatedGroupMapping;
 import org.jasig.portal.events.aggr.groups.AggregatedGroupMappingImpl;
+import org.jasig.portal.utils.HyperLogLog;
 
 /**
  * @author Eric Dalquist
@@ -75,6 +77,23 @@ import org.jasig.portal.events.aggr.groups.AggregatedGroupMappingImpl;
 public class LoginAggregationImpl implements LoginAggregation, Serializable {
     private static final long serialVersionUID = 1L;
     
+    /**
+     * 2^11 registers, a 2KB sketch with a standard error of about 2.3%
+     */
+    static final int UNIQUE_USERS_PRECISION = 11;
+    
+    /**
+     * Approximate aggregations keep counting by name until they have more unique users than this. Each name is
+     * stored as a row of the aggregation id and the name, about 16 bytes for a typical user name, so 128 names
+     * take about as much space as the 2KB sketch. Smaller groups stay exact and smaller than the sketch.
+     */
+    static final int UNIQUE_USERS_SKETCH_THRESHOLD = 128;
+    
+    /**
+     * Bytes stored per unique user name in addition to the name itself, the aggregation id column
+     */
+    private static final int UNIQUE_USER_NAME_OVERHEAD = 8;
+    
     @Id
     @GeneratedValue(generator = "UP_LOGIN_EVENT_AGGREGATE_GEN")
     @Column(name="ID")
@@ -117,6 +136,10 @@ public class LoginAggregationImpl implements LoginAggregation, Serializable {
         )
     private Set<String> uniqueUserNames = new LinkedHashSet<String>();
     
+    @Lob
+    @Column(name = "UNIQUE_USERS_SKETCH")
+    private byte[] uniqueUsersSketch;
+    
     @SuppressWarnings("unused")
     private LoginAggregationImpl() {
         this.id = -1;
@@ -181,17 +204,67 @@ public class LoginAggregationImpl implements LoginAggregation, Serializable {
         this.duration = duration;
     }
     
+    /**
+     * @return true if unique users are being counted with a {@link HyperLogLog} sketch instead of by name
+     */
+    boolean isApproximateUniqueCount() {
+        return this.uniqueUsersSketch != null;
+    }
+    
     void countUser(String userName) {
+        this.countUser(userName, false);
+    }
+    
+    /**
+     * @return Approximate number of bytes stored to track unique users, the size of the sketch or of the user names
+     */
+    int getUniqueUsersStorageSize() {
+        if (this.uniqueUsersSketch != null) {
+            return this.uniqueUsersSketch.length;
+        }
+        
+        int size = 0;
+        for (final String uniqueUserName : this.uniqueUserNames) {
+            size += UNIQUE_USER_NAME_OVERHEAD + uniqueUserName.length();
+        }
+        return size;
+    }
+    
+    /**
+     * @param approximate If true and more than {@link #UNIQUE_USERS_SKETCH_THRESHOLD} unique users have been counted
+     *  unique users are counted with a fixed size {@link HyperLogLog} sketch instead of storing every user name. Once
+     *  an aggregation is approximate it stays approximate until the interval completes.
+     */
+    void countUser(String userName, boolean approximate) {
         checkState();
         
-        if (this.uniqueUserNames.add(userName)) {
+        if (approximate && this.uniqueUsersSketch == null && this.uniqueUserNames.size() >= UNIQUE_USERS_SKETCH_THRESHOLD
+                && !this.uniqueUserNames.contains(userName)) {
+            //Switch to the sketch, carrying over any users already counted by name
+            final HyperLogLog uniqueUsers = new HyperLogLog(UNIQUE_USERS_PRECISION);
+            for (final String uniqueUserName : this.uniqueUserNames) {
+                uniqueUsers.offer(uniqueUserName);
+            }
+            this.uniqueUserNames.clear();
+            this.uniqueUsersSketch = uniqueUsers.getRegisters();
+            this.uniqueLoginCount = (int) uniqueUsers.cardinality();
+        }
+        
+        if (this.uniqueUsersSketch != null) {
+            //Registers are updated in place, the estimate only changes when a register does
+            final HyperLogLog uniqueUsers = HyperLogLog.wrap(this.uniqueUsersSketch);
+            if (uniqueUsers.offer(userName)) {
+                this.uniqueLoginCount = (int) uniqueUsers.cardinality();
+            }
+        }
+        else if (this.uniqueUserNames.add(userName)) {
             this.uniqueLoginCount++;
         }
         this.loginCount++;
     }
     
     private void checkState() {
-        if (this.loginCount > 0 && this.uniqueUserNames.isEmpty()) {
+        if (this.loginCount > 0 && this.uniqueUserNames.isEmpty() && this.uniqueUsersSketch == null) {
             throw new IllegalStateException("intervalComplete has been called, countUser can no longer be called");
         }
     }
@@ -199,6 +272,7 @@ public class LoginAggregationImpl implements LoginAggregation, Serializable {
     void intervalComplete(int duration) {
         this.duration = duration;
         this.uniqueUserNames.clear();
+        this.uniqueUsersSketch = null;
     }
 
     @Override
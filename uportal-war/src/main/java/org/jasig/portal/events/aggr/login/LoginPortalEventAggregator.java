@@ -19,6 +19,8 @@
 
 package org.jasig.portal.events.aggr.login;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
@@ -33,6 +35,7 @@ import org.jasig.portal.events.aggr.TimeDimension;
 import org.jasig.portal.events.aggr.groups.AggregatedGroupMapping;
 import org.jasig.portal.events.aggr.session.EventSession;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -45,6 +48,7 @@ import org.springframework.transaction.annotation.Transactional;
 @Service
 public class LoginPortalEventAggregator implements IPortalEventAggregator<LoginEvent> {
     private LoginAggregationPrivateDao loginAggregationDao;
+    private Set<AggregationInterval> approximateUniqueCountIntervals = EnumSet.noneOf(AggregationInterval.class);
 
     @Override
     public boolean supports(Class<? extends PortalEvent> type) {
@@ -55,6 +59,20 @@ public class LoginPortalEventAggregator implements IPortalEventAggregator<LoginE
     public void setLoginAggregationDao(LoginAggregationPrivateDao loginAggregationDao) {
         this.loginAggregationDao = loginAggregationDao;
     }
+    
+    /**
+     * Intervals that count unique users with a fixed size sketch instead of storing every user name, useful for
+     * long intervals like MONTH or YEAR where the name sets get large. Unique counts for these intervals are
+     * estimates with a standard error of about 2.3%. Defaults to no intervals, all counts are exact.
+     */
+    @Value("${org.jasig.portal.events.aggr.login.LoginPortalEventAggregator.approximateUniqueCountIntervals:}")
+    public void setApproximateUniqueCountIntervals(AggregationInterval[] approximateUniqueCountIntervals) {
+        final Set<AggregationInterval> intervals = EnumSet.noneOf(AggregationInterval.class);
+        if (approximateUniqueCountIntervals != null) {
+            intervals.addAll(Arrays.asList(approximateUniqueCountIntervals));
+        }
+        this.approximateUniqueCountIntervals = intervals;
+    }
 
     @Transactional("aggrEvents")
     @Override
@@ -89,7 +107,7 @@ public class LoginPortalEventAggregator implements IPortalEventAggregator<LoginE
         final String userName = e.getUserName();
         final int duration = intervalInfo.getDurationTo(e.getTimestampAsDate());
         loginAggregation.setDuration(duration);
-        loginAggregation.countUser(userName);
+        loginAggregation.countUser(userName, this.approximateUniqueCountIntervals.contains(intervalInfo.getAggregationInterval()));
     }
 
     @Transactional("aggrEvents")
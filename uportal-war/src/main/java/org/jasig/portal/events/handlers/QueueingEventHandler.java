@@ -21,8 +21,11 @@ package org.jasig.portal.events.handlers;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,9 +34,13 @@ import org.springframework.beans.factory.DisposableBean;
 import org.springframework.context.ApplicationEvent;
 
 /**
- * Queues PortalEvents in a local {@link ConcurrentLinkedQueue} and flushes the events to the configured
+ * Queues PortalEvents in a local {@link BlockingQueue} and flushes the events to the configured
  * {@link BatchingEventHandler} when {@link #flush()} is called. This class must be used with some external
  * timer that will call {@link #flush()} at regular intervals
+ * <p>
+ * The queue is unbounded unless a queue capacity is set. Once a bounded queue fills up the {@link BackpressurePolicy}
+ * determines what happens to new events. Queue depth, flush timing and the number of dropped, sampled out and failed
+ * events are tracked for monitoring.
  * 
  * @author Eric Dalquist
  * @version $Revision$
@@ -41,8 +48,40 @@ import org.springframework.context.ApplicationEvent;
 public abstract class QueueingEventHandler<E extends ApplicationEvent> 
         extends FilteringApplicationListener<E> implements DisposableBean {
     
-    private final Queue<E> eventQueue = new ConcurrentLinkedQueue<E>();
+    /**
+     * What to do with new events when the queue is full or filling up
+     */
+    public enum BackpressurePolicy {
+        /**
+         * Drop new events when the queue is full
+         */
+        DROP,
+        /**
+         * Once the queue reaches the sample threshold only keep every Nth event, drop new events when the queue is full
+         */
+        SAMPLE,
+        /**
+         * Block the publishing thread for up to the block timeout waiting for space in the queue, drop the event if
+         * there is still no space
+         */
+        BLOCK;
+    }
+    
     private final Lock flushLock = new ReentrantLock();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong sampledEvents = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final AtomicLong flushedEvents = new AtomicLong();
+    private final AtomicLong failedEvents = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong totalFlushTime = new AtomicLong();
+    private volatile BlockingQueue<E> eventQueue = new LinkedBlockingQueue<E>();
+    private volatile BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+    private volatile int sampleThreshold = 7500;
+    private volatile int sampleRate = 10;
+    private volatile long blockTimeout = 100;
+    private volatile long lastFlushTime = 0;
+    private volatile long maxFlushTime = 0;
     private int batchSize = 25;
     
     //Used to hold events to flush, MUST only be read/written from within the flushLock 
@@ -58,6 +97,140 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
         eventBuffer = new ArrayList<E>(this.batchSize);
     }
     
+    /**
+     * The maximum number of events that can be queued between flushes, 0 or less means the queue is unbounded
+     * which is the default. Events already in the queue are moved to the new queue, if there are more than the
+     * new capacity the extras are dropped.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        final BlockingQueue<E> oldQueue = this.eventQueue;
+        final BlockingQueue<E> newQueue;
+        if (queueCapacity > 0) {
+            newQueue = new ArrayBlockingQueue<E>(queueCapacity);
+        }
+        else {
+            newQueue = new LinkedBlockingQueue<E>();
+        }
+        this.eventQueue = newQueue;
+        
+        for (E event = oldQueue.poll(); event != null; event = oldQueue.poll()) {
+            if (!newQueue.offer(event)) {
+                this.droppedEvents.incrementAndGet();
+            }
+        }
+        
+        if (queueCapacity > 0) {
+            this.sampleThreshold = Math.min(this.sampleThreshold, queueCapacity);
+        }
+    }
+    
+    /**
+     * What to do with new events when a bounded queue is full, defaults to {@link BackpressurePolicy#BLOCK}
+     */
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        this.backpressurePolicy = backpressurePolicy;
+    }
+
+    /**
+     * Queue depth at which {@link BackpressurePolicy#SAMPLE} starts sampling events, defaults to 7500
+     */
+    public void setSampleThreshold(int sampleThreshold) {
+        this.sampleThreshold = sampleThreshold;
+    }
+
+    /**
+     * When sampling only 1 of every sampleRate events is queued, defaults to 10
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 1) {
+            throw new IllegalArgumentException("sampleRate must be at least 1: " + sampleRate);
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Maximum time in milliseconds {@link BackpressurePolicy#BLOCK} waits for space in the queue, defaults to 100
+     */
+    public void setBlockTimeout(long blockTimeout) {
+        this.blockTimeout = blockTimeout;
+    }
+    
+    public BackpressurePolicy getBackpressurePolicy() {
+        return this.backpressurePolicy;
+    }
+    
+    /**
+     * @return Number of events currently queued
+     */
+    public int getQueueDepth() {
+        return this.eventQueue.size();
+    }
+    
+    /**
+     * @return Maximum number of events that can be queued, {@link Integer#MAX_VALUE} if the queue is unbounded
+     */
+    public int getQueueCapacity() {
+        final BlockingQueue<E> queue = this.eventQueue;
+        return queue.size() + queue.remainingCapacity();
+    }
+    
+    /**
+     * @return Number of events dropped because the queue was full
+     */
+    public long getDroppedEvents() {
+        return this.droppedEvents.get();
+    }
+    
+    /**
+     * @return Number of events skipped by {@link BackpressurePolicy#SAMPLE}
+     */
+    public long getSampledEvents() {
+        return this.sampledEvents.get();
+    }
+    
+    /**
+     * @return Number of events passed to {@link #onApplicationEvents(Iterable)}
+     */
+    public long getFlushedEvents() {
+        return this.flushedEvents.get();
+    }
+    
+    /**
+     * @return Number of events for which {@link #onApplicationEvents(Iterable)} threw an exception
+     */
+    public long getFailedEvents() {
+        return this.failedEvents.get();
+    }
+    
+    /**
+     * @return Number of calls to {@link #flush()} that flushed events
+     */
+    public long getFlushCount() {
+        return this.flushCount.get();
+    }
+    
+    /**
+     * @return Duration in milliseconds of the last call to {@link #flush()} that flushed events
+     */
+    public long getLastFlushTime() {
+        return this.lastFlushTime;
+    }
+    
+    /**
+     * @return Longest duration in milliseconds of a call to {@link #flush()} that flushed events
+     */
+    public long getMaxFlushTime() {
+        return this.maxFlushTime;
+    }
+    
+    /**
+     * @return Average duration in milliseconds of calls to {@link #flush()} that flushed events
+     */
+    public long getAverageFlushTime() {
+        final long count = this.flushCount.get();
+        return count == 0 ? 0 : this.totalFlushTime.get() / count;
+    }
+    
     /* (non-Javadoc)
      * @see org.springframework.beans.factory.DisposableBean#destroy()
      */
@@ -71,7 +244,43 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
      */
     @Override
     protected final void onFilteredApplicationEvent(E event) {
-        this.eventQueue.offer(event);
+        final BlockingQueue<E> queue = this.eventQueue;
+        
+        final boolean queued;
+        switch (this.backpressurePolicy) {
+            case BLOCK: {
+                boolean offered;
+                try {
+                    offered = queue.offer(event, this.blockTimeout, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    offered = false;
+                }
+                queued = offered;
+                break;
+            }
+            case SAMPLE: {
+                if (queue.size() >= this.sampleThreshold && this.sampleCounter.incrementAndGet() % this.sampleRate != 0) {
+                    this.sampledEvents.incrementAndGet();
+                    return;
+                }
+                queued = queue.offer(event);
+                break;
+            }
+            default: {
+                queued = queue.offer(event);
+            }
+        }
+        
+        if (!queued) {
+            final long dropped = this.droppedEvents.incrementAndGet();
+            
+            //Log the first drop and then every 1000 after that to avoid flooding the log
+            if (dropped % 1000 == 1) {
+                this.logger.warn("Event queue is full with " + queue.size() + " events, " + dropped + " events have been dropped. Consider increasing the queue capacity or flush frequency. Dropped: " + event);
+            }
+        }
     }
     
     /**
@@ -103,16 +312,16 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
             logger.trace("FlushLock already held, returning.");
             return;
         }
+        final long flushStart = System.currentTimeMillis();
+        int drainedEvents = 0;
         try {
-            while (!this.eventQueue.isEmpty()) {
+            final BlockingQueue<E> queue = this.eventQueue;
+            while (!queue.isEmpty()) {
                 //Clear the buffer for re-use
                 eventBuffer.clear();
                 
                 //Pop events off the queue into the buffer
-                while (!this.eventQueue.isEmpty() && eventBuffer.size() < this.batchSize) {
-                    final E event = eventQueue.poll();
-                    eventBuffer.add(event);
-                }
+                drainedEvents += queue.drainTo(eventBuffer, this.batchSize);
 
                 if (this.logger.isDebugEnabled()) {
                     this.logger.debug("Flushing " + eventBuffer.size() + " events");
@@ -121,8 +330,10 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
                 //Write events out to batching listener
                 try {
                     this.onApplicationEvents(eventBuffer);
+                    this.flushedEvents.addAndGet(eventBuffer.size());
                 }
                 catch (Throwable t) {
+                    this.failedEvents.addAndGet(eventBuffer.size());
                     this.logger.error("An exception was thrown while trying to flush " + eventBuffer.size() + " events", t);
 
                     final StringBuilder failedEvents = new StringBuilder();
@@ -148,6 +359,15 @@ public abstract class QueueingEventHandler<E extends ApplicationEvent>
             //Clear the buffer to avoid memory leaks
             eventBuffer.clear();
             
+            //Only time calls that had events to flush, empty calls would skew the average down
+            if (drainedEvents > 0) {
+                final long flushTime = System.currentTimeMillis() - flushStart;
+                this.lastFlushTime = flushTime;
+                this.maxFlushTime = Math.max(this.maxFlushTime, flushTime);
+                this.totalFlushTime.addAndGet(flushTime);
+                this.flushCount.incrementAndGet();
+            }
+            
             this.flushLock.unlock();
         }
     }
@@ -20,6 +20,7 @@
 package org.jasig.portal.events.handlers.db;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.persistence.EntityManager;
@@ -31,6 +32,7 @@ import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.ParameterExpression;
 import javax.persistence.criteria.Root;
 
+import org.apache.commons.io.output.StringBuilderWriter;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.AnnotationIntrospector;
 import org.codehaus.jackson.map.JsonMappingException;
@@ -53,22 +55,34 @@ import org.springframework.transaction.annotation.Transactional;
 import com.google.common.base.Function;
 
 /**
- * Stores portal events using JPA/Hibenate no internal batch segmentation is done to the passed list
- * of {@link PortalEvent}s. If a {@link PortalEvent} is not mapped as a persistent entity a message is logged
- * at the WARN level and the event is ignored.
+ * Stores portal events using JPA/Hibenate. The persistence context is flushed and cleared every
+ * {@link #setStoreBatchSize(int)} events so Hibernate can write them using JDBC batch inserts and the
+ * session doesn't grow with the number of events stored. If a {@link PortalEvent} is not mapped as a
+ * persistent entity a message is logged at the WARN level and the event is ignored.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 @Repository
 public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
+    //Serialization buffers larger than this are discarded instead of being reused
+    private static final int MAX_REUSED_BUFFER_SIZE = 16384;
+    
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final ThreadLocal<StringBuilderWriter> serializationBuffer = new ThreadLocal<StringBuilderWriter>() {
+        @Override
+        protected StringBuilderWriter initialValue() {
+            return new StringBuilderWriter(1024);
+        }
+    };
 
     private final ObjectMapper mapper;
     private String deleteQuery;
     private String selectQuery;
     private String selectUnaggregatedQuery;
     private int flushPeriod = 1000;
+    private int storeBatchSize = 100;
     private CriteriaQuery<DateTime> findNewestPersistentPortalEventTimestampQuery;
     private CriteriaQuery<DateTime> findOldestPersistentPortalEventTimestampQuery;
     private ParameterExpression<DateTime> startTimeParameter;
@@ -91,6 +105,14 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     }
 
 
+    /**
+     * Number of events persisted between flushes of the persistence context when storing multiple
+     * events, should match hibernate.jdbc.batch_size for the raw events persistence unit. Defaults to 100.
+     */
+    public void setStoreBatchSize(int storeBatchSize) {
+        this.storeBatchSize = storeBatchSize;
+    }
+
     /**
      * @param entityManager the entityManager to set
      */
@@ -178,14 +200,7 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(PortalEvent... portalEvents) {
-        for (final PortalEvent portalEvent : portalEvents) {
-            try {
-                storePortalEvent(portalEvent);
-            }
-            catch (IllegalArgumentException iae) {
-                this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
-            }
-        }
+        this.storePortalEvents(Arrays.asList(portalEvents));
     }
 
     /* (non-Javadoc)
@@ -194,12 +209,20 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     @Override
     @Transactional(value="rawEvents")
     public void storePortalEvents(Iterable<PortalEvent> portalEvents) {
+        int storedCount = 0;
         for (final PortalEvent portalEvent : portalEvents) {
             try {
                 storePortalEvent(portalEvent);
             }
             catch (IllegalArgumentException iae) {
                 this.logger.warn(portalEvent.getClass().getName() + " is not mapped as a persistent entity and will not be stored. " + portalEvent + " Exception=" + iae.getMessage());
+                continue;
+            }
+            
+            //periodic flush and clear so the inserts are sent as a JDBC batch and the session stays small
+            if (++storedCount % this.storeBatchSize == 0) {
+                this.entityManager.flush();
+                this.entityManager.clear();
             }
         }
     }
@@ -302,8 +325,11 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
     }
     
     protected String toString(PortalEvent event) {
+        //Reuse a per-thread buffer instead of allocating a new one for every event
+        final StringBuilderWriter writer = this.serializationBuffer.get();
         try {
-            return mapper.writeValueAsString(event);
+            mapper.writeValue(writer, event);
+            return writer.toString();
         }
         catch (JsonParseException e) {
             throw new RuntimeException("Failed to serialize PortalEvent data", e);
@@ -314,5 +340,15 @@ public class JpaPortalEventStore extends BaseJpaDao implements IPortalEventDao {
         catch (IOException e) {
             throw new RuntimeException("Failed to serialize PortalEvent data", e);
         }
+        finally {
+            final StringBuilder buffer = writer.getBuilder();
+            if (buffer.capacity() > MAX_REUSED_BUFFER_SIZE) {
+                //Don't hold on to large buffers
+                this.serializationBuffer.remove();
+            }
+            else {
+                buffer.setLength(0);
+            }
+        }
     }
 }
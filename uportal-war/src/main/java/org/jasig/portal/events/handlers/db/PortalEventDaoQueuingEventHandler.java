@@ -22,6 +22,7 @@ package org.jasig.portal.events.handlers.db;
 import org.jasig.portal.events.PortalEvent;
 import org.jasig.portal.events.handlers.QueueingEventHandler;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 /**
@@ -41,6 +42,42 @@ public class PortalEventDaoQueuingEventHandler extends QueueingEventHandler<Port
     public void setPortalEventDao(IPortalEventDao portalEventDao) {
         this.portalEventDao = portalEventDao;
     }
+    
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.batchSize:100}")
+    @Override
+    public void setBatchSize(int batchSize) {
+        super.setBatchSize(batchSize);
+    }
+
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.queueCapacity:0}")
+    @Override
+    public void setQueueCapacity(int queueCapacity) {
+        super.setQueueCapacity(queueCapacity);
+    }
+
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.backpressurePolicy:BLOCK}")
+    @Override
+    public void setBackpressurePolicy(BackpressurePolicy backpressurePolicy) {
+        super.setBackpressurePolicy(backpressurePolicy);
+    }
+
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.sampleThreshold:7500}")
+    @Override
+    public void setSampleThreshold(int sampleThreshold) {
+        super.setSampleThreshold(sampleThreshold);
+    }
+
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.sampleRate:10}")
+    @Override
+    public void setSampleRate(int sampleRate) {
+        super.setSampleRate(sampleRate);
+    }
+
+    @Value("${org.jasig.portal.events.handlers.db.PortalEventDaoQueuingEventHandler.blockTimeout:100}")
+    @Override
+    public void setBlockTimeout(long blockTimeout) {
+        super.setBlockTimeout(blockTimeout);
+    }
 
     /* (non-Javadoc)
      * @see org.jasig.portal.events.handlers.QueueingEventHandler#onApplicationEvents(java.lang.Iterable)
@@ -84,6 +84,11 @@ public class EntityGroupImpl extends GroupMemberImpl implements IEntityGroup
  */
     private HashMap addedMembers;
     private HashMap removedMembers;
+
+/*
+ * Identifies this instance to GroupAncestorIndex while it has uncommitted updates.
+ */
+    private final Object pendingChangesToken = new Object();
 /**
  * EntityGroupImpl
  */
@@ -121,6 +126,8 @@ public void addMember(IGroupMember gm) throws GroupsException
 
         if ( memberKeysInitialized )
             { primAddMember(gm); } 
+
+        GroupAncestorIndex.setPendingChanges(this, pendingChangesToken, isDirty());
     }
 }
 /**
@@ -157,6 +164,7 @@ protected void clearPendingUpdates()
 {
     addedMembers = null;
     removedMembers = null;
+    GroupAncestorIndex.setPendingChanges(this, pendingChangesToken, false);
 }
 /**
  * Clone the member entity keys.
@@ -202,6 +210,13 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
     if ( this.contains(gm) )
         { return true; }
 
+    // Committed memberships are answered from the member's cached closure of
+    // containing groups.  Pending adds and removes, here or in any group we
+    // contain, are only visible by walking our member groups, which in turn
+    // use the closure once there are no pending changes below them.
+    if ( gm instanceof GroupMemberImpl && ! GroupAncestorIndex.hasPendingChanges(this) )
+        { return ((GroupMemberImpl) gm).getAncestorGroupKeys().contains(getKey()); }
+
     boolean found = false;
     Iterator it = getMemberGroups();
     while (it.hasNext() && !found) {
@@ -646,6 +661,8 @@ public void removeMember(IGroupMember gm) throws GroupsException
         { getRemovedMembers().put(cacheKey, gm); }
 
     primRemoveMember(gm);
+
+    GroupAncestorIndex.setPendingChanges(this, pendingChangesToken, isDirty());
 }
 /**
  * @param newCreatorID java.lang.String
@@ -0,0 +1,152 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jasig.portal.properties.PropertiesManager;
+
+/**
+ * Supports the cached transitive closure of the groups that contain an
+ * <code>IGroupMember</code>.  Each member instance carries a stamp that is
+ * renewed whenever its containing group keys change.  A closure remembers the
+ * newest stamp it was built from and is only current while neither the member
+ * nor any group in the closure has a newer stamp, so a membership change only
+ * invalidates the closures of the changed member and its descendants.  Members
+ * reloaded after the entity caching service invalidated them for a change made
+ * on a peer server are new instances with new stamps, which invalidates the
+ * closures built from the old copies.  Closures are also recomputed after a
+ * maximum age in case a change never reaches the cache.
+ * <p>
+ * Groups with uncommitted adds or removes are tracked so that deep membership
+ * checks that could be affected by them walk the groups instead.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+final class GroupAncestorIndex
+{
+    private static final AtomicLong stamps = new AtomicLong();
+    private static final Map<Object, WeakReference<EntityGroupImpl>> pendingGroups = new WeakHashMap<Object, WeakReference<EntityGroupImpl>>();
+    private static final long maxAge = PropertiesManager.getPropertyAsLong("org.jasig.portal.groups.GroupAncestorIndex.maxAge", 60000);
+
+private GroupAncestorIndex()
+{
+}
+/**
+ * @return a stamp newer than every stamp handed out before
+ */
+static long nextStamp()
+{
+    return stamps.incrementAndGet();
+}
+/**
+ * Records whether the group has uncommitted adds or removes.  The token identifies
+ * the group instance, the entry goes away with the instance if its changes are
+ * never committed.
+ * @param group EntityGroupImpl
+ * @param token Object - held by the group for as long as it exists
+ * @param pending boolean
+ */
+static void setPendingChanges(EntityGroupImpl group, Object token, boolean pending)
+{
+    synchronized (pendingGroups)
+    {
+        if ( pending )
+            { pendingGroups.put(token, new WeakReference<EntityGroupImpl>(group)); }
+        else
+            { pendingGroups.remove(token); }
+    }
+}
+/**
+ * Answers if the group, or any group it contains, has uncommitted adds or removes
+ * which a closure of committed memberships would not reflect.
+ * @param group EntityGroupImpl
+ * @return boolean
+ */
+static boolean hasPendingChanges(EntityGroupImpl group) throws GroupsException
+{
+    List<EntityGroupImpl> pending;
+    synchronized (pendingGroups)
+    {
+        if ( pendingGroups.isEmpty() )
+            { return false; }
+        pending = new ArrayList<EntityGroupImpl>(pendingGroups.size());
+        for (WeakReference<EntityGroupImpl> ref : pendingGroups.values())
+        {
+            EntityGroupImpl pendingGroup = ref.get();
+            if ( pendingGroup != null )
+                { pending.add(pendingGroup); }
+        }
+    }
+
+    String key = group.getKey();
+    for (EntityGroupImpl pendingGroup : pending)
+    {
+        if ( key.equals(pendingGroup.getKey()) || pendingGroup.getAncestorGroupKeys().contains(key) )
+            { return true; }
+    }
+    return false;
+}
+
+/**
+ * An immutable closure of group keys and the newest member stamp it was built from.
+ */
+static final class Closure
+{
+    private final long stamp;
+    private final long created;
+    private final Set<String> groups;
+
+    Closure(long stamp, Set<String> groups)
+    {
+        this.stamp = stamp;
+        this.created = System.currentTimeMillis();
+        this.groups = groups;
+    }
+    /**
+     * @return the newest stamp of the member and the groups the closure was built from
+     */
+    long getStamp()
+    {
+        return stamp;
+    }
+    /**
+     * @return true if the closure is older than the maximum age
+     */
+    boolean isExpired()
+    {
+        return maxAge > 0 && System.currentTimeMillis() - created >= maxAge;
+    }
+    /**
+     * @return the keys of the groups in the closure, must not be modified
+     */
+    Set<String> getGroups()
+    {
+        return groups;
+    }
+}
+}
@@ -21,6 +21,7 @@ package org.jasig.portal.groups;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
@@ -51,6 +52,13 @@ public abstract class GroupMemberImpl implements IGroupMember
  */
     private Set groupKeys;
     private boolean groupKeysInitialized;
+
+/*
+ * The cached transitive closure of the groups that contain this <code>IGroupMember</code>
+ * and the stamp of the last change to our group keys, see <code>GroupAncestorIndex</code>.
+ */
+    private transient volatile GroupAncestorIndex.Closure ancestorClosure;
+    private volatile long membershipStamp = GroupAncestorIndex.nextStamp();
 /**
  * GroupMemberImpl constructor
  */
@@ -81,6 +89,7 @@ public void addGroup(IEntityGroup eg) throws GroupsException
     Set newGroupKeys = copyGroupKeys();
     newGroupKeys.add(eg.getEntityIdentifier().getKey());
     setGroupKeys(newGroupKeys);
+    membershipChanged();
 }
 
 /**
@@ -136,7 +145,96 @@ public boolean deepContains(IGroupMember gm) throws GroupsException
  */
 public java.util.Iterator getAllContainingGroups() throws GroupsException
 {
-    return primGetAllContainingGroups(this, new HashSet()).iterator();
+    Set ancestors = getAncestorGroupKeys();
+    Collection groupsColl = new ArrayList(ancestors.size());
+    for (Iterator itr = ancestors.iterator(); itr.hasNext(); )
+    {
+        IEntityGroup group = getCompositeGroupService().findGroup((String) itr.next());
+        if ( group != null )
+            { groupsColl.add(group); }
+    }
+    return groupsColl.iterator();
+}
+
+/**
+ * Returns the keys of all groups that recursively contain this <code>IGroupMember</code>.
+ * The closure is cached and only recomputed after the containing group keys of this
+ * member or of one of the groups in the closure change, so repeated deep membership
+ * checks become a set lookup.  The returned <code>Set</code> must not be modified.
+ * @return java.util.Set
+ */
+protected Set getAncestorGroupKeys() throws GroupsException
+{
+    return primGetAncestorClosure(new HashSet(), new boolean[1]).getGroups();
+}
+
+/**
+ * Answers if the closure still reflects the containing group keys of this member and
+ * of the groups in the closure, as currently cached by the group service.
+ * @param closure GroupAncestorIndex.Closure
+ * @return boolean
+ */
+private boolean isCurrent(GroupAncestorIndex.Closure closure) throws GroupsException
+{
+    if ( closure.isExpired() || membershipStamp > closure.getStamp() )
+        { return false; }
+    for (Iterator itr = closure.getGroups().iterator(); itr.hasNext(); )
+    {
+        IEntityGroup group = getCompositeGroupService().findGroup((String) itr.next());
+        if ( group == null )
+            { return false; }
+        if ( group instanceof GroupMemberImpl && ((GroupMemberImpl) group).membershipStamp > closure.getStamp() )
+            { return false; }
+    }
+    return true;
+}
+
+/**
+ * Builds the closure from the closures of our parent groups, reusing any that are
+ * still current.  A circular reference is tolerated but the affected closures are
+ * not cached.
+ * @param visiting java.util.Set - keys of the groups on the current path
+ * @param circular boolean[] - set to true if a circular reference was found
+ * @return GroupAncestorIndex.Closure
+ */
+private GroupAncestorIndex.Closure primGetAncestorClosure(Set visiting, boolean[] circular) throws GroupsException
+{
+    GroupAncestorIndex.Closure closure = ancestorClosure;
+    if ( closure != null && isCurrent(closure) )
+        { return closure; }
+
+    // Read the stamp before the group keys, a change made while building renews it
+    long stamp = membershipStamp;
+    Set ancestors = new HashSet();
+    if ( isGroup() )
+        { visiting.add(getKey()); }
+    for (Iterator itr = getContainingGroups(); itr.hasNext(); )
+    {
+        IEntityGroup parent = (IEntityGroup) itr.next();
+        if ( parent == null )
+            { continue; }
+        ancestors.add(parent.getKey());
+        if ( visiting.contains(parent.getKey()) )
+            { circular[0] = true; }
+        else if ( parent instanceof GroupMemberImpl )
+        {
+            GroupAncestorIndex.Closure parentClosure = ((GroupMemberImpl) parent).primGetAncestorClosure(visiting, circular);
+            ancestors.addAll(parentClosure.getGroups());
+            stamp = Math.max(stamp, parentClosure.getStamp());
+        }
+        else
+        {
+            for (Iterator p = parent.getAllContainingGroups(); p.hasNext(); )
+                { ancestors.add(((IEntityGroup) p.next()).getKey()); }
+        }
+    }
+    if ( isGroup() )
+        { visiting.remove(getKey()); }
+
+    closure = new GroupAncestorIndex.Closure(stamp, Collections.unmodifiableSet(ancestors));
+    if ( ! circular[0] )
+        { ancestorClosure = closure; }
+    return closure;
 }
 
 /**
@@ -353,6 +451,15 @@ protected java.util.Set primGetAllContainingGroups(IGroupMember member, Set s) t
     }
     return s;
 }
+/**
+ * Renews our stamp after the group keys change, which invalidates our closure and the
+ * closures of our descendants.
+ */
+private void membershipChanged()
+{
+    membershipStamp = GroupAncestorIndex.nextStamp();
+    ancestorClosure = null;
+}
 /**
  * Removes the key of the <code>IEntityGroup</code> from our <code>Set</code> of group keys
  * by copying the keys, updating the copy, and replacing the old keys with the copy.
@@ -364,6 +471,7 @@ public void removeGroup(IEntityGroup eg) throws GroupsException
     Set newGroupKeys = copyGroupKeys();
     newGroupKeys.remove(eg.getEntityIdentifier().getKey());
     setGroupKeys(newGroupKeys);
+    membershipChanged();
 }
 /**
  * @param newGroupKeys Set
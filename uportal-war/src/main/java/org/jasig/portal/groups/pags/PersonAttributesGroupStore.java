@@ -25,12 +25,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -52,6 +55,8 @@ import org.jasig.portal.security.provider.RestrictedPerson;
 import org.jasig.portal.spring.locator.PersonAttributeDaoLocator;
 import org.jasig.services.persondir.IPersonAttributeDao;
 import org.jasig.services.persondir.IPersonAttributes;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 
 /**
  * The Person Attributes Group Store uses attributes stored in the IPerson object to determine
@@ -66,19 +71,32 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    private static final Class<IPerson> IPERSON_CLASS = IPerson.class;
    private static final EntityIdentifier[] EMPTY_SEARCH_RESULTS =
        new EntityIdentifier[0];
+   private static final String MEMBER_STATES_ATTRIBUTE = PersonAttributesGroupStore.class.getName() + ".MEMBER_STATES";
    private Properties props;
    private Map groupDefinitions;
    private Map<String, IEntityGroup> groups;
    private Map<String, List> containingGroups;
+   private Map<String, Set<String>> allContainingGroupKeys;
+   private Map<String, MembershipCacheEntry> membershipCache;
       
    public PersonAttributesGroupStore() {
       groups = new HashMap<String, IEntityGroup>();
       containingGroups = new HashMap<String, List>();
+      allContainingGroupKeys = new HashMap<String, Set<String>>();
       try {
          props = new Properties();
          props.load(PersonAttributesGroupStore.class.getResourceAsStream("/properties/groups/pags.properties"));
          IPersonAttributesConfiguration config = getConfig(props.getProperty("org.jasig.portal.groups.pags.PersonAttributesGroupStore.configurationClass"));
          groupDefinitions = config.getConfig();
+         final int membershipCacheSize = Integer.parseInt(props.getProperty("org.jasig.portal.groups.pags.PersonAttributesGroupStore.membershipCacheSize", "1000"));
+         membershipCache = new LinkedHashMap<String, MembershipCacheEntry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MembershipCacheEntry> eldest) {
+               return size() > membershipCacheSize;
+            }
+         };
          initGroups(); 
       } catch ( Exception e ) {
          throw new RuntimeException("Problem initializing groups", e);
@@ -108,6 +126,7 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
            cachePut(group);
        }
        cacheContainingGroupsForGroups();
+       cacheAllContainingGroupKeys();
    }
    
 
@@ -144,23 +163,7 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       {
          if (member.getEntityType() != IPERSON_CLASS) 
              { return false; }
-         IPerson person = null;
-         try {
-             IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
-             final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
-
-             RestrictedPerson rp = PersonFactory.createRestrictedPerson();
-             if (personAttributes != null) {
-                 rp.setAttributes(personAttributes.getAttributes());
-             }
-             
-             person = rp;
-         }
-         catch (Exception ex) { 
-             log.error("Exception acquiring attributes for member " + member + " while checking if group " + group + " contains this member.", ex);
-             return false; 
-         }
-         return testRecursively(groupDef, person, member);
+         return isMember(group.getLocalKey(), member);
       }
    }
 
@@ -199,40 +202,182 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
        }
    }
 
-   private boolean testRecursively(GroupDefinition groupDef, IPerson person,
-       IGroupMember member)
+   /**
+    * Caches the keys of all ancestors of each group so membership evaluation
+    * does not have to walk the group hierarchy for every person.
+    */
+   private void cacheAllContainingGroupKeys() throws GroupsException
+   {
+       for (Iterator<IEntityGroup> i=groups.values().iterator(); i.hasNext();)
+       {
+           IEntityGroup group = i.next();
+           Set<String> parentKeys = new HashSet<String>();
+           for (IEntityGroup parentGroup : primGetAllContainingGroups(group, new HashSet<IEntityGroup>()))
+               { parentKeys.add(parentGroup.getLocalKey()); }
+           allContainingGroupKeys.put(group.getLocalKey(), parentKeys);
+       }
+   }
+
+   /**
+    * Returns the keys of all groups that contain the member, every group definition is evaluated
+    * against the member's attributes in a single pass. Results are cached for the rest of the
+    * request and, across requests, reused until the member's attributes change.
+    */
+   private Set<String> getContainingGroupKeys(IGroupMember member)
+   throws GroupsException {
+       final MemberState state = getMemberState(member);
+       if (state == null)
+           { return Collections.emptySet(); }
+
+       synchronized (state) {
+           if (state.groupKeys == null)
+           {
+               state.groupKeys = evaluateContainingGroupKeys(state, member);
+               synchronized (membershipCache) {
+                   membershipCache.put(member.getKey(), new MembershipCacheEntry(state.attributes, state.groupKeys));
+               }
+           }
+           return state.groupKeys;
+       }
+   }
+
+   /**
+    * Tests if the member is in the group. If the member's groups have not been evaluated yet only
+    * the group and its ancestors are tested.
+    */
+   private boolean isMember(String groupKey, IGroupMember member)
    throws GroupsException {
-       if ( ! groupDef.contains(person) )
-           { return false;}
-       else
+       final MemberState state = getMemberState(member);
+       if (state == null)
+           { return false; }
+
+       synchronized (state) {
+           if (state.groupKeys != null)
+               { return state.groupKeys.contains(groupKey); }
+
+           final GroupDefinition groupDef = (GroupDefinition) groupDefinitions.get(groupKey);
+           if ( ! groupDef.contains(state.person, state.testResults) )
+               { return false; }
+           return testAncestors(groupKey, state, member);
+       }
+   }
+
+   /**
+    * Gets the attributes and evaluation state for the member. The person attributes are looked up
+    * once per request, the state is kept in the current request if there is one.
+    *
+    * @return null if the member's attributes could not be looked up
+    */
+   @SuppressWarnings("unchecked")
+   private MemberState getMemberState(IGroupMember member) {
+       Map<String, MemberState> requestStates = null;
+       final RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+       if (requestAttributes != null)
        {
-           IEntityGroup group = cacheGet(groupDef.getKey());
-           IEntityGroup parentGroup = null;
-           Set<IEntityGroup> allParents = primGetAllContainingGroups(group, new HashSet<IEntityGroup>());
-           boolean testPassed = true;
-           for (Iterator<IEntityGroup> i=allParents.iterator(); i.hasNext() && testPassed;)
+           try {
+               synchronized (requestAttributes) {
+                   requestStates = (Map<String, MemberState>) requestAttributes.getAttribute(MEMBER_STATES_ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+                   if (requestStates == null)
+                   {
+                       requestStates = new ConcurrentHashMap<String, MemberState>();
+                       requestAttributes.setAttribute(MEMBER_STATES_ATTRIBUTE, requestStates, RequestAttributes.SCOPE_REQUEST);
+                   }
+               }
+           }
+           catch (IllegalStateException ise) {
+               //Request is no longer active, evaluate without the request cache
+               requestStates = null;
+           }
+
+           if (requestStates != null)
            {
-               parentGroup = i.next();
-               GroupDefinition parentGroupDef = 
-                 (GroupDefinition) groupDefinitions.get(parentGroup.getLocalKey());
-               testPassed = parentGroupDef.test(person);               
+               final MemberState state = requestStates.get(member.getKey());
+               if (state != null)
+                   { return state; }
            }
-           
-           if (!testPassed && log.isWarnEnabled()) {
-               StringBuffer sb = new StringBuffer();
-               sb.append("PAGS group=").append(group.getKey());
-               sb.append(" contained person=").append(member.getKey());
-               sb.append(", but the person failed to be contained in ");
-               sb.append("ancesters of this group");
-               sb.append((parentGroup != null ? " (parentGroup="+parentGroup.getKey()+")" : ""));
-               sb.append(". This may indicate a ");
-               sb.append("misconfigured PAGS group ");
-               sb.append("store. Please check PAGSGroupStoreConfig.xml.");
-               log.warn(sb.toString());
+       }
+
+       final Map<String, List<Object>> attributes;
+       try {
+           IPersonAttributeDao pa = PersonAttributeDaoLocator.getPersonAttributeDao();
+           final IPersonAttributes personAttributes = pa.getPerson(member.getKey());
+           attributes = (personAttributes != null)
+             ? new HashMap<String, List<Object>>(personAttributes.getAttributes())
+             : Collections.<String, List<Object>>emptyMap();
+       }
+       catch (Exception ex) { 
+           log.error("Exception acquiring attributes for member " + member + " while finding the groups that contain this member.", ex);
+           return null; 
+       }
+
+       final MemberState state = new MemberState(attributes);
+
+       MembershipCacheEntry cacheEntry;
+       synchronized (membershipCache) {
+           cacheEntry = membershipCache.get(member.getKey());
+       }
+       if (cacheEntry != null && cacheEntry.attributes.equals(attributes))
+           { state.groupKeys = cacheEntry.groupKeys; }
+
+       if (requestStates != null)
+           { requestStates.put(member.getKey(), state); }
+       return state;
+   }
+
+   /**
+    * Tests the person against every group definition. Each tester is run at most once,
+    * testers shared by several groups reuse the first result. A group only contains the
+    * person if all of its ancestor groups also pass.
+    */
+   private Set<String> evaluateContainingGroupKeys(MemberState state, IGroupMember member) {
+       final Set<String> groupKeys = new HashSet<String>();
+       for (Iterator i = groupDefinitions.values().iterator(); i.hasNext(); )
+       {
+           GroupDefinition groupDef = (GroupDefinition) i.next();
+           if ( groupDef.contains(state.person, state.testResults) && testAncestors(groupDef.getKey(), state, member) )
+               { groupKeys.add(groupDef.getKey()); }
+       }
+       return Collections.unmodifiableSet(groupKeys);
+   }
+
+   /**
+    * @return true if the person passes the tests of every ancestor of the group
+    */
+   private boolean testAncestors(String groupKey, MemberState state, IGroupMember member) {
+       String failedParentKey = null;
+       Set<String> parentKeys = allContainingGroupKeys.get(groupKey);
+       if (parentKeys != null)
+       {
+           for (Iterator<String> p = parentKeys.iterator(); p.hasNext() && failedParentKey == null;)
+           {
+               String parentKey = p.next();
+               Boolean parentPassed = state.groupTestResults.get(parentKey);
+               if (parentPassed == null)
+               {
+                   GroupDefinition parentGroupDef = (GroupDefinition) groupDefinitions.get(parentKey);
+                   parentPassed = parentGroupDef.test(state.person, state.testResults);
+                   state.groupTestResults.put(parentKey, parentPassed);
+               }
+               if (!parentPassed)
+                   { failedParentKey = parentKey; }
            }
-           return testPassed;
        }
+
+       if (failedParentKey != null && log.isWarnEnabled()) {
+           StringBuffer sb = new StringBuffer();
+           sb.append("PAGS group=").append(cacheGet(groupKey).getKey());
+           sb.append(" contained person=").append(member.getKey());
+           sb.append(", but the person failed to be contained in ");
+           sb.append("ancesters of this group");
+           sb.append(" (parentGroup="+cacheGet(failedParentKey).getKey()+")");
+           sb.append(". This may indicate a ");
+           sb.append("misconfigured PAGS group ");
+           sb.append("store. Please check PAGSGroupStoreConfig.xml.");
+           log.warn(sb.toString());
+       }
+       return failedParentKey == null;
    }
+
    private java.util.Set<IEntityGroup> primGetAllContainingGroups(IEntityGroup group, Set<IEntityGroup> s)
    throws GroupsException
    {
@@ -264,9 +409,11 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
    private Iterator<IEntityGroup> findContainingGroupsForEntity(IEntity member)
    throws GroupsException {
        List<IEntityGroup> results = new ArrayList<IEntityGroup>();
-       for (Iterator<IEntityGroup> i = groups.values().iterator(); i.hasNext(); ) {
-          IEntityGroup group = i.next();
-          if ( contains(group, member)) 
+       if (member.getEntityType() != IPERSON_CLASS)
+           { return results.iterator(); }
+       for (Iterator<String> i = getContainingGroupKeys(member).iterator(); i.hasNext(); ) {
+          IEntityGroup group = cacheGet(i.next());
+          if (group != null) 
               { results.add(group); }
        }
        return results.iterator();
@@ -402,11 +549,23 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
          return ( testGroups.isEmpty() ) ? false : test(person);
       }
       public boolean test(IPerson person) {
+         return test(person, new IdentityHashMap<IPersonTester, Boolean>());
+      }
+      /**
+       * Same as {@link #contains(IPerson)} but reuses and records tester results in testResults
+       */
+      public boolean contains(IPerson person, Map<IPersonTester, Boolean> testResults) {
+         return ( testGroups.isEmpty() ) ? false : test(person, testResults);
+      }
+      /**
+       * Same as {@link #test(IPerson)} but reuses and records tester results in testResults
+       */
+      public boolean test(IPerson person, Map<IPersonTester, Boolean> testResults) {
          if (testGroups.isEmpty())
              return true;
          for (Iterator<TestGroup> i = testGroups.iterator(); i.hasNext(); ) {
             TestGroup testGroup = i.next();
-            if (testGroup.test(person)) {
+            if (testGroup.test(person, testResults)) {
                return true;
             }
          }
@@ -429,15 +588,56 @@ public class PersonAttributesGroupStore implements IEntityGroupStore, IEntitySto
       }
       
       public boolean test(IPerson person) {
+         return test(person, new IdentityHashMap<IPersonTester, Boolean>());
+      }
+      
+      /**
+       * Tests the person, only running testers that do not already have a result in testResults
+       */
+      public boolean test(IPerson person, Map<IPersonTester, Boolean> testResults) {
          for (Iterator<IPersonTester> i = tests.iterator(); i.hasNext(); ) {
             IPersonTester tester = i.next();
-            if (!tester.test(person)) {
+            Boolean result = testResults.get(tester);
+            if (result == null) {
+               result = tester.test(person);
+               testResults.put(tester, result);
+            }
+            if (!result) {
                return false;
             }
          }
          return true;
       }
    }
+   
+   /**
+    * A person's attributes and the results of testing them, must only be used while synchronized on the state
+    */
+   private static final class MemberState {
+      private final Map<String, List<Object>> attributes;
+      private final IPerson person;
+      private final Map<IPersonTester, Boolean> testResults = new IdentityHashMap<IPersonTester, Boolean>();
+      private final Map<String, Boolean> groupTestResults = new HashMap<String, Boolean>();
+      private Set<String> groupKeys;
+      
+      MemberState(Map<String, List<Object>> attributes) {
+         this.attributes = attributes;
+         
+         RestrictedPerson rp = PersonFactory.createRestrictedPerson();
+         rp.setAttributes(attributes);
+         this.person = rp;
+      }
+   }
+   
+   private static final class MembershipCacheEntry {
+      private final Map<String, List<Object>> attributes;
+      private final Set<String> groupKeys;
+      
+      MembershipCacheEntry(Map<String, List<Object>> attributes, Set<String> groupKeys) {
+         this.attributes = attributes;
+         this.groupKeys = groupKeys;
+      }
+   }
 
    public IEntity newInstance(String key, Class type) throws GroupsException {
       if (EntityTypes.getEntityTypeID(type) == null) {
@@ -44,8 +44,13 @@ import org.w3c.dom.Text;
 public class XMLPersonAttributesConfiguration
    implements IPersonAttributesConfiguration {
 
+   // Testers with the same class, attribute and value are shared across groups so the
+   // group store only has to evaluate each distinct test once per person.
+   private Map<String, IPersonTester> testers;
+
    public Map getConfig() {
       Map groupDefinitions;
+      testers = new HashMap<String, IPersonTester>();
       Document config = null;
       try {
          config =
@@ -143,11 +148,18 @@ public class XMLPersonAttributesConfiguration
       }
    }
    private IPersonTester initializeTester(String tester, String attribute, String value) {
+         String testerKey = tester + "\0" + attribute + "\0" + value;
+         IPersonTester testerInst = testers.get(testerKey);
+         if (testerInst != null) {
+            return testerInst;
+         }
          try {
             Class testerClass = Class.forName(tester);
             Constructor c = testerClass.getConstructor(new Class[]{String.class, String.class});
             Object o = c.newInstance(new Object[]{attribute, value});
-            return (IPersonTester)o;
+            testerInst = (IPersonTester)o;
+            testers.put(testerKey, testerInst);
+            return testerInst;
          } catch (Exception e) {
             e.printStackTrace();
             return null;
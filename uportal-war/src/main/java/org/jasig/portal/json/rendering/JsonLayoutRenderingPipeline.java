@@ -19,9 +19,10 @@
 package org.jasig.portal.json.rendering;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -29,6 +30,7 @@ import org.jasig.portal.character.stream.CharacterEventReader;
 import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEvent;
 import org.jasig.portal.events.IPortalEventFactory;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 import org.jasig.portal.rendering.IPortalRenderingPipeline;
@@ -83,16 +85,21 @@ public class JsonLayoutRenderingPipeline implements IPortalRenderingPipeline {
         final String contentType = "application/json; charset=" + CHARACTER_SET;
         res.setContentType(contentType);
         
-        final PrintWriter writer = res.getWriter();
+        //The output stream is not retrieved until there is data to write, if rendering fails before
+        //that the response is untouched and error pages are still free to use getWriter()
+        ServletOutputStream outputStream = null;
         
         for (final CharacterEvent event : pipelineEventReader) {
             if (CharacterEventTypes.CHARACTER != event.getEventType()) {
                 throw new RenderingPipelineConfigurationException("Only " + CharacterEventTypes.CHARACTER + " events are supported in the top level renderer. " + event.getEventType() + " is not supported.");
             }
             
-            final String data = ((CharacterDataEvent)event).getData();
-            writer.print(data);
-            writer.flush();
+            if (outputStream == null) {
+                outputStream = res.getOutputStream();
+            }
+            
+            this.writeCharacterData((CharacterDataEvent)event, outputStream);
+            outputStream.flush();
             res.flushBuffer();
         }
         
@@ -102,4 +109,21 @@ public class JsonLayoutRenderingPipeline implements IPortalRenderingPipeline {
         this.portalEventFactory.publishPortalRenderEvent(req, this, req.getPathInfo(), executionTime, portalRequestInfo);
     }
 
+    /**
+     * Write the character data to the response, pre-encoded events are written directly and
+     * all other events are encoded with {@link #CHARACTER_SET}
+     */
+    protected void writeCharacterData(CharacterDataEvent event, OutputStream outputStream) throws IOException {
+        if (event instanceof EncodedCharacterDataEvent) {
+            final EncodedCharacterDataEvent encodedEvent = (EncodedCharacterDataEvent)event;
+            if (CHARACTER_SET.equals(encodedEvent.getCharacterSet())) {
+                encodedEvent.writeEncodedData(outputStream);
+                return;
+            }
+        }
+        
+        final String data = event.getData();
+        outputStream.write(data.getBytes(CHARACTER_SET));
+    }
+
 }
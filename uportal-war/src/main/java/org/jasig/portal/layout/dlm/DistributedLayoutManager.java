@@ -236,33 +236,61 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
             // that the user isn't authorized to render from folders of type 
             // 'header' and 'footer'.
             IAuthorizationPrincipal principal = authorizationService.newPrincipal(owner.getUserName(), IPerson.class);
+            List<Element> headerFooterFolders = new ArrayList<Element>();
+            Set<String> chanIds = new LinkedHashSet<String>();
             NodeList nodes = userLayoutDocument.getElementsByTagName("folder");
             for (int i=0; i < nodes.getLength(); i++) {
           	  Element fd = (Element) nodes.item(i);
           	  String type = fd.getAttribute("type");
           	  if (type != null && (type.equals("header") || type.equals("footer"))) {
+          		  headerFooterFolders.add(fd);
+          		  NodeList channels = fd.getElementsByTagName("channel");
+          		  for (int j=0; j < channels.getLength(); j++) {
+          			  chanIds.add(((Element) channels.item(j)).getAttribute("chanID"));
+          		  }
+          	  }
+            }
+
+            // Resolve the render permission for all header and footer channels at once
+            Set<String> renderable = null;
+            if (!chanIds.isEmpty()) {
+                try {
+                    renderable = principal.getRenderableChannels(chanIds);
+                } catch (Throwable t) {
+                    LOG.warn("RDBMUserLayoutStore was unable to analyze the header and footer channels of user '" 
+                            + owner.getUserName() + "'", t);
+                }
+            }
+
+            for (Element fd : headerFooterFolders) {
           		  // Here's where we do the work...
           		  if (LOG.isDebugEnabled()) {
           			  LOG.debug("RDBMUserLayoutStore examining the '" 
-        					  	+ type 
+        					  	+ fd.getAttribute("type") 
         					  	+ "' folder of user '" 
         					  	+ owner.getUserName() 
         					  	+ "' for non-authorized channels.");
           		  }
+          		  if (renderable == null) {
+          			  continue;
+          		  }
           		  NodeList channels = fd.getElementsByTagName("channel");
+          		  List<Element> unauthorized = new ArrayList<Element>();
           		  for (int j=0; j < channels.getLength(); j++) {
           			  Element ch = (Element) channels.item(j);
+          			  if (!renderable.contains(ch.getAttribute("chanID"))) {
+          				  unauthorized.add(ch);
+          			  }
+          		  }
+          		  for (Element ch : unauthorized) {
           			  try {
-          				  String chanId = ch.getAttribute("chanID");
-          				  if (!principal.canRender(chanId)) {
-          					  fd.removeChild(ch);
-          					  if (LOG.isDebugEnabled()) {
-          						  LOG.debug("RDBMUserLayoutStore removing channel '" 
+          				  fd.removeChild(ch);
+          				  if (LOG.isDebugEnabled()) {
+          					  LOG.debug("RDBMUserLayoutStore removing channel '" 
             							  	+ ch.getAttribute("fname") 
             							  	+ "' from the header or footer of user '" 
             							  	+ owner.getUserName() 
             							  	+ "' because he/she isn't authorized to render it.");
-          					  }
           				  }
           			  } catch (Throwable t) {
           				  // Log this...
@@ -270,7 +298,6 @@ public class DistributedLayoutManager implements IUserLayoutManager, IFolderLoca
           						  									+ch.getAttribute("chanID"), t);
           			  }
           		  }
-          	  }
             }
             
             setUserLayoutDOM( userLayout );
@@ -30,6 +30,7 @@ import org.jasig.portal.UserProfile;
 import org.jasig.portal.events.LoginEvent;
 import org.jasig.portal.events.LogoutEvent;
 import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.SynchronousPortalEventListener;
 import org.jasig.portal.layout.IUserLayoutStore;
 import org.jasig.portal.security.IPerson;
 import org.jasig.portal.spring.locator.UserLayoutStoreLocator;
@@ -37,9 +38,10 @@ import org.jasig.portal.utils.Tuple;
 import org.springframework.context.ApplicationListener;
 
 /**
- * Provides API for layout caching service
+ * Provides API for layout caching service. Login and logout events are handled synchronously so the
+ * request that logged in never renders a stale cached layout.
  */
-public class LayoutCachingService implements ApplicationListener<PortalEvent>, ILayoutCachingService {
+public class LayoutCachingService implements ApplicationListener<PortalEvent>, SynchronousPortalEventListener, ILayoutCachingService {
     protected final Log logger = LogFactory.getLog(this.getClass());
     
     private Map<Serializable, DistributedUserLayout> layoutCache;
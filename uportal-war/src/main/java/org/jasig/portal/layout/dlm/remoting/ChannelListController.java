@@ -19,6 +19,7 @@
 
 package org.jasig.portal.layout.dlm.remoting;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -117,9 +118,22 @@ public class ChannelListController {
 	    LocaleManager localeManager = new LocaleManager(user, locales);
 	    Locale locale = localeManager.getLocales()[0];
 		
+		EntityIdentifier ei = user.getEntityIdentifier();
+	    IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
+
+	    // resolve the subscribe permissions for all channels at once rather than per channel
+	    Set<String> subscribableChannelIds = null;
+	    if (!type.equals(TYPE_MANAGE)) {
+	        List<String> channelIds = new ArrayList<String>(allChannels.size());
+	        for (IPortletDefinition channel : allChannels) {
+	            channelIds.add(channel.getPortletDefinitionId().getStringId());
+	        }
+	        subscribableChannelIds = ap.getSubscribableChannels(channelIds);
+	    }
+		
 		// add the root category and all its children to the registry
 		PortletCategory rootCategory = portletCategoryRegistry.getTopLevelPortletCategory();
-		categories.add(addChildren(request, rootCategory, allChannels, user, type, locale));
+		categories.add(addChildren(request, rootCategory, allChannels, ap, subscribableChannelIds, type, locale));
 
 	    /*
 	     * uPortal historically has provided for a convention that channels
@@ -130,9 +144,6 @@ public class ChannelListController {
 	     * as belonging to a category and adds them to the top-level of the 
 	     * registry, assuming the current user has manage permissions.
 	     */
-	    
-		EntityIdentifier ei = user.getEntityIdentifier();
-	    IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 
 	    if (type.equals(TYPE_MANAGE)) {
 	        for (IPortletDefinition channel : allChannels) {
@@ -148,7 +159,7 @@ public class ChannelListController {
 		return registry;
 	}
 	
-	private ChannelCategoryBean addChildren(WebRequest request, PortletCategory category, List<IPortletDefinition> allChannels, IPerson user, String type, Locale locale) {
+	private ChannelCategoryBean addChildren(WebRequest request, PortletCategory category, List<IPortletDefinition> allChannels, IAuthorizationPrincipal ap, Set<String> subscribableChannelIds, String type, Locale locale) {
 		
 		// construct a new channel category bean for this category
 		ChannelCategoryBean categoryBean = new ChannelCategoryBean(category);
@@ -156,15 +167,13 @@ public class ChannelListController {
 		
 		// add the direct child channels for this category
 		Set<IPortletDefinition> portlets = portletCategoryRegistry.getChildPortlets(category);		
-		EntityIdentifier ei = user.getEntityIdentifier();
-	    IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 		boolean isManage = type.equals(TYPE_MANAGE);
 		
 		for(IPortletDefinition channelDef : portlets) {
 			
 			if ((isManage && ap.canManage(channelDef.getPortletDefinitionId()
 					.getStringId()))
-					|| (!isManage && ap.canSubscribe(channelDef
+					|| (!isManage && subscribableChannelIds.contains(channelDef
 							.getPortletDefinitionId().getStringId()))) {
 				// construct a new channel bean from this channel
 				ChannelBean channel = getChannel(channelDef, request, locale);
@@ -179,7 +188,7 @@ public class ChannelListController {
 		for(PortletCategory childCategory : this.portletCategoryRegistry.getChildCategories(category)) {
 			
 			// TODO subscribe check?
-			ChannelCategoryBean childCategoryBean = addChildren(request, childCategory, allChannels, user, type, locale);
+			ChannelCategoryBean childCategoryBean = addChildren(request, childCategory, allChannels, ap, subscribableChannelIds, type, locale);
 			
 			categoryBean.addCategory(childCategoryBean);
 		}
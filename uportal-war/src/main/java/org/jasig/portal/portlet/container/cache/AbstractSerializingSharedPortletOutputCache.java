@@ -0,0 +1,152 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base for {@link ISharedPortletOutputCache} implementations that store entries as opaque byte arrays. Handles
+ * serialization of the {@link CachedPortletData}, expiration and hashing the cache key down to a fixed length
+ * storage key. Entries are stored as the expiration time, an ETag flag and then the serialized data so expired
+ * entries without an ETag can be dropped without deserializing them. Storage errors are logged and treated as cache misses.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public abstract class AbstractSerializingSharedPortletOutputCache implements ISharedPortletOutputCache {
+    protected final Log logger = LogFactory.getLog(this.getClass());
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.container.cache.ISharedPortletOutputCache#get(java.lang.String)
+     */
+    @Override
+    public final CachedPortletData get(String key) {
+        final String storageKey = this.getStorageKey(key);
+        
+        final byte[] data;
+        try {
+            data = this.getData(storageKey);
+        }
+        catch (IOException e) {
+            this.logger.warn("Failed to read shared portlet output for " + key + ", treating as a cache miss", e);
+            return null;
+        }
+        
+        if (data == null) {
+            return null;
+        }
+        
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            
+            //Check the expiration before deserializing the data, expired entries with an ETag are kept so
+            //any node can revalidate them with the portlet
+            final long expires = in.readLong();
+            final boolean hasEtag = in.readBoolean();
+            if (!hasEtag && expires > 0 && expires < System.currentTimeMillis()) {
+                this.removeData(storageKey);
+                return null;
+            }
+            
+            final ObjectInputStream objectIn = new ObjectInputStream(in);
+            final CachedPortletData cachedPortletData = (CachedPortletData) objectIn.readObject();
+            cachedPortletData.setSharedCacheExpiration(expires);
+            return cachedPortletData;
+        }
+        catch (Exception e) {
+            this.logger.warn("Failed to deserialize shared portlet output for " + key + ", it will be removed", e);
+            this.remove(key);
+            return null;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.container.cache.ISharedPortletOutputCache#put(java.lang.String, org.jasig.portal.portlet.container.cache.CachedPortletData, int)
+     */
+    @Override
+    public final void put(String key, CachedPortletData cachedPortletData, int timeToLiveSeconds) {
+        final long expires = timeToLiveSeconds > 0 ? System.currentTimeMillis() + timeToLiveSeconds * 1000l : 0;
+        final boolean hasEtag = StringUtils.isNotBlank(cachedPortletData.getEtag());
+        
+        try {
+            final ByteArrayOutputStream byteStream = new ByteArrayOutputStream(1024);
+            final DataOutputStream out = new DataOutputStream(byteStream);
+            out.writeLong(expires);
+            out.writeBoolean(hasEtag);
+            
+            final ObjectOutputStream objectOut = new ObjectOutputStream(out);
+            objectOut.writeObject(cachedPortletData);
+            objectOut.flush();
+            
+            //Entries with an ETag outlive their expiration, don't let stores with native expiration drop them
+            this.putData(this.getStorageKey(key), byteStream.toByteArray(), hasEtag ? 0 : timeToLiveSeconds);
+        }
+        catch (IOException e) {
+            this.logger.warn("Failed to write shared portlet output for " + key + ", it will not be cached", e);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.container.cache.ISharedPortletOutputCache#remove(java.lang.String)
+     */
+    @Override
+    public final boolean remove(String key) {
+        try {
+            return this.removeData(this.getStorageKey(key));
+        }
+        catch (IOException e) {
+            this.logger.warn("Failed to remove shared portlet output for " + key, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Hashes the cache key to a fixed length hex string that is safe to use as a file name or remote cache key
+     */
+    protected String getStorageKey(String key) {
+        return DigestUtils.sha256Hex(key);
+    }
+    
+    /**
+     * @return The stored data, null if there is none
+     */
+    protected abstract byte[] getData(String storageKey) throws IOException;
+    
+    /**
+     * @param timeToLiveSeconds Provided for stores that support native expiration, expiration is also checked on read.
+     * 0 for entries that never expire or that have an ETag and must be kept for revalidation
+     */
+    protected abstract void putData(String storageKey, byte[] data, int timeToLiveSeconds) throws IOException;
+    
+    /**
+     * @return true if there was data to remove
+     */
+    protected abstract boolean removeData(String storageKey) throws IOException;
+}
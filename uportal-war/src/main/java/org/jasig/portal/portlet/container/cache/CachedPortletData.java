@@ -58,6 +58,9 @@ public class CachedPortletData implements Serializable {
     private Integer contentLength;
     private Locale locale;
 	private Map<String, List<Object>> headers = new LinkedHashMap<String, List<Object>>();
+	
+	//Set by the ISharedPortletOutputCache on the copy it returns, not part of the stored data
+	private transient long sharedCacheExpiration;
 
 	
 	/**
@@ -211,6 +214,19 @@ public class CachedPortletData implements Serializable {
 	public void setCacheConfigurationMaxTTL(int cacheConfigurationMaxTTL) {
 		this.cacheConfigurationMaxTTL = cacheConfigurationMaxTTL;
 	}
+	/**
+	 * @return When the entry this data was read from expires in the {@link ISharedPortletOutputCache}, in
+	 * milliseconds since the epoch. 0 if the entry never expires or the data did not come from the shared cache.
+	 */
+	public long getSharedCacheExpiration() {
+		return sharedCacheExpiration;
+	}
+	/**
+	 * @param sharedCacheExpiration the sharedCacheExpiration to set
+	 */
+	public void setSharedCacheExpiration(long sharedCacheExpiration) {
+		this.sharedCacheExpiration = sharedCacheExpiration;
+	}
 	/**
 	 * Mutator method to allow the Portlet renderer to update the expiration time
 	 * for CachedPortletData instances that are expired.
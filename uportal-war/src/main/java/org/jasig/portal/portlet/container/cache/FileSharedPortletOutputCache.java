@@ -0,0 +1,89 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * {@link ISharedPortletOutputCache} that stores one file per entry in a directory, intended to be used with
+ * a directory on a file system shared by all nodes in the cluster. Files are written to a temporary name and
+ * then renamed so readers never see partially written entries. Expired files are removed when they are read.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class FileSharedPortletOutputCache extends AbstractSerializingSharedPortletOutputCache {
+    private static final String ENTRY_SUFFIX = ".cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    private final File directory;
+    
+    public FileSharedPortletOutputCache(File directory) {
+        this.directory = directory;
+        
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+            throw new IllegalArgumentException("Shared portlet output cache directory does not exist and could not be created: " + directory);
+        }
+    }
+
+    @Override
+    protected byte[] getData(String storageKey) throws IOException {
+        final File entryFile = this.getEntryFile(storageKey);
+        try {
+            return FileUtils.readFileToByteArray(entryFile);
+        }
+        catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void putData(String storageKey, byte[] data, int timeToLiveSeconds) throws IOException {
+        //Unique temp file per writer so concurrent puts from different nodes don't collide
+        final File tempFile = File.createTempFile(storageKey, TEMP_SUFFIX, this.directory);
+        try {
+            FileUtils.writeByteArrayToFile(tempFile, data);
+            
+            final File entryFile = this.getEntryFile(storageKey);
+            if (!tempFile.renameTo(entryFile)) {
+                //Some platforms won't rename over an existing file
+                entryFile.delete();
+                if (!tempFile.renameTo(entryFile)) {
+                    throw new IOException("Failed to rename " + tempFile + " to " + entryFile);
+                }
+            }
+        }
+        finally {
+            tempFile.delete();
+        }
+    }
+
+    @Override
+    protected boolean removeData(String storageKey) {
+        return this.getEntryFile(storageKey).delete();
+    }
+    
+    protected File getEntryFile(String storageKey) {
+        return new File(this.directory, storageKey + ENTRY_SUFFIX);
+    }
+}
@@ -110,6 +110,28 @@ public interface IPortletCacheControlService {
 	 */
 	void cachePortletResourceOutput(IPortletWindowId portletWindowId, HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheControl cacheControl);
 	
+	/**
+	 * Extend the expiration of cached render output the portlet has revalidated via {@link CacheControl#setUseCachedContent(boolean)}.
+	 * Public scope output is written back to the shared cache so other nodes see the new expiration.
+	 * 
+	 * @param portletWindowId
+	 * @param httpRequest
+	 * @param cachedPortletData the revalidated data
+	 * @param cacheControl the {@link CacheControl} the portlet set the new expiration time on
+	 */
+	void updateCachedPortletRenderOutputExpiration(IPortletWindowId portletWindowId, HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheControl cacheControl);
+	
+	/**
+	 * Extend the expiration of cached resource output the portlet has revalidated via {@link CacheControl#setUseCachedContent(boolean)}.
+	 * Public scope output is written back to the shared cache so other nodes see the new expiration.
+	 * 
+	 * @param portletWindowId
+	 * @param httpRequest
+	 * @param cachedPortletData the revalidated data
+	 * @param cacheControl the {@link CacheControl} the portlet set the new expiration time on
+	 */
+	void updateCachedPortletResourceOutputExpiration(IPortletWindowId portletWindowId, HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheControl cacheControl);
+	
 	/**
 	 * Purge any {@link CachedPortletData} for the portlet.
 	 * Generally triggered on any Action or Event Request.
@@ -0,0 +1,55 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+/**
+ * Cache tier for public scope {@link CachedPortletData} that is shared by all nodes in a cluster. When one
+ * node renders a public scope portlet the output and its ETag are visible to all other nodes, which can then
+ * replay the output or revalidate it with the portlet via {@link javax.portlet.CacheControl#setUseCachedContent(boolean)}
+ * instead of doing a full render.
+ * <p>
+ * Implementations must return copies of the cached data, callers are free to modify the returned object. Failures
+ * talking to the shared store should be logged and treated as a cache miss.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public interface ISharedPortletOutputCache {
+    /**
+     * @param key Cluster wide key for the cached data, see {@link PortletCacheControlServiceImpl#generateSharedCacheKey}
+     * @return The cached data, null if nothing is cached for the key or the entry has expired and has no ETag.
+     * Expired entries with an ETag are returned so they can be revalidated. The entry's expiration is available
+     * from {@link CachedPortletData#getSharedCacheExpiration()}
+     */
+    public CachedPortletData get(String key);
+    
+    /**
+     * @param key Cluster wide key for the cached data
+     * @param cachedPortletData The data to cache
+     * @param timeToLiveSeconds Number of seconds until the entry expires, 0 means the entry never expires. Putting
+     * an existing key replaces the entry and its expiration
+     */
+    public void put(String key, CachedPortletData cachedPortletData, int timeToLiveSeconds);
+    
+    /**
+     * @param key Cluster wide key for the cached data
+     * @return true if an entry was removed
+     */
+    public boolean remove(String key);
+}
@@ -0,0 +1,55 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process {@link ISharedPortletOutputCache}, useful for a single node and for testing. Entries are stored
+ * serialized so callers get copies just like they would from a real shared store.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class LocalSharedPortletOutputCache extends AbstractSerializingSharedPortletOutputCache {
+    private final ConcurrentMap<String, byte[]> entries = new ConcurrentHashMap<String, byte[]>();
+
+    @Override
+    protected byte[] getData(String storageKey) {
+        return this.entries.get(storageKey);
+    }
+
+    @Override
+    protected void putData(String storageKey, byte[] data, int timeToLiveSeconds) {
+        this.entries.put(storageKey, data);
+    }
+
+    @Override
+    protected boolean removeData(String storageKey) {
+        return this.entries.remove(storageKey) != null;
+    }
+    
+    /**
+     * @return The number of entries, including expired entries that have not been read yet
+     */
+    public int getSize() {
+        return this.entries.size();
+    }
+}
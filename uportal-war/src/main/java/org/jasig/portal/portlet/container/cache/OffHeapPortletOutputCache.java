@@ -0,0 +1,815 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.lang.LocaleUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Byte bounded cache for {@link CachedPortletData} that stores the serialized portlet output in direct
+ * (off-heap) memory. Only the keys and expiration metadata are kept on the heap, the content, headers
+ * and other response data are written to fixed size blocks carved out of large direct buffers.
+ * <p>
+ * Direct memory is allocated one slab at a time as needed up to {@link #getMaxBytes()}, blocks are reused
+ * as entries are evicted or removed. When there are not enough free blocks for a new entry the least recently
+ * used entries are evicted until there are.
+ * <p>
+ * Entries are striped over a fixed number of segments so concurrent lookups for different keys don't contend on
+ * a single lock, data is copied to and from direct memory outside of the segment locks.
+ * <p>
+ * A max size of 0 disables the cache.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+@Service
+public class OffHeapPortletOutputCache {
+    private static final int SLAB_BLOCKS = 256;
+    private static final int SEGMENTS = 16;
+    
+    private static final byte HEADER_STRING = 0;
+    private static final byte HEADER_INTEGER = 1;
+    private static final byte HEADER_LONG = 2;
+    
+    protected final Log logger = LogFactory.getLog(this.getClass());
+    
+    /**
+     * Entries are striped over segments by key hash, each segment is guarded by its own lock and kept in access
+     * order so its first entry is the least recently used entry of the segment.
+     */
+    private final Segment[] segments;
+    private final AtomicLong accessClock = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong puts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    
+    private long maxBytes = 0;
+    private int blockSize = 4096;
+    
+    //All of the following are guarded by the blockLock
+    private final Object blockLock = new Object();
+    private ByteBuffer[] slabs;
+    private int allocatedBlocks = 0;
+    private int maxBlocks = 0;
+    private int[] freeBlocks = new int[0];
+    private int freeBlockCount = 0;
+    private long dataBytes = 0;
+    
+    public OffHeapPortletOutputCache() {
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+    
+    /**
+     * Total number of bytes of direct memory the cache can use, defaults to 0 which disables the cache
+     */
+    @Value("${org.jasig.portal.portlet.container.cache.OffHeapPortletOutputCache.maxBytes:0}")
+    public void setMaxBytes(long maxBytes) {
+        synchronized (this.blockLock) {
+            if (this.allocatedBlocks > 0) {
+                throw new IllegalStateException("maxBytes cannot be changed after the cache has been used");
+            }
+            this.maxBytes = maxBytes;
+            this.configureBlocks();
+        }
+    }
+
+    /**
+     * Size of the blocks entries are split into, smaller blocks waste less space for small entries but
+     * require more bookkeeping for large entries. Defaults to 4096.
+     */
+    @Value("${org.jasig.portal.portlet.container.cache.OffHeapPortletOutputCache.blockSize:4096}")
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("blockSize must be greater than 0: " + blockSize);
+        }
+        synchronized (this.blockLock) {
+            if (this.allocatedBlocks > 0) {
+                throw new IllegalStateException("blockSize cannot be changed after the cache has been used");
+            }
+            this.blockSize = blockSize;
+            this.configureBlocks();
+        }
+    }
+    
+    private void configureBlocks() {
+        final long blocks = this.maxBytes / this.blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE - SLAB_BLOCKS, blocks);
+        this.slabs = new ByteBuffer[(this.maxBlocks + SLAB_BLOCKS - 1) / SLAB_BLOCKS];
+        this.freeBlocks = new int[Math.min(this.maxBlocks, SLAB_BLOCKS)];
+        this.freeBlockCount = 0;
+    }
+    
+    /**
+     * @return true if the cache has room for at least one block of data
+     */
+    public boolean isEnabled() {
+        return this.maxBlocks > 0;
+    }
+
+    /**
+     * Get the cached data for the key. Only the segment lock for the key is held while looking up the entry,
+     * the data is copied out of direct memory while holding the entry's read lock.
+     * 
+     * @param key The cache key
+     * @param retainExpiredWithEtag If true expired entries that have an etag are returned so they can be validated, if false all expired entries are removed
+     * @return The cached data, null if no data is cached or the entry is expired
+     */
+    public CachedPortletData get(Serializable key, boolean retainExpiredWithEtag) {
+        final Segment segment = this.getSegment(key);
+        
+        CacheEntry entry;
+        CacheEntry expired = null;
+        synchronized (segment) {
+            entry = segment.get(key);
+            if (entry != null) {
+                if (entry.isExpired() && (!retainExpiredWithEtag || StringUtils.isBlank(entry.etag))) {
+                    segment.remove(key);
+                    expired = entry;
+                    entry = null;
+                }
+                else {
+                    entry.lastAccess = this.accessClock.incrementAndGet();
+                }
+            }
+        }
+        
+        if (entry == null) {
+            this.freeEntry(expired);
+            this.misses.incrementAndGet();
+            return null;
+        }
+        
+        final OffHeapCachedPortletData cachedPortletData = new OffHeapCachedPortletData(entry);
+        IOException readException = null;
+        entry.lock.readLock().lock();
+        try {
+            if (entry.freed) {
+                //Replaced or evicted after the lookup
+                this.misses.incrementAndGet();
+                return null;
+            }
+            
+            readData(cachedPortletData, new BlockInputStream(entry));
+        }
+        catch (IOException e) {
+            readException = e;
+        }
+        finally {
+            entry.lock.readLock().unlock();
+        }
+        
+        if (readException != null) {
+            //Can only happen if the stored data is corrupt, drop the entry
+            this.logger.warn("Failed to read off-heap cached portlet data for " + key + ", it will be removed", readException);
+            this.removeEntry(key, entry);
+            return null;
+        }
+        
+        this.hits.incrementAndGet();
+        
+        synchronized (entry) {
+            cachedPortletData.setEtag(entry.etag);
+            cachedPortletData.setTimeStored(entry.timeStored);
+            cachedPortletData.setExpirationTimeSeconds(entry.expirationTimeSeconds);
+            cachedPortletData.setCacheConfigurationMaxTTL(entry.cacheConfigurationMaxTTL);
+        }
+        
+        return cachedPortletData;
+    }
+    
+    /**
+     * Store the data in the cache, replacing any existing data for the key.
+     * 
+     * @param key The cache key
+     * @param cachedPortletData The data to cache
+     * @param timeToLiveSeconds Number of seconds until the entry expires, 0 means the entry never expires 
+     * @return true if the data was cached, false if it is too large for the cache
+     */
+    public boolean put(Serializable key, CachedPortletData cachedPortletData, int timeToLiveSeconds) {
+        final byte[] data;
+        try {
+            data = writeData(cachedPortletData);
+        }
+        catch (IOException e) {
+            //Only happens if a header contains an unsupported type
+            this.logger.warn("Failed to serialize portlet data for " + key + ", it will not be cached", e);
+            this.rejected.incrementAndGet();
+            return false;
+        }
+        
+        final int requiredBlocks = (data.length + this.blockSize - 1) / this.blockSize;
+        
+        final CacheEntry entry = new CacheEntry(data.length, timeToLiveSeconds);
+        entry.etag = cachedPortletData.getEtag();
+        entry.timeStored = cachedPortletData.getTimeStored();
+        entry.expirationTimeSeconds = cachedPortletData.getExpirationTimeSeconds();
+        entry.cacheConfigurationMaxTTL = cachedPortletData.getCacheConfigurationMaxTTL();
+        
+        //Remove the existing entry first so its blocks are available
+        final Segment segment = this.getSegment(key);
+        CacheEntry existing;
+        synchronized (segment) {
+            existing = segment.remove(key);
+        }
+        this.freeEntry(existing);
+        
+        if (requiredBlocks > this.maxBlocks || !this.allocateBlocks(entry, requiredBlocks)) {
+            this.rejected.incrementAndGet();
+            return false;
+        }
+        
+        //The entry isn't visible to other threads yet, no lock needed to write its blocks
+        this.writeBlocks(entry, data);
+        
+        synchronized (segment) {
+            entry.lastAccess = this.accessClock.incrementAndGet();
+            existing = segment.put(key, entry);
+        }
+        //Another thread put the same key concurrently
+        this.freeEntry(existing);
+        
+        this.puts.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * @return true if there was an entry for the key
+     */
+    public boolean remove(Serializable key) {
+        final Segment segment = this.getSegment(key);
+        final CacheEntry entry;
+        synchronized (segment) {
+            entry = segment.remove(key);
+        }
+        this.freeEntry(entry);
+        return entry != null;
+    }
+    
+    /**
+     * Remove all entries, allocated direct memory is retained for reuse
+     */
+    public void removeAll() {
+        for (final Segment segment : this.segments) {
+            final List<CacheEntry> removed;
+            synchronized (segment) {
+                removed = new ArrayList<CacheEntry>(segment.values());
+                segment.clear();
+            }
+            for (final CacheEntry entry : removed) {
+                this.freeEntry(entry);
+            }
+        }
+    }
+    
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getPuts() {
+        return this.puts.get();
+    }
+
+    /**
+     * @return Number of puts that were not cached because the data was too large
+     */
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+    
+    public long getMaxBytes() {
+        return this.maxBytes;
+    }
+    
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+    
+    public int getSize() {
+        int size = 0;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * @return Bytes of direct memory that have been allocated
+     */
+    public long getAllocatedBytes() {
+        synchronized (this.blockLock) {
+            return (long) this.allocatedBlocks * this.blockSize;
+        }
+    }
+    
+    /**
+     * @return Bytes of direct memory that are used by cached entries, including unused space at the end of blocks
+     */
+    public long getUsedBytes() {
+        synchronized (this.blockLock) {
+            return (long) (this.allocatedBlocks - this.freeBlockCount) * this.blockSize;
+        }
+    }
+    
+    /**
+     * @return Bytes of serialized data stored by cached entries
+     */
+    public long getDataBytes() {
+        synchronized (this.blockLock) {
+            return this.dataBytes;
+        }
+    }
+    
+    private Segment getSegment(Serializable key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return this.segments[hash & (SEGMENTS - 1)];
+    }
+    
+    /**
+     * Remove the entry for the key only if it is still the specified entry
+     */
+    private void removeEntry(Serializable key, CacheEntry entry) {
+        final Segment segment = this.getSegment(key);
+        synchronized (segment) {
+            if (segment.get(key) != entry) {
+                return;
+            }
+            segment.remove(key);
+        }
+        this.freeEntry(entry);
+    }
+    
+    /**
+     * Allocate blocks for the entry, evicting least recently used entries until enough blocks are available
+     * 
+     * @return false if there is nothing left to evict and there still are not enough free blocks
+     */
+    private boolean allocateBlocks(CacheEntry entry, int requiredBlocks) {
+        while (true) {
+            synchronized (this.blockLock) {
+                if (this.getAvailableBlocks() >= requiredBlocks) {
+                    entry.blocks = new int[requiredBlocks];
+                    for (int i = 0; i < requiredBlocks; i++) {
+                        entry.blocks[i] = this.allocateBlock();
+                    }
+                    this.dataBytes += entry.length;
+                    return true;
+                }
+            }
+            
+            if (!this.evictLeastRecentlyUsed()) {
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Evicts the least recently used entry, the first entry of each segment is the oldest in that segment so
+     * only those need to be compared.
+     * 
+     * @return false if the cache is empty
+     */
+    private boolean evictLeastRecentlyUsed() {
+        Segment oldestSegment = null;
+        long oldestAccess = Long.MAX_VALUE;
+        for (final Segment segment : this.segments) {
+            synchronized (segment) {
+                if (!segment.isEmpty()) {
+                    final CacheEntry eldest = segment.values().iterator().next();
+                    if (eldest.lastAccess < oldestAccess) {
+                        oldestAccess = eldest.lastAccess;
+                        oldestSegment = segment;
+                    }
+                }
+            }
+        }
+        
+        if (oldestSegment == null) {
+            return false;
+        }
+        
+        final CacheEntry evicted;
+        synchronized (oldestSegment) {
+            final Iterator<CacheEntry> entryItr = oldestSegment.values().iterator();
+            if (!entryItr.hasNext()) {
+                //Emptied by another thread, let the caller check the free blocks again
+                return true;
+            }
+            evicted = entryItr.next();
+            entryItr.remove();
+        }
+        
+        this.freeEntry(evicted);
+        this.evictions.incrementAndGet();
+        return true;
+    }
+    
+    /**
+     * Returns the entry's blocks to the free list once no reader is copying them
+     */
+    private void freeEntry(CacheEntry entry) {
+        if (entry == null) {
+            return;
+        }
+        
+        entry.lock.writeLock().lock();
+        try {
+            if (entry.freed) {
+                return;
+            }
+            entry.freed = true;
+        }
+        finally {
+            entry.lock.writeLock().unlock();
+        }
+        
+        synchronized (this.blockLock) {
+            for (final int block : entry.blocks) {
+                this.freeBlocks[this.freeBlockCount++] = block;
+            }
+            this.dataBytes -= entry.length;
+        }
+    }
+    
+    private int getAvailableBlocks() {
+        return this.freeBlockCount + (this.maxBlocks - this.allocatedBlocks);
+    }
+    
+    private int allocateBlock() {
+        if (this.freeBlockCount > 0) {
+            return this.freeBlocks[--this.freeBlockCount];
+        }
+        
+        //No free blocks, allocate the next slab and add its blocks to the free list
+        final int slabIndex = this.allocatedBlocks / SLAB_BLOCKS;
+        final int slabBlocks = Math.min(SLAB_BLOCKS, this.maxBlocks - this.allocatedBlocks);
+        this.slabs[slabIndex] = ByteBuffer.allocateDirect(slabBlocks * this.blockSize);
+        
+        final int newBlockCount = this.allocatedBlocks + slabBlocks;
+        if (this.freeBlocks.length < newBlockCount) {
+            final int[] newFreeBlocks = new int[newBlockCount];
+            System.arraycopy(this.freeBlocks, 0, newFreeBlocks, 0, this.freeBlockCount);
+            this.freeBlocks = newFreeBlocks;
+        }
+        
+        //Add in reverse so blocks are handed out in order
+        for (int block = newBlockCount - 1; block >= this.allocatedBlocks; block--) {
+            this.freeBlocks[this.freeBlockCount++] = block;
+        }
+        this.allocatedBlocks = newBlockCount;
+        
+        return this.freeBlocks[--this.freeBlockCount];
+    }
+    
+    /**
+     * The slab for an allocated block is visible to other threads once the entry owning the block has been
+     * published through its segment
+     */
+    private ByteBuffer getBlock(int block) {
+        final ByteBuffer slab = this.slabs[block / SLAB_BLOCKS].duplicate();
+        final int offset = (block % SLAB_BLOCKS) * this.blockSize;
+        slab.limit(offset + this.blockSize);
+        slab.position(offset);
+        return slab;
+    }
+    
+    private void writeBlocks(CacheEntry entry, byte[] data) {
+        int offset = 0;
+        for (final int block : entry.blocks) {
+            final int length = Math.min(this.blockSize, data.length - offset);
+            this.getBlock(block).put(data, offset, length);
+            offset += length;
+        }
+    }
+    
+    /**
+     * Writes all response data except for the etag and expiration metadata which is kept on the heap
+     */
+    static byte[] writeData(CachedPortletData cachedPortletData) throws IOException {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(byteStream);
+        
+        writeBytes(out, cachedPortletData.getByteData());
+        final String stringData = cachedPortletData.getStringData();
+        writeBytes(out, stringData != null ? stringData.getBytes("UTF-8") : null);
+        
+        writeInteger(out, cachedPortletData.getStatus());
+        writeString(out, cachedPortletData.getStatusMessage());
+        writeString(out, cachedPortletData.getContentType());
+        writeString(out, cachedPortletData.getCharacterEncoding());
+        writeInteger(out, cachedPortletData.getContentLength());
+        writeString(out, cachedPortletData.getLocale() != null ? cachedPortletData.getLocale().toString() : null);
+        
+        final Map<String, List<Object>> headers = cachedPortletData.getHeaders();
+        if (headers == null) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(headers.size());
+            for (final Map.Entry<String, List<Object>> header : headers.entrySet()) {
+                writeString(out, header.getKey());
+                
+                final List<Object> values = header.getValue();
+                out.writeInt(values.size());
+                for (final Object value : values) {
+                    if (value instanceof String) {
+                        out.writeByte(HEADER_STRING);
+                        writeString(out, (String) value);
+                    }
+                    else if (value instanceof Integer) {
+                        out.writeByte(HEADER_INTEGER);
+                        out.writeInt((Integer) value);
+                    }
+                    else if (value instanceof Long) {
+                        out.writeByte(HEADER_LONG);
+                        out.writeLong((Long) value);
+                    }
+                    else {
+                        throw new IOException("Unsupported value type for header '" + header.getKey() + "': " + (value != null ? value.getClass() : null));
+                    }
+                }
+            }
+        }
+        
+        out.flush();
+        return byteStream.toByteArray();
+    }
+    
+    /**
+     * Reads the response data written by {@link #writeData(CachedPortletData)}, the stream is read directly so
+     * the content is only copied into the returned data and not into an intermediate buffer as well
+     */
+    static void readData(CachedPortletData cachedPortletData, InputStream dataStream) throws IOException {
+        final DataInputStream in = new DataInputStream(dataStream);
+        
+        cachedPortletData.setByteData(readBytes(in));
+        final byte[] stringData = readBytes(in);
+        cachedPortletData.setStringData(stringData != null ? new String(stringData, "UTF-8") : null);
+        
+        cachedPortletData.setStatus(readInteger(in));
+        cachedPortletData.setStatusMessage(readString(in));
+        cachedPortletData.setContentType(readString(in));
+        cachedPortletData.setCharacterEncoding(readString(in));
+        cachedPortletData.setContentLength(readInteger(in));
+        final String locale = readString(in);
+        cachedPortletData.setLocale(locale != null ? LocaleUtils.toLocale(locale) : null);
+        
+        final int headerCount = in.readInt();
+        if (headerCount < 0) {
+            cachedPortletData.setHeaders(null);
+        }
+        else {
+            final Map<String, List<Object>> headers = new LinkedHashMap<String, List<Object>>(headerCount * 2);
+            for (int i = 0; i < headerCount; i++) {
+                final String name = readString(in);
+                
+                final int valueCount = in.readInt();
+                final List<Object> values = new ArrayList<Object>(valueCount);
+                for (int j = 0; j < valueCount; j++) {
+                    final byte type = in.readByte();
+                    switch (type) {
+                        case HEADER_STRING:
+                            values.add(readString(in));
+                            break;
+                        case HEADER_INTEGER:
+                            values.add(in.readInt());
+                            break;
+                        case HEADER_LONG:
+                            values.add(in.readLong());
+                            break;
+                        default:
+                            throw new IOException("Unknown header value type " + type + " for header '" + name + "'");
+                    }
+                }
+                headers.put(name, values);
+            }
+            cachedPortletData.setHeaders(headers);
+        }
+    }
+    
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        }
+        else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+    
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value != null ? value.getBytes("UTF-8") : null);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, "UTF-8") : null;
+    }
+    
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+    
+    private static Integer readInteger(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readInt();
+        }
+        return null;
+    }
+    
+    /**
+     * Segment of the cache entries, guarded by its own lock
+     */
+    private static final class Segment extends LinkedHashMap<Serializable, CacheEntry> {
+        private static final long serialVersionUID = 1L;
+
+        public Segment() {
+            super(16, 0.75f, true);
+        }
+    }
+    
+    /**
+     * On-heap entry metadata, the etag and expiration fields are guarded by the entry's lock. Readers copying
+     * the entry's blocks hold the read lock so the blocks are not freed and reused while they are read.
+     */
+    private static final class CacheEntry {
+        private final int length;
+        private final int timeToLiveSeconds;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile long expires;
+        private int[] blocks;
+        private boolean freed = false;
+        
+        //Guarded by the lock of the segment the entry is in
+        private long lastAccess;
+        
+        private String etag;
+        private Date timeStored;
+        private int expirationTimeSeconds;
+        private int cacheConfigurationMaxTTL;
+        
+        public CacheEntry(int length, int timeToLiveSeconds) {
+            this.length = length;
+            this.timeToLiveSeconds = timeToLiveSeconds;
+            this.resetExpiration();
+        }
+        
+        /**
+         * Restart the time to live from now, used when the entry has been revalidated
+         */
+        public void resetExpiration() {
+            this.expires = this.timeToLiveSeconds > 0 ? System.currentTimeMillis() + this.timeToLiveSeconds * 1000l : 0;
+        }
+        
+        public boolean isExpired() {
+            final long expires = this.expires;
+            return expires > 0 && expires < System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Reads an entry's data directly from its blocks, MUST only be used while holding the entry's read lock
+     */
+    private final class BlockInputStream extends InputStream {
+        private final CacheEntry entry;
+        private int remaining;
+        private int nextBlock = 0;
+        private ByteBuffer current;
+        
+        public BlockInputStream(CacheEntry entry) {
+            this.entry = entry;
+            this.remaining = entry.length;
+        }
+
+        @Override
+        public int read() {
+            if (!this.nextBuffer()) {
+                return -1;
+            }
+            this.remaining--;
+            return this.current.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.nextBuffer()) {
+                return -1;
+            }
+            
+            final int length = Math.min(len, this.current.remaining());
+            this.current.get(b, off, length);
+            this.remaining -= length;
+            return length;
+        }
+        
+        /**
+         * @return false if all of the entry's data has been read
+         */
+        private boolean nextBuffer() {
+            if (this.remaining <= 0) {
+                return false;
+            }
+            
+            if (this.current == null || !this.current.hasRemaining()) {
+                this.current = getBlock(this.entry.blocks[this.nextBlock++]);
+                this.current.limit(this.current.position() + Math.min(this.current.remaining(), this.remaining));
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Copy of the cached data that writes expiration updates back to the on-heap entry so they are
+     * seen by later requests, mirroring the in-place update done for on-heap cached data.
+     */
+    private static final class OffHeapCachedPortletData extends CachedPortletData {
+        private static final long serialVersionUID = 1L;
+        
+        private final transient CacheEntry entry;
+
+        public OffHeapCachedPortletData(CacheEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public synchronized void updateExpirationTime(int requestedExpirationTimeSeconds) {
+            super.updateExpirationTime(requestedExpirationTimeSeconds);
+            
+            if (this.entry != null) {
+                synchronized (this.entry) {
+                    this.entry.timeStored = this.getTimeStored();
+                    this.entry.expirationTimeSeconds = this.getExpirationTimeSeconds();
+                }
+                this.entry.resetExpiration();
+            }
+        }
+    }
+}
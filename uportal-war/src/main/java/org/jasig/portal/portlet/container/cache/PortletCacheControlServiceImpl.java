@@ -22,10 +22,13 @@
 package org.jasig.portal.portlet.container.cache;
 
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.portlet.CacheControl;
 import javax.portlet.MimeResponse;
@@ -67,6 +70,8 @@ import org.springframework.web.servlet.support.RequestContextUtils;
 public class PortletCacheControlServiceImpl implements IPortletCacheControlService {
 
 	protected static final String REQUEST_ATTRIBUTE__PORTLET_CACHE_CONTROL_MAP = PortletCacheControlServiceImpl.class.getName() + ".PORTLET_CACHE_CONTROL_MAP";
+	private static final String RENDER_OUTPUT = "RENDER";
+	private static final String RESOURCE_OUTPUT = "RESOURCE";
 	private final Log log = LogFactory.getLog(this.getClass());
 	private IPortletWindowRegistry portletWindowRegistry;
 	private IPortletEntityRegistry portletEntityRegistry;
@@ -82,6 +87,12 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
     // key=definitionId+renderParams+publicRenderParams+locale; value=CachedPortletData
     private Ehcache publicScopePortletResourceOutputCache;
     
+    // optional off-heap store used instead of the private scope caches, key=privateScopeKey+outputType; value=CachedPortletData
+    private OffHeapPortletOutputCache offHeapPortletOutputCache;
+    
+    // optional cluster wide tier behind the public scope caches, key=outputType+definitionId+renderParams+publicRenderParams+locale; value=CachedPortletData
+    private ISharedPortletOutputCache sharedPortletOutputCache;
+    
     // default to 100 KB
     private int cacheSizeThreshold = 102400;
     /**
@@ -118,6 +129,20 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			Ehcache publicScopePortletResourceOutputCache) {
 		this.publicScopePortletResourceOutputCache = publicScopePortletResourceOutputCache;
 	}
+    /**
+     * @param offHeapPortletOutputCache If enabled private scope output is stored off-heap instead of in the private scope caches
+     */
+    @Autowired(required=false)
+    public void setOffHeapPortletOutputCache(OffHeapPortletOutputCache offHeapPortletOutputCache) {
+        this.offHeapPortletOutputCache = offHeapPortletOutputCache;
+    }
+    /**
+     * @param sharedPortletOutputCache If set public scope output is shared with all nodes through this cache
+     */
+    @Autowired(required=false)
+    public void setSharedPortletOutputCache(ISharedPortletOutputCache sharedPortletOutputCache) {
+        this.sharedPortletOutputCache = sharedPortletOutputCache;
+    }
 	/**
 	 * @param cacheSizeThreshold the cacheSizeThreshold to set
 	 */
@@ -244,16 +269,23 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		
 		Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		Element publicCacheElement = this.publicScopePortletRenderOutputCache.get(publicCacheKey);
+		if(publicCacheElement == null) {
+			publicCacheElement = getSharedCacheElement(RENDER_OUTPUT, publicCacheKey, publicScopePortletRenderOutputCache, definitionId, portletWindow, httpRequest);
+		}
 		if(publicCacheElement != null) {
-			if(publicCacheElement.isExpired()) {
+			CachedPortletData cachedPortletData = (CachedPortletData) publicCacheElement.getValue();
+			// only remove from cache if not using validation method
+			if(publicCacheElement.isExpired() && StringUtils.isBlank(cachedPortletData.getEtag())) {
 				this.publicScopePortletRenderOutputCache.remove(publicCacheKey);
 				return null;
-			} else {
-				return (CachedPortletData) publicCacheElement.getValue();
 			}
+			return cachedPortletData;
 		} else {
 			// public cache contained no content, check private
 			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+			if (this.isOffHeapCacheEnabled()) {
+			    return this.offHeapPortletOutputCache.get(generateOffHeapCacheKey(privateCacheKey, RENDER_OUTPUT), false);
+			}
 			Element privateCacheElement = this.privateScopePortletRenderOutputCache.get(privateCacheKey);
 			if(privateCacheElement != null) {
 				if(privateCacheElement.isExpired()) {
@@ -283,6 +315,9 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		
 		Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 		Element publicCacheElement = this.publicScopePortletResourceOutputCache.get(publicCacheKey);	
+		if(publicCacheElement == null) {
+			publicCacheElement = getSharedCacheElement(RESOURCE_OUTPUT, publicCacheKey, publicScopePortletResourceOutputCache, definitionId, portletWindow, httpRequest);
+		}
 		if(publicCacheElement != null) {
 			CachedPortletData cachedPortletData = (CachedPortletData) publicCacheElement.getValue();
 			// only remove from cache if not using validation method
@@ -294,6 +329,9 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		} else {
 			// public cache contained no content, check private
 			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+			if (this.isOffHeapCacheEnabled()) {
+			    return this.offHeapPortletOutputCache.get(generateOffHeapCacheKey(privateCacheKey, RESOURCE_OUTPUT), true);
+			}
 			Element privateCacheElement = this.privateScopePortletResourceOutputCache.get(privateCacheKey);
 			if(privateCacheElement != null) {
 				CachedPortletData cachedPortletData = (CachedPortletData) privateCacheElement.getValue();
@@ -346,9 +384,15 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 			Element publicCacheElement = constructCacheElement(publicCacheKey, newData, publicScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
 			this.publicScopePortletRenderOutputCache.put(publicCacheElement);		
+			putSharedCachedPortletData(RENDER_OUTPUT, newData, publicScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl, definitionId, portletWindow, httpRequest);
 		} else {
 			newData.setCacheConfigurationMaxTTL(new Long(privateScopePortletRenderOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
 			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+			if (this.isOffHeapCacheEnabled()) {
+			    final int timeToLive = getTimeToLiveSeconds(privateScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
+			    this.offHeapPortletOutputCache.put(generateOffHeapCacheKey(privateCacheKey, RENDER_OUTPUT), newData, timeToLive);
+			    return;
+			}
 			Element privateCacheElement = constructCacheElement(privateCacheKey, newData, privateScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
 			this.privateScopePortletRenderOutputCache.put(privateCacheElement);
 		}
@@ -374,9 +418,15 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 			Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 			Element publicCacheElement = constructCacheElement(publicCacheKey, cachedPortletData, publicScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
 			this.publicScopePortletResourceOutputCache.put(publicCacheElement);		
+			putSharedCachedPortletData(RESOURCE_OUTPUT, cachedPortletData, publicScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl, definitionId, portletWindow, httpRequest);
 		} else {
 		    cachedPortletData.setCacheConfigurationMaxTTL(new Long(privateScopePortletResourceOutputCache.getCacheConfiguration().getTimeToLiveSeconds()).intValue());
 			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+			if (this.isOffHeapCacheEnabled()) {
+			    final int timeToLive = getTimeToLiveSeconds(privateScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
+			    this.offHeapPortletOutputCache.put(generateOffHeapCacheKey(privateCacheKey, RESOURCE_OUTPUT), cachedPortletData, timeToLive);
+			    return;
+			}
 			Element privateCacheElement = constructCacheElement(privateCacheKey, cachedPortletData, privateScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
 			this.privateScopePortletResourceOutputCache.put(privateCacheElement);
 		}
@@ -409,6 +459,140 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		return new Element(cacheKey, data, null, null, min.intValue());
 	}
 	
+	/**
+	 * Same time to live rules as {@link #constructCacheElement(Serializable, CachedPortletData, CacheConfiguration, CacheControl)}
+	 * for use with the {@link OffHeapPortletOutputCache}
+	 * 
+	 * @return The time to live in seconds, 0 if the entry never expires
+	 */
+	protected int getTimeToLiveSeconds(CacheConfiguration cacheConfig, CacheControl cacheControl) {
+	    final long cacheConfigTTL = cacheConfig.isEternal() ? 0 : cacheConfig.getTimeToLiveSeconds();
+	    
+	    final int cacheControlTTL = cacheControl.getExpirationTime();
+	    if (StringUtils.isNotBlank(cacheControl.getETag()) || cacheControlTTL < 0) {
+	        return (int) cacheConfigTTL;
+	    }
+	    
+	    return (int) Math.min(cacheConfigTTL, cacheControlTTL);
+	}
+	
+	/**
+	 * Check the shared cache for public scope data not found in the local cache. Data found in the shared cache
+	 * is copied into the local cache so later requests on this node don't have to go to the shared cache.
+	 * 
+	 * @return The local cache element for the shared data, null if there is no shared cache or it has no data
+	 */
+	protected Element getSharedCacheElement(String outputType, Serializable publicCacheKey, Ehcache localCache, IPortletDefinitionId definitionId, IPortletWindow portletWindow, HttpServletRequest httpRequest) {
+	    if (this.sharedPortletOutputCache == null) {
+	        return null;
+	    }
+	    
+	    final String sharedCacheKey = generateSharedCacheKey(outputType, definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
+	    final CachedPortletData sharedData = this.sharedPortletOutputCache.get(sharedCacheKey);
+	    if (sharedData == null) {
+	        return null;
+	    }
+	    
+	    //Don't let the local copy outlive the shared entry it came from
+	    final Element element;
+	    final long sharedExpiration = sharedData.getSharedCacheExpiration();
+	    if (sharedExpiration > 0) {
+	        final long remainingMillis = sharedExpiration - System.currentTimeMillis();
+	        if (remainingMillis <= 0) {
+	            if (StringUtils.isBlank(sharedData.getEtag())) {
+	                return null;
+	            }
+	            
+	            //Expired shared entry with an ETag, keep it locally as always expired so the portlet is asked to
+	            //revalidate it, see updateCachedPortletRenderOutputExpiration
+	            sharedData.setExpirationTimeSeconds(0);
+	            element = new Element(publicCacheKey, sharedData);
+	            
+	            if (log.isDebugEnabled()) {
+	                log.debug("Revalidating expired " + outputType + " output from shared cache for " + portletWindow.getPortletWindowId() + ", etag=" + sharedData.getEtag());
+	            }
+	            
+	            localCache.put(element);
+	            return element;
+	        }
+	        
+	        long timeToLive = (remainingMillis + 999) / 1000;
+	        final CacheConfiguration localCacheConfig = localCache.getCacheConfiguration();
+	        if (!localCacheConfig.isEternal() && localCacheConfig.getTimeToLiveSeconds() > 0) {
+	            timeToLive = Math.min(timeToLive, localCacheConfig.getTimeToLiveSeconds());
+	        }
+	        element = new Element(publicCacheKey, sharedData, null, null, (int) timeToLive);
+	    }
+	    else {
+	        element = new Element(publicCacheKey, sharedData);
+	    }
+	    
+	    if (log.isDebugEnabled()) {
+	        log.debug("Using " + outputType + " output from shared cache for " + portletWindow.getPortletWindowId() + ", etag=" + sharedData.getEtag() + ", ttl=" + element.getTimeToLive());
+	    }
+	    
+	    localCache.put(element);
+	    return element;
+	}
+	
+	/**
+	 * Publish public scope data to the shared cache, uses the same time to live as the local cache
+	 */
+	protected void putSharedCachedPortletData(String outputType, CachedPortletData data, CacheConfiguration cacheConfig, CacheControl cacheControl, IPortletDefinitionId definitionId, IPortletWindow portletWindow, HttpServletRequest httpRequest) {
+	    if (this.sharedPortletOutputCache == null) {
+	        return;
+	    }
+	    
+	    final String sharedCacheKey = generateSharedCacheKey(outputType, definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
+	    this.sharedPortletOutputCache.put(sharedCacheKey, data, getTimeToLiveSeconds(cacheConfig, cacheControl));
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.jasig.portal.portlet.container.cache.IPortletCacheControlService#updateCachedPortletRenderOutputExpiration(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, org.jasig.portal.portlet.container.cache.CachedPortletData, javax.portlet.CacheControl)
+	 */
+	@Override
+	public void updateCachedPortletRenderOutputExpiration(IPortletWindowId portletWindowId,
+	        HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheControl cacheControl) {
+	    cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
+	    
+	    if (cacheControl.isPublicScope()) {
+	        updateSharedCachedPortletDataExpiration(RENDER_OUTPUT, portletWindowId, httpRequest, cachedPortletData, publicScopePortletRenderOutputCache.getCacheConfiguration(), cacheControl);
+	    }
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.jasig.portal.portlet.container.cache.IPortletCacheControlService#updateCachedPortletResourceOutputExpiration(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, org.jasig.portal.portlet.container.cache.CachedPortletData, javax.portlet.CacheControl)
+	 */
+	@Override
+	public void updateCachedPortletResourceOutputExpiration(IPortletWindowId portletWindowId,
+	        HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheControl cacheControl) {
+	    cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
+	    
+	    if (cacheControl.isPublicScope()) {
+	        updateSharedCachedPortletDataExpiration(RESOURCE_OUTPUT, portletWindowId, httpRequest, cachedPortletData, publicScopePortletResourceOutputCache.getCacheConfiguration(), cacheControl);
+	    }
+	}
+	
+	/**
+	 * Write revalidated public scope data back to the shared cache so other nodes see the new expiration instead
+	 * of revalidating the same entry again
+	 */
+	protected void updateSharedCachedPortletDataExpiration(String outputType, IPortletWindowId portletWindowId, HttpServletRequest httpRequest, CachedPortletData cachedPortletData, CacheConfiguration cacheConfig, CacheControl cacheControl) {
+	    if (this.sharedPortletOutputCache == null) {
+	        return;
+	    }
+	    
+	    final IPortletWindow portletWindow = this.portletWindowRegistry.getPortletWindow(httpRequest, portletWindowId);
+	    final IPortletEntity entity = this.portletEntityRegistry.getPortletEntity(httpRequest, portletWindow.getPortletEntityId());
+	    putSharedCachedPortletData(outputType, cachedPortletData, cacheConfig, cacheControl, entity.getPortletDefinitionId(), portletWindow, httpRequest);
+	}
+	
+	protected boolean isOffHeapCacheEnabled() {
+	    return this.offHeapPortletOutputCache != null && this.offHeapPortletOutputCache.isEnabled();
+	}
+	
 	/*
 	 * (non-Javadoc)
 	 * @see org.jasig.portal.portlet.container.cache.IPortletCacheControlService#purgeCachedPortletData(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest)
@@ -425,9 +609,19 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
 		if(cacheControl.isPublicScope()) {
 			Serializable publicCacheKey = generatePublicScopePortletDataCacheKey(definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), RequestContextUtils.getLocale(httpRequest));
 			boolean renderPurged = this.publicScopePortletRenderOutputCache.remove(publicCacheKey);
-			return this.publicScopePortletResourceOutputCache.remove(publicCacheKey) || renderPurged;
+			boolean resourcePurged = this.publicScopePortletResourceOutputCache.remove(publicCacheKey);
+			if (this.sharedPortletOutputCache != null) {
+			    final Locale locale = RequestContextUtils.getLocale(httpRequest);
+			    renderPurged = this.sharedPortletOutputCache.remove(generateSharedCacheKey(RENDER_OUTPUT, definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), locale)) || renderPurged;
+			    resourcePurged = this.sharedPortletOutputCache.remove(generateSharedCacheKey(RESOURCE_OUTPUT, definitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), locale)) || resourcePurged;
+			}
+			return resourcePurged || renderPurged;
 		} else {
 			Serializable privateCacheKey = generatePrivateScopePortletDataCacheKey(httpRequest, portletWindowId, entityId, definitionId, portletWindow.getRenderParameters());
+			if (this.isOffHeapCacheEnabled()) {
+			    boolean renderPurged = this.offHeapPortletOutputCache.remove(generateOffHeapCacheKey(privateCacheKey, RENDER_OUTPUT));
+			    return this.offHeapPortletOutputCache.remove(generateOffHeapCacheKey(privateCacheKey, RESOURCE_OUTPUT)) || renderPurged;
+			}
 			boolean renderPurged = this.privateScopePortletRenderOutputCache.remove(privateCacheKey);
 			return this.privateScopePortletResourceOutputCache.remove(privateCacheKey) || renderPurged;
 		}
@@ -452,6 +646,62 @@ public class PortletCacheControlServiceImpl implements IPortletCacheControlServi
         key.add(locale);
     	return key;
     }
+    /**
+     * Generate a cluster wide key for the shared cache. Unlike the local cache keys this has to be the same
+     * on every node so it is built from the string forms of the definition id, sorted parameters and locale.
+     * 
+     * outputType + definitionId + renderParams + publicRenderParams + locale
+     */
+    protected String generateSharedCacheKey(String outputType, IPortletDefinitionId portletDefinitionId, Map<String,String[]> renderParameters, Map<String,String[]> publicRenderParameters, Locale locale) {
+        final StringBuilder key = new StringBuilder(outputType);
+        key.append('|').append(portletDefinitionId.getStringId());
+        appendParameters(key.append('|'), renderParameters);
+        appendParameters(key.append('|'), publicRenderParameters);
+        key.append('|').append(locale);
+        return key.toString();
+    }
+    
+    private void appendParameters(StringBuilder key, Map<String,String[]> parameters) {
+        if (parameters == null) {
+            return;
+        }
+        
+        for (final Map.Entry<String, String[]> parameter : new TreeMap<String, String[]>(parameters).entrySet()) {
+            key.append(encodeKeyPart(parameter.getKey())).append('=');
+            final String[] values = parameter.getValue();
+            if (values != null) {
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        key.append(',');
+                    }
+                    key.append(encodeKeyPart(values[i]));
+                }
+            }
+            key.append('&');
+        }
+    }
+    
+    private String encodeKeyPart(String part) {
+        if (part == null) {
+            return "";
+        }
+        try {
+            return URLEncoder.encode(part, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 must be supported", e);
+        }
+    }
+    /**
+     * Render and resource output share the {@link OffHeapPortletOutputCache}, add the output type to the private
+     * scope key to keep them separate.
+     */
+    protected Serializable generateOffHeapCacheKey(Serializable privateCacheKey, String outputType) {
+        ArrayList<Object> key = new ArrayList<Object>(2);
+        key.add(outputType);
+        key.add(privateCacheKey);
+        return key;
+    }
     /**
      * Generate a cache key for the private scope Cache.
      * 
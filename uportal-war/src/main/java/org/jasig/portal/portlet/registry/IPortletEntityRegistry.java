@@ -19,6 +19,8 @@
 
 package org.jasig.portal.portlet.registry;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 
 import javax.servlet.http.HttpServletRequest;
@@ -81,6 +83,15 @@ public interface IPortletEntityRegistry {
      */
     public IPortletEntity getOrCreatePortletEntity(HttpServletRequest request, IUserInstance userInstance, String layoutNodeId);
     
+    /**
+     * Bulk version of {@link #getOrCreatePortletEntity(HttpServletRequest, IUserInstance, String)}, the user's persistent
+     * entities are loaded with a single query instead of one query per layout node.
+     * 
+     * @return Map of layout node id to portlet entity in the iteration order of layoutNodeIds, layout nodes that don't
+     *      exist or that the user can't render are not included.
+     */
+    public Map<String, IPortletEntity> getOrCreatePortletEntities(HttpServletRequest request, IUserInstance userInstance, Collection<String> layoutNodeIds);
+    
     /**
      * Gets or creates a portlet entity for a specific fname.
      */
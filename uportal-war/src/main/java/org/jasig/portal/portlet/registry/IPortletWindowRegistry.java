@@ -19,6 +19,7 @@
 
 package org.jasig.portal.portlet.registry;
 
+import java.util.Collection;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
@@ -161,10 +162,22 @@ public interface IPortletWindowRegistry {
     public void storePortletWindow(HttpServletRequest request, IPortletWindow portletWindow);
     
     /**
-     * Get all of the portlet windows for all of the portlets in the users layout.
+     * Get all of the portlet windows for all of the portlets in the users layout. The portlet entities are resolved
+     * in bulk and the windows are cached for the rest of the request so later lookups by layout node id, such as
+     * {@link #getPortletWindow(HttpServletRequest, StartElement)}, don't need to resolve the entities again.
      */
     public Set<IPortletWindow> getAllLayoutPortletWindows(HttpServletRequest request);
     
+    /**
+     * Get the default portlet windows for the specified layout nodes. Like {@link #getAllLayoutPortletWindows(HttpServletRequest)}
+     * the portlet entities are resolved in bulk and the windows are cached for the rest of the request, but only for
+     * the listed nodes instead of every portlet in the users layout.
+     * 
+     * @param layoutNodeIds The channel subscribe ids of the layout nodes to get windows for
+     * @return The windows in the iteration order of layoutNodeIds, nodes that have no portlet window are not included.
+     */
+    public Set<IPortletWindow> getLayoutPortletWindows(HttpServletRequest request, Collection<String> layoutNodeIds);
+    
     /**
      * Get all of the portlet windows for all of the portlets in the users layout and any stateless portlets
      */
@@ -19,8 +19,14 @@
 
 package org.jasig.portal.portlet.registry;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -39,6 +45,7 @@ import org.jasig.portal.EntityIdentifier;
 import org.jasig.portal.IUserPreferencesManager;
 import org.jasig.portal.PortalException;
 import org.jasig.portal.layout.IUserLayoutManager;
+import org.jasig.portal.layout.TransientUserLayoutManagerWrapper;
 import org.jasig.portal.layout.dao.IStylesheetDescriptorDao;
 import org.jasig.portal.layout.node.IUserLayoutChannelDescription;
 import org.jasig.portal.layout.node.IUserLayoutNodeDescription;
@@ -181,16 +188,7 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
         final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
         final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
         
-        //Find the channel and portlet definitions
-        final IUserLayoutChannelDescription channelNode = (IUserLayoutChannelDescription)userLayoutManager.getNode(layoutNodeId);
-        if (channelNode == null) {
-            this.logger.warn("No layout node exists for id " + layoutNodeId + ", no portlet entity will be returned.");
-            return null;
-        }
-        
-        final String channelPublishId = channelNode.getChannelPublishId();
-        
-        final IPortletDefinition portletDefinition = this.getPortletDefinition(userInstance, channelPublishId);
+        final IPortletDefinition portletDefinition = this.getPortletDefinition(userInstance, userLayoutManager, layoutNodeId);
 
         if (portletDefinition != null) {
         	final IPerson person = userInstance.getPerson();
@@ -201,15 +199,72 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
 	    return null;
     }
     
+    @Override
+    public Map<String, IPortletEntity> getOrCreatePortletEntities(HttpServletRequest request, IUserInstance userInstance, Collection<String> layoutNodeIds) {
+        final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
+        final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
+        final IPerson person = userInstance.getPerson();
+        final int userId = person.getID();
+        
+        final PortletEntityCache<IPortletEntity> portletEntityCache = this.getPortletEntityMap(request);
+        final PortletEntityCache<PortletEntityData> portletEntityDataMap = this.getPortletEntityDataMap(request);
+        
+        //Load all of the user's persistent entities at once, but only if some node isn't already in the request or session
+        Map<String, IPortletEntity> persistentEntities = null;
+        for (final String layoutNodeId : layoutNodeIds) {
+            if (portletEntityCache.getEntity(layoutNodeId, userId) == null && portletEntityDataMap.getEntity(layoutNodeId, userId) == null) {
+                persistentEntities = this.getPersistentPortletEntities(userId);
+                break;
+            }
+        }
+        
+        //Find all of the portlet definitions first so render permissions can be checked with a single call
+        final Map<String, IPortletDefinition> portletDefinitions = new LinkedHashMap<String, IPortletDefinition>();
+        final Set<String> portletDefinitionIds = new HashSet<String>();
+        for (final String layoutNodeId : layoutNodeIds) {
+            final IPortletDefinition portletDefinition = this.findPortletDefinition(userLayoutManager, layoutNodeId);
+            if (portletDefinition != null) {
+                portletDefinitions.put(layoutNodeId, portletDefinition);
+                portletDefinitionIds.add(portletDefinition.getPortletDefinitionId().getStringId());
+            }
+        }
+        
+        final Set<String> renderablePortletDefinitionIds = this.getRenderablePortletDefinitionIds(userInstance, portletDefinitionIds);
+        
+        final Map<String, IPortletEntity> portletEntities = new LinkedHashMap<String, IPortletEntity>();
+        for (final Map.Entry<String, IPortletDefinition> portletDefinitionEntry : portletDefinitions.entrySet()) {
+            final String layoutNodeId = portletDefinitionEntry.getKey();
+            final IPortletDefinition portletDefinition = portletDefinitionEntry.getValue();
+            if (!renderablePortletDefinitionIds.contains(portletDefinition.getPortletDefinitionId().getStringId())) {
+                // No permission to see the portlet
+                continue;
+            }
+            
+            final IPortletEntity portletEntity = this.getOrCreatePortletEntity(request, portletEntityCache, portletDefinition.getPortletDefinitionId(), layoutNodeId, userId, persistentEntities);
+            portletEntities.put(layoutNodeId, portletEntity);
+        }
+        
+        return portletEntities;
+    }
+    
     /* (non-Javadoc)
      * @see org.jasig.portal.portlet.registry.IPortletEntityRegistry#getOrCreatePortletEntity(org.jasig.portal.portlet.om.IPortletDefinitionId, java.lang.String, int)
      */
     @Override
     public IPortletEntity getOrCreatePortletEntity(HttpServletRequest request, IPortletDefinitionId portletDefinitionId, String layoutNodeId, int userId) {
         final PortletEntityCache<IPortletEntity> portletEntityCache = getPortletEntityMap(request);
+        return this.getOrCreatePortletEntity(request, portletEntityCache, portletDefinitionId, layoutNodeId, userId, null);
+    }
+    
+    /**
+     * @param persistentEntities Persistent entities for the user keyed by layout node id, if null the persistent store is queried
+     */
+    protected IPortletEntity getOrCreatePortletEntity(HttpServletRequest request,
+            PortletEntityCache<IPortletEntity> portletEntityCache, IPortletDefinitionId portletDefinitionId,
+            String layoutNodeId, int userId, Map<String, IPortletEntity> persistentEntities) {
         
         //Try just getting an existing entity first
-        IPortletEntity portletEntity = this.getPortletEntity(request, portletEntityCache, null, layoutNodeId, userId);
+        IPortletEntity portletEntity = this.getPortletEntity(request, portletEntityCache, null, layoutNodeId, userId, persistentEntities);
         
         //Found an existing entity!
         if (portletEntity != null) {
@@ -398,6 +453,31 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
         return ConcurrentMapUtils.putIfAbsent(lockMap, portletEntityId, lock);
     }
     
+    /**
+     * Find the portlet definition subscribed to by the layout node, null if the node doesn't exist or the user can't
+     * render the portlet
+     */
+    protected IPortletDefinition getPortletDefinition(IUserInstance userInstance, IUserLayoutManager userLayoutManager, String layoutNodeId) {
+        final IPortletDefinition portletDefinition = this.findPortletDefinition(userLayoutManager, layoutNodeId);
+        return checkPortletDefinitionRenderPermissions(userInstance, portletDefinition);
+    }
+    
+    /**
+     * Find the portlet definition subscribed to by the layout node without checking render permissions, null if the
+     * node or definition doesn't exist
+     */
+    protected IPortletDefinition findPortletDefinition(IUserLayoutManager userLayoutManager, String layoutNodeId) {
+        //Find the channel and portlet definitions
+        final IUserLayoutChannelDescription channelNode = (IUserLayoutChannelDescription)userLayoutManager.getNode(layoutNodeId);
+        if (channelNode == null) {
+            this.logger.warn("No layout node exists for id " + layoutNodeId + ", no portlet entity will be returned.");
+            return null;
+        }
+        
+        final String channelPublishId = channelNode.getChannelPublishId();
+        return this.portletDefinitionRegistry.getPortletDefinition(channelPublishId);
+    }
+    
     protected IPortletDefinition getPortletDefinition(HttpServletRequest request, String portletDefinitionIdStr) {
     	final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
     	return this.getPortletDefinition(userInstance, portletDefinitionIdStr);
@@ -418,6 +498,20 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
     	return checkPortletDefinitionRenderPermissions(userInstance, portletDefinition);
     }
 
+    /**
+     * @return The ids from portletDefinitionIds of the portlets the user can render
+     */
+    protected Set<String> getRenderablePortletDefinitionIds(IUserInstance userInstance, Set<String> portletDefinitionIds) {
+        if (portletDefinitionIds.isEmpty()) {
+            return Collections.emptySet();
+        }
+        
+        final IPerson person = userInstance.getPerson();
+        final EntityIdentifier ei = person.getEntityIdentifier();
+        final IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
+        return ap.getRenderableChannels(portletDefinitionIds);
+    }
+
     private IPortletDefinition checkPortletDefinitionRenderPermissions(IUserInstance userInstance, final IPortletDefinition portletDefinition) {
 		if (portletDefinition == null) {
     		return null;
@@ -510,6 +604,20 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
             PortletEntityCache<IPortletEntity> portletEntityCache, 
             IPortletEntityId portletEntityId, String layoutNodeId, int userId) {
         
+        return this.getPortletEntity(request, portletEntityCache, portletEntityId, layoutNodeId, userId, null);
+    }
+    
+    /**
+     * Lookup the portlet entity by layoutNodeId and userId
+     * 
+     * @param persistentEntities Persistent entities for the user keyed by layout node id, if null the persistent store is queried
+     */
+    protected IPortletEntity getPortletEntity(
+            HttpServletRequest request,
+            PortletEntityCache<IPortletEntity> portletEntityCache, 
+            IPortletEntityId portletEntityId, String layoutNodeId, int userId,
+            Map<String, IPortletEntity> persistentEntities) {
+        
         IPortletEntity portletEntity;
     
         //First look in the request map
@@ -564,6 +672,9 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
                 portletEntity = this.portletEntityDao.getPortletEntity(portletEntityId);
             }
         }
+        else if (persistentEntities != null && !layoutNodeId.startsWith(TransientUserLayoutManagerWrapper.SUBSCRIBE_PREFIX)) {
+            portletEntity = persistentEntities.get(layoutNodeId);
+        }
         else {
             portletEntity = this.portletEntityDao.getPortletEntity(layoutNodeId, userId);
         }
@@ -590,6 +701,24 @@ public class PortletEntityRegistryImpl implements IPortletEntityRegistry {
         return null;
     }
 
+    /**
+     * @return All persistent entities for the user keyed by layout node id. Transient layout nodes are not included,
+     *      they must be looked up individually.
+     */
+    protected Map<String, IPortletEntity> getPersistentPortletEntities(int userId) {
+        final Set<IPortletEntity> portletEntities = this.portletEntityDao.getPortletEntitiesForUser(userId);
+        
+        final Map<String, IPortletEntity> portletEntitiesByLayoutNodeId = new HashMap<String, IPortletEntity>(portletEntities.size() * 2);
+        for (final IPortletEntity portletEntity : portletEntities) {
+            final String layoutNodeId = portletEntity.getLayoutNodeId();
+            if (layoutNodeId != null && !layoutNodeId.startsWith(TransientUserLayoutManagerWrapper.SUBSCRIBE_PREFIX)) {
+                portletEntitiesByLayoutNodeId.put(layoutNodeId, portletEntity);
+            }
+        }
+        
+        return portletEntitiesByLayoutNodeId;
+    }
+
     protected IPortletEntityId createConsistentPortletEntityId(IPortletEntity portletEntity) {
         final IPortletDefinition portletDefinition = portletEntity.getPortletDefinition();
         final IPortletDefinitionId portletDefinitionId = portletDefinition.getPortletDefinitionId();
@@ -19,8 +19,11 @@
 
 package org.jasig.portal.portlet.registry;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -42,6 +45,7 @@ import org.jasig.portal.IUserPreferencesManager;
 import org.jasig.portal.IUserProfile;
 import org.jasig.portal.layout.IUserLayoutManager;
 import org.jasig.portal.layout.dao.IStylesheetDescriptorDao;
+import org.jasig.portal.layout.node.IUserLayoutChannelDescription;
 import org.jasig.portal.layout.om.IStylesheetDescriptor;
 import org.jasig.portal.layout.om.IStylesheetParameterDescriptor;
 import org.jasig.portal.portlet.PortletUtils;
@@ -86,6 +90,7 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
     static final String STATELESS_PORTLET_WINDOW_ID = "tw";
     static final String PORTLET_WINDOW_DATA_ATTRIBUTE = PortletWindowRegistryImpl.class.getName() + ".PORTLET_WINDOW_DATA";
     static final String PORTLET_WINDOW_ATTRIBUTE = PortletWindowRegistryImpl.class.getName() + ".PORTLET_WINDOW.thread-";
+    static final String LAYOUT_PORTLET_WINDOW_ID_ATTRIBUTE = PortletWindowRegistryImpl.class.getName() + ".LAYOUT_PORTLET_WINDOW_ID.thread-";
 
     protected final Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -178,6 +183,14 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
         Validate.notNull(subscribeId, "subscribeId cannot be null");
         
         final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
+        
+        //Check if the window was already resolved by getLayoutPortletWindows for this request
+        final IPortletWindow layoutPortletWindow = this.getLayoutPortletWindow(request, userInstance, subscribeId);
+        if (layoutPortletWindow != null) {
+            logger.trace("Found IPortletWindow {} for layout node {} in request cache", layoutPortletWindow.getPortletWindowId(), subscribeId);
+            return layoutPortletWindow;
+        }
+        
         final IPortletEntity portletEntity = this.portletEntityRegistry.getOrCreatePortletEntity(request, userInstance, subscribeId);
         if (portletEntity == null) {
             logger.debug("No portlet entity found for id {}, no IPortletWindow will be returned.", subscribeId);
@@ -560,10 +573,24 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
         final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
         final Set<String> allSubscribedChannels = userLayoutManager.getAllSubscribedChannels();
         
-        final Set<IPortletWindow> allLayoutWindows = new LinkedHashSet<IPortletWindow>(allSubscribedChannels.size());
+        return this.getLayoutPortletWindows(request, userInstance, allSubscribedChannels);
+    }
+    
+    @Override
+    public Set<IPortletWindow> getLayoutPortletWindows(HttpServletRequest request, Collection<String> layoutNodeIds) {
+        final IUserInstance userInstance = this.userInstanceManager.getUserInstance(request);
+        return this.getLayoutPortletWindows(request, userInstance, layoutNodeIds);
+    }
+    
+    protected Set<IPortletWindow> getLayoutPortletWindows(HttpServletRequest request, IUserInstance userInstance, Collection<String> layoutNodeIds) {
+        final Set<IPortletWindow> layoutWindows = new LinkedHashSet<IPortletWindow>(layoutNodeIds.size());
+        
+        //Resolve all of the entities at once and index the windows by layout node for later lookups in this request
+        final Map<String, IPortletEntity> portletEntities = this.portletEntityRegistry.getOrCreatePortletEntities(request, userInstance, layoutNodeIds);
+        final Map<String, IPortletWindowId> layoutPortletWindowIds = this.getLayoutPortletWindowIdMap(request);
 
-        for (final String channelSubscribeId : allSubscribedChannels) {
-            final IPortletEntity portletEntity = this.portletEntityRegistry.getOrCreatePortletEntity(request, userInstance, channelSubscribeId);
+        for (final String channelSubscribeId : layoutNodeIds) {
+            final IPortletEntity portletEntity = portletEntities.get(channelSubscribeId);
             if (portletEntity == null) {
                 this.logger.debug("No portlet entity found for layout node {} for user {}", channelSubscribeId, userInstance.getPerson().getUserName());
                 continue;
@@ -576,10 +603,11 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
                 continue;
             }
             
-        	allLayoutWindows.add(portletWindow);
+            layoutPortletWindowIds.put(channelSubscribeId, portletWindow.getPortletWindowId());
+            layoutWindows.add(portletWindow);
         }
         
-        return allLayoutWindows;
+        return layoutWindows;
     }
     
     @Override
@@ -591,9 +619,8 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
         
         final Set<IPortletWindow> allLayoutWindows = new LinkedHashSet<IPortletWindow>(allSubscribedChannels.size());
 
-        for (final String channelSubscribeId : allSubscribedChannels) {
-            final IPortletEntity portletEntity = this.portletEntityRegistry.getOrCreatePortletEntity(request, userInstance, channelSubscribeId);
-            
+        final Map<String, IPortletEntity> portletEntities = this.portletEntityRegistry.getOrCreatePortletEntities(request, userInstance, allSubscribedChannels);
+        for (final IPortletEntity portletEntity : portletEntities.values()) {
             final IPortletEntityId portletEntityId = portletEntity.getPortletEntityId();
             final Set<IPortletWindow> portletWindows = this.getAllPortletWindowsForEntity(request, portletEntityId);
             allLayoutWindows.addAll(portletWindows);
@@ -662,6 +689,54 @@ public class PortletWindowRegistryImpl implements IPortletWindowRegistry {
         return windowCache;
     }
 
+    /**
+     * @return The default window for the layout node if it was resolved by {@link #getLayoutPortletWindows(HttpServletRequest, Collection)}
+     *      on this thread and the node still subscribes to the same portlet definition, null if not.
+     */
+    protected IPortletWindow getLayoutPortletWindow(HttpServletRequest request, IUserInstance userInstance, String layoutNodeId) {
+        final IPortletWindowId portletWindowId = this.getLayoutPortletWindowIdMap(request).get(layoutNodeId);
+        if (portletWindowId == null) {
+            return null;
+        }
+        
+        final IPortletWindow portletWindow = this.getPortletWindowMap(request).getWindow(portletWindowId);
+        if (portletWindow == null) {
+            return null;
+        }
+        
+        //Make sure the layout node hasn't been changed to a different portlet since the window was resolved
+        final IUserPreferencesManager preferencesManager = userInstance.getPreferencesManager();
+        final IUserLayoutManager userLayoutManager = preferencesManager.getUserLayoutManager();
+        final IUserLayoutChannelDescription channelNode = (IUserLayoutChannelDescription)userLayoutManager.getNode(layoutNodeId);
+        if (channelNode == null) {
+            return null;
+        }
+        
+        final IPortletEntity portletEntity = portletWindow.getPortletEntity();
+        final IPortletDefinitionId portletDefinitionId = portletEntity.getPortletDefinitionId();
+        if (!portletDefinitionId.getStringId().equals(channelNode.getChannelPublishId())) {
+            return null;
+        }
+        
+        return portletWindow;
+    }
+    
+    protected Map<String, IPortletWindowId> getLayoutPortletWindowIdMap(HttpServletRequest request) {
+        request = portalRequestUtils.getOriginalPortletOrPortalRequest(request);
+        
+        final String mapAttributeName = LAYOUT_PORTLET_WINDOW_ID_ATTRIBUTE + Thread.currentThread().getId();
+        
+        //No need to do this in a request attribute mutex since the map is scoped to a specific thread
+        @SuppressWarnings("unchecked")
+        Map<String, IPortletWindowId> layoutPortletWindowIds = (Map<String, IPortletWindowId>)request.getAttribute(mapAttributeName);
+        if (layoutPortletWindowIds == null) {
+            layoutPortletWindowIds = new HashMap<String, IPortletWindowId>();
+            request.setAttribute(mapAttributeName, layoutPortletWindowIds);
+        }
+        
+        return layoutPortletWindowIds;
+    }
+
     protected PortletWindowCache<PortletWindowData> getPortletWindowDataMap(HttpServletRequest request) {
         return this.getPortletWindowDataMap(request, true);
     }
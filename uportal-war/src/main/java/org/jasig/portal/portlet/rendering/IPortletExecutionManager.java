@@ -108,6 +108,13 @@ public interface IPortletExecutionManager {
      * @return true if the specified portlet been requested to render it's output for the BODY during this request.
      */
     public boolean isPortletRenderRequested(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
+    
+    /**
+     * @return true if the specified portlet has been requested to render it's output for the BODY during this request and
+     * the rendering has completed, {@link #getPortletOutput(IPortletWindowId, HttpServletRequest, HttpServletResponse)} will
+     * not block if this returns true.
+     */
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response);
 
     /**
      * @see #getPortletHeadOutput(IPortletWindowId, HttpServletRequest, HttpServletResponse)
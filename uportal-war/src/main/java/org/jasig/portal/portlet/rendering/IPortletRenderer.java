@@ -30,6 +30,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.rendering.worker.HungWorkerAnalyzer;
+import org.jasig.portal.portlet.rendering.worker.PortletWorkerBulkhead;
 
 /**
  * Provides easy API for executing methods on portlets. Takes care of all of the uPortal specific setup and tear down around portlet calls.
@@ -134,4 +135,6 @@ public interface IPortletRenderer {
     public void doReset(IPortletWindowId portletWindowId, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse);
     
     public HungWorkerAnalyzer getHungWorkerAnalyzer();
+    
+    public PortletWorkerBulkhead getPortletWorkerBulkhead();
 }
@@ -25,9 +25,10 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
-import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -50,6 +51,7 @@ import org.jasig.portal.portlet.om.IPortletWindow;
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.worker.HungWorkerAnalyzer;
+import org.jasig.portal.portlet.rendering.worker.IPortletExecutionCompletionListener;
 import org.jasig.portal.portlet.rendering.worker.IPortletExecutionContext;
 import org.jasig.portal.portlet.rendering.worker.IPortletExecutionInterceptor;
 import org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker;
@@ -303,6 +305,14 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         
         final Map<IPortletWindowId, IPortletExecutionWorker<Long>> eventWorkers = new LinkedHashMap<IPortletWindowId, IPortletExecutionWorker<Long>>();
         
+        //Event workers add themselves to this queue as they complete, avoids polling the workers for completion
+        final BlockingQueue<IPortletExecutionWorker<?>> completedEventWorkers = new LinkedBlockingQueue<IPortletExecutionWorker<?>>();
+        final IPortletExecutionCompletionListener completionListener = new IPortletExecutionCompletionListener() {
+            @Override
+            public void executionComplete(IPortletExecutionWorker<?> worker) {
+                completedEventWorkers.offer(worker);
+            }
+        };
 
         //TODO what to do if we hit the max iterations?
         int iteration = 0;
@@ -326,6 +336,7 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
                 	final Event event = queuedEvent.getEvent();
                     final IPortletExecutionWorker<Long> portletEventExecutionWorker = this.portletWorkerFactory.createEventWorker(request, response, eventWindowId, event);
                     eventWorkers.put(eventWindowId, portletEventExecutionWorker);
+                    portletEventExecutionWorker.addCompletionListener(completionListener);
                     portletEventExecutionWorker.submit();
                 }
             }
@@ -335,37 +346,62 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
                 return;
             }
             
-            //See if any of the events have completed
-            int completedEventWorkers = 0;
-            final Set<Entry<IPortletWindowId, IPortletExecutionWorker<Long>>> entrySet = eventWorkers.entrySet();
-            for (final Iterator<Entry<IPortletWindowId, IPortletExecutionWorker<Long>>> eventWorkerEntryItr = entrySet.iterator(); eventWorkerEntryItr.hasNext();) {
-                final Entry<IPortletWindowId, IPortletExecutionWorker<Long>> eventWorkerEntry = eventWorkerEntryItr.next();
+            /*
+             * Block until any event worker completes. Not waiting for all events since each event may spawn
+             * more events and we want to start them processing as soon as possible. The wait is bounded by
+             * the timeout of the oldest worker so hung workers are still canceled.
+             */
+            final Entry<IPortletWindowId, IPortletExecutionWorker<Long>> oldestEventWorkerEntry = eventWorkers.entrySet().iterator().next();
+            final IPortletWindowId oldestPortletWindowId = oldestEventWorkerEntry.getKey();
+            final IPortletExecutionWorker<Long> oldestEventWorker = oldestEventWorkerEntry.getValue();
+            
+            IPortletExecutionWorker<?> completedEventWorker = completedEventWorkers.poll();
+            long waitDeadline = 0;
+            if (completedEventWorker == null) {
+                final long timeout = getPortletEventTimeout(oldestPortletWindowId, request);
+                final long waitTime;
+                if (oldestEventWorker.isStarted()) {
+                    waitTime = Math.max(0, oldestEventWorker.getStartedTime() + timeout - System.currentTimeMillis());
+                }
+                else {
+                    waitTime = timeout;
+                }
+                waitDeadline = System.currentTimeMillis() + waitTime;
                 
-                final IPortletExecutionWorker<Long> eventWorker = eventWorkerEntry.getValue();
-                if (eventWorker.isComplete()) {
-                    final IPortletWindowId portletWindowId = eventWorkerEntry.getKey();
-                    //TODO return number of new queued events, use to break the loop earlier
-                    waitForEventWorker(request, eventQueue, eventWorker, portletWindowId);
-                    
-                    eventWorkerEntryItr.remove();
-                    completedEventWorkers++;
+                try {
+                    completedEventWorker = completedEventWorkers.poll(waitTime, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    this.logger.warn("Interrupted while waiting for event workers to complete, canceling " + eventWorkers.size() + " outstanding event workers", e);
+                    for (final IPortletExecutionWorker<Long> eventWorker : eventWorkers.values()) {
+                        cancelWorker(request, eventWorker);
+                    }
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
             
-            /*
-             * If no event workers have completed without waiting wait for the first one and then loop again
-             * Not waiting for all events since each event may spawn more events and we want to start them
-             * processing as soon as possible
-             */
-            if (completedEventWorkers == 0) {
-                final Iterator<Entry<IPortletWindowId, IPortletExecutionWorker<Long>>> eventWorkerEntryItr = entrySet.iterator();
-                final Entry<IPortletWindowId, IPortletExecutionWorker<Long>> eventWorkerEntry = eventWorkerEntryItr.next();
-                eventWorkerEntryItr.remove();
-                
-                final IPortletWindowId portletWindowId = eventWorkerEntry.getKey();
-                final IPortletExecutionWorker<Long> eventWorker = eventWorkerEntry.getValue();
-                waitForEventWorker(request, eventQueue, eventWorker, portletWindowId);
+            if (completedEventWorker == null) {
+                //Nothing completed within the oldest worker's timeout, only wait out what is left of it and cancel the worker if still running
+                eventWorkers.remove(oldestPortletWindowId);
+                final long remainingTime = Math.max(0, waitDeadline - System.currentTimeMillis());
+                waitForEventWorker(request, eventQueue, oldestEventWorker, oldestPortletWindowId, remainingTime);
+                continue;
             }
+            
+            //Handle every worker that has completed so far
+            do {
+                final IPortletWindowId portletWindowId = completedEventWorker.getPortletWindowId();
+                final IPortletExecutionWorker<Long> eventWorker = eventWorkers.get(portletWindowId);
+                
+                //Workers that were already handled due to a timeout notify after cancellation, ignore them
+                if (eventWorker == completedEventWorker) {
+                    waitForEventWorker(request, eventQueue, eventWorker, portletWindowId);
+                    eventWorkers.remove(portletWindowId);
+                }
+                
+                completedEventWorker = completedEventWorkers.poll();
+            } while (completedEventWorker != null);
         }
         
         if (iteration == this.maxEventIterations) {
@@ -378,6 +414,16 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
             IPortletExecutionWorker<Long> eventWorker, IPortletWindowId portletWindowId) {
 
         final long timeout = getPortletEventTimeout(portletWindowId, request);
+        this.waitForEventWorker(request, eventQueue, eventWorker, portletWindowId, timeout);
+    }
+    
+    /**
+     * Wait up to the specified timeout for the event worker to complete, the worker is canceled if it is still
+     * running after the timeout.
+     */
+    protected void waitForEventWorker(
+            HttpServletRequest request, PortletEventQueue eventQueue, 
+            IPortletExecutionWorker<Long> eventWorker, IPortletWindowId portletWindowId, long timeout) {
         
         try {
             eventWorker.get(timeout);
@@ -564,6 +610,17 @@ public class PortletExecutionManager extends HandlerInterceptorAdapter
         return tracker != null;
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#isPortletRenderComplete(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public boolean isPortletRenderComplete(IPortletWindowId portletWindowId, HttpServletRequest request, HttpServletResponse response) {
+        final Map<IPortletWindowId, IPortletRenderExecutionWorker> portletRenderingMap = this.getPortletRenderingMap(request);
+        final IPortletRenderExecutionWorker tracker = portletRenderingMap.get(portletWindowId);
+        
+        return tracker != null && tracker.isComplete();
+    }
+    
     /* (non-Javadoc)
 	 * @see org.jasig.portal.portlet.rendering.IPortletExecutionManager#getPortletHeadOutput(org.jasig.portal.portlet.om.IPortletWindowId, javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
 	 */
@@ -65,6 +65,7 @@ import org.jasig.portal.portlet.om.IPortletWindow;
 import org.jasig.portal.portlet.om.IPortletWindowId;
 import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.worker.HungWorkerAnalyzer;
+import org.jasig.portal.portlet.rendering.worker.PortletWorkerBulkhead;
 import org.jasig.portal.portlet.session.PortletSessionAdministrativeRequestListener;
 import org.jasig.portal.security.IAuthorizationPrincipal;
 import org.jasig.portal.security.IPerson;
@@ -104,6 +105,7 @@ public class PortletRendererImpl implements IPortletRenderer {
     private IPortalEventFactory portalEventFactory;
     private IUrlSyntaxProvider urlSyntaxProvider;
     private HungWorkerAnalyzer hungWorkerAnalyzer;
+    private PortletWorkerBulkhead portletWorkerBulkhead;
 
     @Autowired
     public void setUrlSyntaxProvider(IUrlSyntaxProvider urlSyntaxProvider) {
@@ -141,6 +143,10 @@ public class PortletRendererImpl implements IPortletRenderer {
     public void setHungWorkerAnalyzer(HungWorkerAnalyzer hungWorkerAnalyzer) {
         this.hungWorkerAnalyzer = hungWorkerAnalyzer;
     }
+    @Autowired
+    public void setPortletWorkerBulkhead(PortletWorkerBulkhead portletWorkerBulkhead) {
+        this.portletWorkerBulkhead = portletWorkerBulkhead;
+    }
 	
 	
 	/**
@@ -294,7 +300,7 @@ public class PortletRendererImpl implements IPortletRenderer {
 		}
         
         if (useCachedContent) {
-        	cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
+        	this.portletCacheControlService.updateCachedPortletRenderOutputExpiration(portletWindowId, httpServletRequest, cachedPortletData, cacheControl);
     		return doRenderMarkupReplayCachedContent(portletWindowId, httpServletRequest, writer, cachedPortletData);
         } else {
         	boolean shouldCache = this.portletCacheControlService.shouldOutputBeCached(cacheControl);
@@ -310,6 +316,11 @@ public class PortletRendererImpl implements IPortletRenderer {
         return hungWorkerAnalyzer;
     }
     
+    @Override
+    public PortletWorkerBulkhead getPortletWorkerBulkhead() {
+        return portletWorkerBulkhead;
+    }
+    
     /**
      * Replay the cached content inside the {@link CachedPortletData} as the response to a doRenderMarkup.
      * 
@@ -531,7 +542,7 @@ public class PortletRendererImpl implements IPortletRenderer {
 	        	if(logger.isDebugEnabled()) {
 	        		logger.debug("expired cached content deemed still valid by portletWindowId " + portletWindowId + ", updated expiration time");
 	        	}
-	        	cachedPortletData.updateExpirationTime(cacheControl.getExpirationTime());
+	        	this.portletCacheControlService.updateCachedPortletResourceOutputExpiration(portletWindowId, httpServletRequest, cachedPortletData, cacheControl);
 	        	return doServeResourceCachedOutput(portletWindowId, httpServletRequest, responseWrapper, cachedPortletData, portletWindow);
 	        }
 	        
@@ -0,0 +1,48 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import org.jasig.portal.utils.threading.ConcurrentQualityOfServiceBlockingQueue;
+
+/**
+ * Lock free QOS based queue that spreads out workers by fname.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ * @see PortletWorkerExecutionQueue
+ */
+public class ConcurrentPortletWorkerExecutionQueue extends ConcurrentQualityOfServiceBlockingQueue<String, PortletExecutionCallable<?>> {
+    
+    public ConcurrentPortletWorkerExecutionQueue() {
+        super();
+    }
+    
+    public ConcurrentPortletWorkerExecutionQueue(int capacity) {
+        super(capacity);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.utils.threading.ConcurrentQualityOfServiceBlockingQueue#getElementKey(java.lang.Object)
+     */
+    @Override
+    protected String getElementKey(PortletExecutionCallable<?> e) {
+        return e.getPortletFname();
+    }
+}
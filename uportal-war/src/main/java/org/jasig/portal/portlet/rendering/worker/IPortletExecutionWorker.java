@@ -65,4 +65,11 @@ public interface IPortletExecutionWorker<V> extends IPortletExecutionContext {
      * @return true If {@link #get(long)} has been called
      */
     public boolean isRetrieved();
+    
+    /**
+     * Register a listener to be notified when the worker completes, fails or is canceled. Listeners
+     * should be added before {@link #submit()} is called, if the worker has already completed the
+     * listener is notified immediately on the calling thread. Each listener is notified at most once.
+     */
+    public void addCompletionListener(IPortletExecutionCompletionListener listener);
 }
\ No newline at end of file
@@ -34,11 +34,30 @@ import org.jasig.portal.portlet.om.IPortletWindowId;
 final class PortletExecutionCallable<V> extends FutureTask<V> implements Callable<V>, IPortletExecutionContext {
     private final Callable<V> callable;
     private final IPortletExecutionContext portletExecutionContext;
+    private final Runnable doneCallback;
 
     public PortletExecutionCallable(Callable<V> callable, IPortletExecutionContext portletExecutionContext) {
+        this(callable, portletExecutionContext, null);
+    }
+
+    /**
+     * @param doneCallback Run when the task completes or is canceled, see {@link FutureTask#done()}
+     */
+    public PortletExecutionCallable(Callable<V> callable, IPortletExecutionContext portletExecutionContext, Runnable doneCallback) {
         super(callable);
         this.callable = callable;
         this.portletExecutionContext = portletExecutionContext;
+        this.doneCallback = doneCallback;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.FutureTask#done()
+     */
+    @Override
+    protected void done() {
+        if (this.doneCallback != null) {
+            this.doneCallback.run();
+        }
     }
 
     @Override
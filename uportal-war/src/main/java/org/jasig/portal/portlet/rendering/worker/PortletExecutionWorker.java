@@ -25,6 +25,7 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -68,6 +69,9 @@ abstract class PortletExecutionWorker<V> implements IPortletExecutionWorker<V> {
     private volatile long complete = 0;
     private final AtomicInteger cancelCount = new AtomicInteger();
     private final AtomicBoolean canceled = new AtomicBoolean();
+    private final AtomicBoolean bulkheadReleased = new AtomicBoolean();
+    private final List<IPortletExecutionCompletionListener> completionListeners = new CopyOnWriteArrayList<IPortletExecutionCompletionListener>();
+    private volatile boolean done = false;
     private volatile boolean retrieved = false;
         
     public PortletExecutionWorker(
@@ -138,11 +142,27 @@ abstract class PortletExecutionWorker<V> implements IPortletExecutionWorker<V> {
          * Time to prepare a Callable for the executorService;  choose whether 
          * to create a normal Callable (that invokes the portlet code), or a 
          * special (dummy) Callable that throws an Exception indicating the 
-         * portlet has too many errant worker threads in the hungWorker queue. 
+         * portlet has too many errant worker threads in the hungWorker queue
+         * or is at its bulkhead concurrency limit. The dummy Callable is run
+         * immediately on the calling thread so the failure doesn't have to wait
+         * in the thread pool queue.
          */
-        Callable<V> callable = null;
-        if (this.portletRenderer.getHungWorkerAnalyzer().allowWorkerThreadAllocationForPortlet(portletFname)) {
+        final PortletExecutionCallable<V> callable;
+        final PortletExecutionCallable<V> rejectedCallable;
+        final PortletWorkerBulkhead bulkhead = this.portletRenderer.getPortletWorkerBulkhead();
+        if (!this.portletRenderer.getHungWorkerAnalyzer().allowWorkerThreadAllocationForPortlet(portletFname)) {
+            // All is NOT well -- replace the Callable with one that throws a meaningful Exception
+            callable = null;
+            rejectedCallable = this.createRejectedCallable("Portlet '" + portletFname + "' was not allocated a worker thread because it already has too many workers in a hung state.");
+        }
+        else if (!bulkhead.tryAcquire(portletFname)) {
+            // The portlet is at its concurrency limit, fail fast instead of queueing behind the timeout
+            callable = null;
+            rejectedCallable = this.createRejectedCallable("Portlet '" + portletFname + "' was not allocated a worker thread because it is at its limit of " + bulkhead.getConcurrencyLimit(portletFname) + " concurrent workers.");
+        }
+        else {
             // All is well -- proceed as usual
+            rejectedCallable = null;
             callable = new PortletExecutionCallable<V>(new Callable<V>() {
                 /* (non-Javadoc)
                  * @see java.util.concurrent.Callable#call()
@@ -178,23 +198,94 @@ abstract class PortletExecutionWorker<V> implements IPortletExecutionWorker<V> {
                         }
                         
                         workerThread = null;
+                        releaseBulkhead(bulkhead);
                     }
                 }
-            }, this);
-        } else {
-            // All is NOT well -- replace the Callable with one that throws a meaningful Exception
-            callable = new PortletExecutionCallable<V>(new Callable<V>() {
+            }, this, new Runnable() {
                 @Override
-                public V call() throws Exception {
-                    Exception e = new RuntimeException("Portlet '" + portletFname + "' was not allocated a worker thread because it already has too many workers in a hung state.");
-                    logger.warn("Portlet '" + portletWindowId + "' failed with an exception", e);
-                    doPostExecution(e);
-                    throw e;
+                public void run() {
+                    //Canceled before the worker started, the finally block above will never run
+                    if (started == 0) {
+                        releaseBulkhead(bulkhead);
+                    }
+                    
+                    executionDone();
                 }
-            }, this);
+            });
+        }
+        
+        if (rejectedCallable != null) {
+            rejectedCallable.run();
+            this.future = rejectedCallable;
+        }
+        else {
+            this.future = this.executorService.submit(callable);
+        }
+    }
+    
+    private PortletExecutionCallable<V> createRejectedCallable(final String message) {
+        return new PortletExecutionCallable<V>(new Callable<V>() {
+            @Override
+            public V call() throws Exception {
+                //Signal any threads waiting for the worker to start, it never will
+                startLatch.countDown();
+                
+                //Pre-execution interceptors were never run so post-execution interceptors are not run either
+                Exception e = new RuntimeException(message);
+                logger.warn("Portlet '" + portletWindowId + "' failed with an exception", e);
+                throw e;
+            }
+        }, this, new Runnable() {
+            @Override
+            public void run() {
+                executionDone();
+            }
+        });
+    }
+    
+    /**
+     * Called once the future is done, notifies all registered completion listeners
+     */
+    private void executionDone() {
+        this.done = true;
+        for (final IPortletExecutionCompletionListener listener : this.completionListeners) {
+            notifyCompletionListener(listener);
+        }
+    }
+    
+    private void notifyCompletionListener(IPortletExecutionCompletionListener listener) {
+        //Only the thread that successfully removes the listener notifies it 
+        if (this.completionListeners.remove(listener)) {
+            try {
+                listener.executionComplete(this);
+            }
+            catch (Throwable t) {
+                logger.error("IPortletExecutionCompletionListener.executionComplete threw exception for portlet " + portletWindowId, t);
+            }
         }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker#addCompletionListener(org.jasig.portal.portlet.rendering.worker.IPortletExecutionCompletionListener)
+     */
+    @Override
+    public final void addCompletionListener(IPortletExecutionCompletionListener listener) {
+        this.completionListeners.add(listener);
         
-        this.future = this.executorService.submit(callable);
+        //Completed before the listener was added, notify it directly
+        if (this.done) {
+            notifyCompletionListener(listener);
+        }
+    }
+    
+    /**
+     * Release the bulkhead permit for this worker, only the first call has any effect
+     */
+    private void releaseBulkhead(PortletWorkerBulkhead bulkhead) {
+        if (this.bulkheadReleased.compareAndSet(false, true)) {
+            final long duration = this.started > 0 ? this.complete - this.started : -1;
+            bulkhead.release(this.portletFname, duration, this.timeout);
+        }
     }
     
     private void doPostExecution(Exception e) {
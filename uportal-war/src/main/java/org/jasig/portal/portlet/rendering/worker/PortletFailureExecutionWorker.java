@@ -151,6 +151,15 @@ final class PortletFailureExecutionWorker implements IPortletFailureExecutionWor
         return 0;
     }
 
+    /* (non-Javadoc)
+     * @see org.jasig.portal.portlet.rendering.worker.IPortletExecutionWorker#addCompletionListener(org.jasig.portal.portlet.rendering.worker.IPortletExecutionCompletionListener)
+     */
+    @Override
+    public void addCompletionListener(IPortletExecutionCompletionListener listener) {
+        //The error is rendered on demand by the calling thread so the result is always available
+        listener.executionComplete(this);
+    }
+
     protected synchronized void renderError(long timeout) {
         //Make sure the error rendering only happens once
         if (this.completed > 0) {
@@ -0,0 +1,268 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.utils.ConcurrentMapUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Limits the number of workers each portlet (by fname) can have executing or queued at the same time so
+ * that a single slow portlet cannot consume the entire portlet thread pool. Workers that are denied a
+ * permit fail immediately and render the error portlet instead of waiting in the queue until they time out.
+ * <p>
+ * When adaptive limits are enabled the limit for each portlet is adjusted based on the 99th percentile
+ * execution time of its recent workers. The limit is reduced when the p99 approaches the portlet's timeout
+ * and grows back, one permit at a time, up to the configured limit when the p99 falls.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+@Service("portletWorkerBulkhead")
+public final class PortletWorkerBulkhead {
+    private final Log log = LogFactory.getLog(this.getClass());
+    
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<String, Bulkhead>();
+    
+    private int defaultConcurrencyLimit = 0;
+    private Map<String, Integer> concurrencyLimits = Collections.emptyMap();
+    private boolean adaptive = true;
+    private int minimumConcurrencyLimit = 1;
+    private int sampleSize = 100;
+    private double highLatencyRatio = 0.5;
+    private double lowLatencyRatio = 0.2;
+    private double decreaseFactor = 0.75;
+    
+    /**
+     * Maximum number of concurrent workers for a portlet that does not have an entry in
+     * {@link #setConcurrencyLimits(Map)}. Set to zero (0) to disable the bulkhead for those portlets.
+     */
+    @Value("${org.jasig.portal.portlet.worker.bulkhead.defaultConcurrencyLimit}")
+    public void setDefaultConcurrencyLimit(int defaultConcurrencyLimit) {
+        this.defaultConcurrencyLimit = defaultConcurrencyLimit;
+    }
+
+    /**
+     * Maximum number of concurrent workers by portlet fname, a value of zero (0) disables the bulkhead for the portlet.
+     */
+    public void setConcurrencyLimits(Map<String, Integer> concurrencyLimits) {
+        this.concurrencyLimits = concurrencyLimits;
+        this.bulkheads.clear();
+    }
+
+    /**
+     * If the limits should be adjusted based on observed execution times, defaults to true
+     */
+    @Value("${org.jasig.portal.portlet.worker.bulkhead.adaptive}")
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Lowest value an adaptive limit will be reduced to, defaults to 1
+     */
+    public void setMinimumConcurrencyLimit(int minimumConcurrencyLimit) {
+        this.minimumConcurrencyLimit = minimumConcurrencyLimit;
+    }
+
+    /**
+     * Number of execution times collected before the limit is re-evaluated, defaults to 100
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Ratio of the portlet's timeout the p99 execution time must exceed for the limit to be reduced, defaults to 0.5
+     */
+    public void setHighLatencyRatio(double highLatencyRatio) {
+        this.highLatencyRatio = highLatencyRatio;
+    }
+
+    /**
+     * Ratio of the portlet's timeout the p99 execution time must be under for the limit to be increased, defaults to 0.2
+     */
+    public void setLowLatencyRatio(double lowLatencyRatio) {
+        this.lowLatencyRatio = lowLatencyRatio;
+    }
+
+    /**
+     * Multiplier applied to the limit when it is reduced, defaults to 0.75
+     */
+    public void setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    /**
+     * Attempt to get a permit for a worker of the specified portlet. Every successful call MUST be matched
+     * with a call to {@link #release(String, long, long)}
+     * 
+     * @return true if the worker may be submitted, false if the portlet is at its limit
+     */
+    public boolean tryAcquire(String fname) {
+        final Bulkhead bulkhead = this.getBulkhead(fname);
+        if (bulkhead == null) {
+            return true;
+        }
+        
+        final boolean acquired = bulkhead.tryAcquire();
+        if (!acquired && log.isDebugEnabled()) {
+            log.debug("Worker rejected for portlet '" + fname + "', " + bulkhead);
+        }
+        return acquired;
+    }
+    
+    /**
+     * Release a permit acquired via {@link #tryAcquire(String)}
+     * 
+     * @param duration The execution time of the worker in ms, -1 if the worker never executed
+     * @param timeout The timeout of the worker in ms
+     */
+    public void release(String fname, long duration, long timeout) {
+        final Bulkhead bulkhead = this.getBulkhead(fname);
+        if (bulkhead == null) {
+            return;
+        }
+        
+        bulkhead.release();
+        
+        if (this.adaptive && duration >= 0 && timeout > 0) {
+            bulkhead.recordDuration(duration, timeout);
+        }
+    }
+    
+    /**
+     * @return The current concurrency limit for the portlet, 0 if the portlet has no limit
+     */
+    public int getConcurrencyLimit(String fname) {
+        final Bulkhead bulkhead = this.getBulkhead(fname);
+        return bulkhead == null ? 0 : bulkhead.limit;
+    }
+    
+    /**
+     * @return The number of workers currently holding a permit for the portlet
+     */
+    public int getActiveCount(String fname) {
+        final Bulkhead bulkhead = this.getBulkhead(fname);
+        return bulkhead == null ? 0 : bulkhead.active.get();
+    }
+    
+    /**
+     * @return The number of workers rejected for the portlet
+     */
+    public long getRejectedCount(String fname) {
+        final Bulkhead bulkhead = this.getBulkhead(fname);
+        return bulkhead == null ? 0 : bulkhead.rejected.get();
+    }
+    
+    private Bulkhead getBulkhead(String fname) {
+        Bulkhead bulkhead = this.bulkheads.get(fname);
+        if (bulkhead != null) {
+            return bulkhead;
+        }
+        
+        final Integer configuredLimit = this.concurrencyLimits.get(fname);
+        final int maxLimit = configuredLimit != null ? configuredLimit : this.defaultConcurrencyLimit;
+        if (maxLimit <= 0) {
+            return null;
+        }
+        
+        bulkhead = new Bulkhead(fname, maxLimit);
+        return ConcurrentMapUtils.putIfAbsent(this.bulkheads, fname, bulkhead);
+    }
+
+    /**
+     * Permit tracking and execution time samples for a single portlet
+     */
+    private final class Bulkhead {
+        private final String fname;
+        private final int maxLimit;
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        private final long[] samples;
+        private int sampleCount = 0;
+        private volatile int limit;
+        
+        public Bulkhead(String fname, int maxLimit) {
+            this.fname = fname;
+            this.maxLimit = maxLimit;
+            this.limit = maxLimit;
+            this.samples = new long[sampleSize];
+        }
+        
+        public boolean tryAcquire() {
+            while (true) {
+                final int current = this.active.get();
+                if (current >= this.limit) {
+                    this.rejected.incrementAndGet();
+                    return false;
+                }
+                if (this.active.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+        
+        public void release() {
+            this.active.decrementAndGet();
+        }
+        
+        public synchronized void recordDuration(long duration, long timeout) {
+            this.samples[this.sampleCount++] = duration;
+            if (this.sampleCount < this.samples.length) {
+                return;
+            }
+            
+            //Enough samples collected, calculate the p99 and adjust the limit
+            final long[] sorted = this.samples.clone();
+            Arrays.sort(sorted);
+            final long p99 = sorted[Math.max(0, (int)Math.ceil(sorted.length * 0.99) - 1)];
+            this.sampleCount = 0;
+            
+            final int oldLimit = this.limit;
+            if (p99 > timeout * highLatencyRatio) {
+                this.limit = Math.max(minimumConcurrencyLimit, (int)(oldLimit * decreaseFactor));
+            }
+            else if (p99 < timeout * lowLatencyRatio) {
+                this.limit = Math.min(this.maxLimit, oldLimit + 1);
+            }
+            
+            if (oldLimit != this.limit && log.isInfoEnabled()) {
+                log.info("Concurrency limit for portlet '" + this.fname + "' changed from " + oldLimit + " to " + this.limit + " based on p99 execution time of " + p99 + "ms and timeout of " + timeout + "ms");
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Bulkhead [fname=" + this.fname + ", active=" + this.active + ", limit=" + this.limit + 
+                    ", maxLimit=" + this.maxLimit + ", rejected=" + this.rejected + "]";
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.CharacterEventTypes;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEventImpl;
+import org.jasig.portal.utils.cache.CacheKey;
+
+/**
+ * Merges each run of adjacent {@link CharacterEventTypes#CHARACTER} events into a single
+ * {@link EncodedCharacterDataEventImpl} that is pre-encoded with the response character set.
+ * Placed before the theme cache this means the static markup of the page is encoded once per
+ * cache entry instead of once per request.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CharacterDataCoalescingComponent extends CharacterPipelineComponentWrapper {
+    private String characterSet = DynamicRenderingPipeline.CHARACTER_SET;
+    
+    /**
+     * Character set used to encode the character data, must match the character set used
+     * by the {@link IPortalRenderingPipeline} that writes the response. Defaults to {@link DynamicRenderingPipeline#CHARACTER_SET}
+     */
+    public void setCharacterSet(String characterSet) {
+        this.characterSet = characterSet;
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.PipelineComponent#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
+        //Coalescing does not change the content of the stream
+        return this.wrappedComponent.getCacheKey(request, response);
+    }
+
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.PipelineComponent#getEventReader(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
+     */
+    @Override
+    public PipelineEventReader<CharacterEventReader, CharacterEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
+        
+        final List<CharacterEvent> eventBuffer = new ArrayList<CharacterEvent>();
+        final StringBuilder characterData = new StringBuilder();
+        for (final CharacterEvent event : pipelineEventReader) {
+            if (CharacterEventTypes.CHARACTER == event.getEventType()) {
+                characterData.append(((CharacterDataEvent) event).getData());
+            }
+            else {
+                this.flushCharacterData(characterData, eventBuffer);
+                eventBuffer.add(event);
+            }
+        }
+        this.flushCharacterData(characterData, eventBuffer);
+        
+        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
+        final CharacterEventBufferReader bufferEventReader = new CharacterEventBufferReader(eventBuffer.listIterator());
+        return new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(bufferEventReader, outputProperties);
+    }
+
+    /**
+     * Add an encoded event for the buffered character data, if there is any, and reset the buffer
+     */
+    protected void flushCharacterData(StringBuilder characterData, List<CharacterEvent> eventBuffer) {
+        if (characterData.length() == 0) {
+            return;
+        }
+        
+        eventBuffer.add(new EncodedCharacterDataEventImpl(characterData.toString(), this.characterSet));
+        characterData.setLength(0);
+    }
+}
@@ -19,13 +19,19 @@
 
 package org.jasig.portal.rendering;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.CharacterEventReaderDelegate;
 import org.jasig.portal.character.stream.FilteringCharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.character.stream.events.PortletContentPlaceholderEvent;
@@ -40,18 +46,42 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Inserts the results of portlet's rendering into the character stream
+ * <p>
+ * If {@link #setDeferIncompletePortlets(boolean)} is enabled portlet content that is still rendering
+ * when its placeholder is reached is replaced by an empty container element and the rest of the page is
+ * streamed to the client. The deferred portlet content is written just before the closing body element,
+ * in the order the portlets complete, along with a small inline script that moves the content into its
+ * container. Portlets that are rendering or still queued for a worker are deferred, portlets that were never
+ * requested to render are rendered inline as usual.
+ * <p>
+ * Only portlet content is deferred. Title and new item count placeholders can appear inside attribute values
+ * where no container element can be inserted, so they are still waited on where they appear.
  * 
  * @author Eric Dalquist
  * @version $Revision$
  */
 public class PortletRenderingIncorporationComponent extends CharacterPipelineComponentWrapper {
+    private static final String DEFERRED_CONTAINER_ID_PREFIX = "up-deferred-portlet-";
+    private static final String DEFERRED_CONTENT_ID_PREFIX = "up-deferred-portlet-content-";
+    private static final String BODY_END_TAG = "</body";
+    
     private IPortletExecutionManager portletExecutionManager;
+    private boolean deferIncompletePortlets = false;
     
     @Autowired
     public void setPortletExecutionManager(IPortletExecutionManager portletExecutionManager) {
         this.portletExecutionManager = portletExecutionManager;
     }
 
+    /**
+     * If true portlet content that is still rendering when its placeholder is reached will be written at the
+     * end of the page body instead of blocking the rendering of the rest of the page. Requires that the theme
+     * allows inline JavaScript. Defaults to false.
+     */
+    public void setDeferIncompletePortlets(boolean deferIncompletePortlets) {
+        this.deferIncompletePortlets = deferIncompletePortlets;
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.portal.rendering.PipelineComponent#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -72,11 +102,44 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
         final PipelineEventReader<CharacterEventReader, CharacterEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
         
         final CharacterEventReader eventReader = pipelineEventReader.getEventReader();
-        final PortletIncorporatingEventReader portletIncorporatingEventReader = new PortletIncorporatingEventReader(eventReader, request, response);
+        
+        final PortletIncorporatingEventReader portletIncorporatingEventReader;
+        if (this.deferIncompletePortlets) {
+            final DeferredPortletEventReader deferredPortletEventReader = new DeferredPortletEventReader(eventReader, request, response);
+            portletIncorporatingEventReader = new PortletIncorporatingEventReader(deferredPortletEventReader, request, response);
+        }
+        else {
+            portletIncorporatingEventReader = new PortletIncorporatingEventReader(eventReader, request, response);
+        }
         
         final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
         return new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(portletIncorporatingEventReader, outputProperties);
     }
+    
+    /**
+     * Id of the element the deferred content of the portlet is moved into
+     */
+    protected String getDeferredContainerId(IPortletWindowId portletWindowId) {
+        return DEFERRED_CONTAINER_ID_PREFIX + portletWindowId.getStringId().replaceAll("[^A-Za-z0-9_\\-]", "_");
+    }
+    
+    /**
+     * Wraps the deferred portlet content in a hidden element and adds the script that moves it into the container
+     */
+    protected String getDeferredPortletMarkup(IPortletWindowId portletWindowId, String output) {
+        final String containerId = this.getDeferredContainerId(portletWindowId);
+        final String contentId = DEFERRED_CONTENT_ID_PREFIX + containerId.substring(DEFERRED_CONTAINER_ID_PREFIX.length());
+        
+        final StringBuilder markup = new StringBuilder(output.length() + 400);
+        markup.append("<div id=\"").append(contentId).append("\" style=\"display:none\">");
+        markup.append(output);
+        markup.append("</div><script type=\"text/javascript\">(function(){");
+        markup.append("var s=document.getElementById('").append(contentId).append("'),");
+        markup.append("t=document.getElementById('").append(containerId).append("');");
+        markup.append("if(s&&t){while(s.firstChild){t.appendChild(s.firstChild);}s.parentNode.removeChild(s);}");
+        markup.append("})();</script>");
+        return markup.toString();
+    }
 
     private class PortletIncorporatingEventReader extends FilteringCharacterEventReader {
         private final HttpServletRequest request;
@@ -138,4 +201,145 @@ public class PortletRenderingIncorporationComponent extends CharacterPipelineCom
             return event;
         }
     }
+    
+    /**
+     * Replaces the content placeholders of portlets that are still rendering with an empty container and
+     * writes the deferred content before the closing body element. Portlets that have completed are written
+     * first and if none are complete the first deferred portlet is waited on. If the closing body element is
+     * never found the deferred content is written at the end of the stream.
+     */
+    private class DeferredPortletEventReader extends CharacterEventReaderDelegate {
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final List<IPortletWindowId> deferredPortlets = new LinkedList<IPortletWindowId>();
+        private CharacterEvent peekedEvent = null;
+        private CharacterEvent bodyEndEvent = null;
+        private boolean bodyEndFound = false;
+        
+        public DeferredPortletEventReader(CharacterEventReader delegate, HttpServletRequest request, HttpServletResponse response) {
+            super(delegate);
+            this.request = request;
+            this.response = response;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.peekedEvent != null || this.bodyEndEvent != null || super.hasNext() || !this.deferredPortlets.isEmpty();
+        }
+
+        @Override
+        public CharacterEvent next() {
+            if (this.peekedEvent != null) {
+                final CharacterEvent event = this.peekedEvent;
+                this.peekedEvent = null;
+                return event;
+            }
+            
+            return this.internalNext();
+        }
+
+        @Override
+        public CharacterEvent peek() {
+            if (this.peekedEvent == null) {
+                this.peekedEvent = this.internalNext();
+            }
+            
+            return this.peekedEvent;
+        }
+        
+        private CharacterEvent internalNext() {
+            //Write out all deferred portlets before continuing with the closing body element
+            if (this.bodyEndEvent != null) {
+                if (!this.deferredPortlets.isEmpty()) {
+                    return this.nextDeferredPortlet();
+                }
+                
+                final CharacterEvent event = this.bodyEndEvent;
+                this.bodyEndEvent = null;
+                return event;
+            }
+            
+            if (!super.hasNext()) {
+                return this.nextDeferredPortlet();
+            }
+            
+            final CharacterEvent event = super.next();
+            if (this.bodyEndFound) {
+                return event;
+            }
+            
+            switch (event.getEventType()) {
+                case PORTLET_CONTENT: {
+                    final IPortletWindowId portletWindowId = ((PortletContentPlaceholderEvent)event).getPortletWindowId();
+                    
+                    //Defer portlets that are rendering or queued to render, portlets that were never requested
+                    //are rendered inline by getPortletOutput
+                    if (portletExecutionManager.isPortletRenderRequested(portletWindowId, this.request, this.response) &&
+                            !portletExecutionManager.isPortletRenderComplete(portletWindowId, this.request, this.response)) {
+                        this.deferredPortlets.add(portletWindowId);
+                        return new CharacterDataEventImpl("<div id=\"" + getDeferredContainerId(portletWindowId) + "\"></div>");
+                    }
+                    
+                    return event;
+                }
+                case CHARACTER: {
+                    if (this.deferredPortlets.isEmpty()) {
+                        return event;
+                    }
+                    
+                    final String data = ((CharacterDataEvent)event).getData();
+                    final int bodyEndIndex = lastIndexOfBodyEnd(data);
+                    if (bodyEndIndex < 0) {
+                        return event;
+                    }
+                    
+                    this.bodyEndFound = true;
+                    this.bodyEndEvent = new CharacterDataEventImpl(data.substring(bodyEndIndex));
+                    if (bodyEndIndex == 0) {
+                        return this.nextDeferredPortlet();
+                    }
+                    return new CharacterDataEventImpl(data.substring(0, bodyEndIndex));
+                }
+                default: {
+                    return event;
+                }
+            }
+        }
+        
+        private CharacterEvent nextDeferredPortlet() {
+            if (this.deferredPortlets.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            
+            //Find the first completed portlet, if none are complete block on the first one
+            IPortletWindowId portletWindowId = null;
+            for (final Iterator<IPortletWindowId> deferredItr = this.deferredPortlets.iterator(); deferredItr.hasNext(); ) {
+                final IPortletWindowId deferredPortletWindowId = deferredItr.next();
+                if (portletExecutionManager.isPortletRenderComplete(deferredPortletWindowId, this.request, this.response)) {
+                    deferredItr.remove();
+                    portletWindowId = deferredPortletWindowId;
+                    break;
+                }
+            }
+            if (portletWindowId == null) {
+                portletWindowId = this.deferredPortlets.remove(0);
+            }
+            
+            final String output = portletExecutionManager.getPortletOutput(portletWindowId, this.request, this.response);
+            return new CharacterDataEventImpl(getDeferredPortletMarkup(portletWindowId, output));
+        }
+    }
+    
+    /**
+     * @return The index of the last closing body tag in the data, ignoring case, or -1 if there is none
+     */
+    static int lastIndexOfBodyEnd(String data) {
+        for (int index = data.length() - BODY_END_TAG.length(); index >= 0; index--) {
+            if (data.charAt(index) == '<' && data.regionMatches(true, index, BODY_END_TAG, 0, BODY_END_TAG.length())) {
+                return index;
+            }
+        }
+        
+        return -1;
+    }
 }
@@ -19,12 +19,16 @@
 
 package org.jasig.portal.rendering;
 
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
@@ -35,6 +39,7 @@ import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
 import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
 import org.jasig.portal.utils.Tuple;
 import org.jasig.portal.utils.cache.CacheKey;
+import org.jasig.portal.xml.stream.BufferedXMLEventReader;
 import org.jasig.portal.xml.stream.FilteringXMLEventReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -81,7 +86,8 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
         final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
 
         final XMLEventReader eventReader = pipelineEventReader.getEventReader();
-        final PortletRenderingXMLEventReader filteredEventReader = new PortletRenderingXMLEventReader(request, response, eventReader);
+        final BufferedXMLEventReader bufferedEventReader = new BufferedXMLEventReader(eventReader);
+        final PortletRenderingXMLEventReader filteredEventReader = new PortletRenderingXMLEventReader(request, response, bufferedEventReader);
         
         final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
         return new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(filteredEventReader, outputProperties);
@@ -90,11 +96,57 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
     private class PortletRenderingXMLEventReader extends FilteringXMLEventReader {
         private final HttpServletRequest request;
         private final HttpServletResponse response;
+        private final BufferedXMLEventReader bufferedReader;
+        private boolean portletWindowsResolved = false;
         
-        public PortletRenderingXMLEventReader(HttpServletRequest request, HttpServletResponse response, XMLEventReader reader) {
+        public PortletRenderingXMLEventReader(HttpServletRequest request, HttpServletResponse response, BufferedXMLEventReader reader) {
             super(reader);
             this.request = request;
             this.response = response;
+            this.bufferedReader = reader;
+        }
+        
+        /**
+         * Reads ahead from the current portlet element to collect the layout node ids of every
+         * portlet in the rendered layout and resolves their windows in one pass, so the per-element
+         * lookups hit the request cache. Portlets that are in the user's layout but not in the
+         * rendered stream, such as those on other tabs, are not resolved.
+         */
+        private void resolvePortletWindows(StartElement firstPortletElement) {
+            this.portletWindowsResolved = true;
+            
+            final Set<String> layoutNodeIds = new LinkedHashSet<String>();
+            addLayoutNodeId(layoutNodeIds, firstPortletElement);
+            
+            this.bufferedReader.mark();
+            try {
+                while (this.bufferedReader.hasNext()) {
+                    final XMLEvent event = this.bufferedReader.nextEvent();
+                    if (event.isStartElement()) {
+                        final StartElement startElement = event.asStartElement();
+                        final String localName = startElement.getName().getLocalPart();
+                        if (IUserLayoutManager.CHANNEL.equals(localName) || IUserLayoutManager.CHANNEL_HEADER.equals(localName)) {
+                            addLayoutNodeId(layoutNodeIds, startElement);
+                        }
+                    }
+                }
+            }
+            catch (XMLStreamException e) {
+                throw new RuntimeException("Failed to read ahead for portlet elements", e);
+            }
+            finally {
+                this.bufferedReader.reset();
+            }
+            
+            logger.debug("Resolving portlet windows for {} rendered layout nodes", layoutNodeIds.size());
+            portletWindowRegistry.getLayoutPortletWindows(this.request, layoutNodeIds);
+        }
+        
+        private void addLayoutNodeId(Set<String> layoutNodeIds, StartElement startElement) {
+            final Attribute nodeIdAttribute = startElement.getAttributeByName(IUserLayoutManager.ID_ATTR_NAME);
+            if (nodeIdAttribute != null) {
+                layoutNodeIds.add(nodeIdAttribute.getValue());
+            }
         }
 
         @Override
@@ -104,6 +156,10 @@ public class PortletRenderingInitiationStAXComponent extends StAXPipelineCompone
                 
                 final QName name = startElement.getName();
                 final String localName = name.getLocalPart();
+                if (!this.portletWindowsResolved && (IUserLayoutManager.CHANNEL.equals(localName) || IUserLayoutManager.CHANNEL_HEADER.equals(localName))) {
+                    this.resolvePortletWindows(startElement);
+                }
+                
                 if (IUserLayoutManager.CHANNEL.equals(localName)) {
                     final Tuple<IPortletWindow, StartElement> portletWindowAndElement = portletWindowRegistry.getPortletWindow(request, startElement);
 					if (portletWindowAndElement == null) {
@@ -40,6 +40,7 @@ import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.utils.cache.CacheKey;
 import org.jasig.portal.xml.XmlUtilities;
 import org.jasig.portal.xml.stream.ChunkingEventReader;
+import org.jasig.portal.xml.stream.CombinedChunkingPattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -59,7 +60,7 @@ public class StAXSerializingComponent implements CharacterPipelineComponent {
     
     private StAXPipelineComponent wrappedComponent;
     private Map<String, CharacterEventSource> chunkingElements;
-    private Map<Pattern, CharacterEventSource> chunkingPatterns;
+    private CombinedChunkingPattern chunkingPatterns = new CombinedChunkingPattern(null);
 
     @Autowired
     public void setXmlUtilities(XmlUtilities xmlUtilities) {
@@ -84,7 +85,7 @@ public class StAXSerializingComponent implements CharacterPipelineComponent {
             compiledChunkingPatterns.put(pattern, value);
         }
         
-        this.chunkingPatterns = compiledChunkingPatterns;
+        this.chunkingPatterns = new CombinedChunkingPattern(compiledChunkingPatterns);
     }
 
     @Override
@@ -109,15 +110,28 @@ public class StAXSerializingComponent implements CharacterPipelineComponent {
                 this.chunkingElements, this.chunkingPatterns, 
                 xmlEventReader, xmlEventWriter, writer);
         
+        boolean closed = false;
         try {
             xmlEventWriter.add(chunkingEventReader);
             xmlEventWriter.flush();
             xmlEventWriter.close();
             chunkingEventReader.close();
+            closed = true;
         }
         catch (XMLStreamException e) {
             throw new RuntimeException("Failed to write events to Writer", e);
         }
+        finally {
+            if (!closed) {
+                //Close the source so a streaming producer isn't left waiting on a reader that has gone away
+                try {
+                    xmlEventReader.close();
+                }
+                catch (XMLStreamException e) {
+                    this.logger.warn("Failed to close XMLEventReader after serialization failed", e);
+                }
+            }
+        }
         
         //Return the chunked data
         final List<CharacterEvent> characterEvents = chunkingEventReader.getCharacterEvents();
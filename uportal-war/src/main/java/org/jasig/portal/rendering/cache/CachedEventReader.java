@@ -20,22 +20,45 @@
 package org.jasig.portal.rendering.cache;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Holder class for an event cache and output properties
+ * Holder class for an event cache and output properties. The events are stored in an
+ * exactly sized, array backed, immutable list so replaying a cached entry only walks
+ * an array instead of allocating iterators over linked nodes.
  */
 class CachedEventReader<E> implements Serializable {
     private static final long serialVersionUID = 1L;
     
     private final List<E> eventCache;
     private final Map<String, String> outputProperties;
+    private final long estimatedSize;
 
     public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties) {
-        this.eventCache = Collections.unmodifiableList(eventCache);
+        this(eventCache, outputProperties, -1);
+    }
+    
+    /**
+     * @param eventCache The events to cache, copied into an exactly sized array
+     * @param outputProperties The output properties of the event reader
+     * @param estimatedSize Estimated size of the cached events in bytes, -1 if unknown
+     */
+    public CachedEventReader(List<E> eventCache, Map<String, String> outputProperties, long estimatedSize) {
+        final ArrayList<E> events;
+        if (eventCache instanceof ArrayList) {
+            events = (ArrayList<E>)eventCache;
+            events.trimToSize();
+        }
+        else {
+            events = new ArrayList<E>(eventCache);
+        }
+        
+        this.eventCache = Collections.unmodifiableList(events);
         this.outputProperties = Collections.unmodifiableMap(outputProperties);
+        this.estimatedSize = estimatedSize;
     }
 
     public List<E> getEventCache() {
@@ -45,4 +68,11 @@ class CachedEventReader<E> implements Serializable {
     public Map<String, String> getOutputProperties() {
         return this.outputProperties;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return Estimated size of the cached events in bytes, -1 if no estimate was made
+     */
+    public long getEstimatedSize() {
+        return this.estimatedSize;
+    }
+}
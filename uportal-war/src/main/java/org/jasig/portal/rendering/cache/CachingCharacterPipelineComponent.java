@@ -23,7 +23,9 @@ import java.util.ListIterator;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
 import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEvent;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 
 /**
@@ -34,6 +36,24 @@ import org.jasig.portal.rendering.CharacterPipelineComponent;
  */
 public class CachingCharacterPipelineComponent extends CachingPipelineComponent<CharacterEventReader, CharacterEvent> implements CharacterPipelineComponent {
     
+    @Override
+    protected long estimateEventSize(CharacterEvent event) {
+        if (event instanceof EncodedCharacterDataEvent) {
+            //byte[] object plus the encoded bytes
+            return 16 + ((EncodedCharacterDataEvent) event).getEncodedLength();
+        }
+        if (event instanceof CharacterDataEvent) {
+            final String data = ((CharacterDataEvent) event).getData();
+            if (data != null) {
+                //String object plus two bytes per char
+                return 40 + data.length() * 2;
+            }
+        }
+        
+        //Placeholder events only reference a shared portlet window id
+        return 0;
+    }
+
     @Override
     protected CharacterEventReader createEventReader(ListIterator<CharacterEvent> eventCache) {
         return new CharacterEventBufferReader(eventCache);
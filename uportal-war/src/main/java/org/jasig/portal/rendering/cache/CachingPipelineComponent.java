@@ -19,8 +19,8 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -49,11 +49,17 @@ import org.springframework.beans.factory.annotation.Autowired;
  * @version $Revision$
  */
 public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWrapper<R, E> implements BeanNameAware {
+    /**
+     * Approximate size of an event object header plus the reference to it in the event buffer
+     */
+    protected static final int EVENT_REFERENCE_SIZE = 24;
+    
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
     private ResourcesElementsProvider resourcesElementsProvider;
     private Ehcache cache;
     private String beanName;
+    private long maxCachedEventsSize = -1;
     
     @Autowired
     public void setResourcesElementsProvider(ResourcesElementsProvider resourcesElementsProvider) {
@@ -64,6 +70,14 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
         this.cache = cache;
     }
     
+    /**
+     * Maximum estimated size, in bytes, of the events for a single cache entry. Event buffers larger
+     * than this are returned to the caller but not cached. Defaults to -1 which disables the limit.
+     */
+    public void setMaxCachedEventsSize(long maxCachedEventsSize) {
+        this.maxCachedEventsSize = maxCachedEventsSize;
+    }
+
     @Override
     public void setBeanName(String name) {
         this.beanName = name;
@@ -99,19 +113,26 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
             logger.debug("{} - No cached events found for key {}, calling parent", this.beanName, cacheKey);
             final PipelineEventReader<R, E> pipelineEventReader = this.wrappedComponent.getEventReader(request, response);
 
-            //Copy the events from the reader into a buffer to be cached
-            final List<E> eventCache = new LinkedList<E>();
+            //Copy the events from the reader into an array backed buffer to be cached
+            final List<E> eventCache = new ArrayList<E>();
+            long estimatedSize = 0;
             for (final E event : pipelineEventReader) {
                 eventCache.add(event);
+                estimatedSize += EVENT_REFERENCE_SIZE + this.estimateEventSize(event);
             }
 
             final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties));
+            cachedEventReader = new CachedEventReader<E>(eventCache, new LinkedHashMap<String, String>(outputProperties), estimatedSize);
 
-            //Cache the buffer
-            element = new Element(cacheKey, cachedEventReader);
-            this.cache.put(element);
-            logger.debug("{} - Cached {} events for key {}", new Object[] {this.beanName, eventCache.size(), cacheKey});
+            //Cache the buffer if it isn't too big
+            if (this.maxCachedEventsSize < 0 || estimatedSize <= this.maxCachedEventsSize) {
+                element = new Element(cacheKey, cachedEventReader);
+                this.cache.put(element);
+                logger.debug("{} - Cached {} events (~{} bytes) for key {}", new Object[] {this.beanName, eventCache.size(), estimatedSize, cacheKey});
+            }
+            else {
+                logger.debug("{} - Not caching {} events for key {}, estimated size of {} bytes exceeds max of {} bytes", new Object[] {this.beanName, eventCache.size(), cacheKey, estimatedSize, this.maxCachedEventsSize});
+            }
         }
         else {
             logger.debug("{} - Founed  cached events for key {}", new Object[] {this.beanName, cacheKey});
@@ -124,6 +145,12 @@ public abstract class CachingPipelineComponent<R, E> extends PipelineComponentWr
         return new PipelineEventReaderImpl<R, E>(eventReader, outputProperties);
     }
     
+    /**
+     * Estimate the retained size in bytes of a single event, used to track the memory used by a
+     * cache entry. Does not need to be exact, only proportional to the actual heap usage.
+     */
+    protected abstract long estimateEventSize(E event);
+    
     //Ugly!!! Needed because XMLEventReader implements Iterator but does not parameterize it
     protected abstract R createEventReader(ListIterator<E> eventCache);
 }
@@ -19,9 +19,13 @@
 
 package org.jasig.portal.rendering.cache;
 
+import java.util.Iterator;
 import java.util.ListIterator;
 
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.Characters;
+import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jasig.portal.rendering.StAXPipelineComponent;
@@ -35,6 +39,39 @@ import org.jasig.portal.xml.stream.XMLEventBufferReader;
  */
 public class CachingStAXPipelineComponent extends CachingPipelineComponent<XMLEventReader, XMLEvent> implements StAXPipelineComponent {
 
+    @SuppressWarnings("unchecked")
+    @Override
+    protected long estimateEventSize(XMLEvent event) {
+        switch (event.getEventType()) {
+            case XMLEvent.CHARACTERS:
+            case XMLEvent.CDATA:
+            case XMLEvent.SPACE: {
+                final Characters characters = event.asCharacters();
+                return estimateStringSize(characters.getData());
+            }
+            case XMLEvent.START_ELEMENT: {
+                final StartElement startElement = event.asStartElement();
+                long size = 48; //QName, location and attribute/namespace collections
+                for (final Iterator<Attribute> attributes = startElement.getAttributes(); attributes.hasNext(); ) {
+                    final Attribute attribute = attributes.next();
+                    size += EVENT_REFERENCE_SIZE + estimateStringSize(attribute.getValue());
+                }
+                return size;
+            }
+            default: {
+                //QNames and other event state are generally shared with the parser
+                return 0;
+            }
+        }
+    }
+    
+    private static long estimateStringSize(String value) {
+        if (value == null) {
+            return 0;
+        }
+        return 40 + value.length() * 2;
+    }
+
     @Override
     protected XMLEventReader createEventReader(ListIterator<XMLEvent> eventCache) {
         return new XMLEventBufferReader(eventCache);
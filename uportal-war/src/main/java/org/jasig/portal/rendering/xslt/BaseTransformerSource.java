@@ -33,6 +33,7 @@ import org.jasig.portal.layout.om.IStylesheetDescriptor;
 import org.jasig.portal.user.IUserInstance;
 import org.jasig.portal.user.IUserInstanceManager;
 import org.jasig.portal.utils.cache.CacheKey;
+import org.jasig.portal.xml.TransformerPool;
 import org.jasig.portal.xml.XmlUtilities;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ResourceLoaderAware;
@@ -50,6 +51,7 @@ import org.springframework.core.io.ResourceLoader;
 public abstract class BaseTransformerSource implements TransformerSource, ResourceLoaderAware {
     private IUserInstanceManager userInstanceManager;
     private XmlUtilities xmlUtilities;
+    private TransformerPool transformerPool;
     private ResourceLoader resourceLoader;
     protected IStylesheetDescriptorDao stylesheetDescriptorDao;
     
@@ -68,6 +70,11 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
         this.xmlUtilities = xmlUtilities;
     }
 
+    @Autowired
+    public void setTransformerPool(TransformerPool transformerPool) {
+        this.transformerPool = transformerPool;
+    }
+
     @Override
     public void setResourceLoader(ResourceLoader resourceLoader) {
         this.resourceLoader = resourceLoader;
@@ -101,7 +108,7 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
     public final Transformer getTransformer(HttpServletRequest request, HttpServletResponse response) {
         final Resource stylesheetResource = this.getStylesheetResource(request);
         try {
-            return this.xmlUtilities.getTransformer(stylesheetResource);
+            return this.transformerPool.borrowTransformer(stylesheetResource);
         }
         catch (TransformerConfigurationException e) {
             throw new RuntimeException("Failed to get Transformer for stylesheet: " + stylesheetResource, e);
@@ -111,6 +118,14 @@ public abstract class BaseTransformerSource implements TransformerSource, Resour
         }
     }
     
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.xslt.TransformerSource#releaseTransformer(javax.xml.transform.Transformer)
+     */
+    @Override
+    public final void releaseTransformer(Transformer transformer) {
+        this.transformerPool.returnTransformer(transformer);
+    }
+    
     /**
      * Get the stylesheet description from the user preferences
      */
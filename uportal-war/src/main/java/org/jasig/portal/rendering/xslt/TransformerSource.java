@@ -35,6 +35,12 @@ public interface TransformerSource {
      */
     public Transformer getTransformer(HttpServletRequest request, HttpServletResponse response);
     
+    /**
+     * Hands back a Transformer from {@link #getTransformer(HttpServletRequest, HttpServletResponse)} once
+     * the caller is done with it, the Transformer must not be used after this call.
+     */
+    public void releaseTransformer(Transformer transformer);
+    
     /**
      * Gets the CacheKey for the Transformer
      */
@@ -19,13 +19,18 @@
 
 package org.jasig.portal.rendering.xslt;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.XMLEvent;
@@ -46,13 +51,18 @@ import org.jasig.portal.xml.ResourceLoaderURIResolver;
 import org.jasig.portal.xml.StaxUtils;
 import org.jasig.portal.xml.stream.XMLEventBufferReader;
 import org.jasig.portal.xml.stream.XMLEventBufferWriter;
+import org.jasig.portal.xml.stream.XMLEventPipe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.context.ResourceLoaderAware;
+import org.springframework.context.i18n.LocaleContext;
+import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.core.io.ResourceLoader;
 import org.springframework.util.xml.FixedXMLEventStreamReader;
 import org.springframework.util.xml.SimpleTransformErrorListener;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.helpers.LocatorImpl;
 
@@ -67,6 +77,12 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
     private ResourceLoaderURIResolver uriResolver;
     private TransformerSource transformerSource;
     private TransformerConfigurationSource xsltParameterSource;
+    private ExecutorService transformExecutor;
+    private boolean streaming = false;
+    private int streamingBatchSize = 128;
+    private int streamingQueueSize = 32;
+    private long streamingTimeout = TimeUnit.MINUTES.toMillis(5);
+    private long streamingWriteTimeout = TimeUnit.SECONDS.toMillis(10);
     
     private String beanName;
     
@@ -81,6 +97,55 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         this.transformerSource = transformerSource;
     }
     
+    /**
+     * Executor the transform runs on when {@link #setStreaming(boolean)} is enabled. If the executor
+     * rejects the transform it is run on the calling thread and buffered.
+     */
+    public void setTransformExecutor(ExecutorService transformExecutor) {
+        this.transformExecutor = transformExecutor;
+    }
+    
+    /**
+     * If true the transform runs on a thread from the transform executor and its output is handed
+     * to the caller while the transform is still running instead of being buffered in full. The
+     * input is still read completely on the calling thread before the transform starts so the
+     * wrapped components always run on the request thread. Defaults to false.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Number of output events handed to the caller at a time when streaming, defaults to 128
+     */
+    public void setStreamingBatchSize(int streamingBatchSize) {
+        this.streamingBatchSize = streamingBatchSize;
+    }
+
+    /**
+     * Number of output batches the transform can get ahead of the caller when streaming, defaults to 32
+     */
+    public void setStreamingQueueSize(int streamingQueueSize) {
+        this.streamingQueueSize = streamingQueueSize;
+    }
+
+    /**
+     * Milliseconds the caller waits for the transform to produce output before giving up. Defaults
+     * to 5 minutes.
+     */
+    public void setStreamingTimeout(long streamingTimeout) {
+        this.streamingTimeout = streamingTimeout;
+    }
+
+    /**
+     * Milliseconds the transform waits for the caller to read output once the queue is full before
+     * giving up and releasing its thread, defaults to 10 seconds. A caller that stops reading
+     * should close the reader, which ends the transform right away.
+     */
+    public void setStreamingWriteTimeout(long streamingWriteTimeout) {
+        this.streamingWriteTimeout = streamingWriteTimeout;
+    }
+
     @Override
     public void setBeanName(String name) {
         this.beanName = name;
@@ -100,6 +165,95 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         
         final Transformer transformer = this.transformerSource.getTransformer(request, response);
         
+        //The event reader from the previous component in the pipeline
+        XMLEventReader eventReader = pipelineEventReader.getEventReader();
+        
+        final String mediaType;
+        final XMLEventReader outputEventReader;
+        boolean released = false;
+        try {
+            this.configureTransformer(transformer, request, response);
+            mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
+            
+            XMLEventReader streamingEventReader = null;
+            if (this.streaming && this.transformExecutor != null) {
+                //Read the input here so the wrapped components never run on the transform thread
+                final List<XMLEvent> inputBuffer = this.bufferEvents(eventReader);
+                eventReader = new XMLEventBufferReader(inputBuffer.listIterator());
+                
+                streamingEventReader = this.startStreamingTransform(transformer, inputBuffer);
+            }
+            
+            if (streamingEventReader != null) {
+                //The transform thread releases the transformer
+                released = true;
+                outputEventReader = streamingEventReader;
+            }
+            else {
+                final XMLEventBufferWriter eventWriterBuffer = new XMLEventBufferWriter();
+                this.transform(transformer, eventReader, eventWriterBuffer);
+                
+                final List<XMLEvent> eventBuffer = eventWriterBuffer.getEventBuffer();
+                outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator()); 
+            }
+        }
+        finally {
+            if (!released) {
+                this.transformerSource.releaseTransformer(transformer);
+            }
+        }
+        
+        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
+        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
+        return pipelineEventReaderImpl;
+    }
+    
+    /**
+     * Run the transform on the transform executor, writing the output to an {@link XMLEventPipe}
+     * 
+     * @return The reader side of the pipe, null if the executor rejected the transform
+     */
+    protected XMLEventReader startStreamingTransform(final Transformer transformer, final List<XMLEvent> inputBuffer) {
+        final XMLEventPipe eventPipe = new XMLEventPipe(this.streamingBatchSize, this.streamingQueueSize, this.streamingTimeout, this.streamingWriteTimeout);
+        
+        //Copy the request thread context into the transform thread for code called from the stylesheet
+        final RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        final LocaleContext localeContext = LocaleContextHolder.getLocaleContext();
+        
+        try {
+            this.transformExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    RequestContextHolder.setRequestAttributes(requestAttributes);
+                    LocaleContextHolder.setLocaleContext(localeContext);
+                    try {
+                        transform(transformer, new XMLEventBufferReader(inputBuffer.listIterator()), eventPipe.getWriter());
+                        eventPipe.complete();
+                    }
+                    catch (Throwable t) {
+                        eventPipe.fail(t);
+                    }
+                    finally {
+                        RequestContextHolder.resetRequestAttributes();
+                        LocaleContextHolder.resetLocaleContext();
+                        transformerSource.releaseTransformer(transformer);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.logger.debug("{} - Transform executor is saturated, transforming on the request thread", this.beanName);
+            return null;
+        }
+        
+        return eventPipe.getReader();
+    }
+    
+    /**
+     * Setup the URIResolver, parameters, output properties and error listener on the transformer
+     */
+    protected void configureTransformer(Transformer transformer, HttpServletRequest request, HttpServletResponse response) {
         //Setup a URIResolver based on the current resource loader
         transformer.setURIResolver(this.uriResolver);
         
@@ -123,10 +277,15 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
                 transformer.setOutputProperties(outputProperties);
             }
         }
-
-        //The event reader from the previous component in the pipeline
-        final XMLEventReader eventReader = pipelineEventReader.getEventReader();
         
+        //Setup logging for the transform
+        transformer.setErrorListener(this.errorListener);
+    }
+    
+    /**
+     * Transform the events from the reader, writing the output events to the writer
+     */
+    protected void transform(Transformer transformer, XMLEventReader eventReader, XMLEventWriter eventWriter) {
         //Wrap the event reader in a stream reader to avoid a JDK bug
         final XMLStreamReader streamReader;
         try {
@@ -137,12 +296,8 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         }
         final Source xmlReaderSource = new StAXSource(streamReader);
         
-        //Setup logging for the transform
-        transformer.setErrorListener(this.errorListener);
-
         //Transform to a SAX ContentHandler to avoid JDK bug: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6775588
-        final XMLEventBufferWriter eventWriterBuffer = new XMLEventBufferWriter();
-        final ContentHandler contentHandler = StaxUtils.createLexicalContentHandler(eventWriterBuffer);
+        final ContentHandler contentHandler = StaxUtils.createLexicalContentHandler(eventWriter);
         contentHandler.setDocumentLocator(new LocatorImpl());
         
         final SAXResult outputTarget = new SAXResult(contentHandler);
@@ -154,16 +309,19 @@ public class XSLTComponent extends StAXPipelineComponentWrapper implements BeanN
         catch (TransformerException e) {
             throw new RuntimeException("Failed to transform document", e);
         }
-        
-        final String mediaType = transformer.getOutputProperty(OutputKeys.MEDIA_TYPE);
-        
-        final List<XMLEvent> eventBuffer = eventWriterBuffer.getEventBuffer();
-        final XMLEventReader outputEventReader = new XMLEventBufferReader(eventBuffer.listIterator()); 
-        
-        final Map<String, String> outputProperties = pipelineEventReader.getOutputProperties();
-        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> pipelineEventReaderImpl = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(outputEventReader, outputProperties);
-        pipelineEventReaderImpl.setOutputProperty(OutputKeys.MEDIA_TYPE, mediaType);
-        return pipelineEventReaderImpl;
+    }
+    
+    private List<XMLEvent> bufferEvents(XMLEventReader eventReader) {
+        final List<XMLEvent> eventBuffer = new ArrayList<XMLEvent>();
+        try {
+            while (eventReader.hasNext()) {
+                eventBuffer.add(eventReader.nextEvent());
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to read XML events to transform", e);
+        }
+        return eventBuffer;
     }
 
     @Override
@@ -30,6 +30,7 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 import javax.annotation.Resource;
@@ -191,9 +192,15 @@ public class StatsLayoutModificationsController implements InitializingBean {
         EntityIdentifier ei = user.getEntityIdentifier();
         IAuthorizationPrincipal ap = AuthorizationService.instance().newPrincipal(ei.getKey(), ei.getType());
 
+        List<String> channelPublishIds = new ArrayList<String>(completeList.size());
+        for (CountingTuple tuple : completeList) {
+            channelPublishIds.add(String.valueOf(tuple.getId()));
+        }
+        Set<String> subscribable = ap.getSubscribableChannels(channelPublishIds);
+
         List<CountingTuple> rslt = new ArrayList<CountingTuple>();
         for (CountingTuple tuple : completeList) {
-            if (ap.canSubscribe(String.valueOf(tuple.getId()))) {
+            if (subscribable.contains(String.valueOf(tuple.getId()))) {
                 rslt.add(tuple);
             }
         }
@@ -19,6 +19,8 @@
 
 package org.jasig.portal.security;
 
+import java.util.Collection;
+import java.util.Set;
 import java.util.Vector;
 
 import org.jasig.portal.AuthorizationException;
@@ -86,6 +88,26 @@ public interface IAuthorizationService
  */
     public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String channelPublishId)
     throws AuthorizationException;
+/**
+ * Answers which of the portlets the principal has permission to render.  Equivalent to
+ * calling {@link #canPrincipalRender(IAuthorizationPrincipal, String)} for each portlet.
+ * @return Set of the portlet definition ids that may be rendered
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds Collection of portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+    public Set<String> getPortletsPrincipalCanRender(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+    throws AuthorizationException;
+/**
+ * Answers which of the portlets the principal has permission to subscribe to.  Equivalent to
+ * calling {@link #canPrincipalSubscribe(IAuthorizationPrincipal, String)} for each portlet.
+ * @return Set of the portlet definition ids that may be subscribed to
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds Collection of portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+    public Set<String> getPortletsPrincipalCanSubscribe(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+    throws AuthorizationException;
 /**
  * Answers if the owner has given the principal permission to perform the activity on
  * the target.  Params <code>owner</code> and <code>activity</code> must be non-null.
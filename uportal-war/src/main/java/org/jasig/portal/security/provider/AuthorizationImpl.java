@@ -21,9 +21,15 @@ package org.jasig.portal.security.provider;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -376,30 +382,210 @@ public boolean canPrincipalSubscribe(IAuthorizationPrincipal principal, String p
     if (portlet == null){
     	return false;
     }    
+    String permission = getSubscribeActivity(portlet, portletDefinitionId);
+
+    // test the appropriate permission
+    return doesPrincipalHavePermission(principal, owner, permission, target);
+
+}
+
+/**
+ * Answers which of the portlets the principal has permission to RENDER.  This
+ * implementation currently delegates to the SUBSCRIBE permission.
+ *
+ * @return the portlet definition ids the principal can render
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds the portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+public Set<String> getPortletsPrincipalCanRender(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+throws AuthorizationException
+{
+    return getPortletsPrincipalCanSubscribe(principal, portletDefinitionIds);
+}
+
+/**
+ * Answers which of the portlets the principal has permission to SUBSCRIBE to.  The
+ * result is the same as calling {@link #canPrincipalSubscribe(IAuthorizationPrincipal, String)}
+ * for each portlet but the principal's groups and permissions are only resolved once.
+ *
+ * @return the portlet definition ids the principal can subscribe to
+ * @param principal IAuthorizationPrincipal
+ * @param portletDefinitionIds the portlet definition ids to check
+ * @exception AuthorizationException indicates authorization information could not be retrieved.
+ */
+public Set<String> getPortletsPrincipalCanSubscribe(IAuthorizationPrincipal principal, Collection<String> portletDefinitionIds)
+throws AuthorizationException
+{
+    String owner = IPermission.PORTAL_SUBSCRIBE;
+
+    Map<String, String> targetActivities = new LinkedHashMap<String, String>();
+    for (String portletDefinitionId : portletDefinitionIds) {
+        IPortletDefinition portlet = this.portletDefinitionRegistry.getPortletDefinition(portletDefinitionId);
+        if (portlet != null) {
+            String target = IPermission.PORTLET_PREFIX + portletDefinitionId;
+            targetActivities.put(target, getSubscribeActivity(portlet, portletDefinitionId));
+        }
+    }
+
+    Set<String> permittedTargets = getPermittedTargets(principal, owner, targetActivities);
+
+    Set<String> permittedPortlets = new LinkedHashSet<String>(permittedTargets.size());
+    for (String target : permittedTargets) {
+        permittedPortlets.add(target.substring(IPermission.PORTLET_PREFIX.length()));
+    }
+    return permittedPortlets;
+}
+
+/**
+ * Each channel lifecycle state has its own subscribe permission, returns the
+ * activity to check for the portlet's current lifecycle state.
+ */
+private String getSubscribeActivity(IPortletDefinition portlet, String portletDefinitionId)
+{
     PortletLifecycleState state = portlet.getLifecycleState();
-    
-    /*
-     * Each channel lifecycle state now has its own subscribe permission.  The
-     * following logic checks the appropriate permission for the lifecycle.
-     */
-    String permission;
     if (state.equals(PortletLifecycleState.PUBLISHED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.APPROVED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.CREATED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_CREATED_ACTIVITY;
     } else if (state.equals(PortletLifecycleState.EXPIRED)) {
-    	permission = IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
+    	return IPermission.PORTLET_SUBSCRIBER_EXPIRED_ACTIVITY;
     } else {
 			throw new AuthorizationException(
 					"Unrecognized lifecycle state for channel "
 							+ portletDefinitionId);
     }
+}
 
-    // test the appropriate permission
-    return doesPrincipalHavePermission(principal, owner, permission, target);
+/**
+ * Returns the targets, from the keys of <code>targetActivities</code>, that the owner has
+ * given the principal (or any of its parents) permission to perform the mapped activity on.
+ * The principal's permissions and those of its containing groups are resolved once and
+ * indexed by activity and target so each target only needs a few map lookups.  Policies
+ * other than {@link DefaultPermissionPolicy} are checked one target at a time.
+ *
+ * @return Set of permitted targets
+ * @param principal IAuthorizationPrincipal
+ * @param owner java.lang.String
+ * @param targetActivities Map of target to the activity to check for it
+ * @exception AuthorizationException indicates authorization information could not
+ * be retrieved.
+ */
+private Set<String> getPermittedTargets(IAuthorizationPrincipal principal, String owner, Map<String, String> targetActivities)
+throws AuthorizationException
+{
+    Set<String> permittedTargets = new LinkedHashSet<String>();
+    if ( targetActivities.isEmpty() )
+        { return permittedTargets; }
 
+    IPermissionPolicy policy = getDefaultPermissionPolicy();
+    if ( policy.getClass() != DefaultPermissionPolicy.class )
+    {
+        for (Map.Entry<String, String> targetActivity : targetActivities.entrySet()) {
+            if (doesPrincipalHavePermission(principal, owner, targetActivity.getValue(), targetActivity.getKey(), policy)) {
+                permittedTargets.add(targetActivity.getKey());
+            }
+        }
+        return permittedTargets;
+    }
+
+    Set<String> activities = new HashSet<String>(targetActivities.values());
+    Map<String, Map<String, List<IPermission>>> principalIndex =
+        indexPermissions(primGetPermissionsForPrincipal(principal), owner, activities);
+
+    // Index the inherited permissions lazily, in the order DefaultPermissionPolicy checks them
+    List<Map<String, Map<String, List<IPermission>>>> inheritedIndexes = null;
+
+    for (Map.Entry<String, String> targetActivity : targetActivities.entrySet()) {
+        String target = targetActivity.getKey();
+        String activity = targetActivity.getValue();
+        Set<String> targetGroups = getTargetContainingGroups(target);
+
+        List<IPermission> perms = findIndexedPermissions(principalIndex, activity, target, targetGroups);
+        boolean hasPermission;
+        if ( perms.size() == 1 )
+            { hasPermission = DefaultPermissionPolicy.permissionIsGranted(perms.get(0)); }
+        else if ( perms.size() > 1 )
+            { throw new AuthorizationException("Duplicate permissions for: " + perms.get(0)); }
+        else
+        {
+            if ( inheritedIndexes == null )
+            {
+                inheritedIndexes = new ArrayList<Map<String, Map<String, List<IPermission>>>>();
+                for (Iterator i = getInheritedPrincipals(principal); i.hasNext(); )
+                {
+                    IAuthorizationPrincipal prn = (IAuthorizationPrincipal) i.next();
+                    inheritedIndexes.add(indexPermissions(primGetPermissionsForPrincipal(prn), owner, activities));
+                }
+            }
+
+            hasPermission = false;
+            for (Iterator<Map<String, Map<String, List<IPermission>>>> i = inheritedIndexes.iterator(); i.hasNext() && ! hasPermission; )
+            {
+                perms = findIndexedPermissions(i.next(), activity, target, targetGroups);
+                if ( perms.size() == 1 )
+                    { hasPermission = DefaultPermissionPolicy.permissionIsGranted(perms.get(0)); }
+                else if ( perms.size() > 1 )
+                    { throw new AuthorizationException("Duplicate permissions for: " + perms.get(0)); }
+            }
+        }
+
+        if ( hasPermission )
+            { permittedTargets.add(target); }
+    }
+
+    return permittedTargets;
+}
+
+/**
+ * Groups the permissions for the owner and activities by activity and then target.
+ */
+private Map<String, Map<String, List<IPermission>>> indexPermissions(IPermission[] perms, String owner, Set<String> activities)
+{
+    Map<String, Map<String, List<IPermission>>> index = new HashMap<String, Map<String, List<IPermission>>>();
+    for ( int i=0; i<perms.length; i++ ) {
+        String activity = perms[i].getActivity();
+        if ( owner.equals(perms[i].getOwner()) && activities.contains(activity) ) {
+            Map<String, List<IPermission>> targetPermissions = index.get(activity);
+            if ( targetPermissions == null ) {
+                targetPermissions = new HashMap<String, List<IPermission>>();
+                index.put(activity, targetPermissions);
+            }
+            List<IPermission> permissions = targetPermissions.get(perms[i].getTarget());
+            if ( permissions == null ) {
+                permissions = new ArrayList<IPermission>(1);
+                targetPermissions.put(perms[i].getTarget(), permissions);
+            }
+            permissions.add(perms[i]);
+        }
+    }
+    return index;
+}
+
+/**
+ * Returns the indexed permissions for the activity on the target or any of the groups containing it.
+ */
+private List<IPermission> findIndexedPermissions(Map<String, Map<String, List<IPermission>>> index,
+        String activity, String target, Set<String> targetGroups)
+{
+    Map<String, List<IPermission>> targetPermissions = index.get(activity);
+    if ( targetPermissions == null )
+        { return Collections.emptyList(); }
+
+    List<IPermission> perms = new ArrayList<IPermission>(1);
+    List<IPermission> targetPerms = targetPermissions.get(target);
+    if ( targetPerms != null )
+        { perms.addAll(targetPerms); }
+    if ( ! targetGroups.isEmpty() )
+    {
+        for (Map.Entry<String, List<IPermission>> entry : targetPermissions.entrySet()) {
+            if ( targetGroups.contains(entry.getKey()) )
+                { perms.addAll(entry.getValue()); }
+        }
+    }
+    return perms;
 }
 
 /**
@@ -581,7 +767,7 @@ throws GroupsException
 private Iterator getGroupsForPrincipal(IAuthorizationPrincipal principal)
 throws GroupsException
 {
-    IGroupMember gm = getGroupMemberForPrincipal(principal);
+    IGroupMember gm = getGroupMember(principal);
     return gm.getAllContainingGroups();
 }
 
@@ -894,33 +1080,7 @@ throws AuthorizationException
 	Set<String> containingGroups;
 	
 	if (target != null) {
-		
-        final Element element = this.entityParentsCache.get(target);
-        if (element != null) {
-            containingGroups = (Set<String>) element.getObjectValue();
-        }
-        else {
-        	containingGroups = new HashSet<String>();
-        	IGroupMember targetEntity = GroupService.findGroup(target);
-    		if (targetEntity == null) {
-    			if (target.startsWith(IPermission.PORTLET_PREFIX)) {
-    				targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
-    			} else {
-    				targetEntity = GroupService.getGroupMember(target, IPerson.class);
-    			}
-    		}
-    		
-    		if (targetEntity != null) {
-    			for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
-    				containingGroups.add(((IEntityGroup)containing.next()).getKey());
-    			}
-    		}
-    		
-    		this.entityParentsCache.put(new Element(target, containingGroups));
-        	
-        }
-
-		
+		containingGroups = getTargetContainingGroups(target);
 	} else {
 		containingGroups = new HashSet<String>();
 	}
@@ -964,6 +1124,39 @@ throws AuthorizationException
 
 }
 
+/**
+ * Returns the keys of all groups that contain the target, cached in the entity parents cache.
+ * @return Set of group keys
+ * @param target String
+ */
+private Set<String> getTargetContainingGroups(String target)
+throws AuthorizationException
+{
+    final Element element = this.entityParentsCache.get(target);
+    if (element != null) {
+        return (Set<String>) element.getObjectValue();
+    }
+
+    Set<String> containingGroups = new HashSet<String>();
+    IGroupMember targetEntity = GroupService.findGroup(target);
+    if (targetEntity == null) {
+        if (target.startsWith(IPermission.PORTLET_PREFIX)) {
+            targetEntity = GroupService.getGroupMember(target.replace(IPermission.PORTLET_PREFIX, ""), IPortletDefinition.class);
+        } else {
+            targetEntity = GroupService.getGroupMember(target, IPerson.class);
+        }
+    }
+
+    if (targetEntity != null) {
+        for (Iterator containing = targetEntity.getAllContainingGroups(); containing.hasNext();) {
+            containingGroups.add(((IEntityGroup)containing.next()).getKey());
+        }
+    }
+
+    this.entityParentsCache.put(new Element(target, containingGroups));
+    return containingGroups;
+}
+
 /**
  * @return IPermission[]
  * @param owner String
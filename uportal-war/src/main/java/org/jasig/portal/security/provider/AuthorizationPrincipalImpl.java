@@ -19,6 +19,9 @@
 
 package org.jasig.portal.security.provider;
 
+import java.util.Collection;
+import java.util.Set;
+
 import org.jasig.portal.AuthorizationException;
 import org.jasig.portal.portlet.om.PortletLifecycleState;
 import org.jasig.portal.security.IAuthorizationPrincipal;
@@ -92,6 +95,24 @@ public boolean canRender(String channelPublishId) throws org.jasig.portal.Author
 public boolean canSubscribe(String channelPublishId) throws org.jasig.portal.AuthorizationException {
     return getAuthorizationService().canPrincipalSubscribe(this, channelPublishId);
 }
+/**
+ * Answers which of the channels this <code>IAuthorizationPrincipal</code> has permission to render.
+ * @return Set of the channel publish ids that may be rendered
+ * @param  channelPublishIds Collection - the Channel publish IDs
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+public Set<String> getRenderableChannels(Collection<String> channelPublishIds) throws org.jasig.portal.AuthorizationException {
+    return getAuthorizationService().getPortletsPrincipalCanRender(this, channelPublishIds);
+}
+/**
+ * Answers which of the channels this <code>IAuthorizationPrincipal</code> has permission to subscribe to.
+ * @return Set of the channel publish ids that may be subscribed to
+ * @param  channelPublishIds Collection - the Channel publish IDs
+ * @exception AuthorizationException thrown when authorization information could not be retrieved.
+ */
+public Set<String> getSubscribableChannels(Collection<String> channelPublishIds) throws org.jasig.portal.AuthorizationException {
+    return getAuthorizationService().getPortletsPrincipalCanSubscribe(this, channelPublishIds);
+}
 @Override
 public boolean equals(Object obj) {
     if (this == obj)
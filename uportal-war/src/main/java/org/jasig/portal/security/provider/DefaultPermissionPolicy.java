@@ -98,7 +98,7 @@ throws org.jasig.portal.AuthorizationException
  * @return boolean
  * @param p org.jasig.portal.security.IPermission
  */
-private boolean permissionIsGranted(IPermission p)
+static boolean permissionIsGranted(IPermission p)
 {
     Date now = new Date();
     return
@@ -0,0 +1,698 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jasig.portal.AuthorizationException;
+import org.jasig.portal.RDBMServices;
+import org.jasig.portal.security.IPermission;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * {@link RDBMPermissionImpl} that keeps the whole UP_PERMISSION table in memory, indexed
+ * by owner, principal, activity and target, so {@link #select(String, String, String, String, String)}
+ * never queries the database once the permissions are loaded.
+ * <p>
+ * Every add, update and delete records the changed permission keys in the UP_PERMISSION_CHANGE
+ * table. {@link #pollPermissionChanges()} is called on a short fixed delay and reloads just the
+ * permissions that other servers have changed since the last poll. A server that has not been
+ * able to poll for longer than the change retention reloads all permissions.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class IndexedPermissionStore extends RDBMPermissionImpl {
+    private static final String CHANGE_TABLE = "UP_PERMISSION_CHANGE";
+    
+    private static final String INSERT_CHANGE_SQL = 
+            "INSERT INTO " + CHANGE_TABLE + " (OWNER, PRINCIPAL_TYPE, PRINCIPAL_KEY, ACTIVITY, TARGET, CHANGE_TIME) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_CHANGES_SQL = 
+            "SELECT OWNER, PRINCIPAL_TYPE, PRINCIPAL_KEY, ACTIVITY, TARGET, CHANGE_TIME FROM " + CHANGE_TABLE + " WHERE CHANGE_TIME > ?";
+    private static final String DELETE_CHANGES_SQL = 
+            "DELETE FROM " + CHANGE_TABLE + " WHERE CHANGE_TIME < ?";
+    
+    protected final Log logger = LogFactory.getLog(getClass());
+    
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    
+    /**
+     * Serializes loading all permissions with reloading the permissions for a single key, so
+     * permissions read from the database before a concurrent load or reload are never published
+     * over the newer ones.
+     */
+    private final Lock updateLock = new ReentrantLock();
+    
+    /**
+     * The most recent change time applied for each permission key, used to skip changes
+     * already applied in the overlapping part of the poll window.
+     */
+    private final ConcurrentMap<PermissionKey, Long> appliedChanges = new ConcurrentHashMap<PermissionKey, Long>();
+    
+    private volatile PermissionIndex index;
+    private volatile long lastPoll;
+    
+    private long pollOverlap = 30000;
+    private long changeRetention = 3600000;
+    
+    /**
+     * How far back, in milliseconds, each poll for changes looks beyond the previous poll. Covers
+     * clock differences between the servers writing the change log.
+     */
+    @Value("${org.jasig.portal.security.provider.IndexedPermissionStore.pollOverlap:30000}")
+    public void setPollOverlap(long pollOverlap) {
+        this.pollOverlap = pollOverlap;
+    }
+
+    /**
+     * How long, in milliseconds, change log rows are kept. Must be larger than the poll overlap.
+     */
+    @Value("${org.jasig.portal.security.provider.IndexedPermissionStore.changeRetention:3600000}")
+    public void setChangeRetention(long changeRetention) {
+        this.changeRetention = changeRetention;
+    }
+    
+    @Override
+    public void add(IPermission[] perms) throws AuthorizationException {
+        super.add(perms);
+        this.recordChanges(perms);
+    }
+
+    @Override
+    public void add(IPermission perm) throws AuthorizationException {
+        super.add(perm);
+        this.recordChanges(new IPermission[] { perm });
+    }
+
+    @Override
+    public void delete(IPermission[] perms) throws AuthorizationException {
+        super.delete(perms);
+        this.recordChanges(perms);
+    }
+
+    @Override
+    public void delete(IPermission perm) throws AuthorizationException {
+        super.delete(perm);
+        this.recordChanges(new IPermission[] { perm });
+    }
+
+    @Override
+    public void update(IPermission[] perms) throws AuthorizationException {
+        super.update(perms);
+        this.recordChanges(perms);
+    }
+
+    @Override
+    public void update(IPermission perm) throws AuthorizationException {
+        super.update(perm);
+        this.recordChanges(new IPermission[] { perm });
+    }
+
+    /**
+     * Select the Permissions from the in-memory index, null arguments match all values.
+     */
+    @Override
+    public IPermission[] select(String owner, String principal, String activity, String target, String type)
+            throws AuthorizationException {
+        
+        final PermissionIndex permissionIndex = this.getPermissionIndex();
+        
+        final List<IPermission> perms = new ArrayList<IPermission>();
+        final Lock readLock = this.indexLock.readLock();
+        readLock.lock();
+        try {
+            final String principalString = principal != null ? this.normalizePrincipal(principal) : null;
+            
+            final Set<PermissionKey> candidates = permissionIndex.getCandidates(owner, principalString, activity, target);
+            for (final PermissionKey key : candidates) {
+                if (key.matches(owner, principalString, activity, target)) {
+                    for (final IPermission perm : permissionIndex.getPermissions(key)) {
+                        if (type == null || type.equals(perm.getType())) {
+                            perms.add(this.copyPermission(perm));
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+        
+        if (this.logger.isTraceEnabled()) {
+            this.logger.trace("IndexedPermissionStore.select(): owner=[" + owner + "] and principal=[" 
+                    + principal + "] and activity=[" + activity + "] and target=[" + target + "] and type=[" + type + "] returned permissions [" + perms + "]");
+        }
+        
+        return perms.toArray(new IPermission[perms.size()]);
+    }
+    
+    /**
+     * Reload the permissions changed by other servers since the last poll. Does nothing until
+     * the permissions have first been loaded.
+     */
+    public void pollPermissionChanges() {
+        if (this.index == null) {
+            return;
+        }
+        
+        final long pollStart = System.currentTimeMillis();
+        if (pollStart - this.lastPoll > this.changeRetention) {
+            this.logger.warn("Permission changes have not been polled for " + (pollStart - this.lastPoll) 
+                    + "ms which is longer than the change retention of " + this.changeRetention + "ms, reloading all permissions");
+            this.loadPermissions();
+            return;
+        }
+        
+        final long since = this.lastPoll - this.pollOverlap;
+        final Map<PermissionKey, Long> changes;
+        try {
+            changes = this.selectChanges(since);
+        }
+        catch (SQLException e) {
+            this.logger.error("Failed to poll " + CHANGE_TABLE + " for permission changes", e);
+            return;
+        }
+        
+        int applied = 0;
+        for (final Map.Entry<PermissionKey, Long> changeEntry : changes.entrySet()) {
+            final PermissionKey key = changeEntry.getKey();
+            final Long changeTime = changeEntry.getValue();
+            
+            final Long appliedTime = this.appliedChanges.get(key);
+            if (appliedTime == null || appliedTime < changeTime) {
+                this.refreshPermissions(key, changeTime);
+                applied++;
+            }
+        }
+        
+        for (final Iterator<Long> appliedTimeItr = this.appliedChanges.values().iterator(); appliedTimeItr.hasNext(); ) {
+            if (appliedTimeItr.next() <= since) {
+                appliedTimeItr.remove();
+            }
+        }
+        
+        try {
+            this.deleteChanges(pollStart - this.changeRetention);
+        }
+        catch (SQLException e) {
+            this.logger.warn("Failed to purge old rows from " + CHANGE_TABLE, e);
+        }
+        
+        this.lastPoll = pollStart;
+        
+        if (applied > 0) {
+            this.logger.debug("Applied " + applied + " permission changes from " + CHANGE_TABLE);
+        }
+    }
+    
+    /**
+     * @return The loaded index, loading all permissions if this is the first call
+     */
+    protected PermissionIndex getPermissionIndex() {
+        PermissionIndex permissionIndex = this.index;
+        if (permissionIndex != null) {
+            return permissionIndex;
+        }
+        
+        this.updateLock.lock();
+        try {
+            permissionIndex = this.index;
+            if (permissionIndex == null) {
+                permissionIndex = this.loadPermissions();
+            }
+            return permissionIndex;
+        }
+        finally {
+            this.updateLock.unlock();
+        }
+    }
+    
+    /**
+     * Load all permissions into a new index and replace the current index with it
+     */
+    protected PermissionIndex loadPermissions() throws AuthorizationException {
+        this.updateLock.lock();
+        try {
+            final long loadStart = System.currentTimeMillis();
+            
+            final Map<PermissionKey, List<IPermission>> permissions = new HashMap<PermissionKey, List<IPermission>>();
+            for (final IPermission perm : this.selectAllPermissions()) {
+                final PermissionKey key = this.getPermissionKey(perm);
+                List<IPermission> keyPermissions = permissions.get(key);
+                if (keyPermissions == null) {
+                    keyPermissions = new ArrayList<IPermission>(1);
+                    permissions.put(key, keyPermissions);
+                }
+                keyPermissions.add(perm);
+            }
+            
+            final PermissionIndex permissionIndex = new PermissionIndex();
+            for (final Map.Entry<PermissionKey, List<IPermission>> permissionsEntry : permissions.entrySet()) {
+                final List<IPermission> keyPermissions = permissionsEntry.getValue();
+                permissionIndex.put(permissionsEntry.getKey(), keyPermissions.toArray(new IPermission[keyPermissions.size()]));
+            }
+            
+            final Lock writeLock = this.indexLock.writeLock();
+            writeLock.lock();
+            try {
+                this.index = permissionIndex;
+                this.lastPoll = loadStart;
+                
+                //Changes applied to the replaced index may not be in the loaded one, let the next poll apply them again
+                this.appliedChanges.clear();
+            }
+            finally {
+                writeLock.unlock();
+            }
+            
+            this.logger.info("Loaded " + permissions.size() + " permission keys in " + (System.currentTimeMillis() - loadStart) + "ms");
+            
+            return permissionIndex;
+        }
+        finally {
+            this.updateLock.unlock();
+        }
+    }
+    
+    /**
+     * @return All permissions in the database
+     */
+    protected List<IPermission> selectAllPermissions() throws AuthorizationException {
+        final List<IPermission> permissions = new ArrayList<IPermission>();
+        
+        final Connection conn = RDBMServices.getConnection();
+        try {
+            final PreparedStatement ps = conn.prepareStatement(getSelectPermissionSql());
+            try {
+                final ResultSet rs = ps.executeQuery();
+                try {
+                    while (rs.next()) {
+                        permissions.add(this.instanceFromResultSet(rs));
+                    }
+                }
+                finally {
+                    rs.close();
+                }
+            }
+            finally {
+                ps.close();
+            }
+        }
+        catch (SQLException e) {
+            throw new AuthorizationException("Failed to load all permissions", e);
+        }
+        finally {
+            RDBMServices.releaseConnection(conn);
+        }
+        
+        return permissions;
+    }
+    
+    /**
+     * Record the permissions as changed in the change log and reload them locally.
+     */
+    protected void recordChanges(IPermission[] perms) {
+        final Set<PermissionKey> keys = new LinkedHashSet<PermissionKey>();
+        for (final IPermission perm : perms) {
+            keys.add(this.getPermissionKey(perm));
+        }
+        
+        final long changeTime = System.currentTimeMillis();
+        try {
+            this.insertChanges(keys, changeTime);
+        }
+        catch (SQLException e) {
+            this.logger.error("Failed to record permission changes in " + CHANGE_TABLE + ", other servers will not see the changes to " + keys + " until they reload all permissions", e);
+        }
+        
+        //A load in progress may have read the permissions before they changed, wait for it
+        this.updateLock.lock();
+        try {
+            if (this.index != null) {
+                for (final PermissionKey key : keys) {
+                    this.refreshPermissions(key, changeTime);
+                }
+            }
+        }
+        finally {
+            this.updateLock.unlock();
+        }
+    }
+    
+    /**
+     * Reload all permissions for the key from the database, update the index and remember the
+     * change time as applied
+     */
+    protected void refreshPermissions(PermissionKey key, long changeTime) {
+        this.updateLock.lock();
+        try {
+            final IPermission[] perms = this.selectPermissions(key);
+            
+            final Lock writeLock = this.indexLock.writeLock();
+            writeLock.lock();
+            try {
+                final PermissionIndex permissionIndex = this.index;
+                if (perms.length == 0) {
+                    permissionIndex.remove(key);
+                }
+                else {
+                    permissionIndex.put(key, perms);
+                }
+            }
+            finally {
+                writeLock.unlock();
+            }
+            
+            this.appliedChanges.put(key, changeTime);
+        }
+        finally {
+            this.updateLock.unlock();
+        }
+    }
+    
+    /**
+     * @return The permissions for the key from the database
+     */
+    protected IPermission[] selectPermissions(PermissionKey key) throws AuthorizationException {
+        return super.select(key.owner, key.principal, key.activity, key.target, null);
+    }
+    
+    protected void insertChanges(Set<PermissionKey> keys, long changeTime) throws SQLException {
+        final Connection conn = RDBMServices.getConnection();
+        try {
+            final PreparedStatement ps = conn.prepareStatement(INSERT_CHANGE_SQL);
+            try {
+                final Timestamp changeTimestamp = new Timestamp(changeTime);
+                for (final PermissionKey key : keys) {
+                    ps.clearParameters();
+                    ps.setString(1, key.owner);
+                    ps.setInt(2, this.getPrincipalType(key.principal));
+                    ps.setString(3, this.getPrincipalKey(key.principal));
+                    ps.setString(4, key.activity);
+                    ps.setString(5, key.target);
+                    ps.setTimestamp(6, changeTimestamp);
+                    ps.executeUpdate();
+                }
+            }
+            finally {
+                ps.close();
+            }
+        }
+        finally {
+            RDBMServices.releaseConnection(conn);
+        }
+    }
+    
+    /**
+     * @return The latest change time for each permission key changed after the specified time
+     */
+    protected Map<PermissionKey, Long> selectChanges(long since) throws SQLException {
+        final Map<PermissionKey, Long> changes = new HashMap<PermissionKey, Long>();
+        
+        final Connection conn = RDBMServices.getConnection();
+        try {
+            final PreparedStatement ps = conn.prepareStatement(SELECT_CHANGES_SQL);
+            try {
+                ps.setTimestamp(1, new Timestamp(since));
+                final ResultSet rs = ps.executeQuery();
+                try {
+                    while (rs.next()) {
+                        final PermissionKey key = new PermissionKey(
+                                rs.getString("OWNER"), 
+                                rs.getInt("PRINCIPAL_TYPE") + PRINCIPAL_SEPARATOR + rs.getString("PRINCIPAL_KEY"), 
+                                rs.getString("ACTIVITY"), 
+                                rs.getString("TARGET"));
+                        final long changeTime = rs.getTimestamp("CHANGE_TIME").getTime();
+                        
+                        final Long previousTime = changes.get(key);
+                        if (previousTime == null || previousTime < changeTime) {
+                            changes.put(key, changeTime);
+                        }
+                    }
+                }
+                finally {
+                    rs.close();
+                }
+            }
+            finally {
+                ps.close();
+            }
+        }
+        finally {
+            RDBMServices.releaseConnection(conn);
+        }
+        
+        return changes;
+    }
+    
+    protected void deleteChanges(long before) throws SQLException {
+        final Connection conn = RDBMServices.getConnection();
+        try {
+            final PreparedStatement ps = conn.prepareStatement(DELETE_CHANGES_SQL);
+            try {
+                ps.setTimestamp(1, new Timestamp(before));
+                ps.executeUpdate();
+            }
+            finally {
+                ps.close();
+            }
+        }
+        finally {
+            RDBMServices.releaseConnection(conn);
+        }
+    }
+    
+    protected PermissionKey getPermissionKey(IPermission perm) {
+        return new PermissionKey(perm.getOwner(), this.normalizePrincipal(perm.getPrincipal()), perm.getActivity(), perm.getTarget());
+    }
+    
+    /**
+     * Principals are stored as a numeric type and a key, normalize the principal string the
+     * same way the database does when matching it.
+     */
+    protected String normalizePrincipal(String principal) {
+        return this.getPrincipalType(principal) + PRINCIPAL_SEPARATOR + this.getPrincipalKey(principal);
+    }
+    
+    /**
+     * Callers are free to modify the returned permissions, hand out copies of the indexed instances.
+     */
+    protected IPermission copyPermission(IPermission perm) {
+        final IPermission copy = this.newInstance(perm.getOwner());
+        copy.setPrincipal(perm.getPrincipal());
+        copy.setActivity(perm.getActivity());
+        copy.setTarget(perm.getTarget());
+        copy.setType(perm.getType());
+        if (perm.getEffective() != null) {
+            copy.setEffective(new Date(perm.getEffective().getTime()));
+        }
+        if (perm.getExpires() != null) {
+            copy.setExpires(new Date(perm.getExpires().getTime()));
+        }
+        return copy;
+    }
+    
+    /**
+     * Identifies the permission rows that share an owner, principal, activity and target. The
+     * low cardinality values are interned so the index does not hold a copy per row.
+     */
+    protected static final class PermissionKey {
+        private final String owner;
+        private final String principal;
+        private final String activity;
+        private final String target;
+        private final int hash;
+        
+        public PermissionKey(String owner, String principal, String activity, String target) {
+            this.owner = owner != null ? owner.intern() : null;
+            this.principal = principal;
+            this.activity = activity != null ? activity.intern() : null;
+            this.target = target;
+            
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((this.activity == null) ? 0 : this.activity.hashCode());
+            result = prime * result + ((this.owner == null) ? 0 : this.owner.hashCode());
+            result = prime * result + ((this.principal == null) ? 0 : this.principal.hashCode());
+            result = prime * result + ((this.target == null) ? 0 : this.target.hashCode());
+            this.hash = result;
+        }
+        
+        public boolean matches(String owner, String principal, String activity, String target) {
+            return (owner == null || owner.equals(this.owner)) 
+                && (principal == null || principal.equals(this.principal))
+                && (activity == null || activity.equals(this.activity))
+                && (target == null || target.equals(this.target));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            PermissionKey other = (PermissionKey) obj;
+            if (this.hash != other.hash)
+                return false;
+            if (this.activity == null) {
+                if (other.activity != null)
+                    return false;
+            }
+            else if (!this.activity.equals(other.activity))
+                return false;
+            if (this.owner == null) {
+                if (other.owner != null)
+                    return false;
+            }
+            else if (!this.owner.equals(other.owner))
+                return false;
+            if (this.principal == null) {
+                if (other.principal != null)
+                    return false;
+            }
+            else if (!this.principal.equals(other.principal))
+                return false;
+            if (this.target == null) {
+                if (other.target != null)
+                    return false;
+            }
+            else if (!this.target.equals(other.target))
+                return false;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + this.owner + ", " + this.principal + ", " + this.activity + ", " + this.target + "]";
+        }
+    }
+    
+    /**
+     * The permissions for each key plus a set of keys for each owner, principal, activity and
+     * target value. Not thread safe, access is guarded by the store's index lock.
+     */
+    protected static final class PermissionIndex {
+        private final Map<PermissionKey, IPermission[]> permissions = new HashMap<PermissionKey, IPermission[]>();
+        private final Map<String, Set<PermissionKey>> byOwner = new HashMap<String, Set<PermissionKey>>();
+        private final Map<String, Set<PermissionKey>> byPrincipal = new HashMap<String, Set<PermissionKey>>();
+        private final Map<String, Set<PermissionKey>> byActivity = new HashMap<String, Set<PermissionKey>>();
+        private final Map<String, Set<PermissionKey>> byTarget = new HashMap<String, Set<PermissionKey>>();
+        
+        public IPermission[] getPermissions(PermissionKey key) {
+            final IPermission[] perms = this.permissions.get(key);
+            return perms != null ? perms : new IPermission[0];
+        }
+        
+        public void put(PermissionKey key, IPermission[] perms) {
+            if (this.permissions.put(key, perms) == null) {
+                addIndexEntry(this.byOwner, key.owner, key);
+                addIndexEntry(this.byPrincipal, key.principal, key);
+                addIndexEntry(this.byActivity, key.activity, key);
+                addIndexEntry(this.byTarget, key.target, key);
+            }
+        }
+        
+        public void remove(PermissionKey key) {
+            if (this.permissions.remove(key) != null) {
+                removeIndexEntry(this.byOwner, key.owner, key);
+                removeIndexEntry(this.byPrincipal, key.principal, key);
+                removeIndexEntry(this.byActivity, key.activity, key);
+                removeIndexEntry(this.byTarget, key.target, key);
+            }
+        }
+        
+        /**
+         * @return The smallest set of keys that may match the non-null criteria, all keys if every criteria is null
+         */
+        public Set<PermissionKey> getCandidates(String owner, String principal, String activity, String target) {
+            Set<PermissionKey> candidates = this.permissions.keySet();
+            
+            if (owner != null) {
+                candidates = smallest(candidates, this.byOwner.get(owner));
+            }
+            if (principal != null) {
+                candidates = smallest(candidates, this.byPrincipal.get(principal));
+            }
+            if (activity != null) {
+                candidates = smallest(candidates, this.byActivity.get(activity));
+            }
+            if (target != null) {
+                candidates = smallest(candidates, this.byTarget.get(target));
+            }
+            
+            return candidates;
+        }
+        
+        private static Set<PermissionKey> smallest(Set<PermissionKey> candidates, Set<PermissionKey> indexed) {
+            if (indexed == null) {
+                return Collections.emptySet();
+            }
+            return indexed.size() < candidates.size() ? indexed : candidates;
+        }
+        
+        private static void addIndexEntry(Map<String, Set<PermissionKey>> index, String value, PermissionKey key) {
+            Set<PermissionKey> keys = index.get(value);
+            if (keys == null) {
+                keys = new HashSet<PermissionKey>(4);
+                index.put(value, keys);
+            }
+            keys.add(key);
+        }
+        
+        private static void removeIndexEntry(Map<String, Set<PermissionKey>> index, String value, PermissionKey key) {
+            final Set<PermissionKey> keys = index.get(value);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    index.remove(value);
+                }
+            }
+        }
+    }
+}
@@ -368,7 +368,7 @@ private static String getInsertPermissionSql()
  * @return String
  * @param principalString
  */
-private String getPrincipalKey(String principalString)
+protected String getPrincipalKey(String principalString)
 {
     return principalString.substring(principalString.indexOf(PRINCIPAL_SEPARATOR)+1);
 }
@@ -387,7 +387,7 @@ private String getPrincipalKey(IPermission perm) throws AuthorizationException
  * @return int
  * @param principalString
  */
-private int getPrincipalType(String principalString)
+protected int getPrincipalType(String principalString)
 {
     return Integer.parseInt(principalString.substring(0,principalString.indexOf(PRINCIPAL_SEPARATOR)));
 }
@@ -404,7 +404,7 @@ private int getPrincipalType(IPermission perm) throws AuthorizationException
 /**
  * @return java.lang.String
  */
-private static String getSelectPermissionSql()
+protected static String getSelectPermissionSql()
 {
     if ( selectPermissionSql == null )
     {
@@ -453,7 +453,7 @@ private static String getUpdatePermissionSql()
  * @return org.jasig.portal.security.IPermission
  * @param rs java.sql.ResultSet
  */
-private IPermission instanceFromResultSet(ResultSet rs) throws  SQLException
+protected IPermission instanceFromResultSet(ResultSet rs) throws  SQLException
 {
     Timestamp ts = null;
 
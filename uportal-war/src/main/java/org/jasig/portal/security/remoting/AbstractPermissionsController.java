@@ -19,6 +19,8 @@
 
 package org.jasig.portal.security.remoting;
 
+import java.util.Collections;
+
 import javax.servlet.http.HttpServletRequest;
 
 import org.jasig.portal.portlet.om.IPortletDefinition;
@@ -85,7 +87,7 @@ public abstract class AbstractPermissionsController {
                 }
                 
                 final String portletId = permissionsAdminPortlet.getPortletDefinitionId().getStringId();
-                if (authorizationService.canPrincipalSubscribe(principal, portletId)) {
+                if (authorizationService.getPortletsPrincipalCanSubscribe(principal, Collections.singleton(portletId)).contains(portletId)) {
                     return true;
                 }
 
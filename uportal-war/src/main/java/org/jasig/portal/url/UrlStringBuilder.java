@@ -136,6 +136,11 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
     }
     
     protected String encode(String s) {
+        //Most names and values (portlet window ids, control parameters) don't need encoding, skip URLEncoder for them
+        if (!needsEncoding(s)) {
+            return s;
+        }
+        
         try {
             return URLEncoder.encode(s, this.encoding);
         }
@@ -144,6 +149,21 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
         }
     }
     
+    /**
+     * @return true if {@link URLEncoder} would change the string, false if all characters are left as-is by it
+     */
+    static boolean needsEncoding(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') 
+                    || c == '.' || c == '-' || c == '_' || c == '*') {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+    
     /**
      * Sets a URL parameter, replacing any existing parameter with the same name.
      * 
@@ -350,7 +370,7 @@ public final class UrlStringBuilder implements Serializable, Cloneable {
      */
     @Override
     public String toString() {
-        final StringBuilder url = new StringBuilder();
+        final StringBuilder url = new StringBuilder(64 + this.parameters.size() * 24);
         
         //Add protocol://host:port if they are set
         if (this.host != null) {
@@ -31,6 +31,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import javax.portlet.PortletMode;
@@ -88,6 +89,13 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
     private static final String PORTAL_CANONICAL_URL = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_CANONICAL_URL";
     private static final String PORTAL_REQUEST_INFO_ATTR = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_REQUEST_INFO"; 
     private static final String PORTAL_REQUEST_PARSING_IN_PROGRESS_ATTR = UrlSyntaxProviderImpl.class.getName() + ".PORTAL_REQUEST_PARSING_IN_PROGRESS";
+    private static final String PORTLET_PARAMETER_NAMES_ATTR = UrlSyntaxProviderImpl.class.getName() + ".PORTLET_PARAMETER_NAMES";
+    private static final String FOLDER_PATHS_ATTR = UrlSyntaxProviderImpl.class.getName() + ".FOLDER_PATHS";
+    
+    /**
+     * Parameter names for the targeted portlet, which are never namespaced with the window id
+     */
+    private static final PortletParameterNames TARGETED_PORTLET_PARAMETER_NAMES = new PortletParameterNames("");
     
     /**
      * Enum used in getPortalRequestInfo to keep track of the parser state when reading the URL string
@@ -733,12 +741,9 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
             
             //Add folder information if available: /f/tabId
             final String channelSubscribeId = portletEntity.getLayoutNodeId();
-            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, channelSubscribeId);
-            if (!folderNames.isEmpty()) {
-                url.addPath(FOLDER_PATH_PREFIX);
-                for (final String folderName : folderNames) {
-                    url.addPath(folderName);
-                }
+            final String folderPath = this.getFolderPath(request, urlNodeSyntaxHelper, channelSubscribeId);
+            if (folderPath.length() > 0) {
+                url.addPath(folderPath);
             }
             
             final IPortletUrlBuilder targetedPortletUrlBuilder = portletUrlBuilders.get(targetedPortletWindowId);
@@ -760,12 +765,9 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         }
         else {
             final String targetFolderId = portalUrlBuilder.getTargetFolderId();
-            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, targetFolderId);
-            if (folderNames != null && !folderNames.isEmpty()) {
-                url.addPath(FOLDER_PATH_PREFIX);
-                for (final String folderName : folderNames) {
-                    url.addPath(folderName);
-                }
+            final String folderPath = this.getFolderPath(request, urlNodeSyntaxHelper, targetFolderId);
+            if (folderPath.length() > 0) {
+                url.addPath(folderPath);
             }
             
             urlState = UrlState.NORMAL;
@@ -810,23 +812,19 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         IPortletWindow portletWindow = null;
         
         //The targeted portlet doesn't need namespaced parameters
-        final String prefixedPortletWindowId;
-        final String suffixedPortletWindowId;
+        final PortletParameterNames parameterNames;
         if (targeted) {
-            prefixedPortletWindowId = "";
-            suffixedPortletWindowId = "";
+            parameterNames = TARGETED_PORTLET_PARAMETER_NAMES;
         }
         else {
-            final String portletWindowIdStr = portletWindowId.toString();
-            prefixedPortletWindowId = SEPARATOR + portletWindowIdStr;
-            suffixedPortletWindowId = portletWindowIdStr + SEPARATOR;
-            url.addParameter(PARAM_ADDITIONAL_PORTLET, portletWindowIdStr);
+            parameterNames = this.getPortletParameterNames(request, portletWindowId);
+            url.addParameter(PARAM_ADDITIONAL_PORTLET, parameterNames.portletWindowId);
 
             //targeted portlets can never be delegates (it is always the top most parent that is targeted)
             portletWindow = this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
             final IPortletWindowId delegationParentId = portletWindow.getDelegationParentId();
             if (delegationParentId != null) {
-                url.addParameter(PARAM_DELEGATE_PARENT + prefixedPortletWindowId, delegationParentId.getStringId());
+                url.addParameter(parameterNames.delegateParent, delegationParentId.getStringId());
             }
         }
 
@@ -834,12 +832,12 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
             case RESOURCE: {
                 final String cacheability = portletUrlBuilder.getCacheability();
                 if(cacheability != null) {
-                    url.addParameter(PARAM_CACHEABILITY + prefixedPortletWindowId, cacheability);
+                    url.addParameter(parameterNames.cacheability, cacheability);
                 }
                 
                 final String resourceId = portletUrlBuilder.getResourceId();
                 if(resourceId != null) {
-                    url.addParameter(PARAM_RESOURCE_ID + prefixedPortletWindowId, resourceId);
+                    url.addParameter(parameterNames.resourceId, resourceId);
                 }
                 
                 break;
@@ -848,18 +846,18 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
                 //Add requested portlet mode
                 final PortletMode portletMode = portletUrlBuilder.getPortletMode();
                 if (portletMode != null) {
-                    url.addParameter(PARAM_PORTLET_MODE + prefixedPortletWindowId, portletMode.toString());
+                    url.addParameter(parameterNames.portletMode, portletMode.toString());
                 }
                 else if (targeted && statelessUrl) {
                     portletWindow = portletWindow != null ? portletWindow : this.portletWindowRegistry.getPortletWindow(request, portletWindowId);
                     final PortletMode currentPortletMode = portletWindow.getPortletMode();
-                    url.addParameter(PARAM_PORTLET_MODE + prefixedPortletWindowId, currentPortletMode.toString());
+                    url.addParameter(parameterNames.portletMode, currentPortletMode.toString());
                 }
                 
                 //Add requested window state if it isn't included on the path
                 final WindowState windowState = portletUrlBuilder.getWindowState();
                 if (windowState != null && (!targeted || !PATH_WINDOW_STATES.contains(windowState))) {
-                    url.addParameter(PARAM_WINDOW_STATE + prefixedPortletWindowId, windowState.toString());
+                    url.addParameter(parameterNames.windowState, windowState.toString());
                 }
                 
                 break;
@@ -867,14 +865,60 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
         }
         
         if (portletUrlBuilder.getCopyCurrentRenderParameters()) {
-            url.addParameter(PARAM_COPY_PARAMETERS + suffixedPortletWindowId);
+            url.addParameter(parameterNames.copyParameters);
         }
             
         final Map<String, String[]> parameters = portletUrlBuilder.getParameters();
         if (!parameters.isEmpty()) {
-            url.addParametersArray(PORTLET_PARAM_PREFIX + suffixedPortletWindowId, parameters);
+            url.addParametersArray(parameterNames.portletParameterPrefix, parameters);
         }
     }
+    
+    /**
+     * Get the namespaced parameter names for a non-targeted portlet window. A page renders many URLs for each
+     * portlet window so the names are built once and kept in a request attribute.
+     */
+    protected PortletParameterNames getPortletParameterNames(HttpServletRequest request, IPortletWindowId portletWindowId) {
+        final ConcurrentMap<IPortletWindowId, PortletParameterNames> parameterNamesCache = PortalWebUtils.getMapRequestAttribute(request, PORTLET_PARAMETER_NAMES_ATTR);
+        
+        PortletParameterNames parameterNames = parameterNamesCache.get(portletWindowId);
+        if (parameterNames == null) {
+            final String portletWindowIdStr = portletWindowId.toString();
+            parameterNames = new PortletParameterNames(portletWindowIdStr);
+            parameterNamesCache.put(portletWindowId, parameterNames);
+        }
+        return parameterNames;
+    }
+    
+    /**
+     * Get the folder part of the URL path for a layout node, f/folder1/folder2 or an empty string if the node has
+     * no folder names. Every URL on a page targets one of a few layout nodes so the path is looked up and joined once
+     * per node and kept in a request attribute. Path elements are not encoded by {@link UrlStringBuilder} so the joined
+     * path is added as a single element.
+     */
+    protected String getFolderPath(HttpServletRequest request, IUrlNodeSyntaxHelper urlNodeSyntaxHelper, String layoutNodeId) {
+        final ConcurrentMap<String, String> folderPathCache = PortalWebUtils.getMapRequestAttribute(request, FOLDER_PATHS_ATTR);
+        
+        //Concurrent maps do not allow null keys, the null layout node is the default folder
+        final String cacheKey = layoutNodeId != null ? layoutNodeId : "";
+        
+        String folderPath = folderPathCache.get(cacheKey);
+        if (folderPath == null) {
+            final List<String> folderNames = urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, layoutNodeId);
+            if (folderNames == null || folderNames.isEmpty()) {
+                folderPath = "";
+            }
+            else {
+                final StringBuilder folderPathBuilder = new StringBuilder(FOLDER_PATH_PREFIX);
+                for (final String folderName : folderNames) {
+                    folderPathBuilder.append(SLASH).append(folderName);
+                }
+                folderPath = folderPathBuilder.toString();
+            }
+            folderPathCache.put(cacheKey, folderPath);
+        }
+        return folderPath;
+    }
 
     /**
      * Determine the {@link UrlState} to use for the targeted portlet window
@@ -944,4 +988,40 @@ public class UrlSyntaxProviderImpl implements IUrlSyntaxProvider {
 
         return contextPath;
     }
+
+    /**
+     * Parameter names used for a portlet window's data on generated URLs
+     */
+    protected static final class PortletParameterNames {
+        public final String portletWindowId;
+        public final String delegateParent;
+        public final String cacheability;
+        public final String resourceId;
+        public final String portletMode;
+        public final String windowState;
+        public final String copyParameters;
+        public final String portletParameterPrefix;
+        
+        PortletParameterNames(String portletWindowId) {
+            final String prefixedPortletWindowId;
+            final String suffixedPortletWindowId;
+            if (portletWindowId.length() == 0) {
+                prefixedPortletWindowId = "";
+                suffixedPortletWindowId = "";
+            }
+            else {
+                prefixedPortletWindowId = SEPARATOR + portletWindowId;
+                suffixedPortletWindowId = portletWindowId + SEPARATOR;
+            }
+            
+            this.portletWindowId = portletWindowId;
+            this.delegateParent = PARAM_DELEGATE_PARENT + prefixedPortletWindowId;
+            this.cacheability = PARAM_CACHEABILITY + prefixedPortletWindowId;
+            this.resourceId = PARAM_RESOURCE_ID + prefixedPortletWindowId;
+            this.portletMode = PARAM_PORTLET_MODE + prefixedPortletWindowId;
+            this.windowState = PARAM_WINDOW_STATE + prefixedPortletWindowId;
+            this.copyParameters = PARAM_COPY_PARAMETERS + suffixedPortletWindowId;
+            this.portletParameterPrefix = PORTLET_PARAM_PREFIX + suffixedPortletWindowId;
+        }
+    }
 }
@@ -22,6 +22,7 @@ package org.jasig.portal.user;
 import java.util.Map;
 
 import org.jasig.portal.events.LogoutEvent;
+import org.jasig.portal.events.SynchronousPortalEventListener;
 import org.jasig.portal.security.IPerson;
 import org.jasig.services.persondir.support.CachingPersonAttributeDaoImpl;
 import org.springframework.beans.BeansException;
@@ -34,13 +35,13 @@ import org.springframework.context.ApplicationListener;
  * On configuration this bean will load all beans of type {@link CachingPersonAttributeDaoImpl} and store references to
  * them. When a {@link UserLoggedOutPortalEvent} or {@link UserSessionDestroyedPortalEvent} are recieved this code will
  * iterate over all caching DAOs and call the {@link CachingPersonAttributeDaoImpl#removeUserAttributes(String)} method
- * to clear out the caches.
+ * to clear out the caches. The caches are cleared before the logout returns so a new login never sees stale attributes.
  * 
  * @author Eric Dalquist
  * @version $Revision: 1.1 $
  */
-public class UserAttributesCacheCleaner implements ApplicationListener<LogoutEvent>, ApplicationContextAware,
-        InitializingBean {
+public class UserAttributesCacheCleaner implements ApplicationListener<LogoutEvent>, SynchronousPortalEventListener,
+        ApplicationContextAware, InitializingBean {
     private ApplicationContext applicationContext;
     private Map<String, CachingPersonAttributeDaoImpl> cachingAttributeDaos;
 
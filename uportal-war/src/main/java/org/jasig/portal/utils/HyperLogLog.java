@@ -0,0 +1,143 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils;
+
+import org.apache.commons.lang.Validate;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HyperLogLog cardinality estimator. Tracks the approximate number of distinct strings offered to it in a fixed
+ * 2^precision byte register array, the standard error is about 1.04/sqrt(2^precision).
+ * <p>
+ * The registers can be persisted with {@link #getRegisters()} and restored with {@link #wrap(byte[])}, hashing
+ * is done with murmur3 so the registers are stable across JVMs and restarts. Not thread safe.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public final class HyperLogLog {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+    
+    private final int precision;
+    private final byte[] registers;
+    
+    /**
+     * @param precision Number of bits of the hash used to pick a register, between 4 and 16
+     */
+    public HyperLogLog(int precision) {
+        Validate.isTrue(precision >= 4 && precision <= 16, "precision must be between 4 and 16: " + precision);
+        
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+    
+    private HyperLogLog(int precision, byte[] registers) {
+        this.precision = precision;
+        this.registers = registers;
+    }
+    
+    /**
+     * Create an estimator backed by the specified registers, changes to the estimator are written directly
+     * to the array
+     */
+    public static HyperLogLog wrap(byte[] registers) {
+        Validate.notNull(registers, "registers");
+        final int precision = Integer.numberOfTrailingZeros(registers.length);
+        Validate.isTrue(registers.length == 1 << precision && precision >= 4 && precision <= 16, 
+                "registers length must be a power of two between 2^4 and 2^16: " + registers.length);
+        
+        return new HyperLogLog(precision, registers);
+    }
+    
+    public int getPrecision() {
+        return this.precision;
+    }
+    
+    /**
+     * @return The backing register array, not a copy
+     */
+    public byte[] getRegisters() {
+        return this.registers;
+    }
+    
+    /**
+     * @return true if the estimator changed, if false {@link #cardinality()} is unchanged
+     */
+    public boolean offer(String value) {
+        final long hash = HASH_FUNCTION.hashString(value, Charsets.UTF_8).asLong();
+        return this.offerHash(hash);
+    }
+    
+    boolean offerHash(long hash) {
+        final int index = (int) (hash >>> (Long.SIZE - this.precision));
+        
+        //Rank is the position of the first 1 bit in the rest of the hash, the guard bit caps it
+        final long remainder = (hash << this.precision) | (1L << (this.precision - 1));
+        final byte rank = (byte) (Long.numberOfLeadingZeros(remainder) + 1);
+        
+        if (rank > this.registers[index]) {
+            this.registers[index] = rank;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return The estimated number of distinct values offered
+     */
+    public long cardinality() {
+        final int registerCount = this.registers.length;
+        
+        double sum = 0;
+        int zeros = 0;
+        for (final byte register : this.registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        
+        final double estimate = getAlpha(registerCount) * registerCount * registerCount / sum;
+        
+        //Use linear counting for small cardinalities, a 64 bit hash needs no large range correction
+        if (estimate <= 2.5 * registerCount && zeros > 0) {
+            return Math.round(registerCount * Math.log((double) registerCount / zeros));
+        }
+        
+        return Math.round(estimate);
+    }
+    
+    private static double getAlpha(int registerCount) {
+        switch (registerCount) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / registerCount);
+        }
+    }
+}
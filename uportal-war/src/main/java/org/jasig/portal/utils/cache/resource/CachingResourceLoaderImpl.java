@@ -21,8 +21,12 @@ package org.jasig.portal.utils.cache.resource;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import net.sf.ehcache.Ehcache;
@@ -36,8 +40,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
+import org.springframework.util.ResourceUtils;
 
 /**
  * Uses an {@link Ehcache} to handle caching of the resources.
@@ -51,14 +57,23 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
     
     private final CachedResourceEntryFactory entryFactory = new CachedResourceEntryFactory();
     
+    /**
+     * Resources that have been found to live in an archive, these can't change while the portal
+     * is running and are not checked again by {@link #checkResources()}
+     */
+    private final ConcurrentMap<Resource, Boolean> archiveResources = new ConcurrentHashMap<Resource, Boolean>();
+    
     private long checkInterval = TimeUnit.MINUTES.toMillis(1);
+    private boolean backgroundCheck = false;
     
+    private Ehcache backingResourceCache;
     private Ehcache resourceCache;
     private ResourcesElementsProvider resourcesElementsProvider;
 
     @Autowired
     public void setResourceCache(
             @Qualifier("org.jasig.portal.utils.cache.resource.CachingResourceLoader") Ehcache resourceCache) {
+        this.backingResourceCache = resourceCache;
         this.resourceCache = new SelfPopulatingCache(resourceCache, this.entryFactory);
     }
     
@@ -73,6 +88,18 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
     public void setCheckInterval(long checkInterval) {
         this.checkInterval = checkInterval;
     }
+    
+    /**
+     * If true cached resources are checked for modification by {@link #checkResources()} instead of
+     * by the thread requesting the resource, modified resources are removed from the cache and
+     * reloaded on next use. The checkInterval passed to
+     * {@link #getResource(Resource, Loader, long)} is ignored, {@link #setCheckInterval(long)} is
+     * used for all resources. Defaults to false.
+     */
+    @Value("${org.jasig.portal.utils.cache.resource.CachingResourceLoader.backgroundCheck:false}")
+    public void setBackgroundCheck(boolean backgroundCheck) {
+        this.backgroundCheck = backgroundCheck;
+    }
 
 
     /* (non-Javadoc)
@@ -102,6 +129,11 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
             this.logger.trace("Found " + cachedResource + " in cache");
         }
         
+        //Modification checks are done by checkResources, modified resources will have been removed from the cache
+        if (this.backgroundCheck) {
+            return cachedResource;
+        }
+        
         //Found it, now check if the last-load time is within the check interval
         final long lastCheckTime = cachedResource.getLastCheckTime();
         if (lastCheckTime + checkInterval >= System.currentTimeMillis()) {
@@ -135,6 +167,49 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
         return cachedResource;
     }
     
+    /**
+     * Check all cached resources that have not been checked within the check interval for
+     * modification, modified resources are removed from the cache. Does nothing unless
+     * background checking is enabled.
+     */
+    public void checkResources() {
+        if (!this.backgroundCheck) {
+            return;
+        }
+        
+        final long now = System.currentTimeMillis();
+        int checked = 0;
+        int removed = 0;
+        
+        for (final Object key : (List<?>) this.backingResourceCache.getKeys()) {
+            final Element element = this.backingResourceCache.getQuiet(key);
+            if (element == null) {
+                continue;
+            }
+            
+            final CachedResource<?> cachedResource = (CachedResource<?>) element.getObjectValue();
+            if (cachedResource == null || cachedResource.getLastCheckTime() + this.checkInterval >= now) {
+                continue;
+            }
+            
+            checked++;
+            if (this.checkIfModified(cachedResource)) {
+                //Only remove the element that was checked, it may have already been reloaded
+                if (this.backingResourceCache.removeElement(element)) {
+                    removed++;
+                    this.logger.debug("Removed modified {} from cache", cachedResource);
+                }
+            }
+            else {
+                cachedResource.setLastCheckTime(now);
+                //Re-put to notify the cache the object has been modified, unless it was reloaded since it was read
+                this.backingResourceCache.replace(element, element);
+            }
+        }
+        
+        this.logger.debug("Checked {} cached resources, removed {} modified resources", checked, removed);
+    }
+    
     /**
      * Check if any of the Resources used to load the {@link CachedResource} have
      * been modified.
@@ -173,6 +248,11 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
      * Determine the last modified time stamp for the resource
      */
     protected long getLastModified(Resource resource) {
+        if (this.backgroundCheck && this.isArchiveResource(resource)) {
+            //Archive contents don't change, report the resource as never modified
+            return 0;
+        }
+        
         try {
             return resource.lastModified();
         }
@@ -183,6 +263,29 @@ public class CachingResourceLoaderImpl implements CachingResourceLoader {
         return 0;
     }
 
+    /**
+     * @return true if the resource is an entry in a jar or other archive, the result is remembered for each resource.
+     */
+    protected boolean isArchiveResource(Resource resource) {
+        final Boolean archiveResource = this.archiveResources.get(resource);
+        if (archiveResource != null) {
+            return archiveResource;
+        }
+        
+        boolean inArchive;
+        try {
+            final URL url = resource.getURL();
+            inArchive = ResourceUtils.isJarURL(url);
+        }
+        catch (IOException e) {
+            //Not resolvable as a URL, can't be an archive entry
+            inArchive = false;
+        }
+        
+        this.archiveResources.putIfAbsent(resource, inArchive);
+        return inArchive;
+    }
+
     private <T> CachedResource<T> loadResource(Resource resource, Loader<T> builder) throws IOException {
         final long lastLoadTime = System.currentTimeMillis();
 
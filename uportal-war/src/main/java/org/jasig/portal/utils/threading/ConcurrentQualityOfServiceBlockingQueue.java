@@ -0,0 +1,493 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jasig.portal.utils.ConcurrentMapUtils;
+
+/**
+ * A thread-safe blocking queue that places elements into sub-queues based on the key returned for each element by
+ * {@link #getElementKey(Object)} and returns elements from the sub-queues in round-robin order. Unlike
+ * {@link QualityOfServiceBlockingQueue} no global lock is used, each sub-queue is a lock free queue and the keys
+ * that have queued elements are tracked in a lock free run queue. A key is moved to the back of the run queue each
+ * time an element is taken for it, so every key with queued elements gets one element returned per rotation.
+ * <p/>
+ * {@link #peek()}, {@link #size()} and {@link #iterator()} are weakly consistent, the peeked element is not
+ * guaranteed to be the element returned by the next call to {@link #poll()} if other threads are also polling.
+ * 
+ * @author Eric Dalquist
+ * @param <K> The type of key used for grouping elements in the queue
+ * @param <T> The type of elements in the queue
+ */
+public abstract class ConcurrentQualityOfServiceBlockingQueue<K, T> extends AbstractQueue<T> implements BlockingQueue<T> {
+    private final ConcurrentMap<K, KeyedQueue> keyedQueues = new ConcurrentHashMap<K, KeyedQueue>();
+    private final Set<K> queueKeySet = Collections.unmodifiableSet(this.keyedQueues.keySet());
+    
+    /**
+     * Keys that have queued elements, in the order they will be serviced
+     */
+    private final Queue<KeyedQueue> runQueue = new ConcurrentLinkedQueue<KeyedQueue>();
+    
+    /**
+     * Used by consumers that hold an {@link #available} permit to wait for a key that is being rescheduled by
+     * another thread. The lock is only taken when {@link #runQueueWaiters} is non-zero.
+     */
+    private final ReentrantLock runQueueLock = new ReentrantLock();
+    private final Condition runQueueNotEmpty = this.runQueueLock.newCondition();
+    private final AtomicInteger runQueueWaiters = new AtomicInteger();
+    
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+    
+    /**
+     * One permit per queued element, used by consumers to wait for elements
+     */
+    private final Semaphore available = new Semaphore(0);
+    
+    /**
+     * One permit per remaining slot in the queue, used by producers to wait for capacity
+     */
+    private final Semaphore remaining;
+    
+    public ConcurrentQualityOfServiceBlockingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+    
+    public ConcurrentQualityOfServiceBlockingQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException();
+        }
+        
+        this.capacity = capacity;
+        this.remaining = new Semaphore(capacity);
+    }
+    
+    /**
+     * @return the key for the specified element
+     */
+    protected abstract K getElementKey(T e);
+    
+    /**
+     * @return A read only Set of the keys in the queue
+     */
+    public final Set<K> getKeySet() {
+        return queueKeySet;
+    }
+    
+    /**
+     * @return true if there are no elements for the specified key
+     */
+    public final boolean isKeyEmpty(K key) {
+        final KeyedQueue queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return true;
+        }
+        
+        return queue.elements.isEmpty();
+    }
+    
+    /**
+     * @return The number of elements in the queue for the specified key
+     */
+    public final int getKeySize(K key) {
+        final KeyedQueue queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return 0;
+        }
+        
+        return queue.elements.size();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#offer(java.lang.Object)
+     */
+    @Override
+    public final boolean offer(T e) {
+        if (!this.remaining.tryAcquire()) {
+            return false;
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#offer(java.lang.Object, long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final boolean offer(T e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (!this.remaining.tryAcquire(timeout, unit)) {
+            return false;
+        }
+        
+        this.enqueue(e);
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#put(java.lang.Object)
+     */
+    @Override
+    public final void put(T e) throws InterruptedException {
+        this.remaining.acquire();
+        this.enqueue(e);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#poll()
+     */
+    @Override
+    public final T poll() {
+        if (!this.available.tryAcquire()) {
+            return null;
+        }
+        
+        return this.dequeue();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#poll(long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public final T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!this.available.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        
+        return this.dequeue();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#take()
+     */
+    @Override
+    public final T take() throws InterruptedException {
+        this.available.acquire();
+        return this.dequeue();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Queue#peek()
+     */
+    @Override
+    public final T peek() {
+        for (final KeyedQueue queue : this.runQueue) {
+            final T e = queue.elements.peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        
+        return null;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#remainingCapacity()
+     */
+    @Override
+    public final int remainingCapacity() {
+        return this.capacity - this.size.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Collection#size()
+     */
+    @Override
+    public final int size() {
+        return this.size.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#isEmpty()
+     */
+    @Override
+    public final boolean isEmpty() {
+        return this.size.get() == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#remove(java.lang.Object)
+     */
+    @Override
+    public final boolean remove(Object o) {
+        //Claim an element before removing so a consumer can't claim the same one
+        if (!this.available.tryAcquire()) {
+            return false;
+        }
+        
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyedQueue queue = this.keyedQueues.get(key);
+        if (queue == null || !queue.elements.remove(o)) {
+            this.available.release();
+            return false;
+        }
+        
+        this.size.decrementAndGet();
+        this.remaining.release();
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#contains(java.lang.Object)
+     */
+    @Override
+    public final boolean contains(Object o) {
+        @SuppressWarnings("unchecked")
+        final K key = this.getElementKey((T)o);
+        final KeyedQueue queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            return false;
+        }
+        
+        return queue.elements.contains(o);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.BlockingQueue#drainTo(java.util.Collection, int)
+     */
+    @Override
+    public final int drainTo(Collection<? super T> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        
+        int count = 0;
+        while (count < maxElements) {
+            final T e = this.poll();
+            if (e == null) {
+                break;
+            }
+            
+            c.add(e);
+            count++;
+        }
+        
+        return count;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#iterator()
+     */
+    @Override
+    public final Iterator<T> iterator() {
+        final List<T> snapshot = new ArrayList<T>(this.size());
+        for (final KeyedQueue queue : this.keyedQueues.values()) {
+            snapshot.addAll(queue.elements);
+        }
+        
+        final Iterator<T> snapshotIterator = snapshot.iterator();
+        return new Iterator<T>() {
+            private T current;
+            
+            @Override
+            public boolean hasNext() {
+                return snapshotIterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                this.current = snapshotIterator.next();
+                return this.current;
+            }
+
+            @Override
+            public void remove() {
+                if (this.current == null) {
+                    throw new IllegalStateException();
+                }
+                
+                ConcurrentQualityOfServiceBlockingQueue.this.remove(this.current);
+                this.current = null;
+            }
+        };
+    }
+    
+    /**
+     * Adds the element to the queue, MUST only be called after a permit has been acquired from {@link #remaining}
+     */
+    private void enqueue(T e) {
+        final KeyedQueue queue = this.getOrCreateQueue(e);
+        
+        queue.elements.add(e);
+        this.size.incrementAndGet();
+        
+        //If the key isn't already in the run queue add it to the end
+        if (queue.scheduled.compareAndSet(false, true)) {
+            this.addToRunQueue(queue);
+        }
+        
+        this.available.release();
+    }
+    
+    /**
+     * Removes the next element from the queue, MUST only be called after a permit has been acquired from {@link #available}
+     */
+    private T dequeue() {
+        while (true) {
+            final KeyedQueue queue = this.runQueue.poll();
+            if (queue == null) {
+                //An element is available but its key is still being rescheduled by another thread
+                this.awaitRunQueue();
+                continue;
+            }
+            
+            final T e = queue.elements.poll();
+            this.reschedule(queue);
+            
+            if (e != null) {
+                this.size.decrementAndGet();
+                this.remaining.release();
+                return e;
+            }
+        }
+    }
+    
+    /**
+     * Puts the keyed queue at the end of the run queue if it has more elements, clears the scheduled flag if not
+     */
+    private void reschedule(KeyedQueue queue) {
+        if (!queue.elements.isEmpty()) {
+            this.addToRunQueue(queue);
+            return;
+        }
+        
+        queue.scheduled.set(false);
+        
+        //Re-check in case an element was added after the isEmpty check but before the scheduled flag was cleared
+        if (!queue.elements.isEmpty() && queue.scheduled.compareAndSet(false, true)) {
+            this.addToRunQueue(queue);
+        }
+    }
+    
+    /**
+     * Adds the keyed queue to the end of the run queue and wakes up any consumers waiting in {@link #awaitRunQueue()}
+     */
+    private void addToRunQueue(KeyedQueue queue) {
+        this.runQueue.add(queue);
+        
+        if (this.runQueueWaiters.get() > 0) {
+            this.runQueueLock.lock();
+            try {
+                this.runQueueNotEmpty.signalAll();
+            }
+            finally {
+                this.runQueueLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Parks the calling thread until the run queue is not empty. Only called by a consumer that already holds an
+     * {@link #available} permit so the wait is bounded by the time another thread takes to reschedule a key, the
+     * wait is not interruptible since the permit has already been consumed.
+     */
+    private void awaitRunQueue() {
+        this.runQueueWaiters.incrementAndGet();
+        this.runQueueLock.lock();
+        try {
+            while (this.runQueue.isEmpty()) {
+                this.runQueueNotEmpty.awaitUninterruptibly();
+            }
+        }
+        finally {
+            this.runQueueLock.unlock();
+            this.runQueueWaiters.decrementAndGet();
+        }
+    }
+    
+    private KeyedQueue getOrCreateQueue(T e) {
+        final K key = this.getElementKey(e);
+        KeyedQueue queue = this.keyedQueues.get(key);
+        if (queue == null) {
+            queue = new KeyedQueue(key);
+            queue = ConcurrentMapUtils.putIfAbsent(this.keyedQueues, key, queue);
+        }
+        return queue;
+    }
+    
+    /**
+     * The elements for a single key and a flag tracking if the key is in the run queue
+     */
+    private final class KeyedQueue {
+        private final Queue<T> elements = new ConcurrentLinkedQueue<T>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final K key;
+        
+        public KeyedQueue(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "=" + this.elements;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.AbstractCollection#toString()
+     */
+    @Override
+    public String toString() {
+        final StringBuilder str = new StringBuilder((this.size.get() * 50) + 2);
+        
+        str.append("{");
+        
+        for (final Iterator<Entry<K, KeyedQueue>> entryItr = this.keyedQueues.entrySet().iterator(); entryItr.hasNext(); ) {
+            final Entry<K, KeyedQueue> entry = entryItr.next();
+            str.append(entry.getValue());
+            
+            if (entryItr.hasNext()) {
+                str.append(", ");
+            }
+        }
+        
+        str.append("}");
+        
+        return str.toString();
+    }
+}
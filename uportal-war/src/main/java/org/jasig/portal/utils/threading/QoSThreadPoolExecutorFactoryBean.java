@@ -38,14 +38,15 @@ import java.util.concurrent.TimeUnit;
 public class QoSThreadPoolExecutorFactoryBean extends DynamicThreadPoolExecutorFactoryBean {
     private static final long serialVersionUID = 1L;
     
-    private Class<? extends QualityOfServiceBlockingQueue<?, Runnable>> qualityOfServiceQueueType;
-    private Constructor<? extends QualityOfServiceBlockingQueue<?, Runnable>> qualityOfServiceQueueConstructor;
-    private QualityOfServiceBlockingQueue<?, Runnable> qualityOfServiceBlockingQueue;
+    private Class<? extends BlockingQueue<Runnable>> qualityOfServiceQueueType;
+    private Constructor<? extends BlockingQueue<Runnable>> qualityOfServiceQueueConstructor;
+    private BlockingQueue<Runnable> qualityOfServiceBlockingQueue;
     
     /**
-     * The concrete implementation of {@link QualityOfServiceBlockingQueue} to provide to the {@link ThreadPoolExecutor}
+     * The concrete implementation of {@link QualityOfServiceBlockingQueue} or {@link ConcurrentQualityOfServiceBlockingQueue}
+     * to provide to the {@link ThreadPoolExecutor}
      */
-    public void setQualityOfServiceQueueType(Class<? extends QualityOfServiceBlockingQueue<?, Runnable>> qualityOfServiceQueueType) {
+    public void setQualityOfServiceQueueType(Class<? extends BlockingQueue<Runnable>> qualityOfServiceQueueType) {
         this.qualityOfServiceQueueType = qualityOfServiceQueueType;
     }
 
@@ -61,7 +62,7 @@ public class QoSThreadPoolExecutorFactoryBean extends DynamicThreadPoolExecutorF
             throw new RuntimeException(e);
         }
         catch (NoSuchMethodException e) {
-            throw new RuntimeException("The QualityOfServiceBlockingQueue implementation MUST have a constructor that takes a single int argument. " + qualityOfServiceQueueType + " does not", e);
+            throw new RuntimeException("The quality of service queue implementation MUST have a constructor that takes a single int argument. " + qualityOfServiceQueueType + " does not", e);
         }
         
         super.afterPropertiesSet();
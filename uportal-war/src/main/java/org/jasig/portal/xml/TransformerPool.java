@@ -0,0 +1,273 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Pools {@link Transformer}s for each stylesheet so the per-request cost of creating a Transformer
+ * from the cached {@link Templates} is only paid when the pool is empty. Transformers have their
+ * parameters cleared and are {@link Transformer#reset()} when returned. The pool for a stylesheet
+ * is discarded as soon as the {@link Templates} returned by {@link XmlUtilities#getTemplates(Resource)}
+ * change, which happens when the stylesheet is reloaded.
+ * <p>
+ * Borrowing never blocks, if no idle Transformer is available a new one is created. At most
+ * maxIdle Transformers are kept per stylesheet.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+@Service("transformerPool")
+public class TransformerPool {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    private final ConcurrentMap<String, StylesheetPool> stylesheetPools = new ConcurrentHashMap<String, StylesheetPool>();
+    private final ConcurrentMap<Transformer, StylesheetPool> borrowedTransformers = new ConcurrentHashMap<Transformer, StylesheetPool>();
+    
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong borrowTime = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    
+    private XmlUtilities xmlUtilities;
+    private int maxIdle = 20;
+    private int prewarmCount = 2;
+
+    @Autowired
+    public void setXmlUtilities(XmlUtilities xmlUtilities) {
+        this.xmlUtilities = xmlUtilities;
+    }
+    
+    /**
+     * Maximum number of idle Transformers kept for each stylesheet, 0 disables pooling
+     */
+    @Value("${org.jasig.portal.xml.TransformerPool.maxIdle:20}")
+    public void setMaxIdle(int maxIdle) {
+        if (maxIdle < 0) {
+            throw new IllegalArgumentException("maxIdle must be >= 0: " + maxIdle);
+        }
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Number of Transformers created when the pool for a stylesheet is created
+     */
+    @Value("${org.jasig.portal.xml.TransformerPool.prewarmCount:2}")
+    public void setPrewarmCount(int prewarmCount) {
+        this.prewarmCount = prewarmCount;
+    }
+
+    /**
+     * Borrow a Transformer for the stylesheet, it must be handed back to {@link #returnTransformer(Transformer)}
+     * once the caller is done with it.
+     */
+    public Transformer borrowTransformer(Resource stylesheet) throws TransformerConfigurationException, IOException {
+        final long start = System.nanoTime();
+        try {
+            final Templates templates = this.xmlUtilities.getTemplates(stylesheet);
+            if (this.maxIdle == 0) {
+                return templates.newTransformer();
+            }
+            
+            final StylesheetPool stylesheetPool = this.getStylesheetPool(stylesheet.getDescription(), templates);
+            
+            Transformer transformer = stylesheetPool.idleTransformers.poll();
+            if (transformer != null) {
+                this.hitCount.incrementAndGet();
+            }
+            else {
+                transformer = templates.newTransformer();
+            }
+            
+            this.borrowedTransformers.put(transformer, stylesheetPool);
+            return transformer;
+        }
+        finally {
+            this.borrowCount.incrementAndGet();
+            this.borrowTime.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Return a Transformer from {@link #borrowTransformer(Resource)}, it is reset and added back to the pool
+     * if the stylesheet hasn't been reloaded since it was borrowed.
+     */
+    public void returnTransformer(Transformer transformer) {
+        final StylesheetPool stylesheetPool = this.borrowedTransformers.remove(transformer);
+        if (stylesheetPool == null) {
+            return;
+        }
+        
+        if (this.stylesheetPools.get(stylesheetPool.stylesheetDescription) != stylesheetPool) {
+            //Stylesheet was reloaded or the pool was cleared
+            return;
+        }
+        
+        try {
+            //Not every implementation clears parameters on reset
+            transformer.clearParameters();
+            transformer.reset();
+        }
+        catch (RuntimeException e) {
+            this.logger.warn("Failed to reset Transformer for " + stylesheetPool.stylesheetDescription + ", it will not be reused", e);
+            return;
+        }
+        
+        stylesheetPool.idleTransformers.offer(transformer);
+    }
+    
+    /**
+     * Discard all pooled Transformers
+     */
+    public void clear() {
+        this.stylesheetPools.clear();
+    }
+    
+    /**
+     * @return Number of stylesheets with pooled Transformers
+     */
+    public int getStylesheetCount() {
+        return this.stylesheetPools.size();
+    }
+    
+    /**
+     * @return Number of idle Transformers across all stylesheets
+     */
+    public int getIdleCount() {
+        int idleCount = 0;
+        for (final StylesheetPool stylesheetPool : this.stylesheetPools.values()) {
+            idleCount += stylesheetPool.idleTransformers.size();
+        }
+        return idleCount;
+    }
+    
+    /**
+     * @return Number of Transformers currently borrowed
+     */
+    public int getBorrowedCount() {
+        return this.borrowedTransformers.size();
+    }
+
+    public int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    public long getBorrowCount() {
+        return this.borrowCount.get();
+    }
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+    
+    /**
+     * @return Fraction of borrows that were handed an idle Transformer
+     */
+    public double getHitRate() {
+        final long borrows = this.borrowCount.get();
+        if (borrows == 0) {
+            return 0;
+        }
+        return this.hitCount.get() / (double) borrows;
+    }
+    
+    /**
+     * @return Average time in milliseconds to borrow a Transformer, includes creating one when the pool is empty
+     */
+    public double getAverageBorrowTime() {
+        final long borrows = this.borrowCount.get();
+        if (borrows == 0) {
+            return 0;
+        }
+        return this.borrowTime.get() / (double) borrows / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+    
+    /**
+     * @return Number of times the pool for a stylesheet was discarded because the stylesheet was reloaded
+     */
+    public long getInvalidationCount() {
+        return this.invalidationCount.get();
+    }
+
+    /**
+     * Get the pool for the stylesheet, replacing it if it was created for different {@link Templates}
+     */
+    protected StylesheetPool getStylesheetPool(String stylesheetDescription, Templates templates) throws TransformerConfigurationException {
+        StylesheetPool stylesheetPool = this.stylesheetPools.get(stylesheetDescription);
+        if (stylesheetPool != null && stylesheetPool.templates == templates) {
+            return stylesheetPool;
+        }
+        
+        final StylesheetPool newStylesheetPool = new StylesheetPool(stylesheetDescription, templates, this.maxIdle);
+        for (int i = 0; i < Math.min(this.prewarmCount, this.maxIdle); i++) {
+            newStylesheetPool.idleTransformers.offer(templates.newTransformer());
+        }
+        
+        if (stylesheetPool == null) {
+            stylesheetPool = this.stylesheetPools.putIfAbsent(stylesheetDescription, newStylesheetPool);
+            if (stylesheetPool != null) {
+                //Another thread created the pool first
+                return stylesheetPool;
+            }
+        }
+        else if (this.stylesheetPools.replace(stylesheetDescription, stylesheetPool, newStylesheetPool)) {
+            this.invalidationCount.incrementAndGet();
+            this.logger.debug("Stylesheet {} was reloaded, discarded pooled Transformers", stylesheetDescription);
+        }
+        else {
+            //Another thread replaced the pool first
+            final StylesheetPool currentPool = this.stylesheetPools.get(stylesheetDescription);
+            if (currentPool != null) {
+                return currentPool;
+            }
+        }
+        
+        return newStylesheetPool;
+    }
+    
+    protected static final class StylesheetPool {
+        private final String stylesheetDescription;
+        private final Templates templates;
+        private final BlockingQueue<Transformer> idleTransformers;
+        
+        public StylesheetPool(String stylesheetDescription, Templates templates, int maxIdle) {
+            this.stylesheetDescription = stylesheetDescription;
+            this.templates = templates;
+            this.idleTransformers = new ArrayBlockingQueue<Transformer>(maxIdle);
+        }
+    }
+}
@@ -20,13 +20,10 @@
 package org.jasig.portal.xml.stream;
 
 import java.io.StringWriter;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.servlet.http.HttpServletRequest;
@@ -39,10 +36,7 @@ import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
 import org.jasig.portal.character.stream.CharacterEventSource;
-import org.jasig.portal.character.stream.events.CharacterDataEvent;
-import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
-import org.jasig.portal.character.stream.events.CharacterEventTypes;
 
 /**
  * Used with code that serializes StAX events into a string. Watches for specific XML tags in a StAX
@@ -54,18 +48,15 @@ import org.jasig.portal.character.stream.events.CharacterEventTypes;
 public class ChunkingEventReader extends BaseXMLEventReader {
     private static final XMLEventFactory EVENT_FACTORY = XMLEventFactory.newFactory();
     
-    private final List<CharacterEvent> characterEvents = new LinkedList<CharacterEvent>();
+    private final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
 
     private final HttpServletRequest request;
     private final Map<String, CharacterEventSource> chunkingElements;
-    private final Map<Pattern, CharacterEventSource> chunkingPatterns;
+    private final CombinedChunkingPattern chunkingPatterns;
     private final XMLEventWriter xmlEventWriter;
     private final StringWriter writer;
     private boolean removeXmlDeclaration = true;
     
-    //Declare this at the class level to reduce excess object creation
-    private final StringBuffer characterChunkingBuffer = new StringBuffer();
-    
     //to handle peek() calls
     private XMLEvent peekedEvent = null;
     
@@ -77,6 +68,14 @@ public class ChunkingEventReader extends BaseXMLEventReader {
             Map<Pattern, CharacterEventSource> chunkingPatterns, 
             XMLEventReader xmlEventReader, XMLEventWriter xmlEventWriter,
             StringWriter writer) {
+        this(request, chunkingElements, new CombinedChunkingPattern(chunkingPatterns), xmlEventReader, xmlEventWriter, writer);
+    }
+
+    public ChunkingEventReader(HttpServletRequest request,
+            Map<String, CharacterEventSource> chunkingElements,
+            CombinedChunkingPattern chunkingPatterns, 
+            XMLEventReader xmlEventReader, XMLEventWriter xmlEventWriter,
+            StringWriter writer) {
         super(xmlEventReader);
 
         this.request = request;
@@ -193,10 +192,7 @@ public class ChunkingEventReader extends BaseXMLEventReader {
         //Add character chunk to events
         final String chunk = this.writer.toString();
         
-        final List<CharacterEvent> characterEvents = this.chunkString(chunk);
-        
-        //Add all the characterEvents
-        this.characterEvents.addAll(characterEvents);
+        this.chunkingPatterns.chunk(this.request, chunk, this.characterEvents);
         
         this.clearWriter();
     }
@@ -214,51 +210,8 @@ public class ChunkingEventReader extends BaseXMLEventReader {
      * CharacterEventSources
      */
     protected List<CharacterEvent> chunkString(final String chunk) {
-        final List<CharacterEvent> characterEvents = new LinkedList<CharacterEvent>();
-        characterEvents.add(new CharacterDataEventImpl(chunk));
-
-        //Iterate over the chunking patterns
-        for (final Map.Entry<Pattern, CharacterEventSource> chunkingPatternEntry : this.chunkingPatterns.entrySet()) {
-            final Pattern pattern = chunkingPatternEntry.getKey();
-
-            //Iterate over the events that have been chunked so far
-            for (final ListIterator<CharacterEvent> characterDataEventItr = characterEvents.listIterator(); characterDataEventItr.hasNext(); ) {
-                final CharacterEvent characterDataEvent = characterDataEventItr.next();
-                
-                //If it is a character event it may need further chunking
-                if (CharacterEventTypes.CHARACTER == characterDataEvent.getEventType()) {
-                    final String data = ((CharacterDataEvent)characterDataEvent).getData();
-                    
-                    final Matcher matcher = pattern.matcher(data);
-                    if (matcher.find()) {
-                        //Found a match, replacing the CharacterDataEvent that was found
-                        characterDataEventItr.remove();
-
-                        do {
-                            //Add all of the text up to the match as a new chunk
-                            characterChunkingBuffer.delete(0, characterChunkingBuffer.length());
-                            matcher.appendReplacement(characterChunkingBuffer, "");
-                            characterDataEventItr.add(new CharacterDataEventImpl(characterChunkingBuffer.toString()));
-
-                            //Get the generated CharacterEvents for the match
-                            final CharacterEventSource eventSource = chunkingPatternEntry.getValue();
-                            final MatchResult matchResult = matcher.toMatchResult();
-                            final List<CharacterEvent> generatedCharacterEvents = eventSource.getCharacterEvents(this.request, matchResult);
-                            
-                            //Add the generated CharacterEvents to the list
-                            for (final CharacterEvent generatedCharacterEvent : generatedCharacterEvents) {
-                                characterDataEventItr.add(generatedCharacterEvent);
-                            }
-                        } while (matcher.find());
-                            
-                        //Add any remaining text from the original CharacterDataEvent
-                        characterChunkingBuffer.delete(0, characterChunkingBuffer.length());
-                        matcher.appendTail(characterChunkingBuffer);
-                        characterDataEventItr.add(new CharacterDataEventImpl(characterChunkingBuffer.toString()));
-                    }
-                }
-            }
-        }
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        this.chunkingPatterns.chunk(this.request, chunk, characterEvents);
         return characterEvents;
     }
 
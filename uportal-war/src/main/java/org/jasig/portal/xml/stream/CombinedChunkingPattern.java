@@ -0,0 +1,393 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.portal.character.stream.CharacterEventSource;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+
+/**
+ * Compiles an ordered set of chunking {@link Pattern}s into a single alternation so serialized markup
+ * can be split into {@link CharacterEvent}s in one scan. Each pattern becomes a capturing group of the
+ * combined pattern, the {@link MatchResult} handed to the matching {@link CharacterEventSource} is
+ * re-based so its groups are numbered exactly as in the original pattern. If every pattern starts with a
+ * literal character the scan only tries the combined pattern where one of those characters appears.
+ * <p>
+ * When two patterns match at the same position the one that appears first in the map wins. Back
+ * references are renumbered, patterns compiled with {@link Pattern#CANON_EQ} are not supported.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public final class CombinedChunkingPattern {
+    private final Pattern pattern;
+    private final char[] leadingCharacters;
+    private final CharacterEventSource[] eventSources;
+    private final int[] groupOffsets;
+    private final int[] groupCounts;
+    
+    public CombinedChunkingPattern(Map<Pattern, CharacterEventSource> chunkingPatterns) {
+        if (chunkingPatterns == null || chunkingPatterns.isEmpty()) {
+            this.pattern = null;
+            this.leadingCharacters = null;
+            this.eventSources = new CharacterEventSource[0];
+            this.groupOffsets = new int[0];
+            this.groupCounts = new int[0];
+            return;
+        }
+        
+        final int size = chunkingPatterns.size();
+        this.eventSources = new CharacterEventSource[size];
+        this.groupOffsets = new int[size];
+        this.groupCounts = new int[size];
+        
+        final StringBuilder combined = new StringBuilder();
+        final StringBuilder leadingCharacters = new StringBuilder();
+        boolean prefilter = true;
+        int index = 0;
+        int groupOffset = 1;
+        for (final Map.Entry<Pattern, CharacterEventSource> chunkingPatternEntry : chunkingPatterns.entrySet()) {
+            final Pattern chunkingPattern = chunkingPatternEntry.getKey();
+            final int groupCount = chunkingPattern.matcher("").groupCount();
+            
+            this.eventSources[index] = chunkingPatternEntry.getValue();
+            this.groupOffsets[index] = groupOffset;
+            this.groupCounts[index] = groupCount;
+            
+            if (index > 0) {
+                combined.append('|');
+            }
+            combined.append('(');
+            appendAlternative(combined, chunkingPattern, groupOffset);
+            combined.append(')');
+            
+            final int leadingCharacter = getLeadingCharacter(chunkingPattern);
+            if (leadingCharacter == -1) {
+                prefilter = false;
+            }
+            else if (leadingCharacters.indexOf(String.valueOf((char) leadingCharacter)) == -1) {
+                leadingCharacters.append((char) leadingCharacter);
+            }
+            
+            groupOffset += groupCount + 1;
+            index++;
+        }
+        
+        this.pattern = Pattern.compile(combined.toString());
+        this.leadingCharacters = prefilter ? leadingCharacters.toString().toCharArray() : null;
+    }
+    
+    /**
+     * @return The combined pattern, null if there are no chunking patterns
+     */
+    public Pattern getPattern() {
+        return this.pattern;
+    }
+    
+    /**
+     * @return true if there are no chunking patterns
+     */
+    public boolean isEmpty() {
+        return this.pattern == null;
+    }
+    
+    /**
+     * Split the data on every pattern match, adding the text between matches as {@link CharacterDataEventImpl}s
+     * and the events generated for each match to the characterEvents list. Text before the first match and after
+     * the last match is always added, even if empty.
+     */
+    public void chunk(HttpServletRequest request, String data, List<CharacterEvent> characterEvents) {
+        if (this.pattern == null) {
+            characterEvents.add(new CharacterDataEventImpl(data));
+            return;
+        }
+        
+        final Matcher matcher = this.pattern.matcher(data);
+        int textStart = 0;
+        while (this.find(matcher, data, textStart)) {
+            final int alternative = this.getMatchedAlternative(matcher);
+            
+            //Add all of the text up to the match as a new chunk
+            characterEvents.add(new CharacterDataEventImpl(data.substring(textStart, matcher.start())));
+            
+            //Get the generated CharacterEvents for the match
+            final MatchResult matchResult = new AlternativeMatchResult(matcher.toMatchResult(), this.groupOffsets[alternative], this.groupCounts[alternative]);
+            final List<CharacterEvent> generatedCharacterEvents = this.eventSources[alternative].getCharacterEvents(request, matchResult);
+            if (generatedCharacterEvents != null) {
+                characterEvents.addAll(generatedCharacterEvents);
+            }
+            
+            textStart = matcher.end();
+        }
+        
+        //Add any remaining text, avoiding a copy if nothing matched
+        characterEvents.add(new CharacterDataEventImpl(textStart == 0 ? data : data.substring(textStart)));
+    }
+    
+    /**
+     * Find the next match at or after the start index. When every pattern begins with a literal character
+     * only the positions of those characters are tried, scanning for a single character is much cheaper
+     * than attempting every alternative of the combined pattern at every position.
+     */
+    private boolean find(Matcher matcher, String data, int start) {
+        if (this.leadingCharacters == null) {
+            return matcher.find();
+        }
+        
+        //Let look-behind and boundary constructs see the text outside of the region
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        
+        final int length = data.length();
+        for (int position = this.indexOfLeadingCharacter(data, start); position != -1; position = this.indexOfLeadingCharacter(data, position + 1)) {
+            matcher.region(position, length);
+            if (matcher.lookingAt()) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private int indexOfLeadingCharacter(String data, int start) {
+        if (this.leadingCharacters.length == 1) {
+            return data.indexOf(this.leadingCharacters[0], start);
+        }
+        
+        final int length = data.length();
+        for (int position = start; position < length; position++) {
+            final char c = data.charAt(position);
+            for (final char leadingCharacter : this.leadingCharacters) {
+                if (c == leadingCharacter) {
+                    return position;
+                }
+            }
+        }
+        
+        return -1;
+    }
+    
+    private int getMatchedAlternative(Matcher matcher) {
+        for (int index = 0; index < this.groupOffsets.length; index++) {
+            if (matcher.start(this.groupOffsets[index]) != -1) {
+                return index;
+            }
+        }
+        
+        throw new IllegalStateException("No alternative of combined pattern " + this.pattern + " matched: " + matcher.group());
+    }
+    
+    /**
+     * @return The literal character every match of the pattern must start with, -1 if it can't be determined
+     */
+    static int getLeadingCharacter(Pattern chunkingPattern) {
+        final String source = chunkingPattern.pattern();
+        if (source.length() == 0) {
+            return -1;
+        }
+        
+        final int flags = chunkingPattern.flags();
+        if ((flags & Pattern.LITERAL) != 0) {
+            return (flags & Pattern.CASE_INSENSITIVE) != 0 ? -1 : source.charAt(0);
+        }
+        if ((flags & (Pattern.CASE_INSENSITIVE | Pattern.COMMENTS)) != 0 || source.indexOf('|') != -1) {
+            return -1;
+        }
+        
+        final char leadingCharacter;
+        int next = 1;
+        final char first = source.charAt(0);
+        if (first == '\\') {
+            //Only an escaped punctuation character is a literal, letters and digits are character classes and such
+            if (source.length() == 1 || Character.isLetterOrDigit(source.charAt(1))) {
+                return -1;
+            }
+            leadingCharacter = source.charAt(1);
+            next = 2;
+        }
+        else if ("[](){}.*+?^$".indexOf(first) != -1) {
+            return -1;
+        }
+        else {
+            leadingCharacter = first;
+        }
+        
+        //A quantifier that allows zero occurrences makes the character optional
+        if (next < source.length() && "?*{".indexOf(source.charAt(next)) != -1) {
+            return -1;
+        }
+        
+        return leadingCharacter;
+    }
+    
+    /**
+     * Append the source of the pattern, scoping its flags to a non-capturing group and shifting any
+     * back references by the group offset of the alternative
+     */
+    static void appendAlternative(StringBuilder combined, Pattern chunkingPattern, int groupOffset) {
+        int flags = chunkingPattern.flags();
+        if ((flags & Pattern.CANON_EQ) != 0) {
+            throw new IllegalArgumentException("CANON_EQ is not supported for chunking pattern: " + chunkingPattern);
+        }
+        
+        final String source;
+        if ((flags & Pattern.LITERAL) != 0) {
+            source = Pattern.quote(chunkingPattern.pattern());
+            flags &= ~Pattern.LITERAL;
+        }
+        else {
+            source = chunkingPattern.pattern();
+        }
+        
+        combined.append("(?");
+        if ((flags & Pattern.CASE_INSENSITIVE) != 0) {
+            combined.append('i');
+        }
+        if ((flags & Pattern.UNIX_LINES) != 0) {
+            combined.append('d');
+        }
+        if ((flags & Pattern.MULTILINE) != 0) {
+            combined.append('m');
+        }
+        if ((flags & Pattern.DOTALL) != 0) {
+            combined.append('s');
+        }
+        if ((flags & Pattern.UNICODE_CASE) != 0) {
+            combined.append('u');
+        }
+        if ((flags & Pattern.COMMENTS) != 0) {
+            combined.append('x');
+        }
+        combined.append(':');
+        
+        final int groupCount = chunkingPattern.matcher("").groupCount();
+        final int length = source.length();
+        boolean quoted = false;
+        for (int index = 0; index < length; index++) {
+            final char c = source.charAt(index);
+            if (c != '\\' || index + 1 == length) {
+                combined.append(c);
+                continue;
+            }
+            
+            final char next = source.charAt(index + 1);
+            if (quoted) {
+                //Only \E is special within a quoted section
+                combined.append(c);
+                if (next == 'E') {
+                    quoted = false;
+                    combined.append(next);
+                    index++;
+                }
+            }
+            else if (next == 'Q') {
+                quoted = true;
+                combined.append(c).append(next);
+                index++;
+            }
+            else if (next >= '1' && next <= '9') {
+                //Back reference, consume digits the same way Pattern does and shift by the offset
+                int group = next - '0';
+                index++;
+                while (index + 1 < length) {
+                    final char digit = source.charAt(index + 1);
+                    if (digit < '0' || digit > '9' || group * 10 + (digit - '0') > groupCount) {
+                        break;
+                    }
+                    group = group * 10 + (digit - '0');
+                    index++;
+                }
+                combined.append("(?:\\").append(group + groupOffset).append(')');
+            }
+            else {
+                combined.append(c).append(next);
+                index++;
+            }
+        }
+        
+        combined.append(')');
+    }
+    
+    /**
+     * Exposes the groups of a single alternative of the combined pattern using the numbering of the
+     * original pattern
+     */
+    private static final class AlternativeMatchResult implements MatchResult {
+        private final MatchResult matchResult;
+        private final int groupOffset;
+        private final int groupCount;
+        
+        public AlternativeMatchResult(MatchResult matchResult, int groupOffset, int groupCount) {
+            this.matchResult = matchResult;
+            this.groupOffset = groupOffset;
+            this.groupCount = groupCount;
+        }
+
+        @Override
+        public int start() {
+            return this.matchResult.start(this.groupOffset);
+        }
+
+        @Override
+        public int start(int group) {
+            return this.matchResult.start(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public int end() {
+            return this.matchResult.end(this.groupOffset);
+        }
+
+        @Override
+        public int end(int group) {
+            return this.matchResult.end(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public String group() {
+            return this.matchResult.group(this.groupOffset);
+        }
+
+        @Override
+        public String group(int group) {
+            return this.matchResult.group(this.toCombinedGroup(group));
+        }
+
+        @Override
+        public int groupCount() {
+            return this.groupCount;
+        }
+        
+        private int toCombinedGroup(int group) {
+            if (group < 0 || group > this.groupCount) {
+                throw new IndexOutOfBoundsException("No group " + group);
+            }
+            return this.groupOffset + group;
+        }
+    }
+}
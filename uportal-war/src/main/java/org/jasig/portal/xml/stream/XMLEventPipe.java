@@ -0,0 +1,300 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Connects an {@link XMLEventWriter} used by one thread to an {@link XMLEventReader} used by another.
+ * Events are handed over in batches through a bounded queue, the writer blocks while the queue is
+ * full and the reader blocks while it is empty. The writing thread must call {@link #complete()} or
+ * {@link #fail(Throwable)} when it is done, the reader then either ends or throws the failure.
+ * Closing the reader makes any further writes fail so the writing thread doesn't wait on a reader
+ * that has gone away.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class XMLEventPipe {
+    private static final List<XMLEvent> END = new ArrayList<XMLEvent>(0);
+    
+    private final BlockingQueue<List<XMLEvent>> queue;
+    private final int batchSize;
+    private final long readTimeout;
+    private final long writeTimeout;
+    
+    private final PipeWriter writer = new PipeWriter();
+    private final PipeReader reader = new PipeReader();
+    
+    private volatile boolean closed = false;
+    private volatile Throwable failure;
+    
+    /**
+     * @param batchSize Number of events written before they are handed to the reader
+     * @param queueSize Number of batches that can be waiting for the reader
+     * @param timeout Milliseconds either side waits on the other before giving up
+     */
+    public XMLEventPipe(int batchSize, int queueSize, long timeout) {
+        this(batchSize, queueSize, timeout, timeout);
+    }
+    
+    /**
+     * @param batchSize Number of events written before they are handed to the reader
+     * @param queueSize Number of batches that can be waiting for the reader
+     * @param readTimeout Milliseconds the reader waits for the writer before giving up
+     * @param writeTimeout Milliseconds the writer waits for the reader to make room in a full queue before giving up
+     */
+    public XMLEventPipe(int batchSize, int queueSize, long readTimeout, long writeTimeout) {
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<List<XMLEvent>>(queueSize);
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+    }
+    
+    /**
+     * @return The writer side of the pipe
+     */
+    public XMLEventWriter getWriter() {
+        return this.writer;
+    }
+    
+    /**
+     * @return The reader side of the pipe
+     */
+    public XMLEventReader getReader() {
+        return this.reader;
+    }
+    
+    /**
+     * Hand any remaining events to the reader and signal that no more events will be written
+     */
+    public void complete() throws XMLStreamException {
+        this.writer.flushBatch();
+        this.put(END);
+    }
+    
+    /**
+     * Signal that writing failed, the reader will throw a {@link RuntimeException} wrapping the failure
+     * once it has read the events written so far.
+     */
+    public void fail(Throwable failure) {
+        this.failure = failure;
+        try {
+            this.writer.flushBatch();
+            this.put(END);
+        }
+        catch (XMLStreamException e) {
+            //Reader is gone or not reading, nothing else to do
+        }
+    }
+    
+    private void put(List<XMLEvent> batch) throws XMLStreamException {
+        final long end = System.currentTimeMillis() + this.writeTimeout;
+        try {
+            while (!this.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                if (this.closed) {
+                    throw new XMLStreamException("XMLEventPipe reader has been closed");
+                }
+                if (System.currentTimeMillis() > end) {
+                    throw new XMLStreamException("XMLEventPipe reader did not read any events for " + this.writeTimeout + "ms");
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XMLStreamException("Interrupted while writing to XMLEventPipe", e);
+        }
+    }
+    
+    private List<XMLEvent> take() {
+        try {
+            final List<XMLEvent> batch = this.queue.poll(this.readTimeout, TimeUnit.MILLISECONDS);
+            if (batch == null) {
+                this.closed = true;
+                throw new IllegalStateException("XMLEventPipe writer did not write any events for " + this.readTimeout + "ms");
+            }
+            return batch;
+        }
+        catch (InterruptedException e) {
+            this.closed = true;
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading from XMLEventPipe", e);
+        }
+    }
+    
+    private class PipeWriter implements XMLEventWriter {
+        private NamespaceContext namespaceContext;
+        private List<XMLEvent> batch = new ArrayList<XMLEvent>(batchSize);
+        
+        void flushBatch() throws XMLStreamException {
+            if (!this.batch.isEmpty()) {
+                final List<XMLEvent> fullBatch = this.batch;
+                this.batch = new ArrayList<XMLEvent>(batchSize);
+                put(fullBatch);
+            }
+        }
+
+        @Override
+        public void add(XMLEvent event) throws XMLStreamException {
+            if (closed) {
+                throw new XMLStreamException("XMLEventPipe reader has been closed");
+            }
+            this.batch.add(event);
+            if (this.batch.size() >= batchSize) {
+                this.flushBatch();
+            }
+        }
+
+        @Override
+        public void add(XMLEventReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                this.add(reader.nextEvent());
+            }
+        }
+
+        @Override
+        public void flush() throws XMLStreamException {
+            this.flushBatch();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            this.flushBatch();
+        }
+
+        @Override
+        public String getPrefix(String uri) throws XMLStreamException {
+            return this.namespaceContext != null ? this.namespaceContext.getPrefix(uri) : null;
+        }
+
+        @Override
+        public void setPrefix(String prefix, String uri) throws XMLStreamException {
+        }
+
+        @Override
+        public void setDefaultNamespace(String uri) throws XMLStreamException {
+        }
+
+        @Override
+        public void setNamespaceContext(NamespaceContext context) throws XMLStreamException {
+            this.namespaceContext = context;
+        }
+
+        @Override
+        public NamespaceContext getNamespaceContext() {
+            return this.namespaceContext;
+        }
+    }
+    
+    private class PipeReader extends BaseXMLEventReader {
+        private Iterator<XMLEvent> batch = null;
+        private XMLEvent peekedEvent = null;
+        private boolean ended = false;
+        
+        public PipeReader() {
+            super(null);
+        }
+        
+        /**
+         * @return true if there is another event, waits for the next batch if needed
+         */
+        private boolean fill() {
+            if (this.peekedEvent != null) {
+                return true;
+            }
+            
+            while (!this.ended && (this.batch == null || !this.batch.hasNext())) {
+                final List<XMLEvent> next = take();
+                if (next == END) {
+                    this.ended = true;
+                    this.batch = null;
+                    
+                    final Throwable t = failure;
+                    if (t != null) {
+                        throw new RuntimeException("Writing to XMLEventPipe failed", t);
+                    }
+                }
+                else {
+                    this.batch = next.iterator();
+                }
+            }
+            
+            return !this.ended;
+        }
+
+        @Override
+        protected XMLEvent internalNextEvent() throws XMLStreamException {
+            if (!this.fill()) {
+                throw new XMLStreamException("No more events in XMLEventPipe");
+            }
+            
+            final XMLEvent event = this.peekedEvent;
+            if (event != null) {
+                this.peekedEvent = null;
+                return event;
+            }
+            return this.batch.next();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.fill();
+        }
+
+        @Override
+        public XMLEvent peek() throws XMLStreamException {
+            if (!this.fill()) {
+                return null;
+            }
+            
+            if (this.peekedEvent == null) {
+                this.peekedEvent = this.batch.next();
+            }
+            return this.peekedEvent;
+        }
+
+        @Override
+        public Object getProperty(String name) throws IllegalArgumentException {
+            return null;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            closed = true;
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jasig.portal.concurrency.locking.IClusterLockService.TryLockFunctionResult;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+/**
+ * Tests lease renewal in {@link ClusterLockServiceImpl} against an in memory {@link IClusterLockDao}
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class ClusterLockServiceImplLeaseTest {
+    private static final long UPDATE_LOCK_RATE = 20;
+    
+    private ExecutorService lockMonitorExecutorService;
+    private RecordingClusterLockDao clusterLockDao;
+    private ClusterLockServiceImpl clusterLockService;
+    
+    @Before
+    public void setup() {
+        this.lockMonitorExecutorService = Executors.newCachedThreadPool();
+        this.clusterLockDao = new RecordingClusterLockDao();
+        
+        this.clusterLockService = new ClusterLockServiceImpl();
+        this.clusterLockService.setClusterLockDao(this.clusterLockDao);
+        this.clusterLockService.setLockMonitorExecutorService(this.lockMonitorExecutorService);
+        this.clusterLockService.setUpdateLockRate(Duration.millis(UPDATE_LOCK_RATE));
+    }
+    
+    @After
+    public void tearDown() throws InterruptedException {
+        this.lockMonitorExecutorService.shutdownNow();
+        this.lockMonitorExecutorService.awaitTermination(1, TimeUnit.SECONDS);
+    }
+    
+    @Test
+    public void testLeaseRenewedWhileHeld() throws InterruptedException {
+        final TryLockFunctionResult<Integer> result = this.clusterLockService.doInTryLock("mutexA", new Function<String, Integer>() {
+            @Override
+            public Integer apply(String input) {
+                sleep(UPDATE_LOCK_RATE * 10);
+                return clusterLockDao.getRenewalCount(input);
+            }
+        });
+        
+        assertTrue(result.isExecuted());
+        assertTrue("Only renewed " + result.getResult() + " times", result.getResult() >= 3);
+        assertFalse(this.clusterLockDao.isLocked("mutexA"));
+        assertEquals(1, this.clusterLockDao.getReleaseCount("mutexA"));
+        
+        //No more renewals once released
+        final int renewals = this.clusterLockDao.getRenewalCount("mutexA");
+        sleep(UPDATE_LOCK_RATE * 5);
+        assertEquals(renewals, this.clusterLockDao.getRenewalCount("mutexA"));
+    }
+    
+    @Test
+    public void testLeaseExpiresAfterMaximumLockDuration() throws InterruptedException {
+        this.clusterLockService.setMaximumLockDuration(Duration.millis(UPDATE_LOCK_RATE * 3));
+        
+        final TryLockFunctionResult<Boolean> result = this.clusterLockService.doInTryLock("mutexA", new Function<String, Boolean>() {
+            @Override
+            public Boolean apply(String input) {
+                sleep(UPDATE_LOCK_RATE * 15);
+                return clusterLockDao.isLocked(input);
+            }
+        });
+        
+        //The database lock was given up while the function was still running
+        assertTrue(result.isExecuted());
+        assertFalse(result.getResult());
+        
+        //Renewal stopped when the lease expired and the lock was not released a second time
+        final List<Set<String>> updates = this.clusterLockDao.getUpdates();
+        assertTrue("Renewed " + updates.size() + " times", updates.size() < 10);
+        assertEquals(1, this.clusterLockDao.getReleaseCount("mutexA"));
+        assertFalse(this.clusterLockDao.isLocked("mutexA"));
+    }
+    
+    @Test
+    public void testRestartedWorkerDoesNotRenewReleasedLease() throws InterruptedException {
+        final Function<String, Object> noop = new Function<String, Object>() {
+            @Override
+            public Object apply(String input) {
+                return null;
+            }
+        };
+        
+        //Release a lease and give the renewal worker time to stop
+        assertTrue(this.clusterLockService.doInTryLock("mutexA", noop).isExecuted());
+        sleep(UPDATE_LOCK_RATE * 5);
+        final int updatesBeforeRestart = this.clusterLockDao.getUpdates().size();
+        
+        //Restart the worker with a new lease while releasing and acquiring other leases
+        final TryLockFunctionResult<Object> result = this.clusterLockService.doInTryLock("mutexB", new Function<String, Object>() {
+            @Override
+            public Object apply(String input) {
+                for (int i = 0; i < 20; i++) {
+                    try {
+                        clusterLockService.doInTryLock("mutexC", noop);
+                    }
+                    catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    sleep(UPDATE_LOCK_RATE / 4);
+                }
+                return null;
+            }
+        });
+        assertTrue(result.isExecuted());
+        
+        final List<Set<String>> updates = this.clusterLockDao.getUpdates();
+        for (final Set<String> update : updates.subList(updatesBeforeRestart, updates.size())) {
+            assertFalse("Released lease renewed by restarted worker: " + update, update.contains("mutexA"));
+        }
+        assertTrue("mutexB was never renewed", this.clusterLockDao.getRenewalCount("mutexB") > 0);
+        
+        //A lease released while an update was running is reported lost, it is never kept locked
+        assertFalse(this.clusterLockDao.isLocked("mutexA"));
+        assertFalse(this.clusterLockDao.isLocked("mutexB"));
+        assertFalse(this.clusterLockDao.isLocked("mutexC"));
+    }
+    
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /**
+     * In memory lock dao that records lock updates and releases
+     */
+    private static final class RecordingClusterLockDao implements IClusterLockDao {
+        private final Set<String> locked = new HashSet<String>();
+        private final List<Set<String>> updates = new ArrayList<Set<String>>();
+        private final List<String> releases = new ArrayList<String>();
+
+        @Override
+        public ClusterMutex getClusterMutex(String mutexName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized boolean getLock(String mutexName) {
+            return this.locked.add(mutexName);
+        }
+
+        @Override
+        public void updateLock(String mutexName) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public synchronized Set<String> updateLocks(Collection<String> mutexNames) {
+            this.updates.add(new LinkedHashSet<String>(mutexNames));
+            
+            final Set<String> lost = new HashSet<String>();
+            for (final String mutexName : mutexNames) {
+                if (!this.locked.contains(mutexName)) {
+                    lost.add(mutexName);
+                }
+            }
+            return lost;
+        }
+
+        @Override
+        public synchronized void releaseLock(String mutexName) {
+            if (!this.locked.remove(mutexName)) {
+                throw new IllegalMonitorStateException(mutexName + " is not locked");
+            }
+            this.releases.add(mutexName);
+        }
+        
+        public synchronized boolean isLocked(String mutexName) {
+            return this.locked.contains(mutexName);
+        }
+        
+        public synchronized List<Set<String>> getUpdates() {
+            return new ArrayList<Set<String>>(this.updates);
+        }
+        
+        public synchronized int getRenewalCount(String mutexName) {
+            int count = 0;
+            for (final Set<String> update : this.updates) {
+                if (update.contains(mutexName)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        
+        public synchronized int getReleaseCount(String mutexName) {
+            int count = 0;
+            for (final String releasedMutexName : this.releases) {
+                if (releasedMutexName.equals(mutexName)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
@@ -66,6 +66,10 @@ public class ClusterLockServiceImplTest extends BaseJpaDaoTest {
     @Qualifier("dbOnly")
     private IClusterLockService dbOnlyclusterLockService;
     
+    @Autowired
+    @Qualifier("localOnly")
+    private IClusterLockService localOnlyClusterLockService;
+    
     @Autowired
     private IPortalInfoProvider portalInfoProvider;
     
@@ -87,6 +91,11 @@ public class ClusterLockServiceImplTest extends BaseJpaDaoTest {
         testTryLockFunction(this.dbOnlyclusterLockService);
     }
 
+    @Test
+    public void testLocalOnlyTryLockFunction() throws InterruptedException  {
+        testTryLockFunction(this.localOnlyClusterLockService);
+    }
+
     private void testTryLockFunction(final IClusterLockService service) throws InterruptedException {
         reset(portalInfoProvider);
         when(portalInfoProvider.getServerName()).thenReturn("ServerA");
@@ -26,6 +26,9 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -456,4 +459,53 @@ public class JpaClusterLockDaoTest extends BaseJpaDaoTest {
             }
         });
     }
+    
+    @Test
+    public void testUpdateLocks() throws InterruptedException  {
+        final AtomicReference<String> currentServer = new AtomicReference<String>("ServerA");
+        final String lockedMutexName = "testUpdateLocks_locked";
+        final String unlockedMutexName = "testUpdateLocks_unlocked";
+        
+        reset(portalInfoProvider);
+        when(portalInfoProvider.getServerName()).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(InvocationOnMock invocation) throws Throwable {
+                return currentServer.get();
+            }
+        });
+
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                assertTrue(clusterLockDao.getLock(lockedMutexName));
+            }
+        });
+
+        //Only the mutex locked by this server can be updated
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                final Set<String> lostMutexNames = clusterLockDao.updateLocks(Arrays.asList(lockedMutexName, unlockedMutexName));
+                assertEquals(Collections.singleton(unlockedMutexName), lostMutexNames);
+            }
+        });
+
+        //Another server can't update the mutex
+        currentServer.set("ServerB");
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                final Set<String> lostMutexNames = clusterLockDao.updateLocks(Arrays.asList(lockedMutexName));
+                assertEquals(Collections.singleton(lockedMutexName), lostMutexNames);
+            }
+        });
+
+        currentServer.set("ServerA");
+        execute(new CallableWithoutResult() {
+            @Override
+            protected void callWithoutResult() {
+                clusterLockDao.releaseLock(lockedMutexName);
+            }
+        });
+    }
 }
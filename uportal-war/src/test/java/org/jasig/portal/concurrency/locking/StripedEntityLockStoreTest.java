@@ -0,0 +1,145 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.concurrency.locking;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jasig.portal.concurrency.IEntityLock;
+import org.jasig.portal.concurrency.IEntityLockService;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class StripedEntityLockStoreTest {
+    protected final Logger logger = LoggerFactory.getLogger(this.getClass());
+    
+    @Test
+    public void testAddFindDelete() throws Exception {
+        final StripedEntityLockStore store = new StripedEntityLockStore();
+        
+        final Date expiration = new Date(System.currentTimeMillis() + 60000);
+        final IEntityLock lockA = new EntityLockImpl(String.class, "1", IEntityLockService.READ_LOCK, expiration, "ownerA");
+        final IEntityLock lockB = new EntityLockImpl(String.class, "1", IEntityLockService.READ_LOCK, expiration, "ownerB");
+        final IEntityLock lockC = new EntityLockImpl(Integer.class, "1", IEntityLockService.WRITE_LOCK, expiration, "ownerA");
+        store.add(lockA);
+        store.add(lockB);
+        store.add(lockC);
+        
+        assertEquals(2, store.find(String.class, "1", null, null, null).length);
+        assertEquals(1, store.find(String.class, "1", IEntityLockService.READ_LOCK, expiration, "ownerA").length);
+        assertEquals(2, store.find(null, null, null, null, "ownerA").length);
+        assertEquals(1, store.findUnexpired(new Date(), Integer.class, "1", IEntityLockService.WRITE_LOCK, null).length);
+        assertEquals(0, store.findUnexpired(new Date(expiration.getTime() + 1), String.class, "1", null, null).length);
+        
+        store.delete(lockA);
+        assertEquals(1, store.find(String.class, "1", null, null, null).length);
+        
+        final Date newExpiration = new Date(expiration.getTime() + 60000);
+        store.update(lockB, newExpiration);
+        ((EntityLockImpl) lockB).setExpirationTime(newExpiration);
+        assertEquals(1, store.find(String.class, "1", null, newExpiration, "ownerB").length);
+        
+        store.delete(lockB);
+        store.delete(lockC);
+        assertEquals(0, store.getLockedEntityCount());
+    }
+    
+    @Test
+    public void testExpiredLocksPurged() throws Exception {
+        final StripedEntityLockStore store = new StripedEntityLockStore();
+        
+        final Date expiration = new Date(System.currentTimeMillis() + 50);
+        store.add(new EntityLockImpl(String.class, "1", IEntityLockService.WRITE_LOCK, expiration, "ownerA"));
+        store.add(new EntityLockImpl(String.class, "2", IEntityLockService.WRITE_LOCK, new Date(System.currentTimeMillis() + 60000), "ownerA"));
+        assertEquals(2, store.getLockedEntityCount());
+        
+        Thread.sleep(100);
+        assertEquals(0, store.find(String.class, "1", null, null, null).length);
+        
+        //Buckets are purged once the second they cover has passed
+        store.deleteExpired(new Date(expiration.getTime() + 1000));
+        assertEquals(1, store.getLockedEntityCount());
+        assertEquals(1, store.find(String.class, "2", null, null, null).length);
+    }
+    
+    @Test
+    public void testConcurrentThroughput() throws Exception {
+        final long memoryTime = this.runConcurrentLocking(new MemoryEntityLockStore());
+        final StripedEntityLockStore stripedStore = new StripedEntityLockStore();
+        final long stripedTime = this.runConcurrentLocking(stripedStore);
+        
+        this.logger.info("Concurrent locking took {}ms with MemoryEntityLockStore and {}ms with StripedEntityLockStore", memoryTime, stripedTime);
+        assertEquals(0, stripedStore.getLockedEntityCount());
+    }
+    
+    /**
+     * Has several threads add, check and remove locks on a shared set of entities
+     * 
+     * @return Time in ms taken for all threads to complete
+     */
+    private long runConcurrentLocking(final IEntityLockStore store) throws Exception {
+        final int threads = 8;
+        final int entities = 500;
+        final int iterations = 5000;
+        
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final String owner = "owner" + t;
+                tasks.add(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = 0; i < iterations; i++) {
+                            final String key = Integer.toString(i % entities);
+                            final IEntityLock lock = new EntityLockImpl(String.class, key, IEntityLockService.READ_LOCK, new Date(System.currentTimeMillis() + 60000), owner);
+                            
+                            store.findUnexpired(new Date(), String.class, key, null, null);
+                            store.add(lock);
+                            store.find(String.class, key, lock.getLockType(), lock.getExpirationTime(), owner);
+                            store.delete(lock);
+                        }
+                        return null;
+                    }
+                });
+            }
+            
+            final long start = System.currentTimeMillis();
+            for (final Future<Object> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+            return System.currentTimeMillis() - start;
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jasig.portal.events.PortalEvent.PortalEventBuilder;
+import org.jasig.portal.security.SystemPerson;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationListener;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortalEventMulticasterTest {
+    private ExecutorService executorService;
+    private PortalEventMulticaster multicaster;
+    
+    @Before
+    public void setup() {
+        this.executorService = Executors.newFixedThreadPool(2);
+        
+        this.multicaster = new PortalEventMulticaster();
+        this.multicaster.setPortalEventExecutor(this.executorService);
+    }
+    
+    @After
+    public void tearDown() {
+        this.executorService.shutdownNow();
+    }
+    
+    @Test
+    public void testSynchronousAndAsynchronousDelivery() throws Exception {
+        final RecordingListener asyncListener = new RecordingListener(10);
+        final SynchronousRecordingListener syncListener = new SynchronousRecordingListener(10);
+        this.multicaster.addApplicationListener(asyncListener);
+        this.multicaster.addApplicationListener(syncListener);
+        
+        final Thread publishingThread = Thread.currentThread();
+        for (int i = 0; i < 10; i++) {
+            this.multicaster.multicastEvent(newLoginEvent(Collections.<String>emptySet()));
+        }
+        
+        //Synchronous listener is done before multicastEvent returns
+        assertEquals(10, syncListener.events.size());
+        for (final Thread thread : syncListener.threads) {
+            assertSame(publishingThread, thread);
+        }
+        
+        assertTrue(asyncListener.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(syncListener.events, asyncListener.events);
+        for (final Thread thread : asyncListener.threads) {
+            assertNotSame(publishingThread, thread);
+        }
+        assertEquals(0, this.multicaster.getDroppedEvents());
+    }
+    
+    @Test
+    public void testDeferredGroupsResolvedOffPublishingThread() throws Exception {
+        final RecordingListener asyncListener = new RecordingListener(1);
+        this.multicaster.addApplicationListener(asyncListener);
+        
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicReference<Thread> lookupThread = new AtomicReference<Thread>();
+        final LoginEvent loginEvent = newLoginEvent(new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                lookups.incrementAndGet();
+                lookupThread.set(Thread.currentThread());
+                return ImmutableSet.of("local.0", "local.1");
+            }
+        });
+        
+        this.multicaster.multicastEvent(loginEvent);
+        
+        assertTrue(asyncListener.latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), lookupThread.get());
+        assertEquals(ImmutableSet.of("local.0", "local.1"), loginEvent.getGroups());
+        assertEquals(1, lookups.get());
+    }
+    
+    @Test
+    public void testFullQueueDropsAfterBlockTimeout() throws Exception {
+        this.multicaster.setQueueCapacity(2);
+        this.multicaster.setBlockTimeout(10);
+        
+        final RecordingListener asyncListener = new RecordingListener(2);
+        this.multicaster.addApplicationListener(asyncListener);
+        
+        //Occupy both executor threads so nothing is drained while publishing
+        final CountDownLatch blocked = this.blockExecutor();
+        
+        for (int i = 0; i < 5; i++) {
+            this.multicaster.multicastEvent(newLoginEvent(Collections.<String>emptySet()));
+        }
+        
+        assertEquals(3, this.multicaster.getDroppedEvents());
+        assertEquals(2, this.multicaster.getQueuedEvents());
+        
+        blocked.countDown();
+        assertTrue(asyncListener.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, asyncListener.events.size());
+        for (final Thread thread : asyncListener.threads) {
+            assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+    
+    @Test
+    public void testFullQueueWaitsForSpace() throws Exception {
+        this.multicaster.setQueueCapacity(1);
+        this.multicaster.setBlockTimeout(TimeUnit.SECONDS.toMillis(5));
+        
+        final RecordingListener asyncListener = new RecordingListener(20);
+        this.multicaster.addApplicationListener(asyncListener);
+        
+        final List<PortalEvent> published = new ArrayList<PortalEvent>();
+        for (int i = 0; i < 20; i++) {
+            final LoginEvent event = newLoginEvent(Collections.<String>emptySet());
+            published.add(event);
+            this.multicaster.multicastEvent(event);
+        }
+        
+        assertTrue(asyncListener.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, this.multicaster.getDroppedEvents());
+        assertEquals(published, asyncListener.events);
+        for (final Thread thread : asyncListener.threads) {
+            assertNotSame(Thread.currentThread(), thread);
+        }
+    }
+    
+    @Test
+    public void testRejectedDeliveryKeepsOrder() throws Exception {
+        this.executorService.shutdown();
+        
+        final RecordingListener asyncListener = new RecordingListener(10);
+        this.multicaster.addApplicationListener(asyncListener);
+        
+        final List<PortalEvent> published = new ArrayList<PortalEvent>();
+        for (int i = 0; i < 10; i++) {
+            final LoginEvent event = newLoginEvent(Collections.<String>emptySet());
+            published.add(event);
+            this.multicaster.multicastEvent(event);
+        }
+        
+        //The executor rejects every drain so the publishing thread delivers, in order
+        assertEquals(published, asyncListener.events);
+        assertEquals(0, this.multicaster.getQueuedEvents());
+        assertEquals(0, this.multicaster.getDroppedEvents());
+    }
+    
+    private CountDownLatch blockExecutor() {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        for (int i = 0; i < 2; i++) {
+            this.executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        blocked.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        return blocked;
+    }
+    
+    @Test
+    public void testSynchronousWhenDisabled() throws Exception {
+        this.multicaster.setAsynchronous(false);
+        
+        final RecordingListener listener = new RecordingListener(1);
+        this.multicaster.addApplicationListener(listener);
+        
+        final LoginEvent loginEvent = newLoginEvent(new Supplier<Set<String>>() {
+            @Override
+            public Set<String> get() {
+                return ImmutableSet.of("local.0");
+            }
+        });
+        this.multicaster.multicastEvent(loginEvent);
+        
+        assertEquals(1, listener.events.size());
+        assertSame(Thread.currentThread(), listener.threads.get(0));
+        assertTrue(loginEvent.toString().contains("groups=1"));
+    }
+    
+    private static LoginEvent newLoginEvent(Set<String> groups) {
+        return new LoginEvent(newEventBuilder(), groups, Collections.<String, List<String>>emptyMap());
+    }
+    
+    private static LoginEvent newLoginEvent(Supplier<Set<String>> groups) {
+        return new LoginEvent(newEventBuilder(), groups, Collections.<String, List<String>>emptyMap());
+    }
+
+    private static PortalEventBuilder newEventBuilder() {
+        return new PortalEventBuilder(PortalEvent.UNKNOWN_SOURCE, "example.com", "1234567890123_system_AAAAAAAAAAA", SystemPerson.INSTANCE);
+    }
+    
+    private static class RecordingListener implements ApplicationListener<PortalEvent> {
+        final List<PortalEvent> events = new CopyOnWriteArrayList<PortalEvent>();
+        final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        final CountDownLatch latch;
+        
+        public RecordingListener(int expectedEvents) {
+            this.latch = new CountDownLatch(expectedEvents);
+        }
+
+        @Override
+        public void onApplicationEvent(PortalEvent event) {
+            this.events.add(event);
+            this.threads.add(Thread.currentThread());
+            this.latch.countDown();
+        }
+    }
+    
+    private static final class SynchronousRecordingListener extends RecordingListener implements SynchronousPortalEventListener {
+        public SynchronousRecordingListener(int expectedEvents) {
+            super(expectedEvents);
+        }
+    }
+}
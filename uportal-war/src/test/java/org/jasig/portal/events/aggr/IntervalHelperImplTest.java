@@ -20,11 +20,23 @@
 package org.jasig.portal.events.aggr;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import org.jasig.portal.events.aggr.dao.DateDimensionDao;
 import org.jasig.portal.events.aggr.dao.TimeDimensionDao;
+import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.LocalTime;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
@@ -219,4 +231,46 @@ public class IntervalHelperImplTest {
                 
     }
     
+    @Test
+    public void testDimensionTables() {
+        final List<TimeDimension> timeDimensions = new ArrayList<TimeDimension>();
+        for (LocalTime time = new LocalTime(0, 0); timeDimensions.size() < 24 * 60; time = time.plusMinutes(1)) {
+            final TimeDimension timeDimension = mock(TimeDimension.class);
+            when(timeDimension.getTime()).thenReturn(time);
+            timeDimensions.add(timeDimension);
+        }
+        when(this.timeDimensionDao.getTimeDimensions()).thenReturn(timeDimensions);
+        
+        final List<DateDimension> dateDimensions = new ArrayList<DateDimension>();
+        for (DateMidnight date = new DateMidnight(2012, 1, 1); date.getMonthOfYear() == 1; date = date.plusDays(1)) {
+            final DateDimension dateDimension = mock(DateDimension.class);
+            when(dateDimension.getDate()).thenReturn(date);
+            dateDimensions.add(dateDimension);
+        }
+        when(this.dateDimensionDao.getDateDimensions()).thenReturn(dateDimensions);
+        
+        final DateTime instant = new DateTime(2012, 1, 6, 20, 22, 56, 117);
+        for (int i = 0; i < 3; i++) {
+            final AggregationIntervalInfo intervalInfo = this.helperImpl.getIntervalInfo(AggregationInterval.FIVE_MINUTE, instant);
+            assertEquals(new LocalTime(20, 20), intervalInfo.getTimeDimension().getTime());
+            assertEquals(new DateMidnight(2012, 1, 6), intervalInfo.getDateDimension().getDate());
+        }
+        
+        //Resolved from the tables, no per-lookup queries
+        verify(this.timeDimensionDao, times(1)).getTimeDimensions();
+        verify(this.dateDimensionDao, times(1)).getDateDimensions();
+        verify(this.timeDimensionDao, never()).getTimeDimensionByTime(any(LocalTime.class));
+        verify(this.dateDimensionDao, never()).getDateDimensionByDate(any(DateMidnight.class));
+        
+        //Dates outside of the table fall back to the dao
+        final AggregationIntervalInfo missingInfo = this.helperImpl.getIntervalInfo(AggregationInterval.DAY, new DateTime(2012, 3, 1, 12, 0, 0, 0));
+        assertNull(missingInfo.getDateDimension());
+        verify(this.dateDimensionDao, times(1)).getDateDimensionByDate(new DateMidnight(2012, 3, 1));
+        
+        //Clearing the tables forces a reload
+        this.helperImpl.clearDimensionTables();
+        this.helperImpl.getIntervalInfo(AggregationInterval.HOUR, instant);
+        verify(this.timeDimensionDao, times(2)).getTimeDimensions();
+        verify(this.dateDimensionDao, times(2)).getDateDimensions();
+    }
 }
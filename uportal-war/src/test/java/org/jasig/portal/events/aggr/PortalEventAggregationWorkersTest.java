@@ -0,0 +1,388 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.aggr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.mutable.MutableInt;
+import org.jasig.portal.concurrency.FunctionWithoutResult;
+import org.jasig.portal.events.PortalEvent;
+import org.jasig.portal.events.TestEventFactory;
+import org.jasig.portal.events.aggr.dao.IEventAggregationManagementDao;
+import org.jasig.portal.events.aggr.session.EventSession;
+import org.jasig.portal.events.aggr.session.EventSessionDao;
+import org.jasig.portal.events.handlers.db.IPortalEventDao;
+import org.jasig.portal.security.IPerson;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+/**
+ * Tests for the parallel worker transactions used by partitioned aggregation
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortalEventAggregationWorkersTest {
+    private ExecutorService executorService;
+    private RecordingTransactionManager transactionManager;
+    private PortalEventAggregationManagerImpl portalEventAggregationManager;
+    private List<String> aggregated;
+    
+    @Before
+    public void setup() {
+        executorService = Executors.newFixedThreadPool(4);
+        transactionManager = new RecordingTransactionManager();
+        aggregated = Collections.synchronizedList(new ArrayList<String>());
+        
+        portalEventAggregationManager = new PortalEventAggregationManagerImpl();
+        portalEventAggregationManager.setAggregationExecutorService(executorService);
+        portalEventAggregationManager.setAggrEventsPlatformTransactionManager(transactionManager);
+        portalEventAggregationManager.setAggregationThreads(3);
+    }
+    
+    @After
+    public void shutdown() {
+        executorService.shutdownNow();
+    }
+    
+    @Test
+    public void testAllWorkersCommit() {
+        portalEventAggregationManager.executeInWorkerTransactions(Arrays.asList(
+                new AggregatingWorker("a"), new AggregatingWorker("b"), new AggregatingWorker("c")));
+        
+        assertEquals(3, aggregated.size());
+        assertEquals(3, transactionManager.commits.get());
+        assertEquals(0, transactionManager.rollbacks.get());
+    }
+    
+    @Test
+    public void testFailedWorkerRollsBackAllPartitions() {
+        try {
+            portalEventAggregationManager.executeInWorkerTransactions(Arrays.asList(
+                    new AggregatingWorker("a"), new FailingWorker(), new AggregatingWorker("c")));
+            fail("Worker failure should fail the aggregation");
+        }
+        catch (IllegalArgumentException e) {
+            //expected
+        }
+        
+        assertEquals(0, transactionManager.commits.get());
+        assertEquals(3, transactionManager.rollbacks.get());
+    }
+    
+    @Test
+    public void testFailedFlushRollsBackAllPartitions() {
+        transactionManager.failFlush = true;
+        try {
+            portalEventAggregationManager.executeInWorkerTransactions(Arrays.asList(
+                    new AggregatingWorker("a"), new AggregatingWorker("b"), new AggregatingWorker("c")));
+            fail("Flush failure should fail the aggregation");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        
+        assertEquals(0, transactionManager.commits.get());
+        assertEquals(3, transactionManager.rollbacks.get());
+    }
+    
+    @Test
+    public void testStuckWorkerTimesOut() throws Exception {
+        portalEventAggregationManager.setAggregationWorkerTimeout(Period.millis(200));
+        final CountDownLatch release = new CountDownLatch(1);
+        
+        final long start = System.currentTimeMillis();
+        try {
+            portalEventAggregationManager.executeInWorkerTransactions(Arrays.asList(
+                    new AggregatingWorker("a"), new BlockingWorker(release)));
+            fail("Stuck worker should time out");
+        }
+        catch (IllegalStateException e) {
+            //expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        
+        //The stuck worker rolls back once it finishes
+        release.countDown();
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(5, TimeUnit.SECONDS));
+        
+        assertEquals(0, transactionManager.commits.get());
+        assertEquals(2, transactionManager.rollbacks.get());
+    }
+    
+    @Test
+    public void testFailedWorkerEventsAggregatedOnNextRun() {
+        final RawEventsDao portalEventDao = new RawEventsDao();
+        final IPerson person = mock(IPerson.class);
+        when(person.getUserName()).thenReturn("student");
+        for (int i = 0; i < 5; i++) {
+            portalEventDao.events.add(TestEventFactory.newLoginEvent(this, "serverName", "session" + i, person,
+                    Collections.<String>emptySet(), Collections.<String, List<String>>emptyMap()));
+        }
+        
+        final RecordingAggregator recordingAggregator = new RecordingAggregator(false);
+        final RecordingAggregator failingAggregator = new RecordingAggregator(true);
+        
+        portalEventAggregationManager.setPortalEventDao(portalEventDao);
+        portalEventAggregationManager.setRawEventsPlatformTransactionManager(portalEventDao);
+        final IEventAggregationManagementDao eventAggregationManagementDao = mock(IEventAggregationManagementDao.class);
+        when(eventAggregationManagementDao.getDefaultAggregatedGroupConfig()).thenReturn(mock(AggregatedGroupConfig.class));
+        when(eventAggregationManagementDao.getDefaultAggregatedIntervalConfig()).thenReturn(mock(AggregatedIntervalConfig.class));
+        portalEventAggregationManager.setEventAggregationManagementDao(eventAggregationManagementDao);
+        portalEventAggregationManager.setEventSessionDao(mock(EventSessionDao.class));
+        portalEventAggregationManager.setIntervalHelper(mock(AggregationIntervalHelper.class));
+        portalEventAggregationManager.setPortalEventAggregators(new LinkedHashSet<IPortalEventAggregator<PortalEvent>>(
+                Arrays.<IPortalEventAggregator<PortalEvent>>asList(recordingAggregator, failingAggregator)));
+        
+        final IEventAggregatorStatus eventAggregatorStatus = mock(IEventAggregatorStatus.class);
+        final DateTime end = DateTime.now().plusMinutes(1);
+        try {
+            portalEventAggregationManager.doAggregateRawEventsPartitioned(new DateTime(0), end, new MutableInt(), eventAggregatorStatus);
+            fail("Worker failure should fail the aggregation");
+        }
+        catch (IllegalArgumentException e) {
+            //expected
+        }
+        
+        //The raw events transaction rolled back with the workers so no event is marked as aggregated
+        assertEquals(0, portalEventDao.aggregated.size());
+        assertEquals(2, transactionManager.rollbacks.get());
+        
+        //The next run reads the whole batch again and every aggregator sees every event
+        recordingAggregator.events.clear();
+        portalEventAggregationManager.doAggregateRawEventsPartitioned(new DateTime(0), end, new MutableInt(), eventAggregatorStatus);
+        
+        assertEquals(portalEventDao.events, recordingAggregator.events);
+        assertEquals(portalEventDao.events, failingAggregator.events);
+        assertEquals(new HashSet<PortalEvent>(portalEventDao.events), portalEventDao.aggregated);
+        assertEquals(2, transactionManager.rollbacks.get());
+    }
+    
+    private class AggregatingWorker implements Runnable {
+        private final String name;
+        
+        public AggregatingWorker(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            aggregated.add(name);
+        }
+    }
+    
+    private static class FailingWorker implements Runnable {
+        @Override
+        public void run() {
+            throw new IllegalArgumentException("Partition failed");
+        }
+    }
+    
+    private static class BlockingWorker implements Runnable {
+        private final CountDownLatch release;
+        
+        public BlockingWorker(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Aggregates every event it supports, optionally failing the first event it sees
+     */
+    private static class RecordingAggregator implements IPortalEventAggregator<PortalEvent> {
+        private final List<PortalEvent> events = Collections.synchronizedList(new ArrayList<PortalEvent>());
+        private final AtomicBoolean fail;
+        
+        public RecordingAggregator(boolean failOnce) {
+            this.fail = new AtomicBoolean(failOnce);
+        }
+
+        @Override
+        public boolean supports(Class<? extends PortalEvent> type) {
+            return true;
+        }
+
+        @Override
+        public void aggregateEvent(PortalEvent e, EventSession eventSession, Map<AggregationInterval, AggregationIntervalInfo> currentIntervals) {
+            if (this.fail.compareAndSet(true, false)) {
+                throw new IllegalArgumentException("Aggregator failed");
+            }
+            this.events.add(e);
+        }
+
+        @Override
+        public void handleIntervalBoundary(AggregationInterval interval, Map<AggregationInterval, AggregationIntervalInfo> intervals) {
+        }
+    }
+    
+    /**
+     * Raw event store and its transaction manager, events are only marked as aggregated when the raw events
+     * transaction commits.
+     */
+    private static class RawEventsDao implements IPortalEventDao, PlatformTransactionManager {
+        private final List<PortalEvent> events = new ArrayList<PortalEvent>();
+        private final Set<PortalEvent> aggregated = new HashSet<PortalEvent>();
+        private final Set<PortalEvent> pending = new HashSet<PortalEvent>();
+
+        @Override
+        public void aggregatePortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
+            for (final PortalEvent event : this.events) {
+                if (!this.aggregated.contains(event)) {
+                    handler.apply(event);
+                    this.pending.add(event);
+                }
+            }
+        }
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) throws TransactionException {
+            if (status.isRollbackOnly()) {
+                this.rollback(status);
+                return;
+            }
+            this.aggregated.addAll(this.pending);
+            this.pending.clear();
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) throws TransactionException {
+            this.pending.clear();
+        }
+
+        @Override
+        public void storePortalEvent(PortalEvent portalEvent) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void storePortalEvents(PortalEvent... portalEvents) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void storePortalEvents(Iterable<PortalEvent> portalEvents) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getPortalEvents(DateTime startTime, DateTime endTime, int maxEvents, FunctionWithoutResult<PortalEvent> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getPortalEvents(DateTime startTime, DateTime endTime, FunctionWithoutResult<PortalEvent> handler) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DateTime getOldestPortalEventTimestamp() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public DateTime getNewestPortalEventTimestamp() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int deletePortalEventsBefore(DateTime endTime) {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    private static class RecordingTransactionManager implements PlatformTransactionManager {
+        private final AtomicInteger commits = new AtomicInteger();
+        private final AtomicInteger rollbacks = new AtomicInteger();
+        private final AtomicInteger transactions = new AtomicInteger();
+        private volatile boolean failFlush = false;
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) throws TransactionException {
+            //Fail the flush of the second transaction only
+            final boolean fail = failFlush && transactions.incrementAndGet() == 2;
+            return new SimpleTransactionStatus() {
+                @Override
+                public void flush() {
+                    if (fail) {
+                        throw new IllegalStateException("Flush failed");
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void commit(TransactionStatus status) throws TransactionException {
+            if (status.isRollbackOnly()) {
+                rollbacks.incrementAndGet();
+            }
+            else {
+                commits.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) throws TransactionException {
+            rollbacks.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.events.aggr.login;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.jasig.portal.events.aggr.AggregationInterval;
+import org.jasig.portal.events.aggr.DateDimension;
+import org.jasig.portal.events.aggr.TimeDimension;
+import org.jasig.portal.events.aggr.groups.AggregatedGroupMapping;
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class LoginAggregationImplTest {
+    private static final int SKETCH_SIZE = 1 << LoginAggregationImpl.UNIQUE_USERS_PRECISION;
+    
+    @Test
+    public void testSmallGroupStaysExact() {
+        final LoginAggregationImpl loginAggregation = createLoginAggregation();
+        
+        for (int i = 0; i < LoginAggregationImpl.UNIQUE_USERS_SKETCH_THRESHOLD; i++) {
+            loginAggregation.countUser("user" + i, true);
+            loginAggregation.countUser("user" + i, true);
+        }
+        
+        assertFalse(loginAggregation.isApproximateUniqueCount());
+        assertEquals(LoginAggregationImpl.UNIQUE_USERS_SKETCH_THRESHOLD, loginAggregation.getUniqueLoginCount());
+        assertEquals(LoginAggregationImpl.UNIQUE_USERS_SKETCH_THRESHOLD * 2, loginAggregation.getLoginCount());
+        
+        //A full set of typical user names is no bigger than the sketch would be
+        final int namesSize = loginAggregation.getUniqueUsersStorageSize();
+        assertTrue("Names stored in " + namesSize + " bytes", namesSize <= SKETCH_SIZE);
+        
+        //Repeat users never trigger the switch to the sketch
+        loginAggregation.countUser("user0", true);
+        assertFalse(loginAggregation.isApproximateUniqueCount());
+    }
+    
+    @Test
+    public void testLargeGroupUsesSketch() {
+        final LoginAggregationImpl loginAggregation = createLoginAggregation();
+        
+        for (int i = 0; i <= LoginAggregationImpl.UNIQUE_USERS_SKETCH_THRESHOLD; i++) {
+            loginAggregation.countUser("user" + i, true);
+        }
+        
+        assertTrue(loginAggregation.isApproximateUniqueCount());
+        assertEquals(SKETCH_SIZE, loginAggregation.getUniqueUsersStorageSize());
+        assertEquals(LoginAggregationImpl.UNIQUE_USERS_SKETCH_THRESHOLD + 1, loginAggregation.getUniqueLoginCount(), 7);
+        
+        //The sketch does not grow with the number of users
+        for (int i = 0; i < 20000; i++) {
+            loginAggregation.countUser("user" + i, true);
+        }
+        assertEquals(SKETCH_SIZE, loginAggregation.getUniqueUsersStorageSize());
+        assertEquals(20000, loginAggregation.getUniqueLoginCount(), 20000 * 0.07);
+        
+        //Exact counting of the same users stores over 100 times more
+        final LoginAggregationImpl exactAggregation = createLoginAggregation();
+        for (int i = 0; i < 20000; i++) {
+            exactAggregation.countUser("user" + i, false);
+        }
+        assertFalse(exactAggregation.isApproximateUniqueCount());
+        assertEquals(20000, exactAggregation.getUniqueLoginCount());
+        assertTrue(exactAggregation.getUniqueUsersStorageSize() > SKETCH_SIZE * 100);
+    }
+    
+    @Test
+    public void testIntervalCompleteClearsUniqueUsers() {
+        final LoginAggregationImpl loginAggregation = createLoginAggregation();
+        
+        for (int i = 0; i < 1000; i++) {
+            loginAggregation.countUser("user" + i, true);
+        }
+        loginAggregation.intervalComplete(5);
+        
+        assertFalse(loginAggregation.isApproximateUniqueCount());
+        assertEquals(0, loginAggregation.getUniqueUsersStorageSize());
+        assertEquals(5, loginAggregation.getDuration());
+    }
+    
+    private LoginAggregationImpl createLoginAggregation() {
+        return new LoginAggregationImpl(mock(TimeDimension.class), mock(DateDimension.class), 
+                AggregationInterval.FIVE_MINUTE, mock(AggregatedGroupMapping.class));
+    }
+}
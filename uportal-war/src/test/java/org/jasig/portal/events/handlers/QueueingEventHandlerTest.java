@@ -0,0 +1,159 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.events.handlers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jasig.portal.events.handlers.QueueingEventHandler.BackpressurePolicy;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class QueueingEventHandlerTest {
+    private List<ApplicationEvent> flushed;
+    private QueueingEventHandler<ApplicationEvent> handler;
+    
+    @Before
+    public void setup() {
+        flushed = new ArrayList<ApplicationEvent>();
+        handler = new QueueingEventHandler<ApplicationEvent>() {
+            @Override
+            protected void onApplicationEvents(Iterable<ApplicationEvent> events) {
+                for (final ApplicationEvent event : events) {
+                    flushed.add(event);
+                }
+            }
+        };
+        handler.setBatchSize(3);
+        handler.setQueueCapacity(10);
+    }
+    
+    @Test
+    public void testFlush() {
+        publish(7);
+        assertEquals(7, handler.getQueueDepth());
+        
+        handler.flush();
+        assertEquals(0, handler.getQueueDepth());
+        assertEquals(7, flushed.size());
+        assertEquals(7, handler.getFlushedEvents());
+        assertEquals(0, handler.getDroppedEvents());
+        assertEquals(0, handler.getFailedEvents());
+        assertEquals(1, handler.getFlushCount());
+        
+        //Nothing queued, not counted as a flush
+        handler.flush();
+        assertEquals(1, handler.getFlushCount());
+        assertEquals(7, handler.getFlushedEvents());
+    }
+    
+    @Test
+    public void testFlushFailure() {
+        final QueueingEventHandler<ApplicationEvent> failingHandler = new QueueingEventHandler<ApplicationEvent>() {
+            @Override
+            protected void onApplicationEvents(Iterable<ApplicationEvent> events) {
+                throw new IllegalStateException("Test failure");
+            }
+        };
+        failingHandler.setBatchSize(3);
+        handler = failingHandler;
+        
+        publish(7);
+        handler.flush();
+        
+        assertEquals(0, handler.getQueueDepth());
+        assertEquals(0, handler.getFlushedEvents());
+        assertEquals(7, handler.getFailedEvents());
+        assertEquals(1, handler.getFlushCount());
+    }
+    
+    @Test
+    public void testDropWhenFull() {
+        handler.setBackpressurePolicy(BackpressurePolicy.DROP);
+        publish(15);
+        
+        assertEquals(10, handler.getQueueDepth());
+        assertEquals(10, handler.getQueueCapacity());
+        assertEquals(5, handler.getDroppedEvents());
+        
+        handler.flush();
+        assertEquals(10, flushed.size());
+    }
+    
+    @Test
+    public void testSample() {
+        handler.setBackpressurePolicy(BackpressurePolicy.SAMPLE);
+        handler.setSampleThreshold(5);
+        handler.setSampleRate(2);
+        publish(9);
+        
+        //First 5 events are queued, then every other event
+        assertEquals(7, handler.getQueueDepth());
+        assertEquals(2, handler.getSampledEvents());
+        assertEquals(0, handler.getDroppedEvents());
+    }
+    
+    @Test
+    public void testBlockTimeout() {
+        handler.setBackpressurePolicy(BackpressurePolicy.BLOCK);
+        handler.setBlockTimeout(10);
+        publish(11);
+        
+        assertEquals(10, handler.getQueueDepth());
+        assertEquals(1, handler.getDroppedEvents());
+    }
+    
+    @Test
+    public void testUnboundedByDefault() {
+        handler.setQueueCapacity(0);
+        assertEquals(BackpressurePolicy.BLOCK, handler.getBackpressurePolicy());
+        assertEquals(Integer.MAX_VALUE, handler.getQueueCapacity());
+        
+        publish(20000);
+        assertEquals(20000, handler.getQueueDepth());
+        assertEquals(0, handler.getDroppedEvents());
+        
+        handler.flush();
+        assertEquals(20000, flushed.size());
+    }
+    
+    @Test
+    public void testShrinkQueue() {
+        publish(8);
+        handler.setQueueCapacity(5);
+        
+        assertEquals(5, handler.getQueueDepth());
+        assertEquals(3, handler.getDroppedEvents());
+    }
+    
+    private void publish(int count) {
+        for (int i = 0; i < count; i++) {
+            handler.onApplicationEvent(new ApplicationEvent("event" + i) {
+                private static final long serialVersionUID = 1L;
+            });
+        }
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.groups;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.naming.CompositeName;
+import javax.naming.Name;
+
+import org.jasig.portal.EntityIdentifier;
+import org.jasig.portal.security.IPerson;
+import org.jasig.portal.spring.locator.CacheFactoryLocator;
+import org.jasig.portal.utils.cache.CacheFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests deep membership checks answered from the cached closures of
+ * {@link GroupAncestorIndex} against committed and uncommitted membership changes.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class GroupAncestorIndexTest {
+    private CacheFactoryLocator cacheFactoryLocator;
+    private Map<String, GroupMemberImpl> store;
+    private Map<String, Set<String>> committedMembers;
+    private IIndividualGroupService groupService;
+
+    private TestGroup root;
+    private TestGroup middle;
+    private TestGroup leaf;
+    private TestEntity person;
+
+    @Before
+    public void setup() throws Exception {
+        final CacheFactory cacheFactory = mock(CacheFactory.class);
+        when(cacheFactory.<Serializable, Name>getCache(CacheFactory.NAME_CACHE)).thenReturn(new HashMap<Serializable, Name>());
+        this.cacheFactoryLocator = new CacheFactoryLocator(cacheFactory);
+        this.cacheFactoryLocator.afterPropertiesSet();
+
+        this.store = new HashMap<String, GroupMemberImpl>();
+        this.committedMembers = new HashMap<String, Set<String>>();
+        this.groupService = (IIndividualGroupService) Proxy.newProxyInstance(
+                this.getClass().getClassLoader(),
+                new Class[] { IIndividualGroupService.class },
+                new GroupServiceHandler());
+
+        this.root = this.createGroup("root");
+        this.middle = this.createGroup("middle");
+        this.leaf = this.createGroup("leaf");
+        this.person = this.createEntity("person");
+
+        this.commit(this.root, this.middle);
+        this.commit(this.middle, this.leaf);
+        this.commit(this.leaf, this.person);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.cacheFactoryLocator.destroy();
+    }
+
+    @Test
+    public void testCommittedMemberships() throws Exception {
+        assertTrue(this.root.deepContains(this.person));
+        assertTrue(this.middle.deepContains(this.person));
+        assertTrue(this.root.deepContains(this.leaf));
+        assertFalse(this.leaf.deepContains(this.root));
+        assertEquals(keys(this.leaf, this.middle, this.root), this.getAllContainingGroupKeys(this.person));
+    }
+
+    @Test
+    public void testAddToAncestor() throws Exception {
+        assertEquals(keys(this.leaf, this.middle, this.root), this.getAllContainingGroupKeys(this.person));
+
+        final TestGroup top = this.createGroup("top");
+        assertFalse(top.deepContains(this.person));
+
+        //Adding an ancestor of the person must invalidate the closure cached on the person
+        this.commit(top, this.root);
+
+        assertTrue(top.deepContains(this.person));
+        assertTrue(top.deepContains(this.leaf));
+        assertEquals(keys(this.leaf, this.middle, this.root, top), this.getAllContainingGroupKeys(this.person));
+    }
+
+    @Test
+    public void testRemoveFromAncestor() throws Exception {
+        assertTrue(this.root.deepContains(this.person));
+
+        this.root.removeMember(this.middle);
+        this.root.updateMembers();
+
+        assertFalse(this.root.deepContains(this.person));
+        assertFalse(this.root.deepContains(this.leaf));
+        assertTrue(this.middle.deepContains(this.person));
+        assertEquals(keys(this.leaf, this.middle), this.getAllContainingGroupKeys(this.person));
+    }
+
+    @Test
+    public void testUnrelatedChangeKeepsClosure() throws Exception {
+        final Set<?> ancestorGroupKeys = this.person.getAncestorGroupKeys();
+
+        final TestGroup other = this.createGroup("other");
+        final TestEntity otherPerson = this.createEntity("otherPerson");
+        this.commit(other, otherPerson);
+
+        assertTrue(this.root.deepContains(this.person));
+        assertTrue(ancestorGroupKeys == this.person.getAncestorGroupKeys());
+    }
+
+    @Test
+    public void testUncommittedRemoveInIntermediateGroup() throws Exception {
+        assertTrue(this.root.deepContains(this.person));
+
+        this.middle.removeMember(this.leaf);
+
+        //The pending remove is visible to deep membership checks on every containing group
+        assertFalse(this.middle.deepContains(this.person));
+        assertFalse(this.root.deepContains(this.person));
+
+        //Containing groups only change once the remove is committed
+        assertEquals(keys(this.leaf, this.middle, this.root), this.getAllContainingGroupKeys(this.person));
+
+        this.middle.updateMembers();
+
+        assertFalse(this.root.deepContains(this.person));
+        assertEquals(keys(this.leaf), this.getAllContainingGroupKeys(this.person));
+    }
+
+    @Test
+    public void testUncommittedAddInIntermediateGroup() throws Exception {
+        final TestGroup other = this.createGroup("other");
+        final TestEntity otherPerson = this.createEntity("otherPerson");
+        this.commit(other, otherPerson);
+        assertFalse(this.root.deepContains(otherPerson));
+
+        //Pending adds are only tracked once the members are loaded, as they are when editing
+        this.leaf.getMembers();
+        this.leaf.addMember(other);
+
+        assertTrue(this.leaf.deepContains(otherPerson));
+        assertTrue(this.root.deepContains(otherPerson));
+        assertEquals(keys(other), this.getAllContainingGroupKeys(otherPerson));
+
+        this.leaf.updateMembers();
+
+        assertTrue(this.root.deepContains(otherPerson));
+        assertEquals(keys(other, this.leaf, this.middle, this.root), this.getAllContainingGroupKeys(otherPerson));
+    }
+
+    @Test
+    public void testRevertedUncommittedChange() throws Exception {
+        this.middle.removeMember(this.leaf);
+        assertFalse(this.root.deepContains(this.person));
+
+        this.middle.addMember(this.leaf);
+        assertFalse(this.middle.isDirty());
+        assertTrue(this.root.deepContains(this.person));
+    }
+
+    private Set<String> getAllContainingGroupKeys(IGroupMember member) throws GroupsException {
+        final Set<String> groupKeys = new HashSet<String>();
+        for (final Iterator<?> groupItr = member.getAllContainingGroups(); groupItr.hasNext(); ) {
+            groupKeys.add(((IEntityGroup) groupItr.next()).getKey());
+        }
+        return groupKeys;
+    }
+
+    private static Set<String> keys(IGroupMember... members) {
+        final Set<String> keys = new HashSet<String>();
+        for (final IGroupMember member : members) {
+            keys.add(member.getKey());
+        }
+        return keys;
+    }
+
+    private TestGroup createGroup(String name) throws GroupsException {
+        final TestGroup group = new TestGroup("local." + name);
+        group.setName(name);
+        this.store.put(group.getKey(), group);
+        this.committedMembers.put(group.getKey(), new HashSet<String>());
+        return group;
+    }
+
+    private TestEntity createEntity(String key) throws GroupsException {
+        final TestEntity entity = new TestEntity(key);
+        this.store.put(entity.getKey(), entity);
+        return entity;
+    }
+
+    private void commit(EntityGroupImpl group, IGroupMember member) throws GroupsException {
+        group.addMember(member);
+        group.updateMembers();
+    }
+
+    /**
+     * Persists membership changes in memory and updates the containing groups of the
+     * changed members the way the reference group service does.
+     */
+    private class GroupServiceHandler implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if ("findGroup".equals(name)) {
+                return store.get(args[0]);
+            }
+            if ("findContainingGroups".equals(name)) {
+                final String memberKey = ((IGroupMember) args[0]).getKey();
+                final List<IGroupMember> groups = new ArrayList<IGroupMember>();
+                for (final Map.Entry<String, Set<String>> membersEntry : committedMembers.entrySet()) {
+                    if (membersEntry.getValue().contains(memberKey)) {
+                        groups.add(store.get(membersEntry.getKey()));
+                    }
+                }
+                return groups.iterator();
+            }
+            if ("getEntity".equals(name)) {
+                return store.get(args[0]);
+            }
+            if ("findMembers".equals(name)) {
+                final List<IGroupMember> members = new ArrayList<IGroupMember>();
+                for (final String memberKey : committedMembers.get(((IEntityGroup) args[0]).getKey())) {
+                    members.add(store.get(memberKey));
+                }
+                return members.iterator();
+            }
+            if ("updateGroupMembers".equals(name)) {
+                final EntityGroupImpl group = (EntityGroupImpl) args[0];
+                final Set<String> members = committedMembers.get(group.getKey());
+                for (final Object added : group.getAddedMembers().values()) {
+                    final GroupMemberImpl member = (GroupMemberImpl) added;
+                    members.add(member.getKey());
+                    member.addGroup(group);
+                }
+                for (final Object removed : group.getRemovedMembers().values()) {
+                    final GroupMemberImpl member = (GroupMemberImpl) removed;
+                    members.remove(member.getKey());
+                    member.removeGroup(group);
+                }
+                return null;
+            }
+            if ("getServiceName".equals(name)) {
+                return new CompositeName("local");
+            }
+            if ("isEditable".equals(name)) {
+                return Boolean.TRUE;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    private class TestGroup extends EntityGroupImpl {
+        public TestGroup(String groupKey) throws GroupsException {
+            super(groupKey, IPerson.class);
+        }
+
+        @Override
+        protected boolean isKnownEntityType(Class anEntityType) {
+            return true;
+        }
+
+        @Override
+        protected ICompositeGroupService getCompositeGroupService() {
+            return groupService;
+        }
+
+        @Override
+        protected IIndividualGroupService getLocalGroupService() {
+            return groupService;
+        }
+
+        @Override
+        protected Iterator getMemberGroups() throws GroupsException {
+            final List<IEntityGroup> memberGroups = new ArrayList<IEntityGroup>();
+            for (final GroupMemberImpl member : store.values()) {
+                if (member.isGroup() && this.contains(member)) {
+                    memberGroups.add((IEntityGroup) member);
+                }
+            }
+            return memberGroups.iterator();
+        }
+    }
+
+    private class TestEntity extends GroupMemberImpl implements IEntity {
+        public TestEntity(String key) throws GroupsException {
+            super(new EntityIdentifier(key, IPerson.class));
+        }
+
+        @Override
+        protected boolean isKnownEntityType(Class anEntityType) {
+            return true;
+        }
+
+        @Override
+        protected ICompositeGroupService getCompositeGroupService() {
+            return groupService;
+        }
+
+        public EntityIdentifier getEntityIdentifier() {
+            return this.getUnderlyingEntityIdentifier();
+        }
+
+        public Class getEntityType() {
+            return this.getLeafType();
+        }
+
+        public Class getLeafType() {
+            return IPerson.class;
+        }
+
+        public Class getType() {
+            return IPerson.class;
+        }
+
+        @Override
+        public boolean isEntity() {
+            return true;
+        }
+    }
+}
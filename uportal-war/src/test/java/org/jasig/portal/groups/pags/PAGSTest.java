@@ -19,6 +19,8 @@
 
 package org.jasig.portal.groups.pags;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.Vector;
 
@@ -566,4 +568,42 @@ public void testValueMissingTester() throws Exception
 
 }
 
+public void testSharedTesterEvaluatedOnce() throws Exception
+{
+    print(CR + "***** ENTERING PAGSTester.testSharedTesterEvaluatedOnce() *****" + CR);
+    String msg = null;
+
+    IPerson newPerson = getIPerson("de3");
+    newPerson.setAttribute(key1, randomStrings[0]);
+
+    final int[] evaluations = new int[1];
+    IPersonTester sharedTester = new StringEqualsTester(key1, randomStrings[0]) {
+        public boolean test(IPerson person) {
+            evaluations[0]++;
+            return super.test(person);
+        }
+    };
+
+    PersonAttributesGroupStore.TestGroup testGroup1 = new PersonAttributesGroupStore.TestGroup();
+    testGroup1.addTest(sharedTester);
+    PersonAttributesGroupStore.GroupDefinition groupDef1 = new PersonAttributesGroupStore.GroupDefinition();
+    groupDef1.addTestGroup(testGroup1);
+
+    PersonAttributesGroupStore.TestGroup testGroup2 = new PersonAttributesGroupStore.TestGroup();
+    testGroup2.addTest(sharedTester);
+    testGroup2.addTest(new ValueExistsTester(key1, null));
+    PersonAttributesGroupStore.GroupDefinition groupDef2 = new PersonAttributesGroupStore.GroupDefinition();
+    groupDef2.addTestGroup(testGroup2);
+
+    Map<IPersonTester, Boolean> testResults = new IdentityHashMap<IPersonTester, Boolean>();
+    msg = "Testing " + groupDef1;
+    assertTrue(msg, groupDef1.contains(newPerson, testResults));
+    msg = "Testing " + groupDef2;
+    assertTrue(msg, groupDef2.contains(newPerson, testResults));
+    assertEquals("Shared tester should only be evaluated once", 1, evaluations[0]);
+
+    print("Success!");
+    print(CR + "***** LEAVING PAGSTester.testSharedTesterEvaluatedOnce() *****" + CR);
+}
+
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class FileSharedPortletOutputCacheTest {
+    private File directory;
+    
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile("sharedPortletOutputCache", "");
+        directory.delete();
+    }
+    
+    @After
+    public void cleanup() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+    
+    @Test
+    public void testSharedBetweenInstances() {
+        final FileSharedPortletOutputCache node1 = new FileSharedPortletOutputCache(directory);
+        final FileSharedPortletOutputCache node2 = new FileSharedPortletOutputCache(directory);
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData("<p>Cached content</p>");
+        data.setEtag("123456");
+        data.setTimeStored(new Date());
+        data.setExpirationTimeSeconds(300);
+        
+        assertNull(node2.get("key"));
+        node1.put("key", data, 0);
+        
+        final CachedPortletData cached = node2.get("key");
+        assertNotSame(data, cached);
+        assertEquals(data, cached);
+        assertEquals(0, cached.getSharedCacheExpiration());
+        
+        assertTrue(node2.remove("key"));
+        assertNull(node1.get("key"));
+        assertFalse(node1.remove("key"));
+    }
+    
+    @Test
+    public void testExpired() throws Exception {
+        final FileSharedPortletOutputCache cache = new FileSharedPortletOutputCache(directory);
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData("<p>Cached content</p>");
+        cache.put("key", data, 1);
+        
+        Thread.sleep(1100);
+        
+        assertNull(cache.get("key"));
+        assertEquals(0, directory.list().length);
+    }
+    
+    @Test
+    public void testExpiredWithEtagKeptForRevalidation() throws Exception {
+        final FileSharedPortletOutputCache node1 = new FileSharedPortletOutputCache(directory);
+        final FileSharedPortletOutputCache node2 = new FileSharedPortletOutputCache(directory);
+        
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData("<p>Cached content</p>");
+        data.setEtag("123456");
+        node1.put("key", data, 1);
+        
+        Thread.sleep(1100);
+        
+        final CachedPortletData cached = node2.get("key");
+        assertEquals("123456", cached.getEtag());
+        assertTrue(cached.getSharedCacheExpiration() < System.currentTimeMillis());
+        
+        //Revalidating node writes the entry back with a new expiration
+        node2.put("key", cached, 300);
+        assertTrue(node1.get("key").getSharedCacheExpiration() > System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,243 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.portlet.container.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class OffHeapPortletOutputCacheTest {
+    private OffHeapPortletOutputCache cache;
+    
+    @Before
+    public void setup() {
+        cache = new OffHeapPortletOutputCache();
+        cache.setBlockSize(64);
+        cache.setMaxBytes(64 * 8);
+    }
+    
+    @Test
+    public void testDisabled() {
+        final OffHeapPortletOutputCache disabled = new OffHeapPortletOutputCache();
+        assertFalse(disabled.isEnabled());
+        assertFalse(disabled.put("key", createData("content", null), 0));
+        assertNull(disabled.get("key", false));
+    }
+    
+    @Test
+    public void testPutGet() {
+        final CachedPortletData data = createData("Hello World \u00e9", "etag1");
+        data.setByteData(new byte[] { 1, 2, 3 });
+        data.setStatus(200);
+        data.setContentType("text/html");
+        data.setCharacterEncoding("UTF-8");
+        data.setContentLength(3);
+        data.setLocale(Locale.CANADA_FRENCH);
+        data.getHeaders().put("X-String", new ArrayList<Object>(Arrays.<Object>asList("a", "b")));
+        data.getHeaders().put("X-Int", new ArrayList<Object>(Arrays.<Object>asList(42)));
+        data.getHeaders().put("X-Date", new ArrayList<Object>(Arrays.<Object>asList(1234567890123l)));
+        
+        assertTrue(cache.isEnabled());
+        assertTrue(cache.put("key", data, 0));
+        
+        final CachedPortletData cached = cache.get("key", false);
+        assertNotNull(cached);
+        assertEquals(data.getStringData(), cached.getStringData());
+        assertArrayEquals(data.getByteData(), cached.getByteData());
+        assertEquals(data.getEtag(), cached.getEtag());
+        assertEquals(data.getTimeStored(), cached.getTimeStored());
+        assertEquals(data.getHeaders(), cached.getHeaders());
+        assertEquals(Integer.valueOf(200), cached.getStatus());
+        assertEquals("text/html", cached.getContentType());
+        assertEquals("UTF-8", cached.getCharacterEncoding());
+        assertEquals(Integer.valueOf(3), cached.getContentLength());
+        assertEquals(Locale.CANADA_FRENCH, cached.getLocale());
+        assertEquals(data.getCacheConfigurationMaxTTL(), cached.getCacheConfigurationMaxTTL());
+        
+        assertEquals(1, cache.getHits());
+        assertNull(cache.get("missing", false));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+    
+    @Test
+    public void testMultiBlockEntry() {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            content.append("0123456789");
+        }
+        
+        assertTrue(cache.put("key", createData(content.toString(), null), 0));
+        assertEquals(content.toString(), cache.get("key", false).getStringData());
+        assertEquals(7 * 64, cache.getUsedBytes());
+        
+        assertTrue(cache.remove("key"));
+        assertEquals(0, cache.getUsedBytes());
+        assertEquals(0, cache.getDataBytes());
+        assertEquals(8 * 64, cache.getAllocatedBytes());
+    }
+    
+    @Test
+    public void testTooLarge() {
+        final char[] content = new char[64 * 8];
+        Arrays.fill(content, 'a');
+        
+        assertFalse(cache.put("key", createData(new String(content), null), 0));
+        assertNull(cache.get("key", false));
+        assertEquals(1, cache.getRejected());
+    }
+    
+    @Test
+    public void testLruEviction() {
+        for (int i = 0; i < 8; i++) {
+            assertTrue(cache.put("key" + i, createData("content" + i, null), 0));
+        }
+        
+        //Touch key0 so key1 is the least recently used
+        assertNotNull(cache.get("key0", false));
+        
+        assertTrue(cache.put("key8", createData("content8", null), 0));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(8, cache.getSize());
+        
+        assertNull(cache.get("key1", false));
+        assertEquals("content0", cache.get("key0", false).getStringData());
+        assertEquals("content8", cache.get("key8", false).getStringData());
+    }
+    
+    @Test
+    public void testReplace() {
+        assertTrue(cache.put("key", createData("first", null), 0));
+        assertTrue(cache.put("key", createData("second", null), 0));
+        
+        assertEquals(1, cache.getSize());
+        assertEquals(64, cache.getUsedBytes());
+        assertEquals("second", cache.get("key", false).getStringData());
+    }
+    
+    @Test
+    public void testExpired() throws Exception {
+        assertTrue(cache.put("noEtag", createData("content", null), 1));
+        assertTrue(cache.put("etag", createData("content", "etag1"), 1));
+        
+        Thread.sleep(1100);
+        
+        assertNull(cache.get("noEtag", true));
+        assertNotNull(cache.get("etag", true));
+        assertNull(cache.get("etag", false));
+        assertEquals(0, cache.getSize());
+    }
+    
+    @Test
+    public void testUpdateExpirationTime() {
+        final CachedPortletData data = createData("content", "etag1");
+        data.setExpirationTimeSeconds(0);
+        assertTrue(cache.put("key", data, 0));
+        
+        final CachedPortletData cached = cache.get("key", false);
+        assertTrue(cached.isExpired());
+        cached.updateExpirationTime(300);
+        
+        final CachedPortletData updated = cache.get("key", false);
+        assertEquals(300, updated.getExpirationTimeSeconds());
+        assertFalse(updated.isExpired());
+    }
+    
+    @Test
+    public void testUpdateExpirationTimeExtendsEntry() throws Exception {
+        assertTrue(cache.put("key", createData("content", null), 1));
+        
+        Thread.sleep(600);
+        cache.get("key", false).updateExpirationTime(300);
+        
+        //Past the original expiration, the update restarted the entry's time to live
+        Thread.sleep(600);
+        final CachedPortletData cached = cache.get("key", false);
+        assertNotNull(cached);
+        assertEquals("content", cached.getStringData());
+    }
+    
+    @Test
+    public void testConcurrentGetPut() throws Exception {
+        final int threads = 8;
+        final Thread[] workers = new Thread[threads];
+        final Throwable[] failures = new Throwable[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            final String key = "key" + (i % 12);
+                            final String content = key + "-content-" + thread;
+                            cache.put(key, createData(content, null), 0);
+                            
+                            //Other threads may have replaced or evicted the entry but never corrupted it
+                            final CachedPortletData cached = cache.get(key, false);
+                            if (cached != null) {
+                                assertTrue(cached.getStringData(), cached.getStringData().startsWith(key + "-content-"));
+                            }
+                        }
+                    }
+                    catch (Throwable e) {
+                        failures[thread] = e;
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        for (final Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError(failure);
+            }
+        }
+        
+        assertTrue(cache.getSize() <= 8);
+        assertEquals(cache.getSize() * 64, cache.getUsedBytes());
+    }
+    
+    private CachedPortletData createData(String content, String etag) {
+        final CachedPortletData data = new CachedPortletData();
+        data.setStringData(content);
+        data.setEtag(etag);
+        data.setTimeStored(new Date());
+        data.setExpirationTimeSeconds(-1);
+        data.setCacheConfigurationMaxTTL(900);
+        return data;
+    }
+}
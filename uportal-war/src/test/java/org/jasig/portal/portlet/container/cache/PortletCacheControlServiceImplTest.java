@@ -18,6 +18,7 @@
  */
 package org.jasig.portal.portlet.container.cache;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -185,6 +186,183 @@ public class PortletCacheControlServiceImplTest {
 		Assert.assertEquals("123456", afterCache.getETag());
 	}
 	
+	@Test
+	public void testPublicCacheSharedBetweenNodes() {
+		MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+		MockHttpServletRequest otherNodeHttpRequest = new MockHttpServletRequest();
+		
+		MockPortletWindowId portletWindowId = new MockPortletWindowId("123");
+		MockPortletEntityId portletEntityId = new MockPortletEntityId("456");
+		MockPortletDefinitionId portletDefinitionId = new MockPortletDefinitionId("789");
+		
+		PortletDefinition portletDefinition = mock(PortletDefinition.class);
+		when(portletDefinition.getCacheScope()).thenReturn(MimeResponse.PUBLIC_SCOPE);
+		when(portletDefinition.getExpirationCache()).thenReturn(300);
+		
+		final LocalSharedPortletOutputCache sharedCache = new LocalSharedPortletOutputCache();
+		
+		PortletCacheControlServiceImpl cacheControlService = new PortletCacheControlServiceImpl();
+		cacheControlService.setPrivateScopePortletRenderOutputCache(privateScopeRenderCache);
+		cacheControlService.setPublicScopePortletRenderOutputCache(publicScopeRenderCache);
+		cacheControlService.setPrivateScopePortletResourceOutputCache(privateScopeResourceCache);
+		cacheControlService.setPublicScopePortletResourceOutputCache(publicScopeResourceCache);
+		cacheControlService.setSharedPortletOutputCache(sharedCache);
+		
+		final IPortletWindowRegistry portletWindowRegistry = mock(IPortletWindowRegistry.class);
+		final IPortletWindow portletWindow = mock(IPortletWindow.class);
+		final IPortletEntity portletEntity = mock(IPortletEntity.class);
+		
+		when(portletWindowRegistry.getPortletWindow(httpRequest, portletWindowId)).thenReturn(portletWindow);
+		when(portletWindowRegistry.getPortletWindow(otherNodeHttpRequest, portletWindowId)).thenReturn(portletWindow);
+		when(portletWindow.getPortletEntityId()).thenReturn(portletEntityId);
+		when(portletEntity.getPortletDefinitionId()).thenReturn(portletDefinitionId);
+		
+		final IPortletEntityRegistry portletEntityRegistry = mock(IPortletEntityRegistry.class);
+		when(portletEntityRegistry.getPortletEntity(httpRequest, portletEntityId)).thenReturn(portletEntity);
+		when(portletEntityRegistry.getPortletEntity(otherNodeHttpRequest, portletEntityId)).thenReturn(portletEntity);
+		final IPortletDefinitionRegistry portletDefinitionRegistry = mock(IPortletDefinitionRegistry.class);
+		when(portletDefinitionRegistry.getParentPortletDescriptor(portletDefinitionId)).thenReturn(portletDefinition);
+		
+		cacheControlService.setPortletWindowRegistry(portletWindowRegistry);
+		cacheControlService.setPortletDefinitionRegistry(portletDefinitionRegistry);
+		cacheControlService.setPortletEntityRegistry(portletEntityRegistry);
+		
+		CacheControl control = cacheControlService.getPortletRenderCacheControl(portletWindowId, httpRequest);
+		assertTrue(control.isPublicScope());
+		
+		control.setETag("123456");
+		cacheControlService.cachePortletRenderOutput(portletWindowId, httpRequest, "<p>Cached content</p>", control);
+		assertEquals(1, sharedCache.getSize());
+		
+		// simulate another node by clearing the local caches, the shared cache still has the data
+		publicScopeRenderCache.removeAll(true);
+		
+		CacheControl otherNodeControl = cacheControlService.getPortletRenderCacheControl(portletWindowId, otherNodeHttpRequest);
+		assertEquals("123456", otherNodeControl.getETag());
+		CachedPortletData cachedData = cacheControlService.getCachedPortletRenderOutput(portletWindowId, otherNodeHttpRequest);
+		assertEquals("<p>Cached content</p>", cachedData.getStringData());
+		
+		// the shared data was copied into the local cache
+		assertEquals(1, publicScopeRenderCache.getSize());
+		
+		assertTrue(cacheControlService.purgeCachedPortletData(portletWindowId, otherNodeHttpRequest, otherNodeControl));
+		assertEquals(0, sharedCache.getSize());
+	}
+	
+	@Test
+	public void testExpiredSharedEntryRevalidatedByOtherNode() throws Exception {
+		MockHttpServletRequest nodeAHttpRequest = new MockHttpServletRequest();
+		MockHttpServletRequest nodeBHttpRequest = new MockHttpServletRequest();
+		
+		MockPortletWindowId portletWindowId = new MockPortletWindowId("123");
+		MockPortletEntityId portletEntityId = new MockPortletEntityId("456");
+		MockPortletDefinitionId portletDefinitionId = new MockPortletDefinitionId("789");
+		
+		PortletDefinition portletDefinition = mock(PortletDefinition.class);
+		when(portletDefinition.getCacheScope()).thenReturn(MimeResponse.PUBLIC_SCOPE);
+		when(portletDefinition.getExpirationCache()).thenReturn(300);
+		
+		final IPortletWindowRegistry portletWindowRegistry = mock(IPortletWindowRegistry.class);
+		final IPortletWindow portletWindow = mock(IPortletWindow.class);
+		final IPortletEntity portletEntity = mock(IPortletEntity.class);
+		
+		when(portletWindowRegistry.getPortletWindow(nodeAHttpRequest, portletWindowId)).thenReturn(portletWindow);
+		when(portletWindowRegistry.getPortletWindow(nodeBHttpRequest, portletWindowId)).thenReturn(portletWindow);
+		when(portletWindow.getPortletEntityId()).thenReturn(portletEntityId);
+		when(portletEntity.getPortletDefinitionId()).thenReturn(portletDefinitionId);
+		
+		final IPortletEntityRegistry portletEntityRegistry = mock(IPortletEntityRegistry.class);
+		when(portletEntityRegistry.getPortletEntity(nodeAHttpRequest, portletEntityId)).thenReturn(portletEntity);
+		when(portletEntityRegistry.getPortletEntity(nodeBHttpRequest, portletEntityId)).thenReturn(portletEntity);
+		final IPortletDefinitionRegistry portletDefinitionRegistry = mock(IPortletDefinitionRegistry.class);
+		when(portletDefinitionRegistry.getParentPortletDescriptor(portletDefinitionId)).thenReturn(portletDefinition);
+		
+		final LocalSharedPortletOutputCache sharedCache = new LocalSharedPortletOutputCache();
+		final PortletCacheControlServiceImpl nodeA = createSharedCacheControlService(sharedCache, portletWindowRegistry, portletEntityRegistry, portletDefinitionRegistry);
+		final PortletCacheControlServiceImpl nodeB = createSharedCacheControlService(sharedCache, portletWindowRegistry, portletEntityRegistry, portletDefinitionRegistry);
+		
+		// node A renders the portlet and publishes the output with an ETag
+		CacheControl nodeAControl = nodeA.getPortletRenderCacheControl(portletWindowId, nodeAHttpRequest);
+		nodeAControl.setETag("123456");
+		nodeA.cachePortletRenderOutput(portletWindowId, nodeAHttpRequest, "<p>Cached content</p>", nodeAControl);
+		
+		// expire the shared entry
+		final String sharedCacheKey = nodeA.generateSharedCacheKey("RENDER", portletDefinitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), nodeAHttpRequest.getLocale());
+		sharedCache.put(sharedCacheKey, sharedCache.get(sharedCacheKey), 1);
+		Thread.sleep(1100);
+		
+		// node B has nothing cached locally, the expired shared entry is still returned so it can be revalidated
+		publicScopeRenderCache.removeAll(true);
+		CachedPortletData nodeBData = nodeB.getCachedPortletRenderOutput(portletWindowId, nodeBHttpRequest);
+		Assert.assertNotNull(nodeBData);
+		assertTrue(nodeBData.isExpired());
+		assertEquals("<p>Cached content</p>", nodeBData.getStringData());
+		CacheControl nodeBControl = nodeB.getPortletRenderCacheControl(portletWindowId, nodeBHttpRequest);
+		assertEquals("123456", nodeBControl.getETag());
+		
+		// the portlet says the content is still valid, the new expiration is written back to the shared cache
+		nodeBControl.setUseCachedContent(true);
+		nodeB.updateCachedPortletRenderOutputExpiration(portletWindowId, nodeBHttpRequest, nodeBData, nodeBControl);
+		assertFalse(nodeBData.isExpired());
+		
+		final CachedPortletData sharedData = sharedCache.get(sharedCacheKey);
+		assertTrue(sharedData.getSharedCacheExpiration() > System.currentTimeMillis());
+		assertFalse(sharedData.isExpired());
+		
+		// node A sees the revalidated content without asking the portlet again
+		publicScopeRenderCache.removeAll(true);
+		CachedPortletData nodeAData = nodeA.getCachedPortletRenderOutput(portletWindowId, nodeAHttpRequest);
+		assertFalse(nodeAData.isExpired());
+		assertEquals("<p>Cached content</p>", nodeAData.getStringData());
+	}
+	
+	/**
+	 * Nodes share the ehcache instances from the test context, tests simulate switching nodes by clearing them
+	 */
+	private PortletCacheControlServiceImpl createSharedCacheControlService(ISharedPortletOutputCache sharedCache, 
+	        IPortletWindowRegistry portletWindowRegistry, IPortletEntityRegistry portletEntityRegistry, IPortletDefinitionRegistry portletDefinitionRegistry) {
+		PortletCacheControlServiceImpl cacheControlService = new PortletCacheControlServiceImpl();
+		cacheControlService.setPrivateScopePortletRenderOutputCache(privateScopeRenderCache);
+		cacheControlService.setPublicScopePortletRenderOutputCache(publicScopeRenderCache);
+		cacheControlService.setPrivateScopePortletResourceOutputCache(privateScopeResourceCache);
+		cacheControlService.setPublicScopePortletResourceOutputCache(publicScopeResourceCache);
+		cacheControlService.setSharedPortletOutputCache(sharedCache);
+		cacheControlService.setPortletWindowRegistry(portletWindowRegistry);
+		cacheControlService.setPortletDefinitionRegistry(portletDefinitionRegistry);
+		cacheControlService.setPortletEntityRegistry(portletEntityRegistry);
+		return cacheControlService;
+	}
+	
+	@Test
+	public void testSharedCacheElementDoesNotOutliveSharedEntry() {
+		MockHttpServletRequest httpRequest = new MockHttpServletRequest();
+		MockPortletDefinitionId portletDefinitionId = new MockPortletDefinitionId("789");
+		IPortletWindow portletWindow = mock(IPortletWindow.class);
+		
+		final LocalSharedPortletOutputCache sharedCache = new LocalSharedPortletOutputCache();
+		PortletCacheControlServiceImpl cacheControlService = new PortletCacheControlServiceImpl();
+		cacheControlService.setSharedPortletOutputCache(sharedCache);
+		
+		final CachedPortletData data = new CachedPortletData();
+		data.setStringData("<p>Cached content</p>");
+		final String sharedCacheKey = cacheControlService.generateSharedCacheKey("RENDER", portletDefinitionId, portletWindow.getRenderParameters(), portletWindow.getPublicRenderParameters(), httpRequest.getLocale());
+		sharedCache.put(sharedCacheKey, data, 10);
+		
+		// the local cache has a 900 second TTL, the copy must expire with the shared entry instead
+		Element element = cacheControlService.getSharedCacheElement("RENDER", "publicKey", publicScopeRenderCache, portletDefinitionId, portletWindow, httpRequest);
+		Assert.assertNotNull(element);
+		assertTrue(element.getTimeToLive() > 0);
+		assertTrue(element.getTimeToLive() <= 10);
+		assertEquals(1, publicScopeRenderCache.getSize());
+		
+		// entries that never expire in the shared cache are left to the local cache TTL
+		publicScopeRenderCache.removeAll(true);
+		sharedCache.put(sharedCacheKey, data, 0);
+		element = cacheControlService.getSharedCacheElement("RENDER", "publicKey", publicScopeRenderCache, portletDefinitionId, portletWindow, httpRequest);
+		Assert.assertNotNull(element);
+		assertFalse(element.getTimeToLive() > 0 && element.getTimeToLive() <= 10);
+	}
+	
 	@Test
 	public void testDetermineCacheScopePortletDefinitionPrivate() {
 		MockHttpServletRequest httpRequest = new MockHttpServletRequest();
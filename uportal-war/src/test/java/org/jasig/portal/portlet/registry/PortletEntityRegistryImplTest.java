@@ -23,7 +23,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.when;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 import javax.persistence.EntityManager;
@@ -100,6 +103,12 @@ public class PortletEntityRegistryImplTest extends BaseJpaDaoTest {
 			//Can't unit test authZ code so this is a stand in
 			return jpaPortletDefinitionDao.getPortletDefinition(portletDefinitionId);
 		}
+
+		@Override
+		protected Set<String> getRenderablePortletDefinitionIds(IUserInstance userInstance, Set<String> portletDefinitionIds) {
+			//Can't unit test authZ code so this is a stand in
+			return portletDefinitionIds;
+		}
     	
     }; 
     @Mock private IPortalRequestUtils portalRequestUtils;
@@ -879,4 +888,63 @@ public class PortletEntityRegistryImplTest extends BaseJpaDaoTest {
             }
         });
     }
+    
+    //bulk lookup - persistent entity from the single user query, interim entity created, missing node skipped
+    @Test
+    public void testGetOrCreatePortletEntities() throws Exception {
+        final IPortletDefinitionId portletDefId = this.createDefaultPorltetDefinition();
+        final String persistentNodeId = "u1l1n1";
+        final String interimNodeId = "u1l1n2";
+        final String missingNodeId = "u1l1n3";
+        
+        //Mock setup
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        
+        when(portalRequestUtils.getOriginalPortalRequest(request)).thenReturn(request);
+        when(portalRequestUtils.getOriginalPortletOrPortalRequest(request)).thenReturn(request);
+        
+        when(userInstanceManager.getUserInstance(request)).thenReturn(userInstance);
+        when(userInstance.getPreferencesManager()).thenReturn(preferencesManager);
+        when(userInstance.getPerson()).thenReturn(person);
+        when(person.getID()).thenReturn(12);
+        when(preferencesManager.getUserLayoutManager()).thenReturn(userLayoutManager);
+        
+        when(userLayoutManager.getNode(persistentNodeId)).thenReturn(node);
+        when(userLayoutManager.getNode(interimNodeId)).thenReturn(node);
+        when(node.getType()).thenReturn(LayoutNodeType.PORTLET);
+        when(node.getChannelPublishId()).thenReturn(portletDefId.getStringId());
+        
+        final IPortletEntityId portletEntityId = this.execute(new Callable<IPortletEntityId>() {
+            @Override
+            public IPortletEntityId call() throws Exception {
+                //Create the entity and make it persistent
+                final IPortletEntity portletEntity = portletEntityRegistry.getOrCreatePortletEntity(request, portletDefId, persistentNodeId, 12);
+                
+                final List<IPortletPreference> preferences = portletEntity.getPortletPreferences();
+                preferences.add(new PortletPreferenceImpl("pref", false, "value"));
+                portletEntityRegistry.storePortletEntity(request, portletEntity);
+                
+                return portletEntity.getPortletEntityId();
+            }
+        });
+        
+        this.execute(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                final Map<String, IPortletEntity> portletEntities = portletEntityRegistry.getOrCreatePortletEntities(request, userInstance, Arrays.asList(persistentNodeId, interimNodeId, missingNodeId));
+                assertEquals(Arrays.asList(persistentNodeId, interimNodeId), Arrays.asList(portletEntities.keySet().toArray()));
+                
+                final IPortletEntity persistentEntity = portletEntities.get(persistentNodeId);
+                assertEquals(PersistentPortletEntityWrapper.class, persistentEntity.getClass());
+                assertEquals(portletEntityId, persistentEntity.getPortletEntityId());
+                assertEquals(1, persistentEntity.getPortletPreferences().size());
+                
+                final IPortletEntity interimEntity = portletEntities.get(interimNodeId);
+                assertEquals(SessionPortletEntityImpl.class, interimEntity.getClass());
+                assertEquals(interimNodeId, interimEntity.getLayoutNodeId());
+                
+                return null;
+            }
+        });
+    }
 }
@@ -0,0 +1,301 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.portlet.Event;
+import javax.servlet.http.HttpServletRequest;
+
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.worker.IPortletEventExecutionWorker;
+import org.jasig.portal.portlet.rendering.worker.IPortletExecutionCompletionListener;
+import org.jasig.portal.portlet.rendering.worker.IPortletWorkerFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortletExecutionManagerTest {
+    private static final long EVENT_TIMEOUT = 300;
+    
+    private PortletExecutionManager portletExecutionManager;
+    private IPortletWorkerFactory portletWorkerFactory;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private PortletEventQueue eventQueue;
+    
+    @Before
+    public void setup() {
+        this.portletExecutionManager = new PortletExecutionManager() {
+            @Override
+            protected long getPortletEventTimeout(IPortletWindowId portletWindowId, HttpServletRequest request) {
+                return EVENT_TIMEOUT;
+            }
+        };
+        
+        this.portletWorkerFactory = mock(IPortletWorkerFactory.class);
+        this.portletExecutionManager.setPortletWorkerFactory(this.portletWorkerFactory);
+        this.portletExecutionManager.setEventCoordinationService(mock(IPortletEventCoordinationService.class));
+        this.portletExecutionManager.setPortletWindowRegistry(mock(IPortletWindowRegistry.class));
+        
+        this.request = new MockHttpServletRequest();
+        this.response = new MockHttpServletResponse();
+        this.eventQueue = new PortletEventQueue();
+    }
+    
+    @Test
+    public void testEventsDispatchedAsWorkersComplete() throws Exception {
+        final IPortletWindowId fastWindowId = mock(IPortletWindowId.class);
+        final IPortletWindowId slowWindowId = mock(IPortletWindowId.class);
+        
+        final TestEventWorker fastWorker1 = this.queueEvent(fastWindowId, 10);
+        final TestEventWorker fastWorker2 = this.queueEvent(fastWindowId, 10);
+        final TestEventWorker slowWorker = this.queueEvent(slowWindowId, 100);
+        
+        this.portletExecutionManager.doPortletEvents(this.eventQueue, this.request, this.response);
+        
+        for (final TestEventWorker worker : new TestEventWorker[] { fastWorker1, fastWorker2, slowWorker }) {
+            assertTrue(worker.isComplete());
+            assertTrue(worker.isRetrieved());
+            assertEquals(0, worker.getCancelCount());
+        }
+        
+        //Events for a single window are serialized
+        assertTrue(fastWorker2.getSubmittedTime() >= fastWorker1.getCompleteTime());
+        
+        //The second event for the fast window doesn't wait for the slow window's event
+        assertTrue(fastWorker2.getCompleteTime() <= slowWorker.getCompleteTime());
+    }
+    
+    @Test
+    public void testHungWorkerCanceledAfterEventTimeout() throws Exception {
+        final IPortletWindowId hungWindowId = mock(IPortletWindowId.class);
+        final IPortletWindowId fastWindowId = mock(IPortletWindowId.class);
+        
+        //Never starts or completes
+        final TestEventWorker hungWorker = this.queueEvent(hungWindowId, -1);
+        final TestEventWorker fastWorker = this.queueEvent(fastWindowId, 10);
+        
+        final long start = System.currentTimeMillis();
+        this.portletExecutionManager.doPortletEvents(this.eventQueue, this.request, this.response);
+        final long duration = System.currentTimeMillis() - start;
+        
+        assertTrue(fastWorker.isComplete());
+        assertEquals(0, fastWorker.getCancelCount());
+        
+        assertEquals(1, hungWorker.getCancelCount());
+        
+        //The hung worker is only waited on for a single event timeout
+        assertTrue("Waited " + duration + "ms", duration >= EVENT_TIMEOUT - 20);
+        assertTrue("Waited " + duration + "ms", duration < EVENT_TIMEOUT * 3 / 2);
+    }
+    
+    private TestEventWorker queueEvent(IPortletWindowId portletWindowId, long duration) {
+        final Event event = mock(Event.class);
+        final QueuedEvent queuedEvent = new QueuedEvent(portletWindowId, event);
+        this.eventQueue.addEvents(Collections.singleton(queuedEvent));
+        this.eventQueue.offerEvent(portletWindowId, queuedEvent);
+        
+        final TestEventWorker worker = new TestEventWorker(portletWindowId, event, duration);
+        when(this.portletWorkerFactory.createEventWorker(this.request, this.response, portletWindowId, event)).thenReturn(worker);
+        return worker;
+    }
+    
+    /**
+     * Event worker that completes on its own thread after a fixed duration, or never if the duration is negative
+     */
+    private static class TestEventWorker implements IPortletEventExecutionWorker {
+        private final IPortletWindowId portletWindowId;
+        private final Event event;
+        private final long duration;
+        private final CountDownLatch completeLatch = new CountDownLatch(1);
+        private final List<IPortletExecutionCompletionListener> listeners = new CopyOnWriteArrayList<IPortletExecutionCompletionListener>();
+        private final AtomicInteger cancelCount = new AtomicInteger();
+        private volatile long submittedTime = 0;
+        private volatile long startedTime = 0;
+        private volatile long completeTime = 0;
+        private volatile boolean retrieved = false;
+        
+        public TestEventWorker(IPortletWindowId portletWindowId, Event event, long duration) {
+            this.portletWindowId = portletWindowId;
+            this.event = event;
+            this.duration = duration;
+        }
+
+        @Override
+        public void submit() {
+            this.submittedTime = System.currentTimeMillis();
+            if (this.duration < 0) {
+                return;
+            }
+            
+            final Thread thread = new Thread("TestEventWorker") {
+                @Override
+                public void run() {
+                    startedTime = System.currentTimeMillis();
+                    try {
+                        Thread.sleep(duration);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    completeTime = System.currentTimeMillis();
+                    completeLatch.countDown();
+                    for (final IPortletExecutionCompletionListener listener : listeners) {
+                        if (listeners.remove(listener)) {
+                            listener.executionComplete(TestEventWorker.this);
+                        }
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public long waitForStart(long timeout) throws InterruptedException {
+            return this.startedTime;
+        }
+
+        @Override
+        public Long get(long timeout) throws Exception {
+            this.retrieved = true;
+            if (!this.completeLatch.await(timeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException();
+            }
+            return this.completeTime - this.startedTime;
+        }
+
+        @Override
+        public void cancel() {
+            this.cancelCount.incrementAndGet();
+        }
+
+        @Override
+        public int getCancelCount() {
+            return this.cancelCount.get();
+        }
+
+        @Override
+        public boolean isRetrieved() {
+            return this.retrieved;
+        }
+
+        @Override
+        public void addCompletionListener(IPortletExecutionCompletionListener listener) {
+            this.listeners.add(listener);
+            if (this.isComplete() && this.listeners.remove(listener)) {
+                listener.executionComplete(this);
+            }
+        }
+
+        @Override
+        public Event getEvent() {
+            return this.event;
+        }
+
+        @Override
+        public ExecutionType getExecutionType() {
+            return ExecutionType.EVENT;
+        }
+
+        @Override
+        public Object setExecutionAttribute(String name, Object value) {
+            return null;
+        }
+
+        @Override
+        public Object getExecutionAttribute(String name) {
+            return null;
+        }
+
+        @Override
+        public IPortletWindowId getPortletWindowId() {
+            return this.portletWindowId;
+        }
+
+        @Override
+        public String getPortletFname() {
+            return "test";
+        }
+
+        @Override
+        public long getApplicableTimeout() {
+            return EVENT_TIMEOUT;
+        }
+
+        @Override
+        public boolean isSubmitted() {
+            return this.submittedTime > 0;
+        }
+
+        @Override
+        public boolean isStarted() {
+            return this.startedTime > 0;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return this.completeLatch.getCount() == 0;
+        }
+
+        @Override
+        public long getSubmittedTime() {
+            return this.submittedTime;
+        }
+
+        @Override
+        public long getStartedTime() {
+            return this.startedTime;
+        }
+
+        @Override
+        public long getCompleteTime() {
+            return this.completeTime;
+        }
+
+        @Override
+        public long getWait() {
+            return this.startedTime - this.submittedTime;
+        }
+
+        @Override
+        public long getDuration() {
+            return this.completeTime - this.startedTime;
+        }
+    }
+}
@@ -309,7 +309,7 @@ public class PortletRendererImplTest {
 		portletRenderer.doRenderMarkup(portletWindowId, request, response, writer);
 		Assert.assertEquals("<p>Some content</p>", writer.toString());
 		// verify the expiration time has been updated
-		Assert.assertNotSame(expiredTime, cachedPortletData.getTimeStored());
+		verify(portletCacheControlService, times(1)).updateCachedPortletRenderOutputExpiration(portletWindowId, request, cachedPortletData, cacheControl);
 		// context is expired, triggers doRender
 		verify(portletContainer, times(1)).doRender(isA(PortletWindow.class), isA(PortletHttpServletRequestWrapper.class), isA(PortletHttpServletResponseWrapper.class));
 		// verify we never enter the other branch of the "should render cached output" if statement
@@ -665,6 +665,8 @@ public class PortletRendererImplTest {
 		verify(portletContainer, times(1)).doServeResource(isA(PortletWindow.class), isA(PortletHttpServletRequestWrapper.class), isA(PortletHttpServletResponseWrapper.class));
 		// portlet said we should useCachedContent, so don't expect an attempt to "cache output"
 		verify(portletCacheControlService, never()).shouldOutputBeCached(isA(CacheControl.class));
+		// the revalidated content gets a new expiration time
+		verify(portletCacheControlService, times(1)).updateCachedPortletResourceOutputExpiration(portletWindowId, request, cachedPortletData, cacheControl);
 	}
 	
 	/**
@@ -0,0 +1,93 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.portlet.rendering.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortletWorkerBulkheadTest {
+    private PortletWorkerBulkhead bulkhead;
+    
+    @Before
+    public void setup() {
+        this.bulkhead = new PortletWorkerBulkhead();
+        this.bulkhead.setDefaultConcurrencyLimit(0);
+        this.bulkhead.setConcurrencyLimits(Collections.singletonMap("slow", 4));
+        this.bulkhead.setSampleSize(10);
+    }
+    
+    @Test
+    public void testUnlimitedPortlet() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(this.bulkhead.tryAcquire("fast"));
+        }
+        assertEquals(0, this.bulkhead.getConcurrencyLimit("fast"));
+    }
+    
+    @Test
+    public void testLimit() {
+        for (int i = 0; i < 4; i++) {
+            assertTrue(this.bulkhead.tryAcquire("slow"));
+        }
+        assertFalse(this.bulkhead.tryAcquire("slow"));
+        assertEquals(4, this.bulkhead.getActiveCount("slow"));
+        assertEquals(1, this.bulkhead.getRejectedCount("slow"));
+        
+        this.bulkhead.release("slow", -1, 1000);
+        assertTrue(this.bulkhead.tryAcquire("slow"));
+    }
+    
+    @Test
+    public void testAdaptiveLimit() {
+        //Slow executions reduce the limit
+        this.recordExecutions(900, 1000);
+        assertEquals(3, this.bulkhead.getConcurrencyLimit("slow"));
+        this.recordExecutions(900, 1000);
+        assertEquals(2, this.bulkhead.getConcurrencyLimit("slow"));
+        
+        //Moderate executions leave the limit alone
+        this.recordExecutions(300, 1000);
+        assertEquals(2, this.bulkhead.getConcurrencyLimit("slow"));
+        
+        //Fast executions grow the limit back up to the configured limit
+        this.recordExecutions(50, 1000);
+        assertEquals(3, this.bulkhead.getConcurrencyLimit("slow"));
+        this.recordExecutions(50, 1000);
+        this.recordExecutions(50, 1000);
+        assertEquals(4, this.bulkhead.getConcurrencyLimit("slow"));
+    }
+    
+    private void recordExecutions(long duration, long timeout) {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(this.bulkhead.tryAcquire("slow"));
+            this.bulkhead.release("slow", duration, timeout);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.EncodedCharacterDataEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CharacterDataCoalescingComponentTest {
+    @Test
+    public void testCoalesceCharacterData() throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        
+        final IPortletWindowId portletWindowId = createMock(IPortletWindowId.class);
+        final PortletContentPlaceholderEventImpl placeholderEvent = new PortletContentPlaceholderEventImpl(portletWindowId);
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                new CharacterDataEventImpl("<html>"),
+                new CharacterDataEventImpl("<body>"),
+                placeholderEvent,
+                new CharacterDataEventImpl("</body>"),
+                new CharacterDataEventImpl("</html>\u00e9"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader = new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(eventBuffer.listIterator()));
+        
+        final CharacterPipelineComponent targetComponent = createMock(CharacterPipelineComponent.class);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        
+        replay(targetComponent);
+        
+        final CharacterDataCoalescingComponent coalescingComponent = new CharacterDataCoalescingComponent();
+        coalescingComponent.setWrappedComponent(targetComponent);
+        
+        final CharacterEventReader actualEventReader = coalescingComponent.getEventReader(mockReq, mockRes).getEventReader();
+        
+        final EncodedCharacterDataEvent firstEvent = (EncodedCharacterDataEvent)actualEventReader.next();
+        Assert.assertEquals("<html><body>", firstEvent.getData());
+        Assert.assertSame(placeholderEvent, actualEventReader.next());
+        
+        final EncodedCharacterDataEvent lastEvent = (EncodedCharacterDataEvent)actualEventReader.next();
+        Assert.assertEquals("</body></html>\u00e9", lastEvent.getData());
+        Assert.assertEquals(16, lastEvent.getEncodedLength());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        lastEvent.writeEncodedData(out);
+        Assert.assertEquals("</body></html>\u00e9", new String(out.toByteArray(), "UTF-8"));
+        
+        Assert.assertFalse(actualEventReader.hasNext());
+        
+        verify(targetComponent);
+    }
+}
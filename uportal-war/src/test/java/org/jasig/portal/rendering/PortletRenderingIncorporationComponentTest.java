@@ -0,0 +1,128 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jasig.portal.character.stream.CharacterEventBufferReader;
+import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.jasig.portal.character.stream.events.PortletContentPlaceholderEventImpl;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortletRenderingIncorporationComponentTest {
+    @Test
+    public void testDeferIncompletePortlets() throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        
+        final IPortletWindowId completeWindowId = createPortletWindowId("complete");
+        final IPortletWindowId renderingWindowId = createPortletWindowId("rendering");
+        final IPortletWindowId queuedWindowId = createPortletWindowId("queued");
+        final IPortletWindowId notRequestedWindowId = createPortletWindowId("notRequested");
+        
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                new CharacterDataEventImpl("<html><body>"),
+                new PortletContentPlaceholderEventImpl(completeWindowId),
+                new PortletContentPlaceholderEventImpl(renderingWindowId),
+                new PortletContentPlaceholderEventImpl(queuedWindowId),
+                new PortletContentPlaceholderEventImpl(notRequestedWindowId),
+                new CharacterDataEventImpl("<p>footer</p></BODY></html>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader = new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(eventBuffer.listIterator()));
+        
+        final CharacterPipelineComponent targetComponent = createMock(CharacterPipelineComponent.class);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        
+        final IPortletExecutionManager portletExecutionManager = createMock(IPortletExecutionManager.class);
+        expectRenderState(portletExecutionManager, completeWindowId, mockReq, mockRes, true, true);
+        expectRenderState(portletExecutionManager, renderingWindowId, mockReq, mockRes, true, false);
+        expectRenderState(portletExecutionManager, queuedWindowId, mockReq, mockRes, true, false);
+        expectRenderState(portletExecutionManager, notRequestedWindowId, mockReq, mockRes, false, false);
+        expect(portletExecutionManager.getPortletOutput(completeWindowId, mockReq, mockRes)).andReturn("<p>complete</p>");
+        expect(portletExecutionManager.getPortletOutput(renderingWindowId, mockReq, mockRes)).andReturn("<p>rendering</p>");
+        expect(portletExecutionManager.getPortletOutput(queuedWindowId, mockReq, mockRes)).andReturn("<p>queued</p>");
+        expect(portletExecutionManager.getPortletOutput(notRequestedWindowId, mockReq, mockRes)).andReturn("<p>notRequested</p>");
+        
+        replay(targetComponent, portletExecutionManager, completeWindowId, renderingWindowId, queuedWindowId, notRequestedWindowId);
+        
+        final PortletRenderingIncorporationComponent incorporationComponent = new PortletRenderingIncorporationComponent();
+        incorporationComponent.setWrappedComponent(targetComponent);
+        incorporationComponent.setPortletExecutionManager(portletExecutionManager);
+        incorporationComponent.setDeferIncompletePortlets(true);
+        
+        final StringBuilder output = new StringBuilder();
+        for (final CharacterEvent event : incorporationComponent.getEventReader(mockReq, mockRes)) {
+            output.append(((CharacterDataEvent)event).getData());
+        }
+        
+        final String expected = 
+                "<html><body>" +
+                "<p>complete</p>" +
+                "<div id=\"up-deferred-portlet-rendering\"></div>" +
+                "<div id=\"up-deferred-portlet-queued\"></div>" +
+                "<p>notRequested</p>" +
+                "<p>footer</p>" +
+                incorporationComponent.getDeferredPortletMarkup(renderingWindowId, "<p>rendering</p>") +
+                incorporationComponent.getDeferredPortletMarkup(queuedWindowId, "<p>queued</p>") +
+                "</BODY></html>";
+        Assert.assertEquals(expected, output.toString());
+        
+        verify(targetComponent, portletExecutionManager);
+    }
+    
+    @Test
+    public void testLastIndexOfBodyEnd() {
+        Assert.assertEquals(-1, PortletRenderingIncorporationComponent.lastIndexOfBodyEnd("<html><body>"));
+        Assert.assertEquals(6, PortletRenderingIncorporationComponent.lastIndexOfBodyEnd("</div></body></html>"));
+        Assert.assertEquals(0, PortletRenderingIncorporationComponent.lastIndexOfBodyEnd("</Body>"));
+    }
+    
+    private IPortletWindowId createPortletWindowId(String id) {
+        final IPortletWindowId portletWindowId = createMock(IPortletWindowId.class);
+        expect(portletWindowId.getStringId()).andReturn(id).anyTimes();
+        return portletWindowId;
+    }
+    
+    private void expectRenderState(IPortletExecutionManager portletExecutionManager, IPortletWindowId portletWindowId, 
+            HttpServletRequest request, HttpServletResponse response, boolean requested, boolean complete) {
+        expect(portletExecutionManager.isPortletRenderRequested(portletWindowId, request, response)).andReturn(requested).anyTimes();
+        expect(portletExecutionManager.isPortletRenderComplete(portletWindowId, request, response)).andReturn(complete).anyTimes();
+    }
+}
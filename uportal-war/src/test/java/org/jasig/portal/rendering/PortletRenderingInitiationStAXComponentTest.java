@@ -0,0 +1,160 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.jasig.portal.portlet.om.IPortletWindow;
+import org.jasig.portal.portlet.om.IPortletWindowId;
+import org.jasig.portal.portlet.registry.IPortletWindowRegistry;
+import org.jasig.portal.portlet.rendering.IPortletExecutionManager;
+import org.jasig.portal.utils.Tuple;
+import org.jasig.portal.utils.cache.CacheKey;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Verifies portlet windows are only resolved for the portlets in the rendered layout.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class PortletRenderingInitiationStAXComponentTest {
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private IPortletWindowRegistry portletWindowRegistry;
+    private IPortletExecutionManager portletExecutionManager;
+    private PortletRenderingInitiationStAXComponent component;
+    
+    @Before
+    public void setup() {
+        this.request = new MockHttpServletRequest();
+        this.response = new MockHttpServletResponse();
+        this.portletWindowRegistry = mock(IPortletWindowRegistry.class);
+        this.portletExecutionManager = mock(IPortletExecutionManager.class);
+        
+        final IPortletWindow portletWindow = mock(IPortletWindow.class);
+        when(portletWindow.getPortletWindowId()).thenReturn(mock(IPortletWindowId.class));
+        when(this.portletWindowRegistry.getPortletWindow(any(HttpServletRequest.class), any(StartElement.class))).thenAnswer(new Answer<Tuple<IPortletWindow, StartElement>>() {
+            @Override
+            public Tuple<IPortletWindow, StartElement> answer(InvocationOnMock invocation) throws Throwable {
+                return new Tuple<IPortletWindow, StartElement>(portletWindow, (StartElement) invocation.getArguments()[1]);
+            }
+        });
+        
+        this.component = new PortletRenderingInitiationStAXComponent();
+        this.component.setPortletWindowRegistry(this.portletWindowRegistry);
+        this.component.setPortletExecutionManager(this.portletExecutionManager);
+    }
+    
+    @Test
+    public void testResolvesRenderedPortlets() throws Exception {
+        this.component.setWrappedComponent(new StringStAXSource(
+                "<layout><header><channel-header ID=\"n2\"/></header>" +
+                "<content><channel ID=\"n1\">text</channel><channel ID=\"n2\"/><channel ID=\"n3\"/></content></layout>"));
+        
+        final List<String> elements = this.readElements();
+        
+        assertEquals(Arrays.asList("layout", "header", "channel-header", "content", "channel", "channel", "channel"), elements);
+        
+        final ArgumentCaptor<Collection> layoutNodeIds = ArgumentCaptor.forClass(Collection.class);
+        verify(this.portletWindowRegistry, times(1)).getLayoutPortletWindows(any(HttpServletRequest.class), layoutNodeIds.capture());
+        assertEquals(Arrays.asList("n2", "n1", "n3"), new ArrayList<Object>(layoutNodeIds.getValue()));
+        verify(this.portletWindowRegistry, never()).getAllLayoutPortletWindows(any(HttpServletRequest.class));
+        verify(this.portletWindowRegistry, times(4)).getPortletWindow(any(HttpServletRequest.class), any(StartElement.class));
+    }
+    
+    @Test
+    public void testNoPortlets() throws Exception {
+        this.component.setWrappedComponent(new StringStAXSource("<layout><content/></layout>"));
+        
+        final List<String> elements = this.readElements();
+        
+        assertEquals(Arrays.asList("layout", "content"), elements);
+        verify(this.portletWindowRegistry, never()).getLayoutPortletWindows(any(HttpServletRequest.class), any(Collection.class));
+        verify(this.portletWindowRegistry, never()).getAllLayoutPortletWindows(any(HttpServletRequest.class));
+    }
+    
+    private List<String> readElements() throws XMLStreamException {
+        final PipelineEventReader<XMLEventReader, XMLEvent> pipelineEventReader = this.component.getEventReader(this.request, this.response);
+        final XMLEventReader eventReader = pipelineEventReader.getEventReader();
+        
+        final List<String> elements = new ArrayList<String>();
+        while (eventReader.hasNext()) {
+            final XMLEvent event = eventReader.nextEvent();
+            if (event.isStartElement()) {
+                elements.add(event.asStartElement().getName().getLocalPart());
+            }
+        }
+        return elements;
+    }
+    
+    private static final class StringStAXSource implements StAXPipelineComponent {
+        private final String xml;
+        
+        public StringStAXSource(String xml) {
+            this.xml = xml;
+        }
+
+        @Override
+        public CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
+            return new CacheKey("StringStAXSource", this.xml);
+        }
+
+        @Override
+        public PipelineEventReader<XMLEventReader, XMLEvent> getEventReader(HttpServletRequest request, HttpServletResponse response) {
+            final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+            final XMLEventReader xmlEventReader;
+            try {
+                xmlEventReader = inputFactory.createXMLEventReader(new StringReader(this.xml));
+            }
+            catch (XMLStreamException e) {
+                throw new RuntimeException(e);
+            }
+            return new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(xmlEventReader, Collections.<String, String>emptyMap());
+        }
+    }
+}
@@ -66,6 +66,14 @@ public class StaticTransformerSource implements TransformerSource {
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.jasig.portal.rendering.xslt.TransformerSource#releaseTransformer(javax.xml.transform.Transformer)
+     */
+    @Override
+    public void releaseTransformer(Transformer transformer) {
+        //Transformers are not reused
+    }
+
     /* (non-Javadoc)
      * @see org.jasig.portal.rendering.xslt.TransformerSource#getCacheKey(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse)
      */
@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.notNull;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -34,6 +35,7 @@ import net.sf.ehcache.Element;
 
 import org.jasig.portal.character.stream.CharacterEventBufferReader;
 import org.jasig.portal.character.stream.CharacterEventReader;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
 import org.jasig.portal.character.stream.events.CharacterEvent;
 import org.jasig.portal.rendering.CharacterPipelineComponent;
 import org.jasig.portal.rendering.PipelineEventReader;
@@ -117,4 +119,42 @@ public class CachingCharacterPipelineComponentTest {
         
         verify(cache, targetComponent, elementsProvider);
     }
+    
+    @Test
+    public void testCacheMissTooLarge() {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        final CacheKey cacheKey = new CacheKey("testCacheKey");
+        final List<CharacterEvent> eventBuffer = Arrays.<CharacterEvent>asList(
+                new CharacterDataEventImpl("<html><body>"), 
+                new CharacterDataEventImpl("</body></html>"));
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> eventReader = new PipelineEventReaderImpl<CharacterEventReader, CharacterEvent>(new CharacterEventBufferReader(eventBuffer.listIterator()));
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        final CharacterPipelineComponent targetComponent = createMock(CharacterPipelineComponent.class);
+        final ResourcesElementsProvider elementsProvider = createMock(ResourcesElementsProvider.class);
+        
+        expect(elementsProvider.getDefaultIncludedType()).andReturn(Included.AGGREGATED);
+        expect(targetComponent.getCacheKey(mockReq, mockRes)).andReturn(cacheKey);
+        expect(cache.get(cacheKey)).andReturn(null);
+        expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(eventReader);
+        
+        replay(cache, targetComponent, elementsProvider);
+        
+        final CachingCharacterPipelineComponent cachingComponent = new CachingCharacterPipelineComponent();
+        cachingComponent.setCache(cache);
+        cachingComponent.setWrappedComponent(targetComponent);
+        cachingComponent.setResourcesElementsProvider(elementsProvider);
+        cachingComponent.setMaxCachedEventsSize(10);
+        
+        final PipelineEventReader<CharacterEventReader, CharacterEvent> actualEventReader = cachingComponent.getEventReader(mockReq, mockRes);
+
+        Assert.assertNotNull(actualEventReader);
+        final CharacterEventReader characterEventReader = actualEventReader.getEventReader();
+        Assert.assertEquals(eventBuffer.get(0), characterEventReader.next());
+        Assert.assertEquals(eventBuffer.get(1), characterEventReader.next());
+        Assert.assertFalse(characterEventReader.hasNext());
+        
+        verify(cache, targetComponent, elementsProvider);
+    }
 }
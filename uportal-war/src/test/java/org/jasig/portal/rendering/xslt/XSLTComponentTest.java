@@ -19,12 +19,20 @@
 
 package org.jasig.portal.rendering.xslt;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -50,6 +58,7 @@ import org.jasig.portal.io.xml.XmlTestException;
 import org.jasig.portal.rendering.PipelineEventReader;
 import org.jasig.portal.rendering.PipelineEventReaderImpl;
 import org.jasig.portal.rendering.StAXPipelineComponent;
+import org.jasig.portal.utils.cache.CacheKey;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -83,6 +92,8 @@ public class XSLTComponentTest {
         
         EasyMock.expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(cacheableEventReader);
         EasyMock.expect(transformerSource.getTransformer(mockReq, mockRes)).andReturn(transformer);
+        transformerSource.releaseTransformer(transformer);
+        EasyMock.expectLastCall();
         
         EasyMock.replay(targetComponent, transformerSource);
         
@@ -124,6 +135,105 @@ public class XSLTComponentTest {
         EasyMock.verify(targetComponent, transformerSource);
     }
     
+    @Test
+    public void testStreamingXSLTComponent() throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        
+        final XSLTComponent bufferingXsltComponent = this.createXSLTComponent(mockReq, mockRes, new ReleaseTrackingTransformerSource("columns.xsl"));
+        final String expected = this.serializeXMLEventReader(bufferingXsltComponent.getEventReader(mockReq, mockRes).getEventReader());
+        
+        final ExecutorService transformExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final ReleaseTrackingTransformerSource transformerSource = new ReleaseTrackingTransformerSource("columns.xsl");
+            final XSLTComponent xsltComponent = this.createXSLTComponent(mockReq, mockRes, transformerSource);
+            xsltComponent.setStreaming(true);
+            xsltComponent.setTransformExecutor(transformExecutor);
+            //Small batches and queue so the transform has to wait on the reader
+            xsltComponent.setStreamingBatchSize(1);
+            xsltComponent.setStreamingQueueSize(1);
+            
+            final PipelineEventReader<XMLEventReader, XMLEvent> eventReader = xsltComponent.getEventReader(mockReq, mockRes);
+            final String output = this.serializeXMLEventReader(eventReader.getEventReader());
+            
+            assertEquals(expected, output);
+            assertTrue("Transformer was not released", transformerSource.awaitRelease(5, TimeUnit.SECONDS));
+        }
+        finally {
+            transformExecutor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testStreamingConsumerCloses() throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        
+        final ExecutorService transformExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final ReleaseTrackingTransformerSource transformerSource = new ReleaseTrackingTransformerSource("columns.xsl");
+            final XSLTComponent xsltComponent = this.createXSLTComponent(mockReq, mockRes, transformerSource);
+            xsltComponent.setStreaming(true);
+            xsltComponent.setTransformExecutor(transformExecutor);
+            xsltComponent.setStreamingBatchSize(1);
+            xsltComponent.setStreamingQueueSize(1);
+            //Long enough that only closing the reader can end the transform within the test
+            xsltComponent.setStreamingWriteTimeout(TimeUnit.MINUTES.toMillis(5));
+            
+            final XMLEventReader eventReader = xsltComponent.getEventReader(mockReq, mockRes).getEventReader();
+            
+            //Consumer fails after the first event and closes the reader in its error path
+            eventReader.nextEvent();
+            eventReader.close();
+            
+            assertTrue("Transform did not stop after the reader was closed", transformerSource.awaitRelease(5, TimeUnit.SECONDS));
+        }
+        finally {
+            transformExecutor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testStreamingConsumerAbandons() throws Exception {
+        final MockHttpServletRequest mockReq = new MockHttpServletRequest();
+        final MockHttpServletResponse mockRes = new MockHttpServletResponse();
+        
+        final ExecutorService transformExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final ReleaseTrackingTransformerSource transformerSource = new ReleaseTrackingTransformerSource("columns.xsl");
+            final XSLTComponent xsltComponent = this.createXSLTComponent(mockReq, mockRes, transformerSource);
+            xsltComponent.setStreaming(true);
+            xsltComponent.setTransformExecutor(transformExecutor);
+            xsltComponent.setStreamingBatchSize(1);
+            xsltComponent.setStreamingQueueSize(1);
+            xsltComponent.setStreamingWriteTimeout(100);
+            
+            final XMLEventReader eventReader = xsltComponent.getEventReader(mockReq, mockRes).getEventReader();
+            
+            //Consumer fails after the first event without closing the reader
+            eventReader.nextEvent();
+            
+            assertTrue("Transform did not give up on the abandoned reader", transformerSource.awaitRelease(5, TimeUnit.SECONDS));
+        }
+        finally {
+            transformExecutor.shutdownNow();
+        }
+    }
+    
+    private XSLTComponent createXSLTComponent(MockHttpServletRequest mockReq, MockHttpServletResponse mockRes, TransformerSource transformerSource) throws Exception {
+        final XMLEventReader xmlEventReader = this.getXmlEventReader("juser.xml");
+        final PipelineEventReaderImpl<XMLEventReader, XMLEvent> cacheableEventReader = new PipelineEventReaderImpl<XMLEventReader, XMLEvent>(xmlEventReader);
+        
+        final StAXPipelineComponent targetComponent = EasyMock.createMock(StAXPipelineComponent.class);
+        EasyMock.expect(targetComponent.getEventReader(mockReq, mockRes)).andReturn(cacheableEventReader);
+        EasyMock.replay(targetComponent);
+        
+        final XSLTComponent xsltComponent = new XSLTComponent();
+        xsltComponent.setWrappedComponent(targetComponent);
+        xsltComponent.setTransformerSource(transformerSource);
+        return xsltComponent;
+    }
+    
     protected String serializeXMLEventReader(XMLEventReader reader) {
         final StringWriter writer = new StringWriter();
         
@@ -182,4 +292,35 @@ public class XSLTComponentTest {
             throw new RuntimeException("Failed to create Transformer for stylesheet: " + file, e);
         }
     }
+    
+    /**
+     * Creates a new Transformer for each call and records when it is released
+     */
+    private class ReleaseTrackingTransformerSource implements TransformerSource {
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final String file;
+        
+        public ReleaseTrackingTransformerSource(String file) {
+            this.file = file;
+        }
+        
+        public boolean awaitRelease(long timeout, TimeUnit unit) throws InterruptedException {
+            return this.released.await(timeout, unit);
+        }
+
+        @Override
+        public Transformer getTransformer(HttpServletRequest request, HttpServletResponse response) {
+            return XSLTComponentTest.this.getTransformer(this.file);
+        }
+
+        @Override
+        public void releaseTransformer(Transformer transformer) {
+            this.released.countDown();
+        }
+
+        @Override
+        public CacheKey getCacheKey(HttpServletRequest request, HttpServletResponse response) {
+            return null;
+        }
+    }
 }
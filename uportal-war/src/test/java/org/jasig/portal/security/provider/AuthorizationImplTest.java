@@ -0,0 +1,237 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import org.jasig.portal.groups.IEntityGroup;
+import org.jasig.portal.groups.IGroupMember;
+import org.jasig.portal.portlet.om.IPortletDefinition;
+import org.jasig.portal.portlet.om.IPortletDefinitionId;
+import org.jasig.portal.portlet.om.PortletLifecycleState;
+import org.jasig.portal.portlet.registry.IPortletDefinitionRegistry;
+import org.jasig.portal.security.IAuthorizationPrincipal;
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.IPermissionStore;
+import org.jasig.portal.security.IPerson;
+
+/**
+ * Verifies the bulk portlet permission checks give the same answers as checking
+ * each portlet on its own, including permissions inherited from groups.
+ *
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class AuthorizationImplTest extends TestCase {
+    private static final String CATEGORY_GROUP = "local.50";
+    private static final List<String> PORTLET_IDS = Arrays.asList("1", "2", "3", "4", "5", "6", "7");
+
+    private Map<String, List<IPermission>> principalPermissions;
+    private Map<String, List<String>> containingGroups;
+    private IPermissionStore permissionStore;
+    private IPortletDefinitionRegistry portletDefinitionRegistry;
+    private Ehcache entityParentsCache;
+    private AuthorizationImpl authorizationService;
+
+    @Override
+    protected void setUp() throws Exception {
+        this.principalPermissions = new HashMap<String, List<IPermission>>();
+        this.containingGroups = new HashMap<String, List<String>>();
+        this.permissionStore = mock(IPermissionStore.class);
+        this.portletDefinitionRegistry = mock(IPortletDefinitionRegistry.class);
+        this.entityParentsCache = mock(Ehcache.class);
+
+        this.authorizationService = new AuthorizationImpl() {
+            @Override
+            public IAuthorizationPrincipal newPrincipal(String key, Class type) {
+                return new AuthorizationPrincipalImpl(key, type, this);
+            }
+
+            @Override
+            public String getPrincipalString(IAuthorizationPrincipal principal) {
+                return (IEntityGroup.class.equals(principal.getType()) ? "1." : "2.") + principal.getKey();
+            }
+
+            @Override
+            public IGroupMember getGroupMember(IAuthorizationPrincipal principal) {
+                final List<IEntityGroup> groups = new ArrayList<IEntityGroup>();
+                final List<String> groupKeys = containingGroups.get(principal.getKey());
+                if (groupKeys != null) {
+                    for (final String groupKey : groupKeys) {
+                        final IEntityGroup group = mock(IEntityGroup.class);
+                        when(group.getKey()).thenReturn(groupKey);
+                        when(group.getType()).thenReturn((Class) IEntityGroup.class);
+                        groups.add(group);
+                    }
+                }
+
+                final IGroupMember member = mock(IGroupMember.class);
+                when(member.getAllContainingGroups()).thenReturn(groups.iterator());
+                return member;
+            }
+        };
+        this.authorizationService.setCachePermissions(false);
+        this.authorizationService.setPermissionStore(this.permissionStore);
+        this.authorizationService.setPortletDefinitionRegistry(this.portletDefinitionRegistry);
+        this.authorizationService.setEntityParentsCache(this.entityParentsCache);
+        this.authorizationService.setDoesPrincipalHavePermissionCache(mock(Ehcache.class));
+        this.authorizationService.setDefaultPermissionPolicy(new DefaultPermissionPolicy());
+
+        this.containingGroups.put("student", Arrays.asList("local.2", "local.1"));
+
+        this.createPortlet("1", PortletLifecycleState.PUBLISHED);
+        this.createPortlet("2", PortletLifecycleState.PUBLISHED);
+        this.createPortlet("3", PortletLifecycleState.APPROVED);
+        this.createPortlet("4", PortletLifecycleState.PUBLISHED, CATEGORY_GROUP);
+        this.createPortlet("5", PortletLifecycleState.EXPIRED);
+        this.createPortlet("6", PortletLifecycleState.PUBLISHED);
+        //Portlet 7 does not exist
+
+        //Granted and denied directly
+        this.addPermission("2.student", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "1", IPermission.PERMISSION_TYPE_GRANT);
+        this.addPermission("2.student", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "2", IPermission.PERMISSION_TYPE_DENY);
+        //Denied directly, the inherited grant is ignored
+        this.addPermission("1.local.2", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "2", IPermission.PERMISSION_TYPE_GRANT);
+        //Inherited from the outermost group for the approved lifecycle state
+        this.addPermission("1.local.1", IPermission.PORTLET_SUBSCRIBER_APPROVED_ACTIVITY, "3", IPermission.PERMISSION_TYPE_GRANT);
+        //Inherited through the category the portlet is in
+        this.addGroupPermission("1.local.2", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, CATEGORY_GROUP, IPermission.PERMISSION_TYPE_GRANT);
+        //Wrong activity for the expired lifecycle state
+        this.addPermission("1.local.1", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "5", IPermission.PERMISSION_TYPE_GRANT);
+        //Denied by one group, which does not override the grant from another
+        this.addPermission("1.local.2", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "6", IPermission.PERMISSION_TYPE_DENY);
+        this.addPermission("1.local.1", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "6", IPermission.PERMISSION_TYPE_GRANT);
+
+        this.storePermissions();
+    }
+
+    public void testSubscribeMatchesPerPortlet() throws Exception {
+        final IAuthorizationPrincipal principal = this.authorizationService.newPrincipal("student", IPerson.class);
+
+        final Set<String> subscribable = this.authorizationService.getPortletsPrincipalCanSubscribe(principal, PORTLET_IDS);
+
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("1", "3", "4", "6")), subscribable);
+        assertEquals(this.getPerPortlet(principal), subscribable);
+    }
+
+    public void testRenderMatchesPerPortlet() throws Exception {
+        final IAuthorizationPrincipal principal = this.authorizationService.newPrincipal("student", IPerson.class);
+
+        final Set<String> renderable = this.authorizationService.getPortletsPrincipalCanRender(principal, PORTLET_IDS);
+
+        assertEquals(this.getPerPortlet(principal), renderable);
+        assertEquals(renderable, principal.getRenderableChannels(PORTLET_IDS));
+    }
+
+    public void testPrincipalWithoutGroups() throws Exception {
+        final IAuthorizationPrincipal principal = this.authorizationService.newPrincipal("guest", IPerson.class);
+        this.addPermission("2.guest", IPermission.PORTLET_SUBSCRIBER_ACTIVITY, "6", IPermission.PERMISSION_TYPE_GRANT);
+        this.storePermissions();
+
+        final Set<String> subscribable = this.authorizationService.getPortletsPrincipalCanSubscribe(principal, PORTLET_IDS);
+
+        assertEquals(Collections.singleton("6"), subscribable);
+        assertEquals(this.getPerPortlet(principal), subscribable);
+    }
+
+    public void testCustomPolicyMatchesPerPortlet() throws Exception {
+        //Any other policy is evaluated one target at a time
+        this.authorizationService.setDefaultPermissionPolicy(new DefaultPermissionPolicy() { });
+        final IAuthorizationPrincipal principal = this.authorizationService.newPrincipal("student", IPerson.class);
+
+        final Set<String> subscribable = this.authorizationService.getPortletsPrincipalCanSubscribe(principal, PORTLET_IDS);
+
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("1", "3", "4", "6")), subscribable);
+        assertEquals(this.getPerPortlet(principal), subscribable);
+    }
+
+    public void testNoPortlets() throws Exception {
+        final IAuthorizationPrincipal principal = this.authorizationService.newPrincipal("student", IPerson.class);
+
+        assertTrue(this.authorizationService.getPortletsPrincipalCanSubscribe(principal, Collections.<String>emptyList()).isEmpty());
+    }
+
+    private Set<String> getPerPortlet(IAuthorizationPrincipal principal) {
+        final Set<String> permitted = new LinkedHashSet<String>();
+        for (final String portletId : PORTLET_IDS) {
+            if (this.authorizationService.canPrincipalSubscribe(principal, portletId)) {
+                permitted.add(portletId);
+            }
+        }
+        return permitted;
+    }
+
+    private void createPortlet(String portletId, PortletLifecycleState state, String... categoryGroups) {
+        final IPortletDefinitionId portletDefinitionId = mock(IPortletDefinitionId.class);
+        when(portletDefinitionId.getStringId()).thenReturn(portletId);
+
+        final IPortletDefinition portlet = mock(IPortletDefinition.class);
+        when(portlet.getPortletDefinitionId()).thenReturn(portletDefinitionId);
+        when(portlet.getLifecycleState()).thenReturn(state);
+        when(this.portletDefinitionRegistry.getPortletDefinition(portletId)).thenReturn(portlet);
+
+        final String target = IPermission.PORTLET_PREFIX + portletId;
+        when(this.entityParentsCache.get(target)).thenReturn(new Element(target, new HashSet<String>(Arrays.asList(categoryGroups))));
+    }
+
+    private void addPermission(String principal, String activity, String portletId, String type) {
+        this.addGroupPermission(principal, activity, IPermission.PORTLET_PREFIX + portletId, type);
+    }
+
+    private void addGroupPermission(String principal, String activity, String target, String type) {
+        final PermissionImpl permission = new PermissionImpl(IPermission.PORTAL_SUBSCRIBE);
+        permission.setPrincipal(principal);
+        permission.setActivity(activity);
+        permission.setTarget(target);
+        permission.setType(type);
+
+        List<IPermission> permissions = this.principalPermissions.get(principal);
+        if (permissions == null) {
+            permissions = new ArrayList<IPermission>();
+            this.principalPermissions.put(principal, permissions);
+        }
+        permissions.add(permission);
+    }
+
+    private void storePermissions() {
+        for (final String principal : Arrays.asList("2.student", "2.guest", "1.local.2", "1.local.1")) {
+            List<IPermission> permissions = this.principalPermissions.get(principal);
+            if (permissions == null) {
+                permissions = Collections.emptyList();
+            }
+            when(this.permissionStore.select(null, principal, null, null, null)).thenReturn(permissions.toArray(new IPermission[permissions.size()]));
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.security.provider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jasig.portal.security.IPermission;
+import org.jasig.portal.security.provider.IndexedPermissionStore.PermissionIndex;
+import org.jasig.portal.security.provider.IndexedPermissionStore.PermissionKey;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class IndexedPermissionStoreTest extends TestCase {
+    private PermissionIndex permissionIndex;
+    private IndexedPermissionStore permissionStore;
+    
+    @Override
+    protected void setUp() throws Exception {
+        this.permissionIndex = new PermissionIndex();
+        this.permissionStore = new IndexedPermissionStore() {
+            @Override
+            protected PermissionIndex getPermissionIndex() {
+                return permissionIndex;
+            }
+        };
+        
+        this.put("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        this.put("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.2", IPermission.PERMISSION_TYPE_DENY);
+        this.put("UP_PORTLET_SUBSCRIBE", "1.local.0", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        this.put("UP_PORTLET_PUBLISH", "2.admin", "MANAGE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+    }
+    
+    public void testSelectByPrincipal() throws Exception {
+        assertEquals(3, this.permissionStore.select(null, "2.admin", null, null, null).length);
+        assertEquals(1, this.permissionStore.select(null, "1.local.0", null, null, null).length);
+        assertEquals(0, this.permissionStore.select(null, "2.student", null, null, null).length);
+    }
+    
+    public void testSelectByAllCriteria() throws Exception {
+        final IPermission[] perms = this.permissionStore.select("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.2", null);
+        assertEquals(1, perms.length);
+        assertEquals(IPermission.PERMISSION_TYPE_DENY, perms[0].getType());
+        
+        assertEquals(0, this.permissionStore.select("UP_PORTLET_SUBSCRIBE", "2.admin", "MANAGE", null, null).length);
+        assertEquals(4, this.permissionStore.select(null, null, null, null, null).length);
+    }
+    
+    public void testSelectByType() throws Exception {
+        assertEquals(2, this.permissionStore.select(null, "2.admin", null, null, IPermission.PERMISSION_TYPE_GRANT).length);
+        assertEquals(1, this.permissionStore.select("UP_PORTLET_SUBSCRIBE", null, null, null, IPermission.PERMISSION_TYPE_DENY).length);
+    }
+    
+    public void testSelectReturnsCopies() throws Exception {
+        final IPermission[] perms = this.permissionStore.select("UP_PORTLET_PUBLISH", null, null, null, null);
+        assertEquals(1, perms.length);
+        perms[0].setType(IPermission.PERMISSION_TYPE_DENY);
+        
+        assertEquals(IPermission.PERMISSION_TYPE_GRANT, this.permissionStore.select("UP_PORTLET_PUBLISH", null, null, null, null)[0].getType());
+    }
+    
+    public void testRemove() throws Exception {
+        this.permissionIndex.remove(new PermissionKey("UP_PORTLET_PUBLISH", "2.admin", "MANAGE", "PORTLET_ID.1"));
+        
+        assertEquals(0, this.permissionStore.select("UP_PORTLET_PUBLISH", null, null, null, null).length);
+        assertEquals(0, this.permissionStore.select(null, null, "MANAGE", null, null).length);
+        assertEquals(2, this.permissionStore.select(null, null, null, "PORTLET_ID.1", null).length);
+    }
+    
+    public void testRecordChanges() throws Exception {
+        final DatabasePermissionStore store = new DatabasePermissionStore();
+        store.rows.add(createPermission("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT));
+        
+        //Changes before the first load are only logged, the load reads them from the database
+        final IPermission publish = createPermission("UP_PORTLET_PUBLISH", "2.admin", "MANAGE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        store.rows.add(publish);
+        store.recordChanges(new IPermission[] { publish });
+        assertEquals(1, store.getChangeCount());
+        assertEquals(0, store.selectAllCount);
+        
+        assertEquals(2, store.select(null, "2.admin", null, null, null).length);
+        assertEquals(1, store.selectAllCount);
+        
+        //An added permission is logged and visible locally right away
+        final IPermission deny = createPermission("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.2", IPermission.PERMISSION_TYPE_DENY);
+        store.rows.add(deny);
+        store.recordChanges(new IPermission[] { deny });
+        assertEquals(2, store.getChangeCount());
+        assertEquals(1, store.select(null, null, null, "PORTLET_ID.2", IPermission.PERMISSION_TYPE_DENY).length);
+        
+        //So is a deleted one
+        store.rows.remove(publish);
+        store.recordChanges(new IPermission[] { publish });
+        assertEquals(3, store.getChangeCount());
+        assertEquals(0, store.select("UP_PORTLET_PUBLISH", null, null, null, null).length);
+        assertEquals(2, store.select(null, "2.admin", null, null, null).length);
+        
+        assertEquals(1, store.selectAllCount);
+    }
+    
+    public void testPollPermissionChanges() throws Exception {
+        final DatabasePermissionStore store = new DatabasePermissionStore();
+        store.rows.add(createPermission("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT));
+        
+        //Nothing to poll until the permissions are loaded
+        store.pollPermissionChanges();
+        assertEquals(0, store.selectChangesCount);
+        
+        assertEquals(1, store.select(null, null, null, null, null).length);
+        
+        //Another server changes a permission
+        final IPermission deny = createPermission("UP_PORTLET_SUBSCRIBE", "1.local.1", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_DENY);
+        store.rows.add(deny);
+        store.logChange(deny, System.currentTimeMillis());
+        assertEquals(0, store.select(null, "1.local.1", null, null, null).length);
+        
+        store.pollPermissionChanges();
+        assertEquals(1, store.selectChangesCount);
+        assertEquals(1, store.selectCount);
+        assertEquals(1, store.select(null, "1.local.1", null, null, null).length);
+        
+        //A change already applied is not reloaded by the overlapping poll window
+        store.pollPermissionChanges();
+        assertEquals(2, store.selectChangesCount);
+        assertEquals(1, store.selectCount);
+        
+        //Nor is a change made on this server
+        final IPermission grant = createPermission("UP_PORTLET_SUBSCRIBE", "2.student", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT);
+        store.rows.add(grant);
+        store.recordChanges(new IPermission[] { grant });
+        assertEquals(2, store.selectCount);
+        store.pollPermissionChanges();
+        assertEquals(2, store.selectCount);
+        
+        //A newer change to the same permission is
+        store.rows.remove(deny);
+        store.logChange(deny, System.currentTimeMillis() + 1000);
+        store.pollPermissionChanges();
+        assertEquals(3, store.selectCount);
+        assertEquals(0, store.select(null, "1.local.1", null, null, null).length);
+        
+        //Changes older than the retention are purged
+        store.logChange(deny, System.currentTimeMillis() - 2 * 3600000);
+        assertEquals(4, store.getChangeCount());
+        store.pollPermissionChanges();
+        assertEquals(3, store.getChangeCount());
+        
+        assertEquals(1, store.selectAllCount);
+    }
+    
+    public void testPollReloadsAfterChangeRetention() throws Exception {
+        final DatabasePermissionStore store = new DatabasePermissionStore();
+        store.rows.add(createPermission("UP_PORTLET_SUBSCRIBE", "2.admin", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT));
+        assertEquals(1, store.select(null, null, null, null, null).length);
+        
+        //Changes since the last poll may have been purged, everything is reloaded
+        store.setChangeRetention(0);
+        store.rows.add(createPermission("UP_PORTLET_SUBSCRIBE", "2.student", "SUBSCRIBE", "PORTLET_ID.1", IPermission.PERMISSION_TYPE_GRANT));
+        Thread.sleep(5);
+        store.pollPermissionChanges();
+        
+        assertEquals(2, store.selectAllCount);
+        assertEquals(0, store.selectChangesCount);
+        assertEquals(2, store.select(null, null, null, null, null).length);
+    }
+    
+    private void put(String owner, String principal, String activity, String target, String type) {
+        final IPermission perm = createPermission(owner, principal, activity, target, type);
+        this.permissionIndex.put(new PermissionKey(owner, principal, activity, target), new IPermission[] { perm });
+    }
+    
+    private static IPermission createPermission(String owner, String principal, String activity, String target, String type) {
+        final IPermission perm = new PermissionImpl(owner);
+        perm.setPrincipal(principal);
+        perm.setActivity(activity);
+        perm.setTarget(target);
+        perm.setType(type);
+        return perm;
+    }
+    
+    /**
+     * Keeps the UP_PERMISSION and UP_PERMISSION_CHANGE rows in memory
+     */
+    private static class DatabasePermissionStore extends IndexedPermissionStore {
+        private final List<IPermission> rows = new ArrayList<IPermission>();
+        private final Map<PermissionKey, List<Long>> changes = new HashMap<PermissionKey, List<Long>>();
+        private int selectAllCount = 0;
+        private int selectCount = 0;
+        private int selectChangesCount = 0;
+        
+        public int getChangeCount() {
+            int count = 0;
+            for (final List<Long> changeTimes : this.changes.values()) {
+                count += changeTimes.size();
+            }
+            return count;
+        }
+        
+        public void logChange(IPermission perm, long changeTime) {
+            final PermissionKey key = this.getPermissionKey(perm);
+            List<Long> changeTimes = this.changes.get(key);
+            if (changeTimes == null) {
+                changeTimes = new ArrayList<Long>();
+                this.changes.put(key, changeTimes);
+            }
+            changeTimes.add(changeTime);
+        }
+        
+        @Override
+        protected List<IPermission> selectAllPermissions() {
+            this.selectAllCount++;
+            final List<IPermission> perms = new ArrayList<IPermission>();
+            for (final IPermission perm : this.rows) {
+                perms.add(this.copyPermission(perm));
+            }
+            return perms;
+        }
+        
+        @Override
+        protected IPermission[] selectPermissions(PermissionKey key) {
+            this.selectCount++;
+            final List<IPermission> perms = new ArrayList<IPermission>();
+            for (final IPermission perm : this.rows) {
+                if (key.equals(this.getPermissionKey(perm))) {
+                    perms.add(this.copyPermission(perm));
+                }
+            }
+            return perms.toArray(new IPermission[perms.size()]);
+        }
+        
+        @Override
+        protected void insertChanges(Set<PermissionKey> keys, long changeTime) {
+            for (final PermissionKey key : keys) {
+                List<Long> changeTimes = this.changes.get(key);
+                if (changeTimes == null) {
+                    changeTimes = new ArrayList<Long>();
+                    this.changes.put(key, changeTimes);
+                }
+                changeTimes.add(changeTime);
+            }
+        }
+        
+        @Override
+        protected Map<PermissionKey, Long> selectChanges(long since) {
+            this.selectChangesCount++;
+            final Map<PermissionKey, Long> latestChanges = new HashMap<PermissionKey, Long>();
+            for (final Map.Entry<PermissionKey, List<Long>> changeEntry : this.changes.entrySet()) {
+                for (final Long changeTime : changeEntry.getValue()) {
+                    final Long latest = latestChanges.get(changeEntry.getKey());
+                    if (changeTime > since && (latest == null || latest < changeTime)) {
+                        latestChanges.put(changeEntry.getKey(), changeTime);
+                    }
+                }
+            }
+            return latestChanges;
+        }
+        
+        @Override
+        protected void deleteChanges(long before) {
+            for (final Iterator<List<Long>> changeTimesItr = this.changes.values().iterator(); changeTimesItr.hasNext(); ) {
+                final List<Long> changeTimes = changeTimesItr.next();
+                for (final Iterator<Long> changeTimeItr = changeTimes.iterator(); changeTimeItr.hasNext(); ) {
+                    if (changeTimeItr.next() < before) {
+                        changeTimeItr.remove();
+                    }
+                }
+                if (changeTimes.isEmpty()) {
+                    changeTimesItr.remove();
+                }
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 package org.jasig.portal.url;
 
+import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -44,6 +45,14 @@ public class UrlStringBuilderTest {
         }
     }
 
+    @Test
+    public void testNeedsEncoding() throws Exception {
+        for (final String s : Arrays.asList("", "pCa", "pP_u12l1n13_action", "a.b-c*d_E9", "a b", "va,?", "%20", "\u00e9", "a/b", "a+b", "a~b")) {
+            final boolean encoderChanges = !s.equals(URLEncoder.encode(s, "UTF-8"));
+            Assert.assertEquals(s, encoderChanges, UrlStringBuilder.needsEncoding(s));
+        }
+    }
+
     @Test
     public void testEmptyBuilder() {
         final UrlStringBuilder builder = new UrlStringBuilder("UTF-8");
@@ -25,6 +25,8 @@ package org.jasig.portal.url;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
@@ -121,6 +123,25 @@ public class UrlSyntaxProviderImplTest {
         
         assertEquals("/uPortal/f/n2/normal/render.uP", url);
     }
+    
+    @Test
+    public void testFolderPathLookedUpOncePerRequest() throws Exception {
+        final String layoutNodeId = "n2";
+        
+        final MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContextPath("/uPortal");
+        
+        when(portalRequestUtils.getOriginalPortalRequest(request)).thenReturn(request);
+        when(urlNodeSyntaxHelperRegistry.getCurrentUrlNodeSyntaxHelper(request)).thenReturn(urlNodeSyntaxHelper);
+        when(urlNodeSyntaxHelper.getFolderNamesForLayoutNode(request, layoutNodeId)).thenReturn(Arrays.asList("n1", layoutNodeId));
+        
+        final String renderUrl = new PortalUrlBuilder(urlSyntaxProvider, request, layoutNodeId, null, UrlType.RENDER).getUrlString();
+        final String actionUrl = new PortalUrlBuilder(urlSyntaxProvider, request, layoutNodeId, null, UrlType.ACTION).getUrlString();
+        
+        assertEquals("/uPortal/f/n1/n2/normal/render.uP", renderUrl);
+        assertEquals("/uPortal/f/n1/n2/normal/action.uP", actionUrl);
+        verify(urlNodeSyntaxHelper, times(1)).getFolderNamesForLayoutNode(request, layoutNodeId);
+    }
   
     @Test
     public void testSingleFolderPortletFnameSubscribeIdRenderUrlGeneration() throws Exception {
@@ -0,0 +1,94 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class HyperLogLogTest {
+    
+    @Test
+    public void testSmallCardinality() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(11);
+        assertEquals(0, hyperLogLog.cardinality());
+        
+        for (int i = 0; i < 10; i++) {
+            hyperLogLog.offer("user" + i);
+        }
+        
+        //Repeats never change the registers
+        for (int i = 0; i < 10; i++) {
+            assertFalse(hyperLogLog.offer("user" + i));
+        }
+        
+        assertEquals(10, hyperLogLog.cardinality());
+    }
+    
+    @Test
+    public void testLargeCardinality() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(11);
+        
+        for (int i = 0; i < 60000; i++) {
+            hyperLogLog.offer("user" + i);
+            hyperLogLog.offer("user" + (i / 2));
+        }
+        
+        assertWithin(60000, hyperLogLog.cardinality(), 0.07);
+        assertEquals(2048, hyperLogLog.getRegisters().length);
+    }
+    
+    @Test
+    public void testWrap() {
+        final HyperLogLog hyperLogLog = new HyperLogLog(11);
+        for (int i = 0; i < 1000; i++) {
+            hyperLogLog.offer("user" + i);
+        }
+        
+        final byte[] registers = hyperLogLog.getRegisters().clone();
+        final HyperLogLog wrapped = HyperLogLog.wrap(registers);
+        assertEquals(11, wrapped.getPrecision());
+        assertEquals(hyperLogLog.cardinality(), wrapped.cardinality());
+        
+        //Changes write through to the wrapped array
+        for (int i = 1000; i < 2000; i++) {
+            wrapped.offer("user" + i);
+        }
+        assertSame(registers, wrapped.getRegisters());
+        assertEquals(wrapped.cardinality(), HyperLogLog.wrap(registers).cardinality());
+        assertTrue(wrapped.cardinality() > hyperLogLog.cardinality());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testWrapInvalidLength() {
+        HyperLogLog.wrap(new byte[1000]);
+    }
+    
+    private static void assertWithin(long expected, long actual, double error) {
+        assertTrue("Estimate " + actual + " is not within " + (error * 100) + "% of " + expected, Math.abs(actual - expected) <= expected * error);
+    }
+}
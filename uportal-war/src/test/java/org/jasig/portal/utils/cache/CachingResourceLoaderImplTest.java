@@ -28,6 +28,7 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -36,7 +37,11 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import net.sf.ehcache.Ehcache;
@@ -247,6 +252,145 @@ public class CachingResourceLoaderImplTest {
         assertTrue(cachedResource1 == cachedResource);
     }
     
+    @Test
+    public void testBackgroundCheckDisabled() throws Exception {
+        final CachingResourceLoaderImpl loader = new CachingResourceLoaderImpl();
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        
+        expect(cache.getInternalContext()).andReturn(null).anyTimes();
+        expect(cache.getCacheConfiguration()).andReturn(new CacheConfiguration());
+        
+        replay(cache);
+        
+        loader.setResourceCache(cache);
+        loader.checkResources();
+        
+        verify(cache);
+    }
+    
+    @Test
+    public void testBackgroundCheckNotModified() throws Exception {
+        final Resource doc1Resouce = new FileSystemResource(doc1);
+        
+        final CachingResourceLoaderImpl loader = new CachingResourceLoaderImpl();
+        loader.setBackgroundCheck(true);
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        
+        final CachedResource<String> cachedResource = this.createCachedResource(doc1Resouce, doc1.lastModified() + TimeUnit.MINUTES.toMillis(5));
+        final Element element = new Element(doc1Resouce, cachedResource);
+        
+        expect(cache.getInternalContext()).andReturn(null).anyTimes();
+        expect(cache.getCacheConfiguration()).andReturn(new CacheConfiguration());
+        expect(cache.getKeys()).andReturn(Arrays.asList(doc1Resouce));
+        expect(cache.getQuiet(doc1Resouce)).andReturn(element);
+        expect(cache.replace(element, element)).andReturn(true);
+        
+        replay(cache);
+        
+        loader.setResourceCache(cache);
+        loader.checkResources();
+        
+        verify(cache);
+        
+        assertTrue(cachedResource.getLastCheckTime() > 0);
+    }
+    
+    @Test
+    public void testBackgroundCheckModified() throws Exception {
+        final Resource doc1Resouce = new FileSystemResource(doc1);
+        
+        final CachingResourceLoaderImpl loader = new CachingResourceLoaderImpl();
+        loader.setBackgroundCheck(true);
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        
+        final CachedResource<String> cachedResource = this.createCachedResource(doc1Resouce, doc1.lastModified() - TimeUnit.MINUTES.toMillis(5));
+        final Element element = new Element(doc1Resouce, cachedResource);
+        
+        expect(cache.getInternalContext()).andReturn(null).anyTimes();
+        expect(cache.getCacheConfiguration()).andReturn(new CacheConfiguration());
+        expect(cache.getKeys()).andReturn(Arrays.asList(doc1Resouce));
+        expect(cache.getQuiet(doc1Resouce)).andReturn(element);
+        expect(cache.removeElement(element)).andReturn(true);
+        
+        replay(cache);
+        
+        loader.setResourceCache(cache);
+        loader.checkResources();
+        
+        verify(cache);
+        
+        assertEquals(0, cachedResource.getLastCheckTime());
+    }
+    
+    @Test
+    public void testBackgroundCheckWithinInterval() throws Exception {
+        final Resource doc1Resouce = new FileSystemResource(doc1);
+        
+        final CachingResourceLoaderImpl loader = new CachingResourceLoaderImpl();
+        loader.setBackgroundCheck(true);
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        
+        final CachedResource<String> cachedResource = this.createCachedResource(doc1Resouce, doc1.lastModified() - TimeUnit.MINUTES.toMillis(5));
+        final long lastCheckTime = System.currentTimeMillis();
+        cachedResource.setLastCheckTime(lastCheckTime);
+        final Element element = new Element(doc1Resouce, cachedResource);
+        
+        expect(cache.getInternalContext()).andReturn(null).anyTimes();
+        expect(cache.getCacheConfiguration()).andReturn(new CacheConfiguration());
+        expect(cache.getKeys()).andReturn(Arrays.asList(doc1Resouce));
+        expect(cache.getQuiet(doc1Resouce)).andReturn(element);
+        
+        replay(cache);
+        
+        loader.setResourceCache(cache);
+        loader.checkResources();
+        
+        verify(cache);
+        
+        assertEquals(lastCheckTime, cachedResource.getLastCheckTime());
+    }
+    
+    @Test
+    public void testBackgroundCheckArchiveResource() throws Exception {
+        final CachingResourceLoaderImpl loader = new CachingResourceLoaderImpl();
+        loader.setBackgroundCheck(true);
+        
+        final Ehcache cache = createMock(Ehcache.class);
+        final Resource archiveResource = createMock(Resource.class);
+        
+        final CachedResource<String> cachedResource = this.createCachedResource(archiveResource, 0);
+        final Element element = new Element(archiveResource, cachedResource);
+        
+        //The URL is only resolved once and lastModified is never called for an archive entry
+        expect(archiveResource.getURL()).andReturn(new URL("jar:file:/portal/WEB-INF/lib/resources.jar!/skin.css"));
+        expect(cache.getInternalContext()).andReturn(null).anyTimes();
+        expect(cache.getCacheConfiguration()).andReturn(new CacheConfiguration());
+        expect(cache.getKeys()).andReturn(Arrays.asList(archiveResource)).times(2);
+        expect(cache.getQuiet(archiveResource)).andReturn(element).times(2);
+        expect(cache.replace(element, element)).andReturn(true).times(2);
+        
+        replay(cache, archiveResource);
+        
+        loader.setResourceCache(cache);
+        loader.checkResources();
+        assertFalse(cachedResource.getLastCheckTime() == 0);
+        
+        cachedResource.setLastCheckTime(0);
+        loader.checkResources();
+        
+        verify(cache, archiveResource);
+        
+        assertFalse(cachedResource.getLastCheckTime() == 0);
+    }
+    
+    private CachedResource<String> createCachedResource(Resource resource, long lastLoadTime) {
+        return new SimpleCachedResource(resource, lastLoadTime);
+    }
+    
     private static class StringResourceBuilder implements Loader<String> {
         public static final StringResourceBuilder INSTANCE = new StringResourceBuilder();
 
@@ -262,4 +406,50 @@ public class CachingResourceLoaderImplTest {
             }
         }
     }
+    
+    private static class SimpleCachedResource implements CachedResource<String> {
+        private final Resource resource;
+        private final long lastLoadTime;
+        private volatile long lastCheckTime = 0;
+        
+        public SimpleCachedResource(Resource resource, long lastLoadTime) {
+            this.resource = resource;
+            this.lastLoadTime = lastLoadTime;
+        }
+
+        @Override
+        public Resource getResource() {
+            return this.resource;
+        }
+
+        @Override
+        public Map<Resource, Long> getAdditionalResources() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public String getCachedResource() {
+            return "content";
+        }
+
+        @Override
+        public long getLastLoadTime() {
+            return this.lastLoadTime;
+        }
+
+        @Override
+        public long getLastCheckTime() {
+            return this.lastCheckTime;
+        }
+
+        @Override
+        public void setLastCheckTime(long lastCheckTime) {
+            this.lastCheckTime = lastCheckTime;
+        }
+
+        @Override
+        public Serializable getCacheKey() {
+            return this.lastLoadTime;
+        }
+    }
 }
@@ -0,0 +1,150 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class ConcurrentQualityOfServiceBlockingQueueTest {
+    @Test
+    public void testRoundRobinOrder() throws Exception {
+        final StringKeyQueue queue = new StringKeyQueue(10);
+        
+        queue.add("a1");
+        queue.add("a2");
+        queue.add("a3");
+        queue.add("b1");
+        queue.add("b2");
+        queue.add("c1");
+        
+        assertEquals(6, queue.size());
+        assertEquals(3, queue.getKeySize("a"));
+        
+        assertEquals("a1", queue.poll());
+        assertEquals("b1", queue.poll());
+        assertEquals("c1", queue.poll());
+        assertEquals("a2", queue.poll());
+        assertEquals("b2", queue.poll());
+        assertEquals("a3", queue.poll());
+        assertNull(queue.poll());
+        
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.isKeyEmpty("a"));
+    }
+    
+    @Test
+    public void testCapacity() throws Exception {
+        final StringKeyQueue queue = new StringKeyQueue(2);
+        
+        assertTrue(queue.offer("a1"));
+        assertTrue(queue.offer("b1"));
+        assertFalse(queue.offer("c1"));
+        assertFalse(queue.offer("c1", 10, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.remainingCapacity());
+        
+        assertTrue(queue.remove("a1"));
+        assertFalse(queue.remove("a1"));
+        assertEquals(1, queue.remainingCapacity());
+        
+        assertTrue(queue.offer("c1"));
+        
+        final List<String> drained = new ArrayList<String>();
+        assertEquals(2, queue.drainTo(drained));
+        assertEquals(2, drained.size());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+    }
+    
+    @Test
+    public void testConcurrentProducersConsumers() throws Exception {
+        final int threads = 8;
+        final int elementsPerProducer = 5000;
+        final StringKeyQueue queue = new StringKeyQueue(100);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads * 2);
+        try {
+            final List<Future<List<String>>> consumers = new ArrayList<Future<List<String>>>();
+            for (int t = 0; t < threads; t++) {
+                final int producer = t;
+                executorService.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        for (int i = 0; i < elementsPerProducer; i++) {
+                            queue.put((char)('a' + (i % 5)) + "-" + producer + "-" + i);
+                        }
+                        return null;
+                    }
+                });
+                
+                consumers.add(executorService.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        final List<String> consumed = new ArrayList<String>(elementsPerProducer);
+                        for (int i = 0; i < elementsPerProducer; i++) {
+                            consumed.add(queue.take());
+                        }
+                        return consumed;
+                    }
+                }));
+            }
+            
+            final List<String> allConsumed = new ArrayList<String>(threads * elementsPerProducer);
+            for (final Future<List<String>> consumer : consumers) {
+                allConsumed.addAll(consumer.get(30, TimeUnit.SECONDS));
+            }
+            
+            assertEquals(threads * elementsPerProducer, allConsumed.size());
+            assertEquals(threads * elementsPerProducer, new HashSet<String>(allConsumed).size());
+            assertTrue(queue.isEmpty());
+            assertEquals(Collections.emptyList(), new ArrayList<String>(queue));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    private static class StringKeyQueue extends ConcurrentQualityOfServiceBlockingQueue<String, String> {
+        public StringKeyQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected String getElementKey(String e) {
+            return e.substring(0, 1);
+        }
+    }
+}
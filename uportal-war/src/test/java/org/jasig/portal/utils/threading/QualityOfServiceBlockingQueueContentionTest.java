@@ -0,0 +1,209 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.utils.threading;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many producers and consumers against {@link QualityOfServiceBlockingQueue} and
+ * {@link ConcurrentQualityOfServiceBlockingQueue} with a small capacity and few keys so that
+ * both queues are heavily contended, verifies every element is taken exactly once and compares
+ * the throughput of the two queues.
+ * 
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class QualityOfServiceBlockingQueueContentionTest {
+    private static final int[] THREAD_COUNTS = { 8, 32, 128 };
+    private static final int KEY_COUNT = 5;
+    private static final int OPERATIONS_PER_THREAD = 2000;
+    private static final int CAPACITY = 10;
+    private static final int TIMED_RUNS = 3;
+    
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+    
+    @Test
+    public void testLockingQueueContention() throws Exception {
+        for (final int threads : THREAD_COUNTS) {
+            runContention(new LockingStringKeyQueue(CAPACITY), threads);
+        }
+    }
+    
+    @Test
+    public void testConcurrentQueueContention() throws Exception {
+        for (final int threads : THREAD_COUNTS) {
+            runContention(new ConcurrentStringKeyQueue(CAPACITY), threads);
+        }
+    }
+    
+    /**
+     * Times both queues at each thread count and logs the best of {@link #TIMED_RUNS} runs. Which queue is faster
+     * depends heavily on the number of CPUs so the result is logged rather than asserted, run this test on the
+     * target hardware before switching org.jasig.portal.portlet.worker.threadPool.queueType
+     */
+    @Test
+    public void testThroughputComparison() throws Exception {
+        for (final int threads : THREAD_COUNTS) {
+            long lockingBest = Long.MAX_VALUE;
+            long concurrentBest = Long.MAX_VALUE;
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                lockingBest = Math.min(lockingBest, runContention(new LockingStringKeyQueue(CAPACITY), threads));
+                concurrentBest = Math.min(concurrentBest, runContention(new ConcurrentStringKeyQueue(CAPACITY), threads));
+            }
+            
+            final long operations = threads * (long) OPERATIONS_PER_THREAD;
+            logger.info("{} producers/consumers on {} CPUs: QualityOfServiceBlockingQueue {} ops/s, ConcurrentQualityOfServiceBlockingQueue {} ops/s",
+                    new Object[] { threads, Runtime.getRuntime().availableProcessors(), 
+                            getOperationsPerSecond(operations, lockingBest), getOperationsPerSecond(operations, concurrentBest) });
+        }
+    }
+    
+    private long getOperationsPerSecond(long operations, long elapsedNanos) {
+        return operations * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos);
+    }
+    
+    /**
+     * Moves OPERATIONS_PER_THREAD unique elements from each producer through the queue and checks
+     * that each one was taken by exactly one consumer.
+     * 
+     * @return The time in nanoseconds it took to move all of the elements through the queue
+     */
+    private long runContention(final BlockingQueue<String> queue, int threads) throws Exception {
+        final Set<String> taken = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        
+        final ExecutorService executorService = Executors.newFixedThreadPool(threads * 2);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>(threads * 2);
+            for (int t = 0; t < threads; t++) {
+                final int producer = t;
+                futures.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        startLatch.await();
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            queue.put((i % KEY_COUNT) + ":" + producer + ":" + i);
+                        }
+                        return 0;
+                    }
+                }));
+                futures.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        startLatch.await();
+                        int duplicates = 0;
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final String e = queue.poll(30, TimeUnit.SECONDS);
+                            assertTrue("Timed out waiting for an element", e != null);
+                            if (!taken.add(e)) {
+                                duplicates++;
+                            }
+                        }
+                        return duplicates;
+                    }
+                }));
+            }
+            
+            final long start = System.nanoTime();
+            startLatch.countDown();
+            int duplicates = 0;
+            for (final Future<Integer> future : futures) {
+                duplicates += future.get(1, TimeUnit.MINUTES);
+            }
+            final long elapsed = System.nanoTime() - start;
+            
+            assertEquals(0, duplicates);
+            assertEquals(threads * OPERATIONS_PER_THREAD, taken.size());
+            assertEquals(0, queue.size());
+            assertNull(queue.poll());
+            
+            return elapsed;
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+    
+    private static class ConcurrentStringKeyQueue extends ConcurrentQualityOfServiceBlockingQueue<String, String> {
+        public ConcurrentStringKeyQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        protected String getElementKey(String e) {
+            return e.substring(0, e.indexOf(':'));
+        }
+    }
+    
+    /**
+     * Same round robin key selection as PortletWorkerExecutionQueue
+     */
+    private static class LockingStringKeyQueue extends QualityOfServiceBlockingQueue<String, String> {
+        private Iterator<String> keyIterator;
+        
+        public LockingStringKeyQueue(int capacity) {
+            super(capacity);
+            this.resetKeyIterator();
+        }
+
+        @Override
+        protected String getElementKey(String e) {
+            return e.substring(0, e.indexOf(':'));
+        }
+
+        @Override
+        protected String getNextElementKey() {
+            String key;
+            do {
+                if (!this.keyIterator.hasNext()) {
+                    this.resetKeyIterator();
+                }
+                key = this.keyIterator.next();
+            } while (this.isKeyEmpty(key));
+            
+            return key;
+        }
+        
+        private void resetKeyIterator() {
+            final Set<String> keySet = this.getKeySet();
+            this.keyIterator = keySet.iterator();
+        }
+    }
+}
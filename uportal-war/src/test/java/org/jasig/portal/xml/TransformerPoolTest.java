@@ -0,0 +1,122 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class TransformerPoolTest {
+    private static final String STYLESHEET = 
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+            "<xsl:param name=\"p\"/><xsl:template match=\"/\"><out><xsl:value-of select=\"$p\"/></out></xsl:template>" +
+            "</xsl:stylesheet>";
+    
+    private final Resource stylesheet = new ByteArrayResource(new byte[0], "test.xsl");
+    private TransformerPool transformerPool;
+    
+    @Before
+    public void setup() {
+        this.transformerPool = new TransformerPool();
+        this.transformerPool.setMaxIdle(2);
+        this.transformerPool.setPrewarmCount(1);
+    }
+    
+    @Test
+    public void testReuseAndReset() throws Exception {
+        final Templates templates = newTemplates();
+        this.setTemplates(templates);
+        
+        final Transformer prewarmed = this.transformerPool.borrowTransformer(this.stylesheet);
+        assertEquals(1, this.transformerPool.getHitCount());
+        
+        prewarmed.setParameter("p", "value");
+        this.transformerPool.returnTransformer(prewarmed);
+        assertEquals(1, this.transformerPool.getIdleCount());
+        
+        final Transformer reused = this.transformerPool.borrowTransformer(this.stylesheet);
+        assertSame(prewarmed, reused);
+        assertEquals(null, reused.getParameter("p"));
+        
+        //Pool is empty, new transformers are created
+        final Transformer created = this.transformerPool.borrowTransformer(this.stylesheet);
+        final Transformer another = this.transformerPool.borrowTransformer(this.stylesheet);
+        assertNotSame(reused, created);
+        assertEquals(2, this.transformerPool.getHitCount());
+        assertEquals(4, this.transformerPool.getBorrowCount());
+        assertEquals(3, this.transformerPool.getBorrowedCount());
+        
+        //Only maxIdle transformers are kept
+        this.transformerPool.returnTransformer(reused);
+        this.transformerPool.returnTransformer(created);
+        this.transformerPool.returnTransformer(another);
+        assertEquals(2, this.transformerPool.getIdleCount());
+        assertEquals(0, this.transformerPool.getBorrowedCount());
+    }
+    
+    @Test
+    public void testTemplatesReloaded() throws Exception {
+        final Templates templates = newTemplates();
+        this.setTemplates(templates);
+        
+        final Transformer borrowed = this.transformerPool.borrowTransformer(this.stylesheet);
+        
+        final Templates reloadedTemplates = newTemplates();
+        this.setTemplates(reloadedTemplates);
+        
+        final Transformer reloaded = this.transformerPool.borrowTransformer(this.stylesheet);
+        assertEquals(1, this.transformerPool.getInvalidationCount());
+        
+        //Transformers from the old templates are not pooled again
+        this.transformerPool.returnTransformer(borrowed);
+        this.transformerPool.returnTransformer(reloaded);
+        assertEquals(1, this.transformerPool.getIdleCount());
+        assertSame(reloaded, this.transformerPool.borrowTransformer(this.stylesheet));
+    }
+    
+    private void setTemplates(Templates templates) throws Exception {
+        final XmlUtilities xmlUtilities = EasyMock.createMock(XmlUtilities.class);
+        EasyMock.expect(xmlUtilities.getTemplates(this.stylesheet)).andReturn(templates).anyTimes();
+        EasyMock.replay(xmlUtilities);
+        this.transformerPool.setXmlUtilities(xmlUtilities);
+    }
+    
+    private static Templates newTemplates() throws Exception {
+        final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+        return transformerFactory.newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.jasig.portal.xml.stream;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.MatchResult;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.events.StartElement;
+
+import org.jasig.portal.character.stream.CharacterEventSource;
+import org.jasig.portal.character.stream.events.CharacterDataEvent;
+import org.jasig.portal.character.stream.events.CharacterDataEventImpl;
+import org.jasig.portal.character.stream.events.CharacterEvent;
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class CombinedChunkingPatternTest {
+    
+    @Test
+    public void testChunkGroups() throws Exception {
+        final Map<Pattern, CharacterEventSource> chunkingPatterns = new LinkedHashMap<Pattern, CharacterEventSource>();
+        chunkingPatterns.put(Pattern.compile("\\{up-portlet-title\\(([^\\)]+)\\)\\}"), new GroupEventSource("title"));
+        chunkingPatterns.put(Pattern.compile("\\{up-portlet-link\\(([^,]+),([^\\)]+)\\)\\}"), new GroupEventSource("link"));
+        
+        final CombinedChunkingPattern combinedChunkingPattern = new CombinedChunkingPattern(chunkingPatterns);
+        
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        combinedChunkingPattern.chunk(null, "<h2>{up-portlet-title(u1l1n1)}</h2><a href=\"{up-portlet-link(u1l1n2,/p/foo)}\">", characterEvents);
+        
+        assertEquals(
+                Arrays.asList("<h2>", "[title|u1l1n1]", "</h2><a href=\"", "[link|u1l1n2|/p/foo]", "\">"), 
+                toData(characterEvents));
+    }
+    
+    @Test
+    public void testChunkNoMatch() throws Exception {
+        final Map<Pattern, CharacterEventSource> chunkingPatterns = new LinkedHashMap<Pattern, CharacterEventSource>();
+        chunkingPatterns.put(Pattern.compile("\\{up-portlet-title\\(([^\\)]+)\\)\\}"), new GroupEventSource("title"));
+        
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        new CombinedChunkingPattern(chunkingPatterns).chunk(null, "<div>no placeholders</div>", characterEvents);
+        assertEquals(Arrays.asList("<div>no placeholders</div>"), toData(characterEvents));
+        
+        characterEvents.clear();
+        new CombinedChunkingPattern(null).chunk(null, "{up-portlet-title(u1l1n1)}", characterEvents);
+        assertEquals(Arrays.asList("{up-portlet-title(u1l1n1)}"), toData(characterEvents));
+    }
+    
+    @Test
+    public void testChunkPrecedenceAndFlags() throws Exception {
+        final Map<Pattern, CharacterEventSource> chunkingPatterns = new LinkedHashMap<Pattern, CharacterEventSource>();
+        chunkingPatterns.put(Pattern.compile("<(b|i)>x</\\1>"), new GroupEventSource("backref"));
+        chunkingPatterns.put(Pattern.compile("<(\\w)>(\\w)</\\1>"), new GroupEventSource("tag"));
+        chunkingPatterns.put(Pattern.compile("ABC", Pattern.CASE_INSENSITIVE), new GroupEventSource("abc"));
+        chunkingPatterns.put(Pattern.compile("a.c", Pattern.LITERAL), new GroupEventSource("literal"));
+        
+        final CombinedChunkingPattern combinedChunkingPattern = new CombinedChunkingPattern(chunkingPatterns);
+        
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        combinedChunkingPattern.chunk(null, "<b>x</b><u>y</u><b>x</i>a.cabc", characterEvents);
+        
+        assertEquals(
+                Arrays.asList("", "[backref|b]", "", "[tag|u|y]", "<b>x</i>", "[literal]", "", "[abc]", ""), 
+                toData(characterEvents));
+    }
+    
+    @Test
+    public void testLeadingCharacterPrefilter() throws Exception {
+        assertEquals('{', CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("\\{up-portlet-title\\(([^\\)]+)\\)\\}")));
+        assertEquals('<', CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("<(\\w)>")));
+        assertEquals('a', CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("a.c", Pattern.LITERAL)));
+        assertEquals(-1, CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("a|b")));
+        assertEquals(-1, CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("a?b")));
+        assertEquals(-1, CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("\\w+")));
+        assertEquals(-1, CombinedChunkingPattern.getLeadingCharacter(Pattern.compile("abc", Pattern.CASE_INSENSITIVE)));
+        
+        //Look-behind still sees the text before each candidate position
+        final Map<Pattern, CharacterEventSource> chunkingPatterns = new LinkedHashMap<Pattern, CharacterEventSource>();
+        chunkingPatterns.put(Pattern.compile("\\$(\\w+)(?<!x\\$\\w{1,10})"), new GroupEventSource("var"));
+        chunkingPatterns.put(Pattern.compile("#(\\w+)\\b"), new GroupEventSource("id"));
+        
+        final List<CharacterEvent> characterEvents = new ArrayList<CharacterEvent>();
+        new CombinedChunkingPattern(chunkingPatterns).chunk(null, "x$a $b #c#dd", characterEvents);
+        
+        assertEquals(Arrays.asList("x$a ", "[var|b]", " ", "[id|c]", "", "[id|dd]", ""), toData(characterEvents));
+    }
+    
+    private static List<String> toData(List<CharacterEvent> characterEvents) {
+        final List<String> data = new ArrayList<String>(characterEvents.size());
+        for (final CharacterEvent characterEvent : characterEvents) {
+            data.add(((CharacterDataEvent)characterEvent).getData());
+        }
+        return data;
+    }
+    
+    private static final class GroupEventSource implements CharacterEventSource {
+        private final String name;
+        
+        public GroupEventSource(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public List<CharacterEvent> getCharacterEvents(HttpServletRequest servletRequest, XMLEventReader eventReader, StartElement event) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<CharacterEvent> getCharacterEvents(HttpServletRequest servletRequest, MatchResult matchResult) {
+            final StringBuilder data = new StringBuilder("[").append(this.name);
+            for (int group = 1; group <= matchResult.groupCount(); group++) {
+                data.append('|').append(matchResult.group(group));
+            }
+            data.append(']');
+            return Collections.singletonList((CharacterEvent)new CharacterDataEventImpl(data.toString()));
+        }
+    }
+}
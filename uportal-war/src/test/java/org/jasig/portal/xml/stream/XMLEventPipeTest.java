@@ -0,0 +1,88 @@
+/**
+ * Licensed to Jasig under one or more contributor license
+ * agreements. See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Jasig licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a
+ * copy of the License at:
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.jasig.portal.xml.stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+
+import org.junit.Test;
+
+/**
+ * @author Eric Dalquist
+ * @version $Revision$
+ */
+public class XMLEventPipeTest {
+    
+    @Test
+    public void testPipeAllEvents() throws Exception {
+        final XMLEventPipe pipe = new XMLEventPipe(10, 2, 10000);
+        
+        final Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final XMLInputFactory xmlInputFactory = XMLInputFactory.newFactory();
+                    final InputStream xmlStream = XMLEventPipeTest.class.getResourceAsStream("document.xml");
+                    final XMLEventReader xmlEventReader = xmlInputFactory.createXMLEventReader(xmlStream);
+                    
+                    final XMLEventWriter writer = pipe.getWriter();
+                    writer.add(xmlEventReader);
+                    pipe.complete();
+                }
+                catch (Throwable t) {
+                    pipe.fail(t);
+                }
+            }
+        });
+        writerThread.start();
+        
+        final XMLEventReader reader = pipe.getReader();
+        int eventCount = 0;
+        while (reader.hasNext()) {
+            reader.peek();
+            reader.nextEvent();
+            eventCount++;
+        }
+        assertEquals(122, eventCount);
+        
+        writerThread.join();
+    }
+    
+    @Test
+    public void testPipeFailure() throws Exception {
+        final XMLEventPipe pipe = new XMLEventPipe(10, 2, 10000);
+        final IllegalStateException failure = new IllegalStateException();
+        pipe.fail(failure);
+        
+        try {
+            pipe.getReader().hasNext();
+            fail("Writer failure should be thrown by the reader");
+        }
+        catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+}